@@ -0,0 +1,159 @@
+/*
+ * Copyright 2024 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.thoughtcrime.securesms.database
+
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import org.junit.Assert.assertEquals
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.signal.core.util.delete
+import org.signal.core.util.insertInto
+import org.signal.core.util.readToList
+import org.signal.core.util.requireLong
+import org.signal.core.util.select
+import org.signal.core.util.toInt
+import org.signal.core.util.update
+import org.signal.core.util.withinTransaction
+import org.thoughtcrime.securesms.calls.log.CallLogFilter
+import org.thoughtcrime.securesms.calls.log.CallLogRow
+import org.thoughtcrime.securesms.recipients.RecipientId
+import org.thoughtcrime.securesms.testing.SignalActivityRule
+import java.util.concurrent.TimeUnit
+import kotlin.random.Random
+
+@RunWith(AndroidJUnit4::class)
+class CallTableTest_callLogGroups {
+
+  companion object {
+    private const val CALL_COUNT = 20_000
+    private val START_TIME = TimeUnit.DAYS.toMillis(365 * 50)
+    private val AVERAGE_GAP = TimeUnit.MINUTES.toMillis(20)
+
+    private val SEARCH_TERMS = listOf(null, "", "Buddy", "#3", "555", "Tester", "no match")
+  }
+
+  @get:Rule
+  val harness = SignalActivityRule(othersCount = 8, createGroup = true)
+
+  private val random = Random(20_000)
+  private val usedTimestamps: MutableSet<Long> = mutableSetOf()
+
+  private lateinit var peers: List<RecipientId>
+
+  @Before
+  fun setUp() {
+    peers = harness.others + harness.group!!.recipientId
+  }
+
+  @Test
+  fun givenARandomCallHistory_whenIGetCalls_thenIExpectTheSameRowsAsWithoutCallLogGroups() {
+    insertRandomCalls(CALL_COUNT)
+
+    assertCallLogsMatch()
+  }
+
+  @Test
+  fun givenARandomCallHistory_whenCallsChange_thenIExpectTheSameRowsAsWithoutCallLogGroups() {
+    insertRandomCalls(CALL_COUNT)
+    assertCallLogsMatch(searchTerms = listOf(null))
+
+    repeat(5) {
+      changeRandomCalls(100)
+      assertCallLogsMatch(searchTerms = listOf(null, "Buddy"))
+    }
+
+    assertCallLogsMatch()
+  }
+
+  @Test
+  fun givenARandomCallHistory_whenIPageThroughCalls_thenIExpectTheSamePagesAsWithoutCallLogGroups() {
+    insertRandomCalls(2_000)
+
+    for (filter in CallLogFilter.values()) {
+      for (offset in 0 until 200 step 50) {
+        assertEquals(
+          SignalDatabase.calls.getCallsWithoutCallLogGroups(offset, 50, null, filter).map { it.toComparable() },
+          SignalDatabase.calls.getCalls(offset, 50, null, filter).map { it.toComparable() }
+        )
+      }
+    }
+  }
+
+  private fun assertCallLogsMatch(searchTerms: List<String?> = SEARCH_TERMS) {
+    for (filter in CallLogFilter.values()) {
+      for (searchTerm in searchTerms) {
+        val expected = SignalDatabase.calls.getCallsWithoutCallLogGroups(0, 0, searchTerm, filter).map { it.toComparable() }
+        val actual = SignalDatabase.calls.getCalls(0, 0, searchTerm, filter).map { it.toComparable() }
+
+        assertEquals("filter: $filter, search: $searchTerm", expected, actual)
+        assertEquals("filter: $filter, search: $searchTerm", SignalDatabase.calls.getCallsCountWithoutCallLogGroups(searchTerm, filter), SignalDatabase.calls.getCallsCount(searchTerm, filter))
+        assertEquals("filter: $filter, search: $searchTerm", expected.size, SignalDatabase.calls.getCallsCount(searchTerm, filter))
+      }
+    }
+  }
+
+  private fun insertRandomCalls(count: Int) {
+    SignalDatabase.rawDatabase.withinTransaction { db ->
+      repeat(count) {
+        db.insertInto(CallTable.TABLE_NAME)
+          .values(
+            CallTable.CALL_ID to random.nextLong(),
+            CallTable.PEER to peers.random(random).serialize(),
+            CallTable.TYPE to CallTable.Type.serialize(CallTable.Type.values().random(random)),
+            CallTable.DIRECTION to CallTable.Direction.serialize(CallTable.Direction.values().random(random)),
+            CallTable.EVENT to CallTable.Event.serialize(CallTable.Event.values().random(random)),
+            CallTable.TIMESTAMP to nextTimestamp(),
+            CallTable.DELETION_TIMESTAMP to if (random.nextInt(10) == 0) START_TIME else 0L,
+            CallTable.LOCAL_JOINED to random.nextBoolean().toInt(),
+            CallTable.GROUP_CALL_ACTIVE to random.nextBoolean().toInt()
+          )
+          .run()
+      }
+    }
+  }
+
+  /**
+   * Changes calls in every way that can affect the call log, the way the rest of [CallTable] would.
+   */
+  private fun changeRandomCalls(count: Int) {
+    val callRowIds: List<Long> = SignalDatabase.rawDatabase
+      .select(CallTable.ID)
+      .from(CallTable.TABLE_NAME)
+      .run()
+      .readToList { it.requireLong(CallTable.ID) }
+
+    SignalDatabase.rawDatabase.withinTransaction { db ->
+      repeat(count) {
+        val id = callRowIds.random(random)
+
+        when (random.nextInt(6)) {
+          0 -> insertRandomCalls(1)
+          1 -> db.delete(CallTable.TABLE_NAME).where("${CallTable.ID} = ?", id).run()
+          2 -> db.update(CallTable.TABLE_NAME).values(CallTable.EVENT to CallTable.Event.serialize(CallTable.Event.values().random(random))).where("${CallTable.ID} = ?", id).run()
+          3 -> db.update(CallTable.TABLE_NAME).values(CallTable.TIMESTAMP to nextTimestamp()).where("${CallTable.ID} = ?", id).run()
+          4 -> db.update(CallTable.TABLE_NAME).values(CallTable.DELETION_TIMESTAMP to START_TIME).where("${CallTable.ID} = ?", id).run()
+          5 -> db.update(CallTable.TABLE_NAME).values(CallTable.LOCAL_JOINED to random.nextBoolean().toInt(), CallTable.GROUP_CALL_ACTIVE to random.nextBoolean().toInt()).where("${CallTable.ID} = ?", id).run()
+        }
+      }
+    }
+  }
+
+  /** The existing query orders calls with the same timestamp arbitrarily, so every call gets its own. */
+  private fun nextTimestamp(): Long {
+    while (true) {
+      val timestamp = START_TIME + random.nextLong(CALL_COUNT * AVERAGE_GAP)
+      if (usedTimestamps.add(timestamp)) {
+        return timestamp
+      }
+    }
+  }
+
+  private fun CallLogRow.Call.toComparable(): List<Any?> {
+    return listOf(record, date, peer.id, children.toList(), groupCallState, canUserBeginCall)
+  }
+}
@@ -9,6 +9,7 @@ import org.junit.Test
 import org.signal.core.util.deleteAll
 import org.signal.core.util.readToList
 import org.signal.core.util.requireLong
+import org.signal.core.util.select
 import org.signal.core.util.withinTransaction
 import org.signal.libsignal.zkgroup.groups.GroupMasterKey
 import org.signal.storageservice.protos.groups.Member
@@ -18,7 +19,9 @@ import org.thoughtcrime.securesms.groups.GroupId
 import org.thoughtcrime.securesms.recipients.Recipient
 import org.thoughtcrime.securesms.recipients.RecipientId
 import org.thoughtcrime.securesms.testing.SignalActivityRule
+import org.whispersystems.signalservice.api.push.ServiceId.ACI
 import java.security.SecureRandom
+import java.util.UUID
 import kotlin.random.Random
 
 class GroupTableTest {
@@ -195,6 +198,45 @@ class GroupTableTest {
     assertEquals(groups[0].id, groupInCommon)
   }
 
+  @Test
+  fun givenALargeGroup_whenIApplySuccessiveMemberChanges_thenIExpectMemberRowsToMatch() {
+    val self = DecryptedMember.Builder()
+      .aciBytes(harness.self.requireAci().toByteString())
+      .joinedAtRevision(0)
+      .role(Member.Role.DEFAULT)
+      .build()
+
+    var members: List<DecryptedMember> = listOf(self) + (1 until 1000).map { randomMember(0) }
+
+    val groupMasterKey = GroupMasterKey(Random.nextBytes(GroupMasterKey.SIZE))
+    val groupId = groupTable.create(groupMasterKey, DecryptedGroup.Builder().members(members).revision(0).build())!!
+
+    for (revision in 1..100) {
+      members = members.filterIndexed { index, _ -> index != 1 } + randomMember(revision)
+      groupTable.update(groupMasterKey, DecryptedGroup.Builder().members(members).revision(revision).build())
+    }
+
+    val expected: Set<RecipientId> = members.map { RecipientId.from(ACI.parseOrThrow(it.aciBytes)) }.toSet()
+    val actual: Set<RecipientId> = groupTable.readableDatabase
+      .select(GroupTable.MembershipTable.RECIPIENT_ID)
+      .from(GroupTable.MembershipTable.TABLE_NAME)
+      .where("${GroupTable.MembershipTable.GROUP_ID} = ?", groupId)
+      .run()
+      .readToList { RecipientId.from(it.requireLong(GroupTable.MembershipTable.RECIPIENT_ID)) }
+      .toSet()
+
+    assertEquals(1000, actual.size)
+    assertEquals(expected, actual)
+  }
+
+  private fun randomMember(revision: Int): DecryptedMember {
+    return DecryptedMember.Builder()
+      .aciBytes(ACI.from(UUID.randomUUID()).toByteString())
+      .joinedAtRevision(revision)
+      .role(Member.Role.DEFAULT)
+      .build()
+  }
+
   private fun insertThread(groupId: GroupId): Long {
     val groupRecipient = SignalDatabase.recipients.getByGroupId(groupId).get()
     return SignalDatabase.threads.getOrCreateThreadIdFor(Recipient.resolved(groupRecipient))
@@ -205,9 +247,7 @@ class GroupTableTest {
     groupTable.create(
       id,
       null,
-      members.apply {
-        println("Creating a group with ${members.size} members")
-      }
+      members
     )
 
     return id
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2024 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.thoughtcrime.securesms.database
+
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.signal.core.util.readToList
+import org.signal.core.util.readToSingleLong
+import org.thoughtcrime.securesms.database.model.MessageId
+import org.thoughtcrime.securesms.recipients.RecipientId
+import org.whispersystems.signalservice.api.crypto.ContentHint
+import org.whispersystems.signalservice.api.messages.SendMessageResult
+import org.whispersystems.signalservice.api.push.ServiceId.ACI
+import org.whispersystems.signalservice.api.push.SignalServiceAddress
+import org.whispersystems.signalservice.internal.push.Content
+import org.whispersystems.signalservice.internal.push.DataMessage
+import java.util.Optional
+import java.util.UUID
+
+@RunWith(AndroidJUnit4::class)
+class MessageSendLogTablesTest {
+
+  companion object {
+    private const val ENTRY_COUNT = 10_000
+    private const val RECIPIENT_COUNT = 500
+    private const val ENTRIES_PER_CONTENT = 4
+  }
+
+  private val address = SignalServiceAddress(ACI.from(UUID.randomUUID()))
+  private val startTime = System.currentTimeMillis() - ENTRY_COUNT
+
+  @Before
+  fun setUp() {
+    SignalDatabase.messageLog.deleteAll()
+  }
+
+  @Test
+  fun givenManyEntriesSharingContent_whenIGetThem_thenIExpectEachToHaveItsOwnContentAndMetadata() {
+    insertEntries()
+
+    assertEquals(ENTRY_COUNT.toLong(), count("msl_payload"))
+    assertEquals((ENTRY_COUNT / ENTRIES_PER_CONTENT).toLong(), count("msl_content"))
+
+    for (i in 0 until ENTRY_COUNT step 7) {
+      val entry = SignalDatabase.messageLog.getLogEntry(recipientId(i), 1, dateSent(i))
+
+      assertNotNull(entry)
+      assertEquals(content(i), entry!!.content)
+      assertEquals(contentHint(i), entry.contentHint)
+      assertEquals(i % 2 == 0, entry.urgent)
+      assertEquals(listOf(MessageId(i + 1L)), entry.relatedMessages)
+    }
+  }
+
+  @Test
+  fun givenManyEntries_whenIDeleteRecipients_thenIExpectExactlyTheOrphanedPayloadsAndContentToBeReclaimed() {
+    insertEntries()
+
+    val deletedRecipients = (0 until RECIPIENT_COUNT step 3).map { recipientId(it) }.toSet()
+    deletedRecipients.forEach { SignalDatabase.messageLog.deleteAllForRecipient(it) }
+
+    for (i in 0 until ENTRY_COUNT step 5) {
+      if (recipientId(i) !in deletedRecipients) {
+        SignalDatabase.messageLog.deleteEntryForRecipient(dateSent(i), recipientId(i), 1)
+      }
+    }
+
+    val remaining = (0 until ENTRY_COUNT).filter { recipientId(it) !in deletedRecipients && it % 5 != 0 }.toSet()
+
+    assertEquals(remaining.size.toLong(), count("msl_payload"))
+    assertEquals(remaining.map { it / ENTRIES_PER_CONTENT }.distinct().size.toLong(), count("msl_content"))
+    assertEquals(remaining.size.toLong(), SignalDatabase.rawDatabase.rawQuery("SELECT SUM(ref_count) FROM msl_content", null).readToSingleLong())
+    assertEquals(0L, count("msl_content", "ref_count <= 0"))
+    assertEquals(0L, count("msl_message", "payload_id NOT IN (SELECT _id FROM msl_payload)"))
+
+    for (i in 0 until ENTRY_COUNT step 3) {
+      val entry = SignalDatabase.messageLog.getLogEntry(recipientId(i), 1, dateSent(i))
+
+      if (i in remaining) {
+        assertEquals(content(i), entry!!.content)
+      } else {
+        assertNull(entry)
+      }
+    }
+
+    SignalDatabase.messageLog.deleteAll()
+
+    assertEquals(0L, count("msl_payload"))
+    assertEquals(0L, count("msl_content"))
+  }
+
+  @Test
+  fun givenCleanupTriggers_whenIExplainThem_thenIExpectNoneToScanATable() {
+    val statements = MessageSendLogTables.TRIGGER_STATEMENTS.map { it.replace(Regex("(old|new)\\.\\w+"), "?") } + listOf(
+      "DELETE FROM msl_recipient WHERE recipient_id = ?",
+      "DELETE FROM msl_recipient WHERE recipient_id = ? AND device = ? AND payload_id IN (SELECT _id FROM msl_payload WHERE date_sent IN (1, 2, 3))",
+      "DELETE FROM msl_payload WHERE date_sent < ?"
+    )
+
+    statements.forEach { statement ->
+      val args = Array<Any>(statement.count { it == '?' }) { 1 }
+      val plan = SignalDatabase.rawDatabase.rawQuery("EXPLAIN QUERY PLAN $statement", args).readToList { it.getString(3) }
+
+      assertTrue("$statement\n$plan", plan.none { it.startsWith("SCAN ") })
+    }
+  }
+
+  private fun insertEntries() {
+    SignalDatabase.rawDatabase.beginTransaction()
+    try {
+      for (i in 0 until ENTRY_COUNT) {
+        val result = SendMessageResult.success(address, listOf(1), false, false, 0, Optional.of(content(i)))
+        SignalDatabase.messageLog.insertIfPossible(recipientId(i), dateSent(i), result, contentHint(i), MessageId(i + 1L), i % 2 == 0)
+      }
+      SignalDatabase.rawDatabase.setTransactionSuccessful()
+    } finally {
+      SignalDatabase.rawDatabase.endTransaction()
+    }
+  }
+
+  private fun count(table: String, where: String = "1"): Long {
+    return SignalDatabase.rawDatabase.rawQuery("SELECT COUNT(*) FROM $table WHERE $where", null).readToSingleLong()
+  }
+
+  private fun recipientId(i: Int): RecipientId = RecipientId.from(1L + i % RECIPIENT_COUNT)
+
+  private fun dateSent(i: Int): Long = startTime + i
+
+  private fun contentHint(i: Int): ContentHint = if (i % 3 == 0) ContentHint.RESENDABLE else ContentHint.DEFAULT
+
+  private fun content(i: Int): Content {
+    return Content.Builder()
+      .dataMessage(
+        DataMessage.Builder()
+          .body("Message ${i / ENTRIES_PER_CONTENT}")
+          .timestamp((i / ENTRIES_PER_CONTENT).toLong())
+          .build()
+      )
+      .build()
+  }
+}
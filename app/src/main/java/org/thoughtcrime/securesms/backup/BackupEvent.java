@@ -10,11 +10,19 @@ public class BackupEvent {
   private final Type type;
   private final long count;
   private final long estimatedTotalCount;
+  private final long bytesWritten;
+  private final long elapsedMs;
 
   public BackupEvent(Type type, long count, long estimatedTotalCount) {
+    this(type, count, estimatedTotalCount, 0, 0);
+  }
+
+  public BackupEvent(Type type, long count, long estimatedTotalCount, long bytesWritten, long elapsedMs) {
     this.type                = type;
     this.count               = count;
     this.estimatedTotalCount = estimatedTotalCount;
+    this.bytesWritten        = bytesWritten;
+    this.elapsedMs           = elapsedMs;
   }
 
   public Type getType() {
@@ -29,6 +37,28 @@ public class BackupEvent {
     return estimatedTotalCount;
   }
 
+  /**
+   * @return The number of backup bytes written so far, or 0 if not known for this event.
+   */
+  public long getBytesWritten() {
+    return bytesWritten;
+  }
+
+  public long getElapsedMs() {
+    return elapsedMs;
+  }
+
+  /**
+   * @return The average write throughput so far, or 0 if not known for this event.
+   */
+  public long getBytesPerSecond() {
+    if (elapsedMs <= 0) {
+      return 0;
+    }
+
+    return bytesWritten * 1000 / elapsedMs;
+  }
+
   public double getCompletionPercentage() {
     if (estimatedTotalCount == 0) {
       return 0;
@@ -50,7 +50,8 @@ class BackupFrameOutputStream extends FullBackupBase.BackupStream {
   private final byte[] iv;
   private       int    counter;
 
-  private int frames;
+  private int  frames;
+  private long bytesWritten;
 
   BackupFrameOutputStream(@NonNull OutputStream output, @NonNull String passphrase) throws IOException {
     try {
@@ -181,6 +182,7 @@ class BackupFrameOutputStream extends FullBackupBase.BackupStream {
         if (ciphertext != null) {
           outputStream.write(ciphertext);
           mac.update(ciphertext);
+          bytesWritten += ciphertext.length;
         }
 
         total += read;
@@ -192,6 +194,7 @@ class BackupFrameOutputStream extends FullBackupBase.BackupStream {
 
       byte[] attachmentDigest = mac.doFinal();
       outputStream.write(attachmentDigest, 0, 10);
+      bytesWritten += remainder.length + 10;
 
       return total;
     } catch (InvalidKeyException | InvalidAlgorithmParameterException | IllegalBlockSizeException | BadPaddingException e) {
@@ -228,6 +231,7 @@ class BackupFrameOutputStream extends FullBackupBase.BackupStream {
       out.write(frameCiphertext);
       out.write(frameMac, 0, 10);
       frames++;
+      bytesWritten += length.length + frameCiphertext.length + 10;
     } catch (InvalidKeyException | InvalidAlgorithmParameterException | IllegalBlockSizeException | BadPaddingException e) {
       throw new AssertionError(e);
     }
@@ -241,4 +245,11 @@ class BackupFrameOutputStream extends FullBackupBase.BackupStream {
   public int getFrames() {
     return frames;
   }
+
+  /**
+   * @return The number of bytes written after the header.
+   */
+  public long getBytesWritten() {
+    return bytesWritten;
+  }
 }
@@ -20,6 +20,9 @@ import org.signal.core.util.CursorUtil;
 import org.signal.core.util.SetUtil;
 import org.signal.core.util.SqlUtil;
 import org.signal.core.util.Stopwatch;
+import org.signal.core.util.StreamUtil;
+import org.signal.core.util.ThreadUtil;
+import org.signal.core.util.concurrent.SignalExecutors;
 import org.signal.core.util.logging.Log;
 import org.thoughtcrime.securesms.attachments.AttachmentId;
 import org.thoughtcrime.securesms.backup.proto.KeyValue;
@@ -28,10 +31,12 @@ import org.thoughtcrime.securesms.backup.proto.SqlStatement;
 import org.thoughtcrime.securesms.crypto.AttachmentSecret;
 import org.thoughtcrime.securesms.crypto.ModernDecryptingPartInputStream;
 import org.thoughtcrime.securesms.database.AttachmentTable;
+import org.thoughtcrime.securesms.database.CallTable;
 import org.thoughtcrime.securesms.database.EmojiSearchTable;
 import org.thoughtcrime.securesms.database.GroupReceiptTable;
 import org.thoughtcrime.securesms.database.KeyValueDatabase;
 import org.thoughtcrime.securesms.database.MentionTable;
+import org.thoughtcrime.securesms.database.MessageSendLogTables;
 import org.thoughtcrime.securesms.database.MessageTable;
 import org.thoughtcrime.securesms.database.OneTimePreKeyTable;
 import org.thoughtcrime.securesms.database.PendingRetryReceiptTable;
@@ -50,11 +55,14 @@ import org.thoughtcrime.securesms.keyvalue.SignalStore;
 import org.thoughtcrime.securesms.profiles.AvatarHelper;
 import org.thoughtcrime.securesms.util.TextSecurePreferences;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -64,6 +72,12 @@ import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
@@ -79,6 +93,11 @@ public class FullBackupExporter extends FullBackupBase {
   private static final long FINAL_MESSAGE_COUNT              = 1L;
   private static final long EXPIRATION_BACKUP_THRESHOLD      = TimeUnit.DAYS.toMillis(1);
 
+  private static final int FRAME_QUEUE_SIZE        = 1000;
+  private static final int PAYLOAD_WORKERS         = 4;
+  private static final int BUFFERED_PAYLOAD_MAX    = 4 * 1024 * 1024;
+  private static final int BUFFERED_PAYLOAD_BUDGET = 32 * 1024 * 1024;
+
   /**
    * Tables in list will still have their *schema* exported (so the tables will be created),
    * but we will not export the actual contents.
@@ -88,6 +107,7 @@ public class FullBackupExporter extends FullBackupBase {
       OneTimePreKeyTable.TABLE_NAME,
       SessionTable.TABLE_NAME,
       SearchTable.FTS_TABLE_NAME,
+      SearchTable.PENDING_TABLE_NAME,
       EmojiSearchTable.TABLE_NAME,
       SenderKeyTable.TABLE_NAME,
       SenderKeySharedTable.TABLE_NAME,
@@ -97,6 +117,11 @@ public class FullBackupExporter extends FullBackupBase {
       RemappedRecordTables.Threads.TABLE_NAME
   );
 
+  static {
+    TABLE_CONTENT_BLOCKLIST.addAll(CallTable.CALL_LOG_GROUP_TABLE_NAMES);
+    TABLE_CONTENT_BLOCKLIST.addAll(MessageSendLogTables.TABLE_NAMES);
+  }
+
   public static BackupEvent export(@NonNull Context context,
                             @NonNull AttachmentSecret attachmentSecret,
                             @NonNull SQLiteDatabase input,
@@ -134,6 +159,15 @@ public class FullBackupExporter extends FullBackupBase {
     EventBus.getDefault().post(internalExport(context, attachmentSecret, input, outputStream, passphrase, false, () -> false));
   }
 
+  /**
+   * Writes the backup in a pipeline:
+   *
+   * - A reader thread walks the tables, preferences, key values and avatars, and hands ready-to-write frames to this thread through a
+   *   bounded queue.
+   * - Attachment and sticker payloads are decrypted by a pool of workers. Small payloads are buffered in memory, within a fixed budget,
+   *   while large ones are left to be streamed when their turn comes.
+   * - This thread is the only one that writes to the {@link BackupFrameOutputStream}, in the order the reader produced the frames.
+   */
   private static BackupEvent internalExport(@NonNull Context context,
                                             @NonNull AttachmentSecret attachmentSecret,
                                             @NonNull SQLiteDatabase input,
@@ -146,6 +180,11 @@ public class FullBackupExporter extends FullBackupBase {
     BackupFrameOutputStream outputStream          = new BackupFrameOutputStream(fileOutputStream, passphrase);
     int                     count                 = 0;
     long                    estimatedCountOutside;
+    long                    startTime             = System.currentTimeMillis();
+
+    BlockingQueue<ExportFrame> frames             = new ArrayBlockingQueue<>(FRAME_QUEUE_SIZE);
+    ExecutorService            attachmentExecutor = SignalExecutors.newCachedBoundedExecutor("signal-backup-export", ThreadUtil.PRIORITY_IMPORTANT_BACKGROUND_THREAD, 1, PAYLOAD_WORKERS, 5);
+    Thread                     readerThread       = null;
 
     try {
       outputStream.writeDatabaseVersion(input.getVersion());
@@ -157,60 +196,46 @@ public class FullBackupExporter extends FullBackupBase {
       final long estimatedCount = calculateCount(context, input, tables);
       estimatedCountOutside = estimatedCount;
 
-      Stopwatch stopwatch = new Stopwatch("Backup");
+      readerThread = new Thread(new FrameProducer(context, attachmentSecret, input, tables, frames, attachmentExecutor, cancellationSignal), "signal-backup-export-reader");
+      readerThread.start();
 
-      for (String table : tables) {
-        throwIfCanceled(cancellationSignal);
-        if (table.equals(MessageTable.TABLE_NAME)) {
-          count = exportTable(table, input, outputStream, cursor -> isNonExpiringMessage(input, cursor), null, count, estimatedCount, cancellationSignal);
-        } else if (table.equals(ReactionTable.TABLE_NAME)) {
-          count = exportTable(table, input, outputStream, cursor -> isForNonExpiringMessage(input, CursorUtil.requireLong(cursor, ReactionTable.MESSAGE_ID)), null, count, estimatedCount, cancellationSignal);
-        } else if (table.equals(MentionTable.TABLE_NAME)) {
-          count = exportTable(table, input, outputStream, cursor -> isForNonExpiringMessage(input, CursorUtil.requireLong(cursor, MentionTable.MESSAGE_ID)), null, count, estimatedCount, cancellationSignal);
-        } else if (table.equals(GroupReceiptTable.TABLE_NAME)) {
-          count = exportTable(table, input, outputStream, cursor -> isForNonExpiringMessage(input, cursor.getLong(cursor.getColumnIndexOrThrow(GroupReceiptTable.MMS_ID))), null, count, estimatedCount, cancellationSignal);
-        } else if (table.equals(AttachmentTable.TABLE_NAME)) {
-          count = exportTable(table, input, outputStream, cursor -> isForNonExpiringMessage(input, cursor.getLong(cursor.getColumnIndexOrThrow(AttachmentTable.MESSAGE_ID))), (cursor, innerCount) -> exportAttachment(attachmentSecret, cursor, outputStream, innerCount, estimatedCount), count, estimatedCount, cancellationSignal);
-        } else if (table.equals(StickerTable.TABLE_NAME)) {
-          count = exportTable(table, input, outputStream, cursor -> true, (cursor, innerCount) -> exportSticker(attachmentSecret, cursor, outputStream, innerCount, estimatedCount), count, estimatedCount, cancellationSignal);
-        } else if (!TABLE_CONTENT_BLOCKLIST.contains(table)) {
-          count = exportTable(table, input, outputStream, null, null, count, estimatedCount, cancellationSignal);
-        }
-        stopwatch.split("table::" + table);
-      }
+      ExportFrame frame;
 
-      for (SharedPreference preference : TextSecurePreferences.getPreferencesToSaveToBackup(context)) {
+      while ((frame = take(frames)) != END_OF_FRAMES) {
         throwIfCanceled(cancellationSignal);
-        EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, ++count, estimatedCount));
-        outputStream.write(preference);
-      }
-
-      stopwatch.split("prefs");
 
-      count = exportKeyValues(outputStream, SignalStore.getKeysToIncludeInBackup(), count, estimatedCount, cancellationSignal);
-
-      stopwatch.split("key_values");
-
-      for (AvatarHelper.Avatar avatar : AvatarHelper.getAvatars(context)) {
-        throwIfCanceled(cancellationSignal);
-        if (avatar != null) {
-          EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, ++count, estimatedCount));
-          try (InputStream inputStream = avatar.getInputStream()) {
-            outputStream.write(avatar.getFilename(), inputStream, avatar.getLength());
-          }
+        if (!(frame instanceof Failure)) {
+          EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, ++count, estimatedCount, outputStream.getBytesWritten(), System.currentTimeMillis() - startTime));
         }
-      }
 
-      stopwatch.split("avatars");
-      stopwatch.stop(TAG);
+        frame.write(outputStream);
+      }
 
       outputStream.writeEnd();
     } finally {
+      if (readerThread != null) {
+        readerThread.interrupt();
+      }
+
+      attachmentExecutor.shutdownNow();
+
       if (closeOutputStream) {
         outputStream.close();
       }
     }
-    return new BackupEvent(BackupEvent.Type.FINISHED, outputStream.getFrames(), estimatedCountOutside);
+
+    long elapsed = System.currentTimeMillis() - startTime;
+    Log.i(TAG, "Wrote " + outputStream.getFrames() + " frames (" + outputStream.getBytesWritten() + " bytes) in " + elapsed + " ms");
+
+    return new BackupEvent(BackupEvent.Type.FINISHED, outputStream.getFrames(), estimatedCountOutside, outputStream.getBytesWritten(), elapsed);
+  }
+
+  private static @NonNull ExportFrame take(@NonNull BlockingQueue<ExportFrame> frames) throws IOException {
+    try {
+      return frames.take();
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException();
+    }
   }
 
   private static long calculateCount(@NonNull Context context, @NonNull SQLiteDatabase input, List<String> tables) {
@@ -377,129 +402,6 @@ public class FullBackupExporter extends FullBackupBase {
            !isEmojiFtsSecretTable;
   }
 
-  private static int exportTable(@NonNull String table,
-                                 @NonNull SQLiteDatabase input,
-                                 @NonNull BackupFrameOutputStream outputStream,
-                                 @Nullable Predicate<Cursor> predicate,
-                                 @Nullable PostProcessor postProcess,
-                                 int count,
-                                 long estimatedCount,
-                                 @NonNull BackupCancellationSignal cancellationSignal)
-      throws IOException
-  {
-    Log.d(TAG, "Exporting table: " + table);
-
-    String template = "INSERT INTO " + table + " VALUES ";
-
-    try (Cursor cursor = input.rawQuery("SELECT * FROM " + table, null)) {
-      while (cursor != null && cursor.moveToNext()) {
-        throwIfCanceled(cancellationSignal);
-
-        if (predicate == null || predicate.test(cursor)) {
-          StringBuilder        statement        = new StringBuilder(template);
-          SqlStatement.Builder statementBuilder = new SqlStatement.Builder();
-
-          statementBuilder.parameters = new ArrayList<>();
-
-          statement.append('(');
-
-          for (int i = 0; i < cursor.getColumnCount(); i++) {
-            statement.append('?');
-
-            if (cursor.getType(i) == Cursor.FIELD_TYPE_STRING) {
-              statementBuilder.parameters.add(new SqlStatement.SqlParameter.Builder().stringParamter(cursor.getString(i)).build());
-            } else if (cursor.getType(i) == Cursor.FIELD_TYPE_FLOAT) {
-              statementBuilder.parameters.add(new SqlStatement.SqlParameter.Builder().doubleParameter(cursor.getDouble(i)).build());
-            } else if (cursor.getType(i) == Cursor.FIELD_TYPE_INTEGER) {
-              statementBuilder.parameters.add(new SqlStatement.SqlParameter.Builder().integerParameter(cursor.getLong(i)).build());
-            } else if (cursor.getType(i) == Cursor.FIELD_TYPE_BLOB) {
-              statementBuilder.parameters.add(new SqlStatement.SqlParameter.Builder().blobParameter(new ByteString(cursor.getBlob(i))).build());
-            } else if (cursor.getType(i) == Cursor.FIELD_TYPE_NULL) {
-              statementBuilder.parameters.add(new SqlStatement.SqlParameter.Builder().nullparameter(true).build());
-            } else {
-              throw new AssertionError("unknown type?" + cursor.getType(i));
-            }
-
-            if (i < cursor.getColumnCount() - 1) {
-              statement.append(',');
-            }
-          }
-
-          statement.append(')');
-
-          EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, ++count, estimatedCount));
-          outputStream.write(statementBuilder.statement(statement.toString()).build());
-
-          if (postProcess != null) {
-            count = postProcess.postProcess(cursor, count);
-          }
-        }
-      }
-    }
-
-    return count;
-  }
-
-  private static int exportAttachment(@NonNull AttachmentSecret attachmentSecret,
-                                      @NonNull Cursor cursor,
-                                      @NonNull BackupFrameOutputStream outputStream,
-                                      int count,
-                                      long estimatedCount)
-      throws IOException
-  {
-    long rowId = cursor.getLong(cursor.getColumnIndexOrThrow(AttachmentTable.ID));
-    long size  = cursor.getLong(cursor.getColumnIndexOrThrow(AttachmentTable.DATA_SIZE));
-
-    String data   = cursor.getString(cursor.getColumnIndexOrThrow(AttachmentTable.DATA_FILE));
-    byte[] random = cursor.getBlob(cursor.getColumnIndexOrThrow(AttachmentTable.DATA_RANDOM));
-
-    if (!TextUtils.isEmpty(data)) {
-      long fileLength = new File(data).length();
-      long dbLength   = size;
-
-      if (size <= 0 || fileLength != dbLength) {
-        size = calculateVeryOldStreamLength(attachmentSecret, random, data);
-        Log.w(TAG, "Needed size calculation! Manual: " + size + " File: " + fileLength + "  DB: " + dbLength + " ID: " + new AttachmentId(rowId));
-      }
-    }
-
-    EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, ++count, estimatedCount));
-    if (!TextUtils.isEmpty(data) && size > 0) {
-      try (InputStream inputStream = openAttachmentStream(attachmentSecret, random, data)) {
-        outputStream.write(new AttachmentId(rowId), inputStream, size);
-      } catch (FileNotFoundException e) {
-        Log.w(TAG, "Missing attachment", e);
-      }
-    }
-
-    return count;
-  }
-
-  private static int exportSticker(@NonNull AttachmentSecret attachmentSecret,
-                                   @NonNull Cursor cursor,
-                                   @NonNull BackupFrameOutputStream outputStream,
-                                   int count,
-                                   long estimatedCount)
-      throws IOException
-  {
-    long rowId = cursor.getLong(cursor.getColumnIndexOrThrow(StickerTable._ID));
-    long size  = cursor.getLong(cursor.getColumnIndexOrThrow(StickerTable.FILE_LENGTH));
-
-    String data   = cursor.getString(cursor.getColumnIndexOrThrow(StickerTable.FILE_PATH));
-    byte[] random = cursor.getBlob(cursor.getColumnIndexOrThrow(StickerTable.FILE_RANDOM));
-
-    if (!TextUtils.isEmpty(data) && size > 0) {
-      EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, ++count, estimatedCount));
-      try (InputStream inputStream = ModernDecryptingPartInputStream.createFor(attachmentSecret, random, new File(data), 0)) {
-        outputStream.writeSticker(rowId, inputStream, size);
-      } catch (FileNotFoundException e) {
-        Log.w(TAG, "Missing sticker", e);
-      }
-    }
-
-    return count;
-  }
-
   private static long calculateVeryOldStreamLength(@NonNull AttachmentSecret attachmentSecret, @Nullable byte[] random, @NonNull String data) {
     long result = 0;
 
@@ -525,58 +427,6 @@ public class FullBackupExporter extends FullBackupBase {
     return ModernDecryptingPartInputStream.createFor(attachmentSecret, random, new File(data), 0);
   }
 
-  private static int exportKeyValues(@NonNull BackupFrameOutputStream outputStream,
-                                     @NonNull List<String> keysToIncludeInBackup,
-                                     int count,
-                                     long estimatedCount,
-                                     BackupCancellationSignal cancellationSignal) throws IOException
-  {
-    KeyValueDataSet dataSet = KeyValueDatabase.getInstance(ApplicationDependencies.getApplication())
-                                              .getDataSet();
-
-    for (String key : keysToIncludeInBackup) {
-      throwIfCanceled(cancellationSignal);
-      if (!dataSet.containsKey(key)) {
-        continue;
-      }
-
-      KeyValue.Builder builder = new KeyValue.Builder()
-                                             .key(key);
-
-      Class<?> type = dataSet.getType(key);
-      if (type == byte[].class) {
-        byte[] data = dataSet.getBlob(key, null);
-        if (data != null) {
-          builder.blobValue(new ByteString(dataSet.getBlob(key, null)));
-        } else {
-          Log.w(TAG, "Skipping storing null blob for key: " + key);
-        }
-      } else if (type == Boolean.class) {
-        builder.booleanValue(dataSet.getBoolean(key, false));
-      } else if (type == Float.class) {
-        builder.floatValue(dataSet.getFloat(key, 0));
-      } else if (type == Integer.class) {
-        builder.integerValue(dataSet.getInteger(key, 0));
-      } else if (type == Long.class) {
-        builder.longValue(dataSet.getLong(key, 0));
-      } else if (type == String.class) {
-        String data = dataSet.getString(key, null);
-        if (data != null) {
-          builder.stringValue(dataSet.getString(key, null));
-        } else {
-          Log.w(TAG, "Skipping storing null string for key: " + key);
-        }
-      } else {
-        throw new AssertionError("Unknown type: " + type);
-      }
-
-      EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, ++count, estimatedCount));
-      outputStream.write(builder.build());
-    }
-
-    return count;
-  }
-
   private static boolean isNonExpiringMessage(@NonNull SQLiteDatabase db, @NonNull Cursor cursor) {
     long id                = CursorUtil.requireLong(cursor, MessageTable.ID);
     long expireStarted     = CursorUtil.requireLong(cursor, MessageTable.EXPIRE_STARTED);
@@ -611,8 +461,414 @@ public class FullBackupExporter extends FullBackupBase {
     return false;
   }
 
-  public interface PostProcessor {
-    int postProcess(@NonNull Cursor cursor, int count) throws IOException;
+  private interface PostProcessor {
+    void postProcess(@NonNull Cursor cursor) throws IOException;
+  }
+
+  /**
+   * A frame ready to be written, in order, by the thread that owns the {@link BackupFrameOutputStream}. Each frame other than a
+   * {@link Failure} counts as one unit of progress, whether or not it ends up writing anything.
+   */
+  private interface ExportFrame {
+    void write(@NonNull BackupFrameOutputStream outputStream) throws IOException;
+  }
+
+  private static final ExportFrame END_OF_FRAMES = outputStream -> {};
+  private static final ExportFrame NO_DATA       = outputStream -> {};
+
+  /**
+   * Carries an error from the reader thread to the writing thread, where it is rethrown.
+   */
+  private static final class Failure implements ExportFrame {
+    private final IOException error;
+
+    Failure(@NonNull IOException error) {
+      this.error = error;
+    }
+
+    @Override
+    public void write(@NonNull BackupFrameOutputStream outputStream) throws IOException {
+      throw error;
+    }
+  }
+
+  /**
+   * The decrypted contents of an attachment or sticker. If they were not small enough to buffer, {@link #data} is null and they are
+   * streamed from disk when written.
+   */
+  private static final class Payload {
+    private static final Payload MISSING = new Payload(null, 0);
+
+    private final @Nullable byte[] data;
+    private final long             size;
+
+    private Payload(@Nullable byte[] data, long size) {
+      this.data = data;
+      this.size = size;
+    }
+  }
+
+  /**
+   * Produces the frames that follow the schema. Runs on its own thread so that reading and encoding rows, and decrypting payloads on
+   * the worker pool, overlaps with encrypting and writing the output.
+   */
+  private static final class FrameProducer implements Runnable {
+
+    private final Context                    context;
+    private final AttachmentSecret           attachmentSecret;
+    private final SQLiteDatabase             input;
+    private final List<String>               tables;
+    private final BlockingQueue<ExportFrame> frames;
+    private final ExecutorService            payloadExecutor;
+    private final BackupCancellationSignal   cancellationSignal;
+    private final Semaphore                  payloadBudget;
+
+    FrameProducer(@NonNull Context context,
+                  @NonNull AttachmentSecret attachmentSecret,
+                  @NonNull SQLiteDatabase input,
+                  @NonNull List<String> tables,
+                  @NonNull BlockingQueue<ExportFrame> frames,
+                  @NonNull ExecutorService payloadExecutor,
+                  @NonNull BackupCancellationSignal cancellationSignal)
+    {
+      this.context            = context;
+      this.attachmentSecret   = attachmentSecret;
+      this.input              = input;
+      this.tables             = tables;
+      this.frames             = frames;
+      this.payloadExecutor    = payloadExecutor;
+      this.cancellationSignal = cancellationSignal;
+      this.payloadBudget      = new Semaphore(BUFFERED_PAYLOAD_BUDGET);
+    }
+
+    @Override
+    public void run() {
+      try {
+        produce();
+        frames.put(END_OF_FRAMES);
+      } catch (InterruptedException | InterruptedIOException e) {
+        Log.w(TAG, "Frame producer was interrupted.");
+      } catch (IOException e) {
+        fail(e);
+      } catch (Throwable t) {
+        fail(new IOException(t));
+      }
+    }
+
+    private void fail(@NonNull IOException e) {
+      try {
+        frames.put(new Failure(e));
+      } catch (InterruptedException interrupted) {
+        Log.w(TAG, "Frame producer was interrupted while reporting a failure.");
+      }
+    }
+
+    private void produce() throws IOException {
+      Stopwatch stopwatch = new Stopwatch("Backup");
+
+      for (String table : tables) {
+        throwIfCanceled(cancellationSignal);
+        if (table.equals(MessageTable.TABLE_NAME)) {
+          exportTable(table, cursor -> isNonExpiringMessage(input, cursor), null);
+        } else if (table.equals(ReactionTable.TABLE_NAME)) {
+          exportTable(table, cursor -> isForNonExpiringMessage(input, CursorUtil.requireLong(cursor, ReactionTable.MESSAGE_ID)), null);
+        } else if (table.equals(MentionTable.TABLE_NAME)) {
+          exportTable(table, cursor -> isForNonExpiringMessage(input, CursorUtil.requireLong(cursor, MentionTable.MESSAGE_ID)), null);
+        } else if (table.equals(GroupReceiptTable.TABLE_NAME)) {
+          exportTable(table, cursor -> isForNonExpiringMessage(input, cursor.getLong(cursor.getColumnIndexOrThrow(GroupReceiptTable.MMS_ID))), null);
+        } else if (table.equals(AttachmentTable.TABLE_NAME)) {
+          exportTable(table, cursor -> isForNonExpiringMessage(input, cursor.getLong(cursor.getColumnIndexOrThrow(AttachmentTable.MESSAGE_ID))), this::exportAttachment);
+        } else if (table.equals(StickerTable.TABLE_NAME)) {
+          exportTable(table, cursor -> true, this::exportSticker);
+        } else if (!TABLE_CONTENT_BLOCKLIST.contains(table)) {
+          exportTable(table, null, null);
+        }
+        stopwatch.split("table::" + table);
+      }
+
+      for (SharedPreference preference : TextSecurePreferences.getPreferencesToSaveToBackup(context)) {
+        throwIfCanceled(cancellationSignal);
+        emit(outputStream -> outputStream.write(preference));
+      }
+
+      stopwatch.split("prefs");
+
+      exportKeyValues(SignalStore.getKeysToIncludeInBackup());
+
+      stopwatch.split("key_values");
+
+      for (AvatarHelper.Avatar avatar : AvatarHelper.getAvatars(context)) {
+        throwIfCanceled(cancellationSignal);
+        if (avatar != null) {
+          emit(outputStream -> {
+            try (InputStream inputStream = avatar.getInputStream()) {
+              outputStream.write(avatar.getFilename(), inputStream, avatar.getLength());
+            }
+          });
+        }
+      }
+
+      stopwatch.split("avatars");
+      stopwatch.stop(TAG);
+    }
+
+    private void emit(@NonNull ExportFrame frame) throws InterruptedIOException {
+      try {
+        frames.put(frame);
+      } catch (InterruptedException e) {
+        throw new InterruptedIOException();
+      }
+    }
+
+    private void exportTable(@NonNull String table, @Nullable Predicate<Cursor> predicate, @Nullable PostProcessor postProcess) throws IOException {
+      Log.d(TAG, "Exporting table: " + table);
+
+      String template = "INSERT INTO " + table + " VALUES ";
+
+      try (Cursor cursor = input.rawQuery("SELECT * FROM " + table, null)) {
+        while (cursor != null && cursor.moveToNext()) {
+          throwIfCanceled(cancellationSignal);
+
+          if (predicate == null || predicate.test(cursor)) {
+            StringBuilder        statement        = new StringBuilder(template);
+            SqlStatement.Builder statementBuilder = new SqlStatement.Builder();
+
+            statementBuilder.parameters = new ArrayList<>();
+
+            statement.append('(');
+
+            for (int i = 0; i < cursor.getColumnCount(); i++) {
+              statement.append('?');
+
+              if (cursor.getType(i) == Cursor.FIELD_TYPE_STRING) {
+                statementBuilder.parameters.add(new SqlStatement.SqlParameter.Builder().stringParamter(cursor.getString(i)).build());
+              } else if (cursor.getType(i) == Cursor.FIELD_TYPE_FLOAT) {
+                statementBuilder.parameters.add(new SqlStatement.SqlParameter.Builder().doubleParameter(cursor.getDouble(i)).build());
+              } else if (cursor.getType(i) == Cursor.FIELD_TYPE_INTEGER) {
+                statementBuilder.parameters.add(new SqlStatement.SqlParameter.Builder().integerParameter(cursor.getLong(i)).build());
+              } else if (cursor.getType(i) == Cursor.FIELD_TYPE_BLOB) {
+                statementBuilder.parameters.add(new SqlStatement.SqlParameter.Builder().blobParameter(new ByteString(cursor.getBlob(i))).build());
+              } else if (cursor.getType(i) == Cursor.FIELD_TYPE_NULL) {
+                statementBuilder.parameters.add(new SqlStatement.SqlParameter.Builder().nullparameter(true).build());
+              } else {
+                throw new AssertionError("unknown type?" + cursor.getType(i));
+              }
+
+              if (i < cursor.getColumnCount() - 1) {
+                statement.append(',');
+              }
+            }
+
+            statement.append(')');
+
+            SqlStatement sqlStatement = statementBuilder.statement(statement.toString()).build();
+            emit(outputStream -> outputStream.write(sqlStatement));
+
+            if (postProcess != null) {
+              postProcess.postProcess(cursor);
+            }
+          }
+        }
+      }
+    }
+
+    private void exportAttachment(@NonNull Cursor cursor) throws IOException {
+      long rowId = cursor.getLong(cursor.getColumnIndexOrThrow(AttachmentTable.ID));
+      long size  = cursor.getLong(cursor.getColumnIndexOrThrow(AttachmentTable.DATA_SIZE));
+
+      String data   = cursor.getString(cursor.getColumnIndexOrThrow(AttachmentTable.DATA_FILE));
+      byte[] random = cursor.getBlob(cursor.getColumnIndexOrThrow(AttachmentTable.DATA_RANDOM));
+
+      if (TextUtils.isEmpty(data)) {
+        emit(NO_DATA);
+        return;
+      }
+
+      int             permits = acquireBudget(size);
+      Future<Payload> payload = payloadExecutor.submit(() -> prepareAttachment(rowId, size, data, random, permits));
+
+      emit(outputStream -> {
+        try {
+          Payload prepared = await(payload);
+
+          if (prepared == Payload.MISSING || prepared.size <= 0) {
+            return;
+          }
+
+          try (InputStream inputStream = openPayload(prepared, random, data)) {
+            outputStream.write(new AttachmentId(rowId), inputStream, prepared.size);
+          } catch (FileNotFoundException e) {
+            Log.w(TAG, "Missing attachment", e);
+          }
+        } finally {
+          payloadBudget.release(permits);
+        }
+      });
+    }
+
+    private @NonNull Payload prepareAttachment(long rowId, long size, @NonNull String data, @Nullable byte[] random, int permits) throws IOException {
+      long fileLength = new File(data).length();
+      long dbLength   = size;
+
+      if (size <= 0 || fileLength != dbLength) {
+        size = calculateVeryOldStreamLength(attachmentSecret, random, data);
+        Log.w(TAG, "Needed size calculation! Manual: " + size + " File: " + fileLength + "  DB: " + dbLength + " ID: " + new AttachmentId(rowId));
+      }
+
+      if (size <= 0) {
+        return new Payload(null, size);
+      }
+
+      try {
+        return readPayload(openAttachmentStream(attachmentSecret, random, data), size, permits);
+      } catch (FileNotFoundException e) {
+        Log.w(TAG, "Missing attachment", e);
+        return Payload.MISSING;
+      }
+    }
+
+    private void exportSticker(@NonNull Cursor cursor) throws IOException {
+      long rowId = cursor.getLong(cursor.getColumnIndexOrThrow(StickerTable._ID));
+      long size  = cursor.getLong(cursor.getColumnIndexOrThrow(StickerTable.FILE_LENGTH));
+
+      String data   = cursor.getString(cursor.getColumnIndexOrThrow(StickerTable.FILE_PATH));
+      byte[] random = cursor.getBlob(cursor.getColumnIndexOrThrow(StickerTable.FILE_RANDOM));
+
+      if (TextUtils.isEmpty(data) || size <= 0) {
+        return;
+      }
+
+      int             permits = acquireBudget(size);
+      Future<Payload> payload = payloadExecutor.submit(() -> {
+        try {
+          return readPayload(ModernDecryptingPartInputStream.createFor(attachmentSecret, random, new File(data), 0), size, permits);
+        } catch (FileNotFoundException e) {
+          Log.w(TAG, "Missing sticker", e);
+          return Payload.MISSING;
+        }
+      });
+
+      emit(outputStream -> {
+        try {
+          Payload prepared = await(payload);
+
+          if (prepared == Payload.MISSING) {
+            return;
+          }
+
+          try (InputStream inputStream = prepared.data != null ? new ByteArrayInputStream(prepared.data)
+                                                               : ModernDecryptingPartInputStream.createFor(attachmentSecret, random, new File(data), 0)) {
+            outputStream.writeSticker(rowId, inputStream, prepared.size);
+          } catch (FileNotFoundException e) {
+            Log.w(TAG, "Missing sticker", e);
+          }
+        } finally {
+          payloadBudget.release(permits);
+        }
+      });
+    }
+
+    /**
+     * Reserves room to buffer a payload of the given size, blocking while too much is already buffered.
+     *
+     * @return The number of bytes reserved, which is 0 if the payload is too large to buffer and will be streamed instead.
+     */
+    private int acquireBudget(long size) throws InterruptedIOException {
+      if (size <= 0 || size > BUFFERED_PAYLOAD_MAX) {
+        return 0;
+      }
+
+      try {
+        payloadBudget.acquire((int) size);
+      } catch (InterruptedException e) {
+        throw new InterruptedIOException();
+      }
+
+      return (int) size;
+    }
+
+    /**
+     * Reads the whole stream if it fits within the reserved budget. Otherwise it is closed, to be reopened by the writer.
+     */
+    private @NonNull Payload readPayload(@NonNull InputStream inputStream, long size, int permits) throws IOException {
+      try (InputStream in = inputStream) {
+        if (size > permits) {
+          return new Payload(null, size);
+        }
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream((int) size);
+        StreamUtil.copy(in, buffer);
+
+        return new Payload(buffer.toByteArray(), size);
+      }
+    }
+
+    private @NonNull InputStream openPayload(@NonNull Payload payload, @Nullable byte[] random, @NonNull String data) throws IOException {
+      if (payload.data != null) {
+        return new ByteArrayInputStream(payload.data);
+      } else {
+        return openAttachmentStream(attachmentSecret, random, data);
+      }
+    }
+
+    private void exportKeyValues(@NonNull List<String> keysToIncludeInBackup) throws IOException {
+      KeyValueDataSet dataSet = KeyValueDatabase.getInstance(ApplicationDependencies.getApplication())
+                                                .getDataSet();
+
+      for (String key : keysToIncludeInBackup) {
+        throwIfCanceled(cancellationSignal);
+        if (!dataSet.containsKey(key)) {
+          continue;
+        }
+
+        KeyValue.Builder builder = new KeyValue.Builder()
+                                               .key(key);
+
+        Class<?> type = dataSet.getType(key);
+        if (type == byte[].class) {
+          byte[] data = dataSet.getBlob(key, null);
+          if (data != null) {
+            builder.blobValue(new ByteString(dataSet.getBlob(key, null)));
+          } else {
+            Log.w(TAG, "Skipping storing null blob for key: " + key);
+          }
+        } else if (type == Boolean.class) {
+          builder.booleanValue(dataSet.getBoolean(key, false));
+        } else if (type == Float.class) {
+          builder.floatValue(dataSet.getFloat(key, 0));
+        } else if (type == Integer.class) {
+          builder.integerValue(dataSet.getInteger(key, 0));
+        } else if (type == Long.class) {
+          builder.longValue(dataSet.getLong(key, 0));
+        } else if (type == String.class) {
+          String data = dataSet.getString(key, null);
+          if (data != null) {
+            builder.stringValue(dataSet.getString(key, null));
+          } else {
+            Log.w(TAG, "Skipping storing null string for key: " + key);
+          }
+        } else {
+          throw new AssertionError("Unknown type: " + type);
+        }
+
+        KeyValue keyValue = builder.build();
+        emit(outputStream -> outputStream.write(keyValue));
+      }
+    }
+  }
+
+  private static @NonNull Payload await(@NonNull Future<Payload> payload) throws IOException {
+    try {
+      return payload.get();
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      } else {
+        throw new IOException(e.getCause());
+      }
+    }
   }
 
   public interface BackupCancellationSignal {
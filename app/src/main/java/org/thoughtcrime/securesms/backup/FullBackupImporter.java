@@ -9,12 +9,16 @@ import android.net.Uri;
 import android.util.Pair;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.annotation.VisibleForTesting;
 
 import net.zetetic.database.sqlcipher.SQLiteDatabase;
+import net.zetetic.database.sqlcipher.SQLiteStatement;
 
 import org.greenrobot.eventbus.EventBus;
 import org.signal.core.util.SqlUtil;
+import org.signal.core.util.ThreadUtil;
+import org.signal.core.util.concurrent.SignalExecutors;
 import org.signal.core.util.logging.Log;
 import org.thoughtcrime.securesms.BuildConfig;
 import org.thoughtcrime.securesms.backup.proto.Attachment;
@@ -44,6 +48,7 @@ import org.thoughtcrime.securesms.util.SecurePreferenceManager;
 import org.thoughtcrime.securesms.util.Util;
 
 import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
@@ -63,6 +68,12 @@ import java.util.Map;
 import java.util.Objects;
 import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 import java.util.stream.Collectors;
 
 public class FullBackupImporter extends FullBackupBase {
@@ -70,6 +81,12 @@ public class FullBackupImporter extends FullBackupBase {
   @SuppressWarnings("unused")
   private static final String TAG = Log.tag(FullBackupImporter.class);
 
+  private static final int OPERATION_QUEUE_SIZE       = 1000;
+  private static final int ATTACHMENT_WORKERS         = 4;
+  private static final int BUFFERED_ATTACHMENT_MAX    = 4 * 1024 * 1024;
+  private static final int BUFFERED_ATTACHMENT_BUDGET = 32 * 1024 * 1024;
+  private static final int STATEMENT_CACHE_SIZE       = 64;
+
   public static boolean validatePassphrase(@NonNull Context context,
                                            @NonNull Uri uri,
                                            @NonNull String passphrase)
@@ -97,6 +114,16 @@ public class FullBackupImporter extends FullBackupBase {
     }
   }
 
+  /**
+   * Restores the backup in a pipeline:
+   *
+   * - A reader thread decrypts and parses frames, and hands the resulting database operations to this thread through a bounded queue.
+   * - This thread, which holds the database transaction, runs the operations in order. Statements are compiled once per distinct SQL
+   *   string rather than once per row.
+   * - Attachment data is decrypted by the reader (it is part of the stream), but re-encrypting it to disk is done by a pool of workers.
+   *   The database update for each one is queued in the attachment's place among the other operations, and waits on its worker when it
+   *   is reached, so it always runs after the statement that inserted the attachment's row.
+   */
   public static void importFile(@NonNull Context context, @NonNull AttachmentSecret attachmentSecret,
                                 @NonNull SQLiteDatabase db, @NonNull InputStream is, @NonNull String passphrase)
       throws IOException
@@ -105,6 +132,11 @@ public class FullBackupImporter extends FullBackupBase {
 
     SQLiteDatabase keyValueDatabase = KeyValueDatabase.getInstance(ApplicationDependencies.getApplication()).getSqlCipherDatabase();
 
+    BlockingQueue<RestoreOperation> operations         = new ArrayBlockingQueue<>(OPERATION_QUEUE_SIZE);
+    ExecutorService                 attachmentExecutor = SignalExecutors.newCachedBoundedExecutor("signal-backup-restore", ThreadUtil.PRIORITY_IMPORTANT_BACKGROUND_THREAD, 1, ATTACHMENT_WORKERS, 5);
+    StatementCache                  statements         = new StatementCache(db);
+    Thread                          readerThread       = null;
+
     db.setForeignKeyConstraintsEnabled(false);
     db.beginTransaction();
     keyValueDatabase.beginTransaction();
@@ -113,25 +145,28 @@ public class FullBackupImporter extends FullBackupBase {
 
       dropAllTables(db);
 
-      BackupFrame frame;
+      readerThread = new Thread(new FrameReader(context, attachmentSecret, inputStream, operations, attachmentExecutor), "signal-backup-restore-reader");
+      readerThread.start();
 
-      while ((frame = inputStream.readFrame()).end != Boolean.TRUE) {
+      RestoreOperation operation;
+
+      while ((operation = take(operations)) != END_OF_FRAMES) {
         if (count % 100 == 0) EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, count, 0));
         count++;
 
-        if      (frame.version != null)    processVersion(db, frame.version);
-        else if (frame.statement != null)  processStatement(db, frame.statement);
-        else if (frame.preference != null) processPreference(context, frame.preference);
-        else if (frame.attachment != null) processAttachment(context, attachmentSecret, db, frame.attachment, inputStream);
-        else if (frame.sticker != null)    processSticker(context, attachmentSecret, db, frame.sticker, inputStream);
-        else if (frame.avatar != null)     processAvatar(context, db, frame.avatar, inputStream);
-        else if (frame.keyValue != null)   processKeyValue(frame.keyValue);
-        else                            count--;
+        operation.run(db, statements);
       }
 
       db.setTransactionSuccessful();
       keyValueDatabase.setTransactionSuccessful();
     } finally {
+      if (readerThread != null) {
+        readerThread.interrupt();
+      }
+
+      attachmentExecutor.shutdownNow();
+      statements.close();
+
       List<SqlUtil.ForeignKeyViolation> violations = SqlUtil.getForeignKeyViolations(db)
           .stream()
           .filter(it -> !it.getTable().startsWith("msl_"))
@@ -151,6 +186,31 @@ public class FullBackupImporter extends FullBackupBase {
     EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.FINISHED, count, 0));
   }
 
+  private static @NonNull RestoreOperation take(@NonNull BlockingQueue<RestoreOperation> operations) throws IOException {
+    try {
+      return operations.take();
+    } catch (InterruptedException e) {
+      throw new IOException(e);
+    }
+  }
+
+  /**
+   * @return The data file and its random for an attachment that was written by a worker, once it's done.
+   */
+  private static @NonNull Pair<File, byte[]> await(@NonNull Future<Pair<File, byte[]>> attachment) throws IOException {
+    try {
+      return attachment.get();
+    } catch (InterruptedException e) {
+      throw new IOException(e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      } else {
+        throw new IOException(e.getCause());
+      }
+    }
+  }
+
   private static @NonNull InputStream getInputStream(@NonNull Context context, @NonNull Uri uri) throws IOException{
     if (BackupUtil.isUserSelectionRequired(context) || uri.getScheme().equals("content")) {
       return Objects.requireNonNull(context.getContentResolver().openInputStream(uri));
@@ -167,10 +227,13 @@ public class FullBackupImporter extends FullBackupBase {
     db.setVersion(version.version);
   }
 
-  private static void processStatement(@NonNull SQLiteDatabase db, SqlStatement statement) {
+  /**
+   * @return The statement with its parameters converted for binding, or null if it should be skipped.
+   */
+  private static @Nullable RestoreOperation readStatement(@NonNull SqlStatement statement) {
     if (statement.statement == null) {
       Log.w(TAG, "Null statement!");
-      return;
+      return null;
     }
 
     boolean isForMmsFtsSecretTable = statement.statement.contains(SearchTable.FTS_TABLE_NAME + "_");
@@ -179,10 +242,11 @@ public class FullBackupImporter extends FullBackupBase {
 
     if (isForMmsFtsSecretTable || isForEmojiSecretTable || isForSqliteSecretTable) {
       Log.i(TAG, "Ignoring import for statement: " + statement.statement);
-      return;
+      return null;
     }
 
-    List<Object> parameters = new LinkedList<>();
+    String       sql        = statement.statement;
+    List<Object> parameters = new ArrayList<>(statement.parameters.size());
 
     for (SqlStatement.SqlParameter parameter : statement.parameters) {
       if      (parameter.stringParamter != null)   parameters.add(parameter.stringParamter);
@@ -192,16 +256,32 @@ public class FullBackupImporter extends FullBackupBase {
       else if (parameter.nullparameter != null)    parameters.add(null);
     }
 
-    if (parameters.size() > 0) db.execSQL(statement.statement, parameters.toArray());
-    else                       db.execSQL(statement.statement);
+    if (parameters.isEmpty()) {
+      return (db, statements) -> db.execSQL(sql);
+    }
+
+    Object[] args = parameters.toArray();
+
+    return (db, statements) -> {
+      SQLiteStatement compiled = statements.get(sql);
+      compiled.clearBindings();
+
+      for (int i = 0; i < args.length; i++) {
+        Object arg = args[i];
+
+        if      (arg == null)            compiled.bindNull(i + 1);
+        else if (arg instanceof String)  compiled.bindString(i + 1, (String) arg);
+        else if (arg instanceof Double)  compiled.bindDouble(i + 1, (Double) arg);
+        else if (arg instanceof Long)    compiled.bindLong(i + 1, (Long) arg);
+        else if (arg instanceof byte[])  compiled.bindBlob(i + 1, (byte[]) arg);
+      }
+
+      compiled.execute();
+    };
   }
 
-  private static void processAttachment(@NonNull Context context, @NonNull AttachmentSecret attachmentSecret, @NonNull SQLiteDatabase db, @NonNull Attachment attachment, BackupRecordInputStream inputStream)
-      throws IOException
-  {
-    File                       dataFile      = AttachmentTable.newDataFile(context);
-    Pair<byte[], OutputStream> output        = ModernEncryptingPartOutputStream.createFor(attachmentSecret, dataFile, false);
-    boolean                    isLegacyTable = SqlUtil.tableExists(db, "part");
+  private static void updateAttachment(@NonNull SQLiteDatabase db, long rowId, @Nullable File dataFile, @Nullable byte[] dataRandom) {
+    boolean isLegacyTable = SqlUtil.tableExists(db, "part");
 
     String dataFileColumnName   = isLegacyTable ? "_data" : AttachmentTable.DATA_FILE;
     String dataRandomColumnName = isLegacyTable ? "data_random" : AttachmentTable.DATA_RANDOM;
@@ -210,14 +290,10 @@ public class FullBackupImporter extends FullBackupBase {
 
     ContentValues contentValues = new ContentValues();
 
-    try {
-      inputStream.readAttachmentTo(output.second, attachment.length);
-
+    if (dataFile != null) {
       contentValues.put(dataFileColumnName, dataFile.getAbsolutePath());
-      contentValues.put(dataRandomColumnName, output.first);
-    } catch (BackupRecordInputStream.BadMacException e) {
-      Log.w(TAG, "Bad MAC for attachment " + attachment.attachmentId + "! Can't restore it.", e);
-      dataFile.delete();
+      contentValues.put(dataRandomColumnName, dataRandom);
+    } else {
       contentValues.put(dataFileColumnName, (String) null);
       contentValues.put(dataRandomColumnName, (String) null);
     }
@@ -225,45 +301,29 @@ public class FullBackupImporter extends FullBackupBase {
     db.update(tableName,
               contentValues,
               idColumnName + " = ?",
-              SqlUtil.buildArgs(attachment.rowId));
+              SqlUtil.buildArgs(rowId));
   }
 
-  private static void processSticker(@NonNull Context context, @NonNull AttachmentSecret attachmentSecret, @NonNull SQLiteDatabase db, @NonNull Sticker sticker, BackupRecordInputStream inputStream)
-      throws IOException
-  {
-    File stickerDirectory = context.getDir(StickerTable.DIRECTORY, Context.MODE_PRIVATE);
-    File dataFile         = File.createTempFile("sticker", ".mms", stickerDirectory);
-
-    Pair<byte[], OutputStream> output = ModernEncryptingPartOutputStream.createFor(attachmentSecret, dataFile, false);
-
-    inputStream.readAttachmentTo(output.second, sticker.length);
-
+  private static void updateSticker(@NonNull SQLiteDatabase db, long rowId, @NonNull File dataFile, long length, @NonNull byte[] dataRandom) {
     ContentValues contentValues = new ContentValues();
     contentValues.put(StickerTable.FILE_PATH, dataFile.getAbsolutePath());
-    contentValues.put(StickerTable.FILE_LENGTH, sticker.length);
-    contentValues.put(StickerTable.FILE_RANDOM, output.first);
+    contentValues.put(StickerTable.FILE_LENGTH, length);
+    contentValues.put(StickerTable.FILE_RANDOM, dataRandom);
 
     db.update(StickerTable.TABLE_NAME, contentValues,
               StickerTable._ID + " = ?",
-              new String[] {String.valueOf(sticker.rowId)});
+              new String[] {String.valueOf(rowId)});
   }
 
-  private static void processAvatar(@NonNull Context context, @NonNull SQLiteDatabase db, @NonNull Avatar avatar, @NonNull BackupRecordInputStream inputStream) throws IOException {
-    if (avatar.recipientId != null) {
-      RecipientId recipientId = RecipientId.from(avatar.recipientId);
-      inputStream.readAttachmentTo(AvatarHelper.getOutputStream(context, recipientId, false), avatar.length);
+  private static void clearLegacyAvatar(@NonNull SQLiteDatabase db, @Nullable String name) {
+    if (name != null && SqlUtil.tableExists(db, "recipient_preferences")) {
+      Log.w(TAG, "Avatar is missing a recipientId. Clearing signal_profile_avatar (legacy) so it can be fetched later.");
+      db.execSQL("UPDATE recipient_preferences SET signal_profile_avatar = NULL WHERE recipient_ids = ?", new String[] { name });
+    } else if (name != null && SqlUtil.tableExists(db, "recipient")) {
+      Log.w(TAG, "Avatar is missing a recipientId. Clearing signal_profile_avatar so it can be fetched later.");
+      db.execSQL("UPDATE recipient SET signal_profile_avatar = NULL WHERE phone = ?", new String[] { name });
     } else {
-      if (avatar.name != null && SqlUtil.tableExists(db, "recipient_preferences")) {
-        Log.w(TAG, "Avatar is missing a recipientId. Clearing signal_profile_avatar (legacy) so it can be fetched later.");
-        db.execSQL("UPDATE recipient_preferences SET signal_profile_avatar = NULL WHERE recipient_ids = ?", new String[] { avatar.name });
-      } else if (avatar.name != null && SqlUtil.tableExists(db, "recipient")) {
-        Log.w(TAG, "Avatar is missing a recipientId. Clearing signal_profile_avatar so it can be fetched later.");
-        db.execSQL("UPDATE recipient SET signal_profile_avatar = NULL WHERE phone = ?", new String[] { avatar.name });
-      } else {
-        Log.w(TAG, "Avatar is missing a recipientId. Skipping avatar restore.");
-      }
-
-      inputStream.readAttachmentTo(new ByteArrayOutputStream(), avatar.length);
+      Log.w(TAG, "Avatar is missing a recipientId. Skipping avatar restore.");
     }
   }
 
@@ -402,6 +462,225 @@ public class FullBackupImporter extends FullBackupBase {
     return new ArrayList<>(dropOrder);
   }
 
+  /**
+   * A unit of restore work that has to run on the thread that holds the database transaction.
+   */
+  private interface RestoreOperation {
+    void run(@NonNull SQLiteDatabase db, @NonNull StatementCache statements) throws IOException;
+  }
+
+  private static final RestoreOperation END_OF_FRAMES = (db, statements) -> {};
+  private static final RestoreOperation NO_OP         = (db, statements) -> {};
+
+  /**
+   * Decrypts and parses frames on its own thread, turning each one into a {@link RestoreOperation}. Blobs that are part of the stream
+   * have to be read here, but small attachments are handed off to workers to be re-encrypted to disk.
+   */
+  private static final class FrameReader implements Runnable {
+
+    private final Context                         context;
+    private final AttachmentSecret                attachmentSecret;
+    private final BackupRecordInputStream         inputStream;
+    private final BlockingQueue<RestoreOperation> operations;
+    private final ExecutorService                 attachmentExecutor;
+    private final Semaphore                       attachmentBudget;
+
+    FrameReader(@NonNull Context context,
+                @NonNull AttachmentSecret attachmentSecret,
+                @NonNull BackupRecordInputStream inputStream,
+                @NonNull BlockingQueue<RestoreOperation> operations,
+                @NonNull ExecutorService attachmentExecutor)
+    {
+      this.context            = context;
+      this.attachmentSecret   = attachmentSecret;
+      this.inputStream        = inputStream;
+      this.operations         = operations;
+      this.attachmentExecutor = attachmentExecutor;
+      this.attachmentBudget   = new Semaphore(BUFFERED_ATTACHMENT_BUDGET);
+    }
+
+    @Override
+    public void run() {
+      try {
+        BackupFrame frame;
+
+        while ((frame = inputStream.readFrame()).end != Boolean.TRUE) {
+          RestoreOperation operation = read(frame);
+
+          if (operation != null) {
+            operations.put(operation);
+          }
+        }
+
+        operations.put(END_OF_FRAMES);
+      } catch (InterruptedException e) {
+        Log.w(TAG, "Frame reader was interrupted.");
+      } catch (IOException e) {
+        fail((db, statements) -> { throw e; });
+      } catch (RuntimeException e) {
+        fail((db, statements) -> { throw e; });
+      } catch (Throwable t) {
+        fail((db, statements) -> { throw new IOException(t); });
+      }
+    }
+
+    private void fail(@NonNull RestoreOperation failure) {
+      try {
+        operations.put(failure);
+      } catch (InterruptedException e) {
+        Log.w(TAG, "Frame reader was interrupted while reporting a failure.");
+      }
+    }
+
+    private @Nullable RestoreOperation read(@NonNull BackupFrame frame) throws IOException, InterruptedException {
+      if (frame.version != null) {
+        DatabaseVersion version = frame.version;
+        return (db, statements) -> processVersion(db, version);
+      } else if (frame.statement != null) {
+        RestoreOperation operation = readStatement(frame.statement);
+        return operation != null ? operation : NO_OP;
+      } else if (frame.preference != null) {
+        SharedPreference preference = frame.preference;
+        return (db, statements) -> processPreference(context, preference);
+      } else if (frame.attachment != null) {
+        return readAttachment(frame.attachment);
+      } else if (frame.sticker != null) {
+        return readSticker(frame.sticker);
+      } else if (frame.avatar != null) {
+        return readAvatar(frame.avatar);
+      } else if (frame.keyValue != null) {
+        KeyValue keyValue = frame.keyValue;
+        return (db, statements) -> processKeyValue(keyValue);
+      } else {
+        return null;
+      }
+    }
+
+    private @NonNull RestoreOperation readAttachment(@NonNull Attachment attachment) throws IOException, InterruptedException {
+      long rowId  = attachment.rowId;
+      int  length = attachment.length;
+
+      if (length > BUFFERED_ATTACHMENT_MAX) {
+        File                       dataFile = AttachmentTable.newDataFile(context);
+        Pair<byte[], OutputStream> output   = ModernEncryptingPartOutputStream.createFor(attachmentSecret, dataFile, false);
+
+        try {
+          inputStream.readAttachmentTo(output.second, length);
+          return (db, statements) -> updateAttachment(db, rowId, dataFile, output.first);
+        } catch (BackupRecordInputStream.BadMacException e) {
+          Log.w(TAG, "Bad MAC for attachment " + attachment.attachmentId + "! Can't restore it.", e);
+          dataFile.delete();
+          return (db, statements) -> updateAttachment(db, rowId, null, null);
+        }
+      }
+
+      attachmentBudget.acquire(length);
+
+      ByteArrayOutputStream buffer = new ByteArrayOutputStream(length);
+
+      try {
+        inputStream.readAttachmentTo(buffer, length);
+      } catch (BackupRecordInputStream.BadMacException e) {
+        attachmentBudget.release(length);
+        Log.w(TAG, "Bad MAC for attachment " + attachment.attachmentId + "! Can't restore it.", e);
+        return (db, statements) -> updateAttachment(db, rowId, null, null);
+      } catch (IOException e) {
+        attachmentBudget.release(length);
+        throw e;
+      }
+
+      Future<Pair<File, byte[]>> written = attachmentExecutor.submit(() -> {
+        try {
+          File                       dataFile = AttachmentTable.newDataFile(context);
+          Pair<byte[], OutputStream> output   = ModernEncryptingPartOutputStream.createFor(attachmentSecret, dataFile, false);
+
+          try (OutputStream out = output.second) {
+            buffer.writeTo(out);
+          }
+
+          return new Pair<>(dataFile, output.first);
+        } finally {
+          attachmentBudget.release(length);
+        }
+      });
+
+      return (db, statements) -> {
+        Pair<File, byte[]> data = await(written);
+        updateAttachment(db, rowId, data.first, data.second);
+      };
+    }
+
+    private @NonNull RestoreOperation readSticker(@NonNull Sticker sticker) throws IOException {
+      File stickerDirectory = context.getDir(StickerTable.DIRECTORY, Context.MODE_PRIVATE);
+      File dataFile         = File.createTempFile("sticker", ".mms", stickerDirectory);
+
+      Pair<byte[], OutputStream> output = ModernEncryptingPartOutputStream.createFor(attachmentSecret, dataFile, false);
+
+      inputStream.readAttachmentTo(output.second, sticker.length);
+
+      long rowId  = sticker.rowId;
+      long length = sticker.length;
+
+      return (db, statements) -> updateSticker(db, rowId, dataFile, length, output.first);
+    }
+
+    private @NonNull RestoreOperation readAvatar(@NonNull Avatar avatar) throws IOException {
+      if (avatar.recipientId != null) {
+        RecipientId recipientId = RecipientId.from(avatar.recipientId);
+        inputStream.readAttachmentTo(AvatarHelper.getOutputStream(context, recipientId, false), avatar.length);
+        return NO_OP;
+      } else {
+        inputStream.readAttachmentTo(new ByteArrayOutputStream(), avatar.length);
+
+        String name = avatar.name;
+        return (db, statements) -> clearLegacyAvatar(db, name);
+      }
+    }
+  }
+
+  /**
+   * Keeps restore statements compiled, keyed by their SQL. A backup only has a handful of distinct statements per table, and they are
+   * grouped together, so a small cache covers nearly every row.
+   */
+  private static final class StatementCache implements Closeable {
+
+    private final SQLiteDatabase db;
+
+    private final LinkedHashMap<String, SQLiteStatement> statements = new LinkedHashMap<String, SQLiteStatement>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, SQLiteStatement> eldest) {
+        if (size() > STATEMENT_CACHE_SIZE) {
+          eldest.getValue().close();
+          return true;
+        }
+        return false;
+      }
+    };
+
+    StatementCache(@NonNull SQLiteDatabase db) {
+      this.db = db;
+    }
+
+    @NonNull SQLiteStatement get(@NonNull String sql) {
+      SQLiteStatement statement = statements.get(sql);
+
+      if (statement == null) {
+        statement = db.compileStatement(sql);
+        statements.put(sql, statement);
+      }
+
+      return statement;
+    }
+
+    @Override
+    public void close() {
+      for (SQLiteStatement statement : statements.values()) {
+        statement.close();
+      }
+      statements.clear();
+    }
+  }
+
   public static class DatabaseDowngradeException extends IOException {
     DatabaseDowngradeException(int currentVersion, int backupVersion) {
       super("Tried to import a backup with version " + backupVersion + " into a database with version " + currentVersion);
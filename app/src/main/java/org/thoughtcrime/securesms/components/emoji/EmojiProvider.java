@@ -20,11 +20,13 @@ import org.signal.core.util.ThreadUtil;
 import org.signal.core.util.logging.Log;
 import org.thoughtcrime.securesms.components.emoji.parsing.EmojiDrawInfo;
 import org.thoughtcrime.securesms.components.emoji.parsing.EmojiParser;
+import org.thoughtcrime.securesms.components.emoji.parsing.EmojiTree;
 import org.thoughtcrime.securesms.emoji.EmojiPageCache;
 import org.thoughtcrime.securesms.emoji.EmojiSource;
 import org.thoughtcrime.securesms.emoji.JumboEmoji;
 import org.thoughtcrime.securesms.util.DeviceProperties;
 import org.thoughtcrime.securesms.util.FutureTaskListener;
+import org.thoughtcrime.securesms.util.LRUCache;
 
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
@@ -36,9 +38,49 @@ public class EmojiProvider {
   private static final    String TAG   = Log.tag(EmojiProvider.class);
   private static final    Paint  PAINT = new Paint(Paint.FILTER_BITMAP_FLAG | Paint.ANTI_ALIAS_FLAG);
 
+  private static final int CANDIDATE_CACHE_SIZE          = 128;
+  private static final int CANDIDATE_CACHE_MAX_TEXT_SIZE = 2048;
+
+  private static final LRUCache<String, EmojiParser.CandidateList> CANDIDATE_CACHE = new LRUCache<>(CANDIDATE_CACHE_SIZE);
+
+  private static EmojiTree candidateCacheTree;
+
+  /**
+   * Finds the emoji in the text. The same text is typically parsed several times when it is bound and ellipsized, so the results for
+   * recently seen texts are kept around, keyed by their contents.
+   */
   public static @Nullable EmojiParser.CandidateList getCandidates(@Nullable CharSequence text) {
     if (text == null) return null;
-    return new EmojiParser(EmojiSource.getLatest().getEmojiTree()).findCandidates(text);
+
+    EmojiTree emojiTree = EmojiSource.getLatest().getEmojiTree();
+
+    if (text.length() > CANDIDATE_CACHE_MAX_TEXT_SIZE) {
+      return new EmojiParser(emojiTree).findCandidates(text);
+    }
+
+    String key = text.toString();
+
+    synchronized (CANDIDATE_CACHE) {
+      if (candidateCacheTree != emojiTree) {
+        CANDIDATE_CACHE.clear();
+        candidateCacheTree = emojiTree;
+      }
+
+      EmojiParser.CandidateList cached = CANDIDATE_CACHE.get(key);
+      if (cached != null) {
+        return cached;
+      }
+    }
+
+    EmojiParser.CandidateList candidates = new EmojiParser(emojiTree).findCandidates(key);
+
+    synchronized (CANDIDATE_CACHE) {
+      if (candidateCacheTree == emojiTree) {
+        CANDIDATE_CACHE.put(key, candidates);
+      }
+    }
+
+    return candidates;
   }
 
   static  @Nullable Spannable emojify(@Nullable CharSequence text, @NonNull TextView tv, boolean jumboEmoji) {
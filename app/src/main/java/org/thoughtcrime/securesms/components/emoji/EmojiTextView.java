@@ -17,6 +17,7 @@ import android.text.TextDirectionHeuristics;
 import android.text.TextUtils;
 import android.text.method.TransformationMethod;
 import android.text.style.CharacterStyle;
+import android.text.style.MetricAffectingSpan;
 import android.util.AttributeSet;
 import android.util.TypedValue;
 import android.view.GestureDetector;
@@ -28,6 +29,7 @@ import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.appcompat.widget.AppCompatTextView;
 import androidx.core.content.ContextCompat;
+import androidx.core.text.PrecomputedTextCompat;
 import androidx.core.view.GestureDetectorCompat;
 import androidx.core.view.ViewKt;
 import androidx.core.widget.TextViewCompat;
@@ -76,6 +78,10 @@ public class EmojiTextView extends AppCompatTextView {
   private boolean                renderSpoilers;
   private boolean                shrinkWrap;
 
+  private CharSequence              precomputedCandidatesText;
+  private EmojiParser.CandidateList precomputedCandidates;
+  private PrecomputedTextCompat     precomputedText;
+
   private MentionRendererDelegate mentionRendererDelegate;
   private SpoilerRendererDelegate spoilerRendererDelegate;
 
@@ -154,9 +160,58 @@ public class EmojiTextView extends AppCompatTextView {
     }
   }
 
+  /**
+   * Provides emoji candidates that were found off of the main thread. They will be used in place of parsing whenever this view is
+   * given text with the same characters.
+   */
+  public void setPrecomputedEmojiCandidates(@Nullable CharSequence text, @Nullable EmojiParser.CandidateList candidates) {
+    precomputedCandidatesText = text;
+    precomputedCandidates     = candidates;
+  }
+
+  private @Nullable EmojiParser.CandidateList getCandidates(@Nullable CharSequence text) {
+    if (precomputedCandidatesText != null && TextUtils.equals(precomputedCandidatesText, text)) {
+      return precomputedCandidates;
+    }
+
+    return EmojiProvider.getCandidates(text);
+  }
+
+  /**
+   * Provides text that was measured off of the main thread. It will be displayed in place of measuring whenever this view is given
+   * text with the same characters, no emoji to render and no metric affecting spans, as long as its text metrics still match.
+   */
+  public void setPrecomputedText(@Nullable PrecomputedTextCompat precomputedText) {
+    this.precomputedText = precomputedText;
+  }
+
+  private @Nullable PrecomputedTextCompat getPrecomputedText(@Nullable CharSequence text) {
+    if (precomputedText == null || !TextUtils.equals(precomputedText, text)) {
+      return null;
+    }
+
+    if (text instanceof Spanned && ((Spanned) text).getSpans(0, text.length(), MetricAffectingSpan.class).length > 0) {
+      return null;
+    }
+
+    if (!precomputedText.getParams().equals(TextViewCompat.getTextMetricsParams(this))) {
+      return null;
+    }
+
+    for (Object span : precomputedText.getSpans(0, precomputedText.length(), Object.class)) {
+      precomputedText.removeSpan(span);
+    }
+
+    if (text instanceof Spanned) {
+      TextUtils.copySpansFrom((Spanned) text, 0, text.length(), Object.class, precomputedText, 0);
+    }
+
+    return precomputedText;
+  }
+
   @Override
   public void setText(@Nullable CharSequence text, BufferType type) {
-    EmojiParser.CandidateList candidates = isInEditMode() ? null : EmojiProvider.getCandidates(text);
+    EmojiParser.CandidateList candidates = isInEditMode() ? null : getCandidates(text);
 
     if (scaleEmojis &&
         candidates != null &&
@@ -188,14 +243,20 @@ public class EmojiTextView extends AppCompatTextView {
     useSystemEmoji               = useSystemEmoji();
     previousTransformationMethod = getTransformationMethod();
 
-    Spannable textToSet;
+    PrecomputedTextCompat precomputed = null;
+    Spannable             textToSet;
     if (useSystemEmoji || candidates == null || candidates.size() == 0) {
-      textToSet = new SpannableStringBuilder(Optional.ofNullable(text).orElse(""));
+      precomputed = getPrecomputedText(text);
+      textToSet   = new SpannableStringBuilder(Optional.ofNullable(text).orElse(""));
     } else {
       textToSet = new SpannableStringBuilder(EmojiProvider.emojify(candidates, text, this, isJumbomoji || forceJumboEmoji));
     }
 
-    super.setText(textToSet, BufferType.SPANNABLE);
+    if (precomputed != null && Build.VERSION.SDK_INT >= 29 && precomputed.getPrecomputedText() != null) {
+      super.setText(precomputed.getPrecomputedText(), BufferType.SPANNABLE);
+    } else {
+      super.setText(textToSet, BufferType.SPANNABLE);
+    }
 
     // Android fails to ellipsize spannable strings. (https://issuetracker.google.com/issues/36991688)
     // We ellipsize them ourselves by manually truncating the appropriate section.
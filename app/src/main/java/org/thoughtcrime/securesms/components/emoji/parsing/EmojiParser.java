@@ -26,8 +26,9 @@ import androidx.annotation.Nullable;
 
 import org.thoughtcrime.securesms.emoji.JumboEmoji;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 
 /**
@@ -42,10 +43,10 @@ public class EmojiParser {
   }
 
   public @NonNull CandidateList findCandidates(@Nullable CharSequence text) {
-    List<Candidate> results = new LinkedList<>();
+    List<Candidate> results = new ArrayList<>();
 
     if (text == null) {
-      return new CandidateList(results, false);
+      return new CandidateList(Collections.emptyList(), false);
     }
 
     boolean allEmojis = text.length() > 0;
@@ -72,23 +73,11 @@ public class EmojiParser {
 
     allEmojis &= !results.isEmpty();
 
-    return new CandidateList(results, allEmojis);
+    return new CandidateList(Collections.unmodifiableList(results), allEmojis);
   }
 
   private int getEmojiEndPos(CharSequence text, int startPos) {
-    int best = -1;
-
-    for (int j = startPos + 1; j <= text.length(); j++) {
-      EmojiTree.Matches status = emojiTree.isEmoji(text, startPos, j);
-
-      if (status.exactMatch()) {
-        best = j;
-      } else if (status.impossibleMatch()) {
-        return best;
-      }
-    }
-
-    return best;
+    return emojiTree.findEmojiEnd(text, startPos);
   }
 
   public static class Candidate {
@@ -20,32 +20,43 @@
 
 package org.thoughtcrime.securesms.components.emoji.parsing;
 
+import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 
 /**
  * Based in part on code from emoji-java
+ *
+ * The tree is built with a {@link Builder} and then flattened into primitive arrays, so that a lookup is an array scan instead of a boxed
+ * hash lookup per character. Nodes are numbered in breadth-first order with the root at 0, and the edges out of node n are
+ * [edgeStart[n], edgeStart[n + 1]), sorted by character.
  */
 public class EmojiTree {
 
-  private final EmojiTreeNode root = new EmojiTreeNode();
-
   private static final char TERMINATOR = '\ufe0f';
+  private static final int  NONE       = -1;
 
-  public void add(String emojiEncoding, EmojiDrawInfo emoji) {
-    EmojiTreeNode tree = root;
-
-    for (char c: emojiEncoding.toCharArray()) {
-      if (!tree.hasChild(c)) {
-        tree.addChild(c);
-      }
+  /** Nodes with at most this many children are scanned linearly, which beats a binary search for the small fan-out of most nodes. */
+  private static final int LINEAR_SCAN_MAX = 8;
 
-      tree = tree.getChild(c);
-    }
+  private final int[]           edgeStart;
+  private final char[]          edgeChars;
+  private final int[]           edgeTargets;
+  private final EmojiDrawInfo[] emoji;
 
-    tree.setEmoji(emoji);
+  private EmojiTree(@NonNull int[] edgeStart, @NonNull char[] edgeChars, @NonNull int[] edgeTargets, @NonNull EmojiDrawInfo[] emoji) {
+    this.edgeStart   = edgeStart;
+    this.edgeChars   = edgeChars;
+    this.edgeTargets = edgeTargets;
+    this.emoji       = emoji;
   }
 
   public Matches isEmoji(CharSequence sequence, int startPosition, int endPosition) {
@@ -53,21 +64,11 @@ public class EmojiTree {
       return Matches.POSSIBLY;
     }
 
-    EmojiTreeNode tree = root;
-
-    for (int i=startPosition; i<endPosition; i++) {
-      char character = sequence.charAt(i);
-
-      if (!tree.hasChild(character)) {
-        return Matches.IMPOSSIBLE;
-      }
+    int node = walk(sequence, startPosition, endPosition);
 
-      tree = tree.getChild(character);
-    }
-
-    if (tree.isEndOfEmoji()) {
-      return Matches.EXACTLY;
-    } else if (sequence.charAt(endPosition-1) != TERMINATOR && tree.hasChild(TERMINATOR) && tree.getChild(TERMINATOR).isEndOfEmoji()) {
+    if (node == NONE) {
+      return Matches.IMPOSSIBLE;
+    } else if (isEndOfEmoji(node, sequence.charAt(endPosition - 1))) {
       return Matches.EXACTLY;
     } else {
       return Matches.POSSIBLY;
@@ -75,52 +76,92 @@ public class EmojiTree {
   }
 
   public @Nullable EmojiDrawInfo getEmoji(CharSequence unicode, int startPosition, int endPostiion) {
-    EmojiTreeNode tree = root;
+    int node = walk(unicode, startPosition, endPostiion);
+
+    if (node == NONE) {
+      return null;
+    } else if (emoji[node] != null) {
+      return emoji[node];
+    } else if (unicode.charAt(endPostiion - 1) != TERMINATOR) {
+      int terminator = getChild(node, TERMINATOR);
+      return terminator != NONE ? emoji[terminator] : null;
+    } else {
+      return null;
+    }
+  }
 
-    for (int i=startPosition; i<endPostiion; i++) {
-      char character = unicode.charAt(i);
+  /**
+   * Finds the end of the longest emoji that starts at the given position in a single walk down the tree. This is equivalent to calling
+   * {@link #isEmoji(CharSequence, int, int)} for every end position until the match becomes impossible.
+   *
+   * @return The end (exclusive) of the longest match, or -1 if there is none.
+   */
+  public int findEmojiEnd(@NonNull CharSequence text, int startPosition) {
+    int best = -1;
+    int node = 0;
 
-      if (!tree.hasChild(character)) {
-        return null;
+    for (int i = startPosition; i < text.length(); i++) {
+      char character = text.charAt(i);
+
+      node = getChild(node, character);
+
+      if (node == NONE) {
+        return best;
       }
 
-      tree = tree.getChild(character);
+      if (isEndOfEmoji(node, character)) {
+        best = i + 1;
+      }
     }
 
-    if      (tree.getEmoji() != null)                                                  return tree.getEmoji();
-    else if (unicode.charAt(endPostiion-1) != TERMINATOR && tree.hasChild(TERMINATOR)) return tree.getChild(TERMINATOR).getEmoji();
-    else    return null;
+    return best;
   }
 
+  /**
+   * @return The number of nodes in the tree, for diagnostics.
+   */
+  public int getNodeCount() {
+    return emoji.length;
+  }
 
-  private static class EmojiTreeNode {
-
-    private Map<Character, EmojiTreeNode> children = new HashMap<>();
-    private EmojiDrawInfo emoji;
+  private int walk(@NonNull CharSequence sequence, int startPosition, int endPosition) {
+    int node = 0;
 
-    public void setEmoji(EmojiDrawInfo emoji) {
-      this.emoji = emoji;
+    for (int i = startPosition; i < endPosition && node != NONE; i++) {
+      node = getChild(node, sequence.charAt(i));
     }
 
-    public @Nullable EmojiDrawInfo getEmoji() {
-      return emoji;
-    }
+    return node;
+  }
 
-    boolean hasChild(char child) {
-      return children.containsKey(child);
+  private boolean isEndOfEmoji(int node, char lastCharacter) {
+    if (emoji[node] != null) {
+      return true;
     }
 
-    void addChild(char child) {
-      children.put(child, new EmojiTreeNode());
+    if (lastCharacter == TERMINATOR) {
+      return false;
     }
 
-    EmojiTreeNode getChild(char child) {
-      return children.get(child);
-    }
+    int terminator = getChild(node, TERMINATOR);
+    return terminator != NONE && emoji[terminator] != null;
+  }
+
+  private int getChild(int node, char character) {
+    int start = edgeStart[node];
+    int end   = edgeStart[node + 1];
 
-    boolean isEndOfEmoji() {
-      return emoji != null;
+    if (end - start <= LINEAR_SCAN_MAX) {
+      for (int i = start; i < end; i++) {
+        if (edgeChars[i] == character) {
+          return edgeTargets[i];
+        }
+      }
+      return NONE;
     }
+
+    int index = Arrays.binarySearch(edgeChars, start, end, character);
+    return index >= 0 ? edgeTargets[index] : NONE;
   }
 
   public enum Matches {
@@ -135,4 +176,99 @@ public class EmojiTree {
     }
   }
 
+  /**
+   * Collects emoji into a pointer-based tree, which is only used while the emoji are being added and is then flattened by {@link #build()}.
+   */
+  public static final class Builder {
+
+    private final BuilderNode root = new BuilderNode();
+
+    private int nodeCount = 1;
+    private int edgeCount = 0;
+
+    public void add(String emojiEncoding, EmojiDrawInfo emoji) {
+      BuilderNode tree = root;
+
+      for (char c : emojiEncoding.toCharArray()) {
+        BuilderNode child = tree.children.get(c);
+
+        if (child == null) {
+          child = new BuilderNode();
+          tree.children.put(c, child);
+          nodeCount++;
+          edgeCount++;
+        }
+
+        tree = child;
+      }
+
+      tree.emoji = emoji;
+    }
+
+    /**
+     * Looks up an emoji that has already been added, with the same semantics as {@link EmojiTree#getEmoji(CharSequence, int, int)}.
+     */
+    public @Nullable EmojiDrawInfo getEmoji(CharSequence unicode, int startPosition, int endPosition) {
+      BuilderNode tree = root;
+
+      for (int i = startPosition; i < endPosition; i++) {
+        tree = tree.children.get(unicode.charAt(i));
+
+        if (tree == null) {
+          return null;
+        }
+      }
+
+      if (tree.emoji != null) {
+        return tree.emoji;
+      } else if (unicode.charAt(endPosition - 1) != TERMINATOR && tree.children.containsKey(TERMINATOR)) {
+        return tree.children.get(TERMINATOR).emoji;
+      } else {
+        return null;
+      }
+    }
+
+    public @NonNull EmojiTree build() {
+      int[]           edgeStart   = new int[nodeCount + 1];
+      char[]          edgeChars   = new char[edgeCount];
+      int[]           edgeTargets = new int[edgeCount];
+      EmojiDrawInfo[] emoji       = new EmojiDrawInfo[nodeCount];
+
+      Queue<BuilderNode> queue    = new ArrayDeque<>();
+      int                node     = 0;
+      int                nextNode = 1;
+      int                nextEdge = 0;
+
+      queue.add(root);
+
+      while (!queue.isEmpty()) {
+        BuilderNode current = queue.remove();
+
+        edgeStart[node] = nextEdge;
+        emoji[node]     = current.emoji;
+
+        List<Character> characters = new ArrayList<>(current.children.keySet());
+        Collections.sort(characters);
+
+        for (char character : characters) {
+          edgeChars[nextEdge]   = character;
+          edgeTargets[nextEdge] = nextNode++;
+          nextEdge++;
+
+          queue.add(current.children.get(character));
+        }
+
+        node++;
+      }
+
+      edgeStart[nodeCount] = nextEdge;
+
+      return new EmojiTree(edgeStart, edgeChars, edgeTargets, emoji);
+    }
+  }
+
+  private static final class BuilderNode {
+    private final Map<Character, BuilderNode> children = new HashMap<>();
+    private       EmojiDrawInfo               emoji;
+  }
 }
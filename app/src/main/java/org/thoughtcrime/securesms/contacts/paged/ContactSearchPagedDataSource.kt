@@ -431,21 +431,57 @@ class ContactSearchPagedDataSource(
     }
   }
 
-  private fun getMessageData(query: String?): ContactSearchIterator<MessageResult> {
+  private fun getMessageSearchResult(query: String): MessageSearchResult {
     check(searchRepository != null)
 
-    if (searchCache.messageSearchResult == null && query != null) {
+    if (searchCache.messageSearchResult == null) {
       searchCache = searchCache.copy(messageSearchResult = searchRepository.queryMessagesSync(query))
     }
 
+    return searchCache.messageSearchResult!!
+  }
+
+  private fun getMessageData(query: String?): ContactSearchIterator<MessageResult> {
     return if (query != null) {
-      ListSearchIterator(searchCache.messageSearchResult!!.results)
+      ListSearchIterator(getMessageSearchResult(query).results)
     } else {
       ListSearchIterator(emptyList())
     }
   }
 
+  /**
+   * Message results come back without mentions and styles applied, so that is done here for only the window that is being loaded.
+   * [startIndex] and [endIndex] are positions in the section, which start with the header if there is one.
+   */
+  private fun resolveMessageResults(section: ContactSearchConfiguration.Section.Messages, query: String, startIndex: Int, endIndex: Int) {
+    check(searchRepository != null)
+
+    val messageSearchResult = getMessageSearchResult(query)
+    val results = messageSearchResult.results
+    val headerOffset = if (section.includeHeader) 1 else 0
+    val start = (startIndex - headerOffset).coerceIn(0, results.size)
+    val end = (endIndex - headerOffset).coerceIn(start, results.size)
+
+    val window = results.subList(start, end)
+    if (window.none { it.messageId in messageSearchResult.unresolvedMessageIds }) {
+      return
+    }
+
+    val resolved = searchRepository.resolveMessageResults(messageSearchResult, window)
+
+    searchCache = searchCache.copy(
+      messageSearchResult = messageSearchResult.copy(
+        results = results.subList(0, start) + resolved + results.subList(end, results.size),
+        unresolvedMessageIds = messageSearchResult.unresolvedMessageIds - window.map { it.messageId }.toSet()
+      )
+    )
+  }
+
   private fun getMessageContactData(section: ContactSearchConfiguration.Section.Messages, query: String?, startIndex: Int, endIndex: Int): List<ContactSearchData> {
+    if (query != null) {
+      resolveMessageResults(section, query, startIndex, endIndex)
+    }
+
     return getMessageData(query).use { records ->
       readContactData(
         records = records,
@@ -13,6 +13,7 @@ import org.thoughtcrime.securesms.components.mention.MentionAnnotation;
 import org.thoughtcrime.securesms.conversation.mutiselect.Multiselect;
 import org.thoughtcrime.securesms.conversation.mutiselect.MultiselectCollection;
 import org.thoughtcrime.securesms.conversation.v2.computed.FormattedDate;
+import org.thoughtcrime.securesms.conversation.v2.computed.PrecomputedBody;
 import org.thoughtcrime.securesms.database.BodyRangeUtil;
 import org.thoughtcrime.securesms.database.MentionUtil;
 import org.thoughtcrime.securesms.database.NoSuchMessageException;
@@ -166,7 +167,8 @@ public class ConversationMessage {
   }
 
   public static class ComputedProperties {
-    private @NonNull FormattedDate formattedDate;
+    private @NonNull  FormattedDate   formattedDate;
+    private @Nullable PrecomputedBody precomputedBody;
 
     ComputedProperties(@NonNull FormattedDate formattedDate) {
       this.formattedDate = formattedDate;
@@ -179,6 +181,14 @@ public class ConversationMessage {
     public synchronized void setFormattedDate(@NonNull FormattedDate formattedDate) {
       this.formattedDate = formattedDate;
     }
+
+    public synchronized @Nullable PrecomputedBody getPrecomputedBody() {
+      return precomputedBody;
+    }
+
+    public synchronized void setPrecomputedBody(@Nullable PrecomputedBody precomputedBody) {
+      this.precomputedBody = precomputedBody;
+    }
   }
 
   /**
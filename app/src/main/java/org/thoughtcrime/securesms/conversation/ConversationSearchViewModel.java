@@ -6,7 +6,7 @@ import androidx.lifecycle.MutableLiveData;
 import androidx.lifecycle.ViewModel;
 import androidx.lifecycle.ViewModelProvider;
 
-import org.signal.core.util.ThreadUtil;
+import org.signal.core.util.logging.Log;
 import org.thoughtcrime.securesms.search.MessageResult;
 import org.thoughtcrime.securesms.search.SearchRepository;
 import org.thoughtcrime.securesms.util.Debouncer;
@@ -14,8 +14,13 @@ import org.thoughtcrime.securesms.util.Debouncer;
 import java.util.Collections;
 import java.util.List;
 
+import io.reactivex.rxjava3.android.schedulers.AndroidSchedulers;
+import io.reactivex.rxjava3.disposables.Disposable;
+
 public class ConversationSearchViewModel extends ViewModel {
 
+  private static final String TAG = Log.tag(ConversationSearchViewModel.class);
+
   private final SearchRepository              searchRepository;
   private final MutableLiveData<SearchResult> result;
   private final Debouncer                     debouncer;
@@ -24,6 +29,9 @@ public class ConversationSearchViewModel extends ViewModel {
   private boolean searchOpen;
   private String  activeQuery;
   private long    activeThreadId;
+  private String  resultQuery;
+
+  private Disposable activeSearch = Disposable.disposed();
 
   public ConversationSearchViewModel(@NonNull String noteToSelfTitle) {
     result           = new MutableLiveData<>();
@@ -89,25 +97,56 @@ public class ConversationSearchViewModel extends ViewModel {
   public void onSearchClosed() {
     searchOpen = false;
     debouncer.clear();
+    activeSearch.dispose();
+  }
+
+  @Override
+  protected void onCleared() {
+    debouncer.clear();
+    activeSearch.dispose();
   }
 
   private void updateQuery(@NonNull String query, long threadId) {
     activeQuery    = query;
     activeThreadId = threadId;
 
+    activeSearch.dispose();
+
     debouncer.publish(() -> {
       firstSearch = false;
 
-      searchRepository.query(query, threadId, messages -> {
-        ThreadUtil.runOnMain(() -> {
-          if (searchOpen && query.equals(activeQuery)) {
-            result.setValue(new SearchResult(messages, 0));
-          }
-        });
-      });
+      activeSearch.dispose();
+      activeSearch = searchRepository.queryMessages(query, threadId)
+                                     .observeOn(AndroidSchedulers.mainThread())
+                                     .subscribe(messages -> {
+                                       if (searchOpen && query.equals(activeQuery)) {
+                                         result.setValue(new SearchResult(messages, getRetainedPosition(query, messages)));
+                                         resultQuery = query;
+                                       }
+                                     }, t -> Log.w(TAG, "Failed to search.", t));
     });
   }
 
+  /**
+   * Results for the same query stream in as the search progresses, so keep the user on the message they are looking at.
+   */
+  private int getRetainedPosition(@NonNull String query, @NonNull List<MessageResult> messages) {
+    SearchResult current = result.getValue();
+
+    if (current == null || !query.equals(resultQuery) || current.getResults().isEmpty()) {
+      return 0;
+    }
+
+    long selectedMessageId = current.getResults().get(current.getPosition()).getMessageId();
+    for (int i = 0; i < messages.size(); i++) {
+      if (messages.get(i).getMessageId() == selectedMessageId) {
+        return i;
+      }
+    }
+
+    return 0;
+  }
+
   public static class SearchResult {
 
     private final List<MessageResult> results;
@@ -51,6 +51,7 @@ import org.thoughtcrime.securesms.conversation.mutiselect.MultiselectPart
 import org.thoughtcrime.securesms.conversation.v2.RequestReviewState.GroupReviewState
 import org.thoughtcrime.securesms.conversation.v2.RequestReviewState.IndividualReviewState
 import org.thoughtcrime.securesms.conversation.v2.data.ConversationDataSource
+import org.thoughtcrime.securesms.conversation.v2.data.ConversationMessageCache
 import org.thoughtcrime.securesms.crypto.ReentrantSessionLock
 import org.thoughtcrime.securesms.database.GroupTable
 import org.thoughtcrime.securesms.database.IdentityTable.VerifiedStatus
@@ -138,12 +139,14 @@ class ConversationRepository(
       SignalLocalMetrics.ConversationOpen.onMetadataLoaded()
 
       val messageRequestData = metadata.messageRequestData
+      val messageCache = ConversationMessageCache()
       val dataSource = ConversationDataSource(
         localContext,
         threadId,
         messageRequestData,
         metadata.showUniversalExpireTimerMessage,
-        metadata.threadSize
+        metadata.threadSize,
+        messageCache
       )
       val config = PagingConfig.Builder().setPageSize(25)
         .setBufferPages(2)
@@ -152,7 +155,8 @@ class ConversationRepository(
 
       ConversationThreadState(
         items = PagedData.createForObservable(dataSource, config),
-        meta = metadata
+        meta = metadata,
+        messageCache = messageCache
       )
     }.subscribeOn(Schedulers.io())
   }
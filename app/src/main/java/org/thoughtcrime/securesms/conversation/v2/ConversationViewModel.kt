@@ -32,6 +32,7 @@ import io.reactivex.rxjava3.subjects.Subject
 import org.signal.core.util.concurrent.subscribeWithSubject
 import org.signal.core.util.orNull
 import org.signal.paging.ProxyPagingController
+import org.thoughtcrime.securesms.attachments.AttachmentId
 import org.thoughtcrime.securesms.components.reminder.Reminder
 import org.thoughtcrime.securesms.contactshare.Contact
 import org.thoughtcrime.securesms.conversation.ConversationMessage
@@ -189,7 +190,9 @@ class ConversationViewModel(
     disposables += conversationThreadState.flatMapObservable { threadState ->
       Observable.create<Unit> { emitter ->
         val controller = threadState.items.controller
+        val messageCache = threadState.messageCache
         val messageUpdateObserver = DatabaseObserver.MessageObserver {
+          messageCache.invalidate(it.id)
           controller.onDataItemChanged(ConversationElementKey.forMessage(it.id))
         }
         val messageInsertObserver = DatabaseObserver.MessageObserver {
@@ -198,15 +201,30 @@ class ConversationViewModel(
         val conversationObserver = DatabaseObserver.Observer {
           controller.onDataInvalidated()
         }
+        val attachmentObserver = DatabaseObserver.ChangesObserver<AttachmentId> { attachmentIds ->
+          if (attachmentIds.isEmpty()) {
+            messageCache.invalidateAttachments()
+          } else if (messageCache.invalidateAttachments(attachmentIds)) {
+            controller.onDataInvalidated()
+          }
+        }
+        val callUpdateObserver = DatabaseObserver.Observer {
+          messageCache.invalidateCalls()
+        }
 
         ApplicationDependencies.getDatabaseObserver().registerMessageUpdateObserver(messageUpdateObserver)
         ApplicationDependencies.getDatabaseObserver().registerMessageInsertObserver(threadId, messageInsertObserver)
         ApplicationDependencies.getDatabaseObserver().registerConversationObserver(threadId, conversationObserver)
+        ApplicationDependencies.getDatabaseObserver().registerAttachmentChangesObserver(attachmentObserver)
+        ApplicationDependencies.getDatabaseObserver().registerCallUpdateObserver(callUpdateObserver)
 
         emitter.setCancellable {
           ApplicationDependencies.getDatabaseObserver().unregisterObserver(messageUpdateObserver)
           ApplicationDependencies.getDatabaseObserver().unregisterObserver(messageInsertObserver)
           ApplicationDependencies.getDatabaseObserver().unregisterObserver(conversationObserver)
+          ApplicationDependencies.getDatabaseObserver().unregisterObserver(attachmentObserver)
+          ApplicationDependencies.getDatabaseObserver().unregisterObserver(callUpdateObserver)
+          messageCache.clear()
         }
       }
     }.subscribeOn(Schedulers.io()).subscribe()
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2023 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.thoughtcrime.securesms.conversation.v2.computed
+
+import android.content.Context
+import android.content.res.Configuration
+import android.os.Build
+import android.text.Spannable
+import android.text.SpannableString
+import android.text.Spanned
+import android.text.style.URLSpan
+import android.text.util.Linkify
+import androidx.annotation.MainThread
+import androidx.annotation.WorkerThread
+import androidx.core.text.PrecomputedTextCompat
+import androidx.core.text.util.LinkifyCompat
+import org.signal.core.util.StringUtil
+import org.signal.core.util.concurrent.SignalExecutors
+import org.thoughtcrime.securesms.components.emoji.EmojiProvider
+import org.thoughtcrime.securesms.components.emoji.EmojiTextView
+import org.thoughtcrime.securesms.components.emoji.parsing.EmojiParser
+import org.thoughtcrime.securesms.conversation.ConversationMessage
+import org.thoughtcrime.securesms.linkpreview.LinkPreviewUtil.MONERO_TX_PATTERN
+import org.thoughtcrime.securesms.util.InterceptableLongClickCopyLinkSpan
+import org.thoughtcrime.securesms.util.LinkUtil
+import org.thoughtcrime.securesms.util.UrlClickHandler
+
+/**
+ * The parts of presenting a text-only message body that do not depend on view state, computed in the conversation
+ * paging pipeline so that binding only has to apply them:
+ *
+ * - The legal URL, email and phone links in the body, which would otherwise be found with Linkify on every bind.
+ * - The emoji candidates of the trimmed body, which would otherwise be parsed by EmojiTextView on every bind.
+ * - On API 29+, the trimmed body measured as a [PrecomputedTextCompat] for a [LayoutSpec], which EmojiTextView displays in
+ *   place of measuring the body itself whenever it has no emoji to render and no metric affecting styles.
+ *
+ * Since this hangs off of a [ConversationMessage], it shares its (message id, version) lifetime. Links and emoji
+ * candidates only depend on the characters of the body, so they stay valid across font size and width changes. The
+ * measured body is only used for the [LayoutSpec] it was measured with, and is measured again off of the main thread
+ * when a configuration change binds it with a different one.
+ */
+class PrecomputedBody private constructor(
+  private val links: List<Link>,
+  private val trimmedBody: CharSequence,
+  private val emojiCandidates: EmojiParser.CandidateList?
+) {
+
+  @Volatile
+  private var measuredBody: MeasuredBody? = null
+
+  @Volatile
+  private var pendingLayoutSpec: LayoutSpec? = null
+
+  companion object {
+    private const val LINK_MASK = Linkify.WEB_URLS or Linkify.EMAIL_ADDRESSES or Linkify.PHONE_NUMBERS
+
+    /**
+     * The spec that bodies were last bound with, so that newly loaded bodies can be measured to match.
+     */
+    @Volatile
+    private var lastLayoutSpec: LayoutSpec? = null
+
+    @JvmStatic
+    @WorkerThread
+    fun compute(context: Context, conversationMessage: ConversationMessage): PrecomputedBody {
+      val body: CharSequence = conversationMessage.getDisplayBody(context)
+      val trimmedBody = StringUtil.trim(body).toString()
+
+      val precomputedBody = PrecomputedBody(
+        links = findLinks(body.toString()),
+        trimmedBody = trimmedBody,
+        emojiCandidates = EmojiProvider.getCandidates(trimmedBody)
+      )
+
+      lastLayoutSpec?.let { precomputedBody.measure(it) }
+
+      return precomputedBody
+    }
+
+    private fun findLinks(body: String): List<Link> {
+      if (body.isEmpty()) {
+        return emptyList()
+      }
+
+      val spannable = SpannableString(body)
+      val hasLinks = LinkifyCompat.addLinks(spannable, LINK_MASK) or LinkifyCompat.addLinks(spannable, MONERO_TX_PATTERN, "monero")
+
+      if (!hasLinks) {
+        return emptyList()
+      }
+
+      return spannable.getSpans(0, spannable.length, URLSpan::class.java)
+        .filter { LinkUtil.isLegalUrl(it.url) }
+        .map { Link(spannable.getSpanStart(it), spannable.getSpanEnd(it), it.url) }
+        .sortedBy { it.start }
+    }
+  }
+
+  /**
+   * Equivalent to linkifying all links in [messageBody], using the precomputed link positions.
+   */
+  fun applyLinks(messageBody: Spannable, urlClickHandler: UrlClickHandler) {
+    messageBody.getSpans(0, messageBody.length, URLSpan::class.java).forEach(messageBody::removeSpan)
+
+    for (link in links) {
+      if (link.end <= messageBody.length) {
+        messageBody.setSpan(InterceptableLongClickCopyLinkSpan(link.url, urlClickHandler), link.start, link.end, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE)
+      }
+    }
+  }
+
+  /**
+   * Hands the precomputed emoji candidates of the trimmed body to [textView], to be used if it is given the same characters.
+   */
+  fun applyEmojiCandidates(textView: EmojiTextView) {
+    textView.setPrecomputedEmojiCandidates(trimmedBody, emojiCandidates)
+  }
+
+  /**
+   * Hands the trimmed body measured for [layoutSpec] to [textView], to be displayed if it is given the same characters. If the
+   * body has not been measured for [layoutSpec] yet, it is measured in the background for the next bind.
+   */
+  @MainThread
+  fun applyPrecomputedText(textView: EmojiTextView, layoutSpec: LayoutSpec) {
+    lastLayoutSpec = layoutSpec
+
+    val measured = measuredBody
+    if (measured != null && measured.layoutSpec == layoutSpec) {
+      textView.setPrecomputedText(measured.text)
+      return
+    }
+
+    textView.setPrecomputedText(null)
+
+    if (Build.VERSION.SDK_INT >= 29 && trimmedBody.isNotEmpty() && pendingLayoutSpec != layoutSpec) {
+      pendingLayoutSpec = layoutSpec
+      SignalExecutors.BOUNDED.execute { measure(layoutSpec) }
+    }
+  }
+
+  @WorkerThread
+  private fun measure(layoutSpec: LayoutSpec) {
+    if (Build.VERSION.SDK_INT < 29 || trimmedBody.isEmpty() || measuredBody?.layoutSpec == layoutSpec) {
+      return
+    }
+
+    measuredBody = MeasuredBody(layoutSpec, PrecomputedTextCompat.create(trimmedBody, layoutSpec.textMetricsParams))
+  }
+
+  /**
+   * What a body is measured for: the text metrics of the view displaying it, along with the screen width and font scale of the
+   * configuration it is displayed in. A body measured for one spec is never displayed with another.
+   */
+  data class LayoutSpec(
+    val screenWidthDp: Int,
+    val fontScale: Float,
+    val textMetricsParams: PrecomputedTextCompat.Params
+  ) {
+    constructor(configuration: Configuration, textMetricsParams: PrecomputedTextCompat.Params) : this(configuration.screenWidthDp, configuration.fontScale, textMetricsParams)
+  }
+
+  private class MeasuredBody(val layoutSpec: LayoutSpec, val text: PrecomputedTextCompat)
+
+  private data class Link(val start: Int, val end: Int, val url: String)
+}
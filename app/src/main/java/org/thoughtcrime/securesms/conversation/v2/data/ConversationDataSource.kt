@@ -10,19 +10,25 @@ import org.signal.core.util.Stopwatch
 import org.signal.core.util.logging.Log
 import org.signal.core.util.toInt
 import org.signal.paging.PagedDataSource
+import org.thoughtcrime.securesms.attachments.DatabaseAttachment
 import org.thoughtcrime.securesms.backup.v2.BackupRestoreManager
 import org.thoughtcrime.securesms.conversation.ConversationData
 import org.thoughtcrime.securesms.conversation.ConversationMessage
 import org.thoughtcrime.securesms.conversation.ConversationMessage.ConversationMessageFactory
+import org.thoughtcrime.securesms.conversation.v2.computed.PrecomputedBody
+import org.thoughtcrime.securesms.database.CallTable
 import org.thoughtcrime.securesms.database.MessageTable
 import org.thoughtcrime.securesms.database.SignalDatabase
 import org.thoughtcrime.securesms.database.model.InMemoryMessageRecord.RemovedContactHidden
 import org.thoughtcrime.securesms.database.model.InMemoryMessageRecord.UniversalExpireTimerUpdate
+import org.thoughtcrime.securesms.database.model.Mention
 import org.thoughtcrime.securesms.database.model.MessageRecord
 import org.thoughtcrime.securesms.database.model.MmsMessageRecord
+import org.thoughtcrime.securesms.database.model.ReactionRecord
 import org.thoughtcrime.securesms.dependencies.ApplicationDependencies
 import org.thoughtcrime.securesms.keyvalue.SignalStore
 import org.thoughtcrime.securesms.messagerequests.MessageRequestRepository
+import org.thoughtcrime.securesms.payments.Payment
 import org.thoughtcrime.securesms.recipients.Recipient
 import org.thoughtcrime.securesms.util.FeatureFlags
 import org.thoughtcrime.securesms.util.adapter.mapping.MappingModel
@@ -54,6 +60,7 @@ class ConversationDataSource(
   private val messageRequestData: ConversationData.MessageRequestData,
   private val showUniversalExpireTimerUpdate: Boolean,
   private var baseSize: Int,
+  private val messageCache: ConversationMessageCache = ConversationMessageCache(),
   private val messageRequestRepository: MessageRequestRepository = MessageRequestRepository(localContext)
 ) : PagedDataSource<ConversationElementKey, ConversationElement> {
 
@@ -96,7 +103,8 @@ class ConversationDataSource(
 
   override fun load(start: Int, length: Int, totalSize: Int, cancellationSignal: PagedDataSource.CancellationSignal): List<ConversationElement> {
     val stopwatch = Stopwatch(title = "load($start, $length), thread $threadId", decimalPlaces = 2)
-    var records: MutableList<MessageRecord> = ArrayList(length)
+    val loadGeneration = messageCache.currentGeneration()
+    val records: MutableList<MessageRecord> = ArrayList(length)
 
     MessageTable.mmsReaderFor(SignalDatabase.messages.getConversation(threadId, start.toLong(), length.toLong()))
       .use { reader ->
@@ -119,30 +127,70 @@ class ConversationDataSource(
 
     stopwatch.split("messages")
 
-    val extraData = MessageDataFetcher.fetch(records)
+    val quoted: Set<Long> = SignalDatabase.messages.isQuoted(records.filterNot { it.isInMemoryMessageRecord })
+    stopwatch.split("is-quoted")
+
+    val messages: Array<ConversationElement?> = arrayOfNulls(records.size)
+    val stamps: Array<ConversationStamp?> = arrayOfNulls(records.size)
+    val toRebuild: MutableList<Pair<MessageRecord, ConversationMessageCache.Entry>> = mutableListOf()
+    val toFetch: MutableList<MessageRecord> = mutableListOf()
+
+    records.forEachIndexed { index, record ->
+      if (record.isInMemoryMessageRecord) {
+        toFetch += record
+        return@forEachIndexed
+      }
+
+      stamps[index] = record.conversationStamp()
+
+      val entry = messageCache.get(record.id)
+      when {
+        entry == null -> toFetch += record
+        entry.isCurrent(stamps[index]!!, quoted.contains(record.id)) -> messages[index] = entry.element
+        else -> toRebuild += record to entry
+      }
+    }
+
+    val hits = records.size - toRebuild.size - toFetch.size
+    stopwatch.split("cache")
+
+    val fetchedData: MessageDataFetcher.ExtraMessageData? = if (toFetch.isNotEmpty()) MessageDataFetcher.fetch(toFetch) else null
     stopwatch.split("extra-data")
 
-    records = MessageDataFetcher.updateModelsWithData(records, extraData).toMutableList()
+    val extraData: MessageDataFetcher.ExtraMessageData = toRebuild.toExtraMessageData() + fetchedData
+    val hydrated: Map<Long, MessageRecord> = MessageDataFetcher.updateModelsWithData(toRebuild.map { it.first } + toFetch, extraData).associateBy { it.id }
     stopwatch.split("models")
 
-    if (FeatureFlags.messageBackups() && SignalStore.backup().restoreState.inProgress) {
-      BackupRestoreManager.prioritizeAttachmentsIfNeeded(records)
-      stopwatch.split("restore")
-    }
+    records.forEachIndexed { index, record ->
+      if (messages[index] != null) {
+        return@forEachIndexed
+      }
 
-    val messages = records.map { record ->
-      ConversationMessageFactory.createWithUnresolvedData(
+      val hydratedRecord = hydrated[record.id]!!
+      val hasBeenQuoted = if (record.isInMemoryMessageRecord) extraData.hasBeenQuoted.contains(record.id) else quoted.contains(record.id)
+      val element = ConversationMessageFactory.createWithUnresolvedData(
         localContext,
-        record,
-        record.getDisplayBody(localContext),
+        hydratedRecord,
+        hydratedRecord.getDisplayBody(localContext),
         extraData.mentionsById[record.id],
-        extraData.hasBeenQuoted.contains(record.id),
+        hasBeenQuoted,
         threadRecipient
       ).toMappingModel()
+
+      messages[index] = element
+
+      if (!record.isInMemoryMessageRecord) {
+        messageCache.put(record.id, extraData.toCacheEntry(record.id, stamps[index]!!, hasBeenQuoted, element), loadGeneration)
+      }
     }
 
     stopwatch.split("conversion")
 
+    if (FeatureFlags.messageBackups() && SignalStore.backup().restoreState.inProgress) {
+      BackupRestoreManager.prioritizeAttachmentsIfNeeded(messages.mapNotNull { (it as? ConversationMessageElement)?.conversationMessage?.messageRecord })
+      stopwatch.split("restore")
+    }
+
     val threadHeaderIndex = totalSize - THREAD_HEADER_COUNT
 
     val threadHeaders: List<ConversationElement> = if (start + length > threadHeaderIndex) {
@@ -153,9 +201,10 @@ class ConversationDataSource(
 
     stopwatch.split("header")
     val log = stopwatch.stopAndGetLogString()
-    Log.d(TAG, "$log || ${extraData.timeLog}")
+    Log.d(TAG, "$log || cache hits: $hits, rebuilt: ${toRebuild.size}, fetched: ${toFetch.size} || ${fetchedData?.timeLog}")
 
-    return if (threadHeaders.isNotEmpty()) messages + threadHeaders else messages
+    val elements: List<ConversationElement> = messages.map { it!! }
+    return if (threadHeaders.isNotEmpty()) elements + threadHeaders else elements
   }
 
   override fun load(key: ConversationElementKey): ConversationElement? {
@@ -169,6 +218,7 @@ class ConversationDataSource(
     }
 
     val stopwatch = Stopwatch(title = "load($key), thread $threadId", decimalPlaces = 2)
+    val loadGeneration = messageCache.currentGeneration()
     var record = SignalDatabase.messages.getMessageRecordOrNull(key.id)
 
     if ((record as? MmsMessageRecord)?.parentStoryId?.isGroupReply() == true) {
@@ -187,20 +237,27 @@ class ConversationDataSource(
       if (record == null) {
         return null
       } else {
+        val stamp = record.conversationStamp()
+
         extraData = MessageDataFetcher.fetch(record)
         stopwatch.split("extra-data")
 
         record = MessageDataFetcher.updateModelWithData(record, extraData)
         stopwatch.split("models")
 
-        return ConversationMessageFactory.createWithUnresolvedData(
+        val hasBeenQuoted = extraData.hasBeenQuoted.contains(record.id)
+        val element = ConversationMessageFactory.createWithUnresolvedData(
           localContext,
           record,
           record.getDisplayBody(ApplicationDependencies.getApplication()),
           extraData.mentionsById[record.id],
-          extraData.hasBeenQuoted.contains(record.id),
+          hasBeenQuoted,
           threadRecipient
         ).toMappingModel()
+
+        messageCache.put(record.id, extraData.toCacheEntry(record.id, stamp, hasBeenQuoted, element), loadGeneration)
+
+        return element
       }
     } finally {
       val log = stopwatch.stopAndGetLogString()
@@ -220,21 +277,65 @@ class ConversationDataSource(
     return ThreadHeader(messageRequestRepository.getRecipientInfo(threadRecipient.id, threadId))
   }
 
+  private fun List<Pair<MessageRecord, ConversationMessageCache.Entry>>.toExtraMessageData(): MessageDataFetcher.ExtraMessageData {
+    val mentions: MutableMap<Long, List<Mention>> = mutableMapOf()
+    val reactions: MutableMap<Long, List<ReactionRecord>> = mutableMapOf()
+    val attachments: MutableMap<Long, List<DatabaseAttachment>> = mutableMapOf()
+    val payments: MutableMap<Long, Payment> = mutableMapOf()
+    val calls: MutableMap<Long, CallTable.Call> = mutableMapOf()
+
+    for ((record, entry) in this) {
+      entry.mentions?.let { mentions[record.id] = it }
+      entry.reactions?.let { reactions[record.id] = it }
+      entry.attachments?.let { attachments[record.id] = it }
+      entry.payment?.let { payments[record.id] = it }
+      entry.call?.let { calls[record.id] = it }
+    }
+
+    return MessageDataFetcher.ExtraMessageData(
+      mentionsById = mentions,
+      hasBeenQuoted = emptySet(),
+      reactions = reactions,
+      attachments = attachments,
+      payments = payments,
+      calls = calls,
+      timeLog = ""
+    )
+  }
+
+  private fun MessageDataFetcher.ExtraMessageData.toCacheEntry(id: Long, stamp: ConversationStamp, hasBeenQuoted: Boolean, element: ConversationElement): ConversationMessageCache.Entry {
+    return ConversationMessageCache.Entry(
+      stamp = stamp,
+      hasBeenQuoted = hasBeenQuoted,
+      mentions = mentionsById[id],
+      reactions = reactions[id],
+      attachments = attachments[id],
+      payment = payments[id],
+      call = calls[id],
+      element = element
+    )
+  }
+
   private fun ConversationMessage.toMappingModel(): MappingModel<*> {
     return if (messageRecord.isUpdate) {
       ConversationUpdate(this)
     } else if (messageRecord.isOutgoing) {
       if (this.isTextOnly(localContext)) {
-        OutgoingTextOnly(this)
+        OutgoingTextOnly(withPrecomputedBody())
       } else {
         OutgoingMedia(this)
       }
     } else {
       if (this.isTextOnly(localContext)) {
-        IncomingTextOnly(this)
+        IncomingTextOnly(withPrecomputedBody())
       } else {
         IncomingMedia(this)
       }
     }
   }
+
+  private fun ConversationMessage.withPrecomputedBody(): ConversationMessage {
+    computedProperties.precomputedBody = PrecomputedBody.compute(localContext, this)
+    return this
+  }
 }
@@ -0,0 +1,282 @@
+/*
+ * Copyright 2023 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.thoughtcrime.securesms.conversation.v2.data
+
+import org.thoughtcrime.securesms.attachments.AttachmentId
+import org.thoughtcrime.securesms.attachments.DatabaseAttachment
+import org.thoughtcrime.securesms.database.CallTable
+import org.thoughtcrime.securesms.database.documents.IdentityKeyMismatch
+import org.thoughtcrime.securesms.database.documents.NetworkFailure
+import org.thoughtcrime.securesms.database.model.Mention
+import org.thoughtcrime.securesms.database.model.MessageId
+import org.thoughtcrime.securesms.database.model.MessageRecord
+import org.thoughtcrime.securesms.database.model.MmsMessageRecord
+import org.thoughtcrime.securesms.database.model.ReactionRecord
+import org.thoughtcrime.securesms.database.model.StoryType
+import org.thoughtcrime.securesms.database.model.databaseprotos.BodyRangeList
+import org.thoughtcrime.securesms.database.model.databaseprotos.GiftBadge
+import org.thoughtcrime.securesms.database.model.databaseprotos.MessageExtras
+import org.thoughtcrime.securesms.payments.Payment
+import org.thoughtcrime.securesms.recipients.RecipientId
+import org.thoughtcrime.securesms.util.LRUCache
+import org.thoughtcrime.securesms.util.adapter.mapping.MappingModel
+import java.io.IOException
+
+/**
+ * Per-thread cache of fully hydrated conversation elements, shared across every load of a single [ConversationDataSource].
+ *
+ * Each entry remembers the data fetched by [MessageDataFetcher] for a message alongside a [ConversationStamp] of the raw message row it was
+ * built from. On a page reload, rows whose stamp still matches are returned as-is, rows whose stamp changed are rebuilt from the cached
+ * associated data, and only rows that were explicitly invalidated (or never seen) go back through [MessageDataFetcher.fetch].
+ *
+ * Invalidation is driven by the same database observers that drive the paging controller:
+ * - [invalidate] for message updates (receipts, reactions, payments, edits)
+ * - [invalidateAttachments] for attachment changes, which are reported by attachment rather than by message
+ * - [invalidateCalls] for call event changes
+ */
+class ConversationMessageCache(private val maxSize: Int = DEFAULT_MAX_SIZE) {
+
+  companion object {
+    private const val DEFAULT_MAX_SIZE = 500
+
+    /** Past this many remembered invalidations, they're forgotten and every load that started before then is turned away instead. */
+    private const val MAX_INVALIDATIONS = 5_000
+  }
+
+  private val entries: LRUCache<Long, Entry> = LRUCache(maxSize)
+  private val invalidatedMessages: MutableMap<Long, Long> = HashMap()
+  private val invalidatedAttachments: MutableMap<AttachmentId, Long> = HashMap()
+
+  private var generation: Long = 0
+  private var clearedAt: Long = 0
+
+  /**
+   * The current version of the cache. Must be captured before reading from the database so that a racing invalidation prevents
+   * stale results from being written back with [put].
+   */
+  @Synchronized
+  fun currentGeneration(): Long {
+    return generation
+  }
+
+  @Synchronized
+  fun get(messageId: Long): Entry? {
+    return entries[messageId]
+  }
+
+  @Synchronized
+  fun put(messageId: Long, entry: Entry, loadGeneration: Long) {
+    if (clearedAt > loadGeneration || (invalidatedMessages[messageId] ?: 0L) > loadGeneration) {
+      return
+    }
+
+    if (entry.attachments?.any { (invalidatedAttachments[it.attachmentId] ?: 0L) > loadGeneration } == true) {
+      return
+    }
+
+    entries[messageId] = entry
+  }
+
+  @Synchronized
+  fun invalidate(messageId: Long) {
+    generation++
+    remember(invalidatedMessages, messageId)
+    entries.remove(messageId)
+  }
+
+  /**
+   * Drops every entry that holds one of [attachmentIds].
+   *
+   * @return True if any entries were dropped.
+   */
+  @Synchronized
+  fun invalidateAttachments(attachmentIds: Set<AttachmentId>): Boolean {
+    generation++
+    attachmentIds.forEach { remember(invalidatedAttachments, it) }
+
+    var invalidated = false
+    val iterator = entries.entries.iterator()
+    while (iterator.hasNext()) {
+      val (messageId, entry) = iterator.next()
+      if (entry.attachments?.any { it.attachmentId in attachmentIds } == true) {
+        remember(invalidatedMessages, messageId)
+        iterator.remove()
+        invalidated = true
+      }
+    }
+
+    return invalidated
+  }
+
+  /**
+   * For attachment changes that can't be pinned to particular attachments.
+   */
+  @Synchronized
+  fun invalidateAttachments() {
+    generation++
+    clearedAt = generation
+    entries.clear()
+  }
+
+  @Synchronized
+  fun invalidateCalls() {
+    generation++
+
+    val iterator = entries.entries.iterator()
+    while (iterator.hasNext()) {
+      val (messageId, entry) = iterator.next()
+      if (entry.call != null) {
+        remember(invalidatedMessages, messageId)
+        iterator.remove()
+      }
+    }
+  }
+
+  @Synchronized
+  fun clear() {
+    generation++
+    clearedAt = generation
+    entries.clear()
+    invalidatedMessages.clear()
+    invalidatedAttachments.clear()
+  }
+
+  /**
+   * Invalidations have to be remembered for as long as a load that started before them might still be running, which we can't know, so
+   * rather than evicting some of them, they're all forgotten at once and [clearedAt] turns away every load that started before.
+   */
+  private fun <K> remember(invalidations: MutableMap<K, Long>, key: K) {
+    if (invalidatedMessages.size + invalidatedAttachments.size >= MAX_INVALIDATIONS) {
+      invalidatedMessages.clear()
+      invalidatedAttachments.clear()
+      clearedAt = generation
+    }
+
+    invalidations[key] = generation
+  }
+
+  class Entry(
+    val stamp: ConversationStamp,
+    val hasBeenQuoted: Boolean,
+    val mentions: List<Mention>?,
+    val reactions: List<ReactionRecord>?,
+    val attachments: List<DatabaseAttachment>?,
+    val payment: Payment?,
+    val call: CallTable.Call?,
+    val element: MappingModel<*>
+  ) {
+    /**
+     * Whether the cached element can be handed out as-is for the given freshly read row.
+     */
+    fun isCurrent(stamp: ConversationStamp, hasBeenQuoted: Boolean): Boolean {
+      return this.stamp == stamp && this.hasBeenQuoted == hasBeenQuoted
+    }
+  }
+}
+
+/**
+ * The columns of a raw, unhydrated message row that affect how it is rendered, compared by value. Associated data (reactions, attachments,
+ * payments, calls) is deliberately excluded since it is tracked through explicit invalidation instead.
+ */
+data class ConversationStamp(
+  val type: Long,
+  val body: String,
+  val fromRecipientId: RecipientId,
+  val toRecipientId: RecipientId,
+  val authorDeviceId: Int,
+  val dateSent: Long,
+  val dateReceived: Long,
+  val serverTimestamp: Long,
+  val deliveryStatus: Int,
+  val hasDeliveryReceipt: Boolean,
+  val hasReadReceipt: Boolean,
+  val viewed: Boolean,
+  val expiresIn: Long,
+  val expireStarted: Long,
+  val unidentified: Boolean,
+  val remoteDelete: Boolean,
+  val notifiedTimestamp: Long,
+  val receiptTimestamp: Long,
+  val originalMessageId: MessageId?,
+  val revisionNumber: Int,
+  val identityKeyMismatches: Set<IdentityKeyMismatch>,
+  val networkFailures: Set<NetworkFailure>,
+  val messageRanges: BodyRangeList?,
+  val messageExtras: MessageExtras?,
+  val media: MediaStamp?
+) {
+
+  /**
+   * The columns only found on [MmsMessageRecord]s.
+   */
+  data class MediaStamp(
+    val read: Boolean,
+    val viewOnce: Boolean,
+    val mentionsSelf: Boolean,
+    val storyType: StoryType,
+    val parentStoryId: Long?,
+    val giftBadge: GiftBadge?,
+    val scheduledDate: Long,
+    val latestRevisionId: MessageId?,
+    val quote: QuoteStamp?,
+    val linkPreviews: List<LinkPreviewStamp>,
+    val sharedContacts: List<String?>
+  )
+
+  data class QuoteStamp(val id: Long, val author: RecipientId, val text: String?, val missing: Boolean, val type: Int)
+
+  data class LinkPreviewStamp(val url: String, val title: String, val description: String, val date: Long, val attachmentId: AttachmentId?)
+}
+
+fun MessageRecord.conversationStamp(): ConversationStamp {
+  return ConversationStamp(
+    type = type,
+    body = body,
+    fromRecipientId = fromRecipient.id,
+    toRecipientId = toRecipient.id,
+    authorDeviceId = fromDeviceId,
+    dateSent = dateSent,
+    dateReceived = dateReceived,
+    serverTimestamp = serverTimestamp,
+    deliveryStatus = deliveryStatus,
+    hasDeliveryReceipt = hasDeliveryReceipt(),
+    hasReadReceipt = hasReadReceipt(),
+    viewed = isViewed,
+    expiresIn = expiresIn,
+    expireStarted = expireStarted,
+    unidentified = isUnidentified,
+    remoteDelete = isRemoteDelete,
+    notifiedTimestamp = notifiedTimestamp,
+    receiptTimestamp = receiptTimestamp,
+    originalMessageId = originalMessageId,
+    revisionNumber = revisionNumber,
+    identityKeyMismatches = identityKeyMismatches.toSet(),
+    networkFailures = networkFailures.toSet(),
+    messageRanges = messageRanges,
+    messageExtras = messageExtras,
+    media = (this as? MmsMessageRecord)?.let { record ->
+      ConversationStamp.MediaStamp(
+        read = record.isRead,
+        viewOnce = record.isViewOnce,
+        mentionsSelf = record.hasSelfMention(),
+        storyType = record.storyType,
+        parentStoryId = record.parentStoryId?.serialize(),
+        giftBadge = record.giftBadge,
+        scheduledDate = record.scheduledDate,
+        latestRevisionId = record.latestRevisionId,
+        quote = record.quote?.let { ConversationStamp.QuoteStamp(it.id, it.author, it.displayText?.toString(), it.isOriginalMissing, it.quoteType.code) },
+        linkPreviews = record.linkPreviews.map { ConversationStamp.LinkPreviewStamp(it.url, it.title, it.description, it.date, it.attachmentId) },
+        sharedContacts = record.sharedContacts.map {
+          try {
+            it.serialize()
+          } catch (e: IOException) {
+            null
+          }
+        }
+      )
+    }
+  )
+}
@@ -188,5 +188,24 @@ object MessageDataFetcher {
     val payments: Map<Long, Payment>,
     val calls: Map<Long, CallTable.Call>,
     val timeLog: String
-  )
+  ) {
+    /**
+     * Combines the data for two disjoint sets of messages.
+     */
+    operator fun plus(other: ExtraMessageData?): ExtraMessageData {
+      if (other == null) {
+        return this
+      }
+
+      return ExtraMessageData(
+        mentionsById = mentionsById + other.mentionsById,
+        hasBeenQuoted = hasBeenQuoted + other.hasBeenQuoted,
+        reactions = reactions + other.reactions,
+        attachments = attachments + other.attachments,
+        payments = payments + other.payments,
+        calls = calls + other.calls,
+        timeLog = other.timeLog
+      )
+    }
+  }
 }
@@ -23,7 +23,9 @@ import android.view.MotionEvent
 import android.view.View
 import android.view.ViewGroup
 import androidx.core.content.ContextCompat
+import androidx.core.text.PrecomputedTextCompat
 import androidx.core.view.updateLayoutParams
+import androidx.core.widget.TextViewCompat
 import androidx.lifecycle.Observer
 import androidx.recyclerview.widget.RecyclerView
 import org.signal.core.util.StringUtil
@@ -39,6 +41,7 @@ import org.thoughtcrime.securesms.conversation.mutiselect.Multiselect
 import org.thoughtcrime.securesms.conversation.mutiselect.MultiselectPart
 import org.thoughtcrime.securesms.conversation.mutiselect.Multiselectable
 import org.thoughtcrime.securesms.conversation.v2.computed.FormattedDate
+import org.thoughtcrime.securesms.conversation.v2.computed.PrecomputedBody
 import org.thoughtcrime.securesms.conversation.v2.data.ConversationMessageElement
 import org.thoughtcrime.securesms.database.model.MessageRecord
 import org.thoughtcrime.securesms.database.model.MmsMessageRecord
@@ -106,6 +109,7 @@ open class V2ConversationItemTextOnlyViewHolder<Model : MappingModel<Model>>(
 
   private var reactionMeasureListener: ReactionMeasureListener = ReactionMeasureListener()
   private var formattedDate: FormattedDate? = null
+  private val bodyTextMetricsParams: PrecomputedTextCompat.Params
 
   private val bodyBubbleDrawable = ChatColorsDrawable(conversationContext::getChatColorsData)
   private val footerDrawable = ChatColorsDrawable(conversationContext::getChatColorsData)
@@ -169,6 +173,7 @@ open class V2ConversationItemTextOnlyViewHolder<Model : MappingModel<Model>>(
 
     binding.body.isFocusable = false
     binding.body.setTextSize(TypedValue.COMPLEX_UNIT_SP, SignalStore.settings().messageFontSize.toFloat())
+    bodyTextMetricsParams = TextViewCompat.getTextMetricsParams(binding.body)
     binding.body.movementMethod = LongClickMovementMethod.getInstance(context)
 
     if (binding.isIncoming) {
@@ -401,9 +406,10 @@ open class V2ConversationItemTextOnlyViewHolder<Model : MappingModel<Model>>(
     binding.body.setLinkTextColor(themeDelegate.getBodyTextColor(conversationMessage))
 
     val record = conversationMessage.messageRecord
+    val precomputedBody = conversationMessage.computedProperties.precomputedBody
     var styledText: Spannable = conversationMessage.getDisplayBody(context)
     if (conversationContext.isMessageRequestAccepted) {
-      linkifyMessageBody(styledText)
+      linkifyMessageBody(styledText, precomputedBody)
     }
 
     styledText = SearchUtil.getHighlightedSpan(Locale.getDefault(), STYLE_FACTORY, styledText, conversationContext.searchQuery, SearchUtil.STRICT)
@@ -422,11 +428,21 @@ open class V2ConversationItemTextOnlyViewHolder<Model : MappingModel<Model>>(
     val bodyText = StringUtil.trim(styledText)
 
     binding.body.visible = bodyText.isNotEmpty()
+    if (precomputedBody != null) {
+      precomputedBody.applyEmojiCandidates(binding.body)
+      precomputedBody.applyPrecomputedText(binding.body, PrecomputedBody.LayoutSpec(context.resources.configuration, bodyTextMetricsParams))
+    } else {
+      binding.body.setPrecomputedText(null)
+    }
     binding.body.text = bodyText
   }
 
-  private fun linkifyMessageBody(messageBody: Spannable) {
-    V2ConversationItemUtils.linkifyUrlLinks(messageBody, conversationContext.selectedItems.isEmpty(), conversationContext.clickListener::onUrlClicked)
+  private fun linkifyMessageBody(messageBody: Spannable, precomputedBody: PrecomputedBody?) {
+    if (precomputedBody != null && conversationContext.selectedItems.isEmpty()) {
+      precomputedBody.applyLinks(messageBody, conversationContext.clickListener::onUrlClicked)
+    } else {
+      V2ConversationItemUtils.linkifyUrlLinks(messageBody, conversationContext.selectedItems.isEmpty(), conversationContext.clickListener::onUrlClicked)
+    }
 
     if (conversationMessage.hasStyleLinks()) {
       messageBody.getSpans(0, messageBody.length, PlaceholderURLSpan::class.java).forEach { placeholder ->
@@ -308,9 +308,42 @@ class AttachmentTable(
       }
   }
 
+  /**
+   * Like [getUnhashedDataFile], but returns up to [limit] attachments with an [ID] below [beforeId], newest first, so that a backfill can
+   * walk through them in batches. A file shared by multiple attachments is only returned once per batch.
+   */
+  fun getUnhashedDataFiles(beforeId: Long, limit: Int): List<Pair<File, AttachmentId>> {
+    return readableDatabase
+      .select(ID, DATA_FILE)
+      .from(TABLE_NAME)
+      .where("$ID < ? AND $DATA_FILE NOT NULL AND $DATA_HASH_END IS NULL AND $TRANSFER_STATE = $TRANSFER_PROGRESS_DONE", beforeId)
+      .orderBy("$ID DESC")
+      .limit(limit)
+      .run()
+      .readToList {
+        File(it.requireNonNullString(DATA_FILE)) to AttachmentId(it.requireLong(ID))
+      }
+      .distinctBy { it.first }
+  }
+
+  /**
+   * Saves the results of hashing a batch of files in a single transaction. Each of the [hashes] is set with [setHashForDataFile], while
+   * [missingFiles] have their usages cleared and [unhashableFiles] are marked as unhashable.
+   */
+  fun setHashesForDataFiles(hashes: Map<File, ByteArray>, missingFiles: Collection<File>, unhashableFiles: Collection<File>) {
+    writableDatabase.withinTransaction {
+      hashes.forEach { (file, hash) -> setHashForDataFile(file, hash) }
+      missingFiles.forEach { clearUsagesOfDataFile(it) }
+      unhashableFiles.forEach { markDataFileAsUnhashable(it) }
+    }
+  }
+
   /**
    * Sets the [DATA_HASH_END] for a given file. This is used to backfill the hash for attachments that were created before we started hashing them.
    * As a result, this will _not_ update the hashes on files that are not fully uploaded.
+   *
+   * If the file is deduped away, it's only deleted once the outermost transaction has been committed, so that a rollback never leaves rows
+   * pointing at a deleted file.
    */
   fun setHashForDataFile(file: File, hash: ByteArray) {
     writableDatabase.withinTransaction { db ->
@@ -349,9 +382,11 @@ class AttachmentTable(
         if (oldFileInUse) {
           Log.i(TAG, "[setHashForDataFile] Old file is still in use by some in-progress attachment.", true)
         } else {
-          Log.i(TAG, "[setHashForDataFile] Deleting unused file: $file")
-          if (!file.delete()) {
-            Log.w(TAG, "Failed to delete duped file!")
+          db.runPostSuccessfulTransaction {
+            Log.i(TAG, "[setHashForDataFile] Deleting unused file: $file")
+            if (!file.delete()) {
+              Log.w(TAG, "Failed to delete duped file!")
+            }
           }
         }
       } else {
@@ -521,12 +556,15 @@ class AttachmentTable(
     Log.d(TAG, "[deleteAttachmentsForMessage] mmsId: $mmsId")
 
     return writableDatabase.withinTransaction { db ->
+      val attachmentIds: MutableList<AttachmentId> = mutableListOf()
+
       db.select(DATA_FILE, CONTENT_TYPE, ID)
         .from(TABLE_NAME)
         .where("$MESSAGE_ID = ?", mmsId)
         .run()
         .forEach { cursor ->
           val attachmentId = AttachmentId(cursor.requireLong(ID))
+          attachmentIds += attachmentId
 
           ApplicationDependencies.getJobManager().cancelAllInQueue(AttachmentDownloadJob.constructQueueString(attachmentId))
 
@@ -541,7 +579,7 @@ class AttachmentTable(
         .where("$MESSAGE_ID = ?", mmsId)
         .run()
 
-      notifyAttachmentListeners()
+      notifyAttachmentListeners(attachmentIds)
 
       deleteCount > 0
     }
@@ -575,15 +613,20 @@ class AttachmentTable(
     Log.d(TAG, "[deleteAttachmentFilesForViewOnceMessage] messageId: $messageId")
 
     writableDatabase.withinTransaction { db ->
+      val attachmentIds: MutableList<AttachmentId> = mutableListOf()
+
       db.select(DATA_FILE, CONTENT_TYPE, ID)
         .from(TABLE_NAME)
         .where("$MESSAGE_ID = ?", messageId)
         .run()
         .forEach { cursor ->
+          val attachmentId = AttachmentId(cursor.requireLong(ID))
+          attachmentIds += attachmentId
+
           deleteDataFileIfPossible(
             filePath = cursor.requireString(DATA_FILE),
             contentType = cursor.requireString(CONTENT_TYPE),
-            attachmentId = AttachmentId(cursor.requireLong(ID))
+            attachmentId = attachmentId
           )
         }
 
@@ -605,7 +648,7 @@ class AttachmentTable(
         .where("$MESSAGE_ID = ?", messageId)
         .run()
 
-      notifyAttachmentListeners()
+      notifyAttachmentListeners(attachmentIds)
 
       val threadId = messages.getThreadIdForMessage(messageId)
       if (threadId > 0) {
@@ -642,7 +685,7 @@ class AttachmentTable(
             .run()
 
           deleteDataFileIfPossible(data, contentType, id)
-          notifyAttachmentListeners()
+          notifyAttachmentListeners(listOf(id))
         }
     }
   }
@@ -732,6 +775,7 @@ class AttachmentTable(
       .run()
 
     val threadId = messages.getThreadIdForMessage(messageId)
+    notifyAttachmentChangeListeners(listOf(attachmentId))
     notifyConversationListeners(threadId)
   }
 
@@ -743,6 +787,7 @@ class AttachmentTable(
       .where("$ID = ? AND $TRANSFER_STATE < $TRANSFER_PROGRESS_PERMANENT_FAILURE", attachmentId.id)
       .run()
 
+    notifyAttachmentChangeListeners(listOf(attachmentId))
     notifyConversationListeners(messages.getThreadIdForMessage(mmsId))
   }
 
@@ -754,6 +799,7 @@ class AttachmentTable(
       .where("$ID = ?", attachmentId.id)
       .run()
 
+    notifyAttachmentChangeListeners(listOf(attachmentId))
     notifyConversationListeners(messages.getThreadIdForMessage(mmsId))
   }
 
@@ -826,7 +872,7 @@ class AttachmentTable(
 
     notifyConversationListeners(threadId)
     notifyConversationListListeners()
-    notifyAttachmentListeners()
+    notifyAttachmentListeners(listOf(attachmentId))
 
     if (foundDuplicate) {
       if (!fileWriteResult.file.delete()) {
@@ -868,7 +914,7 @@ class AttachmentTable(
     }
 
     notifyConversationListListeners()
-    notifyAttachmentListeners()
+    notifyAttachmentListeners(listOf(attachmentId))
 
     if (!transferFile.delete()) {
       Log.w(TAG, "Unable to delete transfer file.")
@@ -1329,6 +1375,7 @@ class AttachmentTable(
       .run()
 
     val threadId = messages.getThreadIdForMessage(messageId)
+    notifyAttachmentChangeListeners(listOf(attachment.attachmentId))
     notifyConversationListeners(threadId)
   }
 
@@ -1705,7 +1752,7 @@ class AttachmentTable(
       AttachmentId(rowId)
     }
 
-    notifyAttachmentListeners()
+    notifyAttachmentListeners(listOf(attachmentId))
     return attachmentId
   }
 
@@ -1759,7 +1806,7 @@ class AttachmentTable(
       AttachmentId(rowId)
     }
 
-    notifyAttachmentListeners()
+    notifyAttachmentListeners(listOf(attachmentId))
     return attachmentId
   }
 
@@ -1894,7 +1941,7 @@ class AttachmentTable(
       }
     }
 
-    notifyAttachmentListeners()
+    notifyAttachmentListeners(listOf(attachmentId))
     return attachmentId
   }
 
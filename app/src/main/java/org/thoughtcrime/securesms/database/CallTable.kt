@@ -3,6 +3,7 @@ package org.thoughtcrime.securesms.database
 import android.content.Context
 import android.database.Cursor
 import androidx.annotation.Discouraged
+import androidx.annotation.VisibleForTesting
 import androidx.core.content.contentValuesOf
 import org.signal.core.util.IntSerializer
 import org.signal.core.util.Serializer
@@ -10,6 +11,7 @@ import org.signal.core.util.SqlUtil
 import org.signal.core.util.count
 import org.signal.core.util.delete
 import org.signal.core.util.deleteAll
+import org.signal.core.util.exists
 import org.signal.core.util.flatten
 import org.signal.core.util.insertInto
 import org.signal.core.util.isAbsent
@@ -102,11 +104,113 @@ class CallTable(context: Context, databaseHelper: SignalDatabase) : DatabaseTabl
       )
     """
 
+    @JvmField
+    val CREATE_CALL_LOG_GROUP_TABLES: Array<String> = arrayOf(CallLogGroupTable.CREATE_TABLE, CallLogGroupTable.CREATE_DIRTY_TABLE)
+
+    /** Derived entirely from the calls, and rebuilt after a restore since restoring a call marks it as changed. */
+    @JvmField
+    val CALL_LOG_GROUP_TABLE_NAMES: List<String> = listOf(CallLogGroupTable.TABLE_NAME, CallLogGroupTable.DIRTY_TABLE_NAME)
+
+    /** call_timestamp_index is for the time windows in [getCallLogAggregateColumns] */
     val CREATE_INDEXES = arrayOf(
       "CREATE INDEX call_call_id_index ON $TABLE_NAME ($CALL_ID)",
       "CREATE INDEX call_message_id_index ON $TABLE_NAME ($MESSAGE_ID)",
-      "CREATE INDEX call_peer_index ON $TABLE_NAME ($PEER)"
+      "CREATE INDEX call_peer_index ON $TABLE_NAME ($PEER)",
+      "CREATE INDEX call_timestamp_index ON $TABLE_NAME ($TIMESTAMP)"
+    ) + CallLogGroupTable.CREATE_INDEXES
+
+    @JvmField
+    val CREATE_TRIGGERS: Array<String> = CallLogGroupTable.CREATE_TRIGGERS
+  }
+
+  /**
+   * The call log as [getCallsCursor] would build it, stored for each [CallLogFilter] so that it can be paged through with a range read
+   * instead of being rebuilt for every page.
+   *
+   * Triggers record the timestamp of every change to a call that could affect the call log in [DIRTY_TABLE_NAME], and the groups around
+   * those timestamps are recomputed by [refreshCallLogGroups] before the next read.
+   */
+  private object CallLogGroupTable {
+    const val TABLE_NAME = "call_log_group"
+    const val ID = "_id"
+    const val FILTER = "filter"
+    const val CALL_ROW_ID = "call_row_id"
+    const val TIMESTAMP = "timestamp"
+
+    /** The newest call in the same group, which the group is displayed as unless the call just before it shares that parent */
+    const val PARENT_ID = "parent_id"
+
+    /** Comma separated row ids of the calls displayed as part of this one, newest first */
+    const val CHILDREN = "children"
+    const val DISPLAYED = "displayed"
+
+    const val DIRTY_TABLE_NAME = "call_log_group_dirty"
+    const val DIRTY_ID = "_id"
+    const val DIRTY_TIMESTAMP = "timestamp"
+
+    const val CREATE_TABLE = """
+      CREATE TABLE $TABLE_NAME (
+        $ID INTEGER PRIMARY KEY,
+        $FILTER INTEGER NOT NULL,
+        $CALL_ROW_ID INTEGER NOT NULL REFERENCES ${CallTable.TABLE_NAME} (${CallTable.ID}) ON DELETE CASCADE,
+        $TIMESTAMP INTEGER NOT NULL,
+        $PARENT_ID INTEGER NOT NULL,
+        $CHILDREN TEXT NOT NULL,
+        $DISPLAYED INTEGER NOT NULL DEFAULT 0
+      )
+    """
+
+    const val CREATE_DIRTY_TABLE = """
+      CREATE TABLE $DIRTY_TABLE_NAME (
+        $DIRTY_ID INTEGER PRIMARY KEY,
+        $DIRTY_TIMESTAMP INTEGER NOT NULL
+      )
+    """
+
+    val CREATE_INDEXES = arrayOf(
+      "CREATE INDEX call_log_group_displayed_index ON $TABLE_NAME ($FILTER, $DISPLAYED, $TIMESTAMP, $CALL_ROW_ID)",
+      "CREATE INDEX call_log_group_timestamp_index ON $TABLE_NAME ($FILTER, $TIMESTAMP, $CALL_ROW_ID)",
+      "CREATE INDEX call_log_group_call_row_id_index ON $TABLE_NAME ($CALL_ROW_ID)"
+    )
+
+    /** Only the columns that [getCallsCursor] groups or filters by can change the call log. */
+    val CREATE_TRIGGERS = arrayOf(
+      """
+        CREATE TRIGGER call_log_group_call_insert AFTER INSERT ON ${CallTable.TABLE_NAME}
+        BEGIN
+          INSERT INTO $DIRTY_TABLE_NAME ($DIRTY_TIMESTAMP) VALUES (new.${CallTable.TIMESTAMP});
+        END
+      """,
+      """
+        CREATE TRIGGER call_log_group_call_update AFTER UPDATE ON ${CallTable.TABLE_NAME}
+        WHEN
+          old.${CallTable.TIMESTAMP} IS NOT new.${CallTable.TIMESTAMP} OR
+          old.${CallTable.PEER} IS NOT new.${CallTable.PEER} OR
+          old.${CallTable.TYPE} IS NOT new.${CallTable.TYPE} OR
+          old.${CallTable.DIRECTION} IS NOT new.${CallTable.DIRECTION} OR
+          old.${CallTable.EVENT} IS NOT new.${CallTable.EVENT} OR
+          old.${CallTable.DELETION_TIMESTAMP} IS NOT new.${CallTable.DELETION_TIMESTAMP} OR
+          old.${CallTable.LOCAL_JOINED} IS NOT new.${CallTable.LOCAL_JOINED} OR
+          old.${CallTable.GROUP_CALL_ACTIVE} IS NOT new.${CallTable.GROUP_CALL_ACTIVE}
+        BEGIN
+          INSERT INTO $DIRTY_TABLE_NAME ($DIRTY_TIMESTAMP) VALUES (old.${CallTable.TIMESTAMP}), (new.${CallTable.TIMESTAMP});
+        END
+      """,
+      """
+        CREATE TRIGGER call_log_group_call_delete AFTER DELETE ON ${CallTable.TABLE_NAME}
+        BEGIN
+          INSERT INTO $DIRTY_TABLE_NAME ($DIRTY_TIMESTAMP) VALUES (old.${CallTable.TIMESTAMP});
+        END
+      """
     )
+
+    fun serializeFilter(filter: CallLogFilter): Int {
+      return when (filter) {
+        CallLogFilter.ALL -> 0
+        CallLogFilter.MISSED -> 1
+        CallLogFilter.AD_HOC -> 2
+      }
+    }
   }
 
   fun markAllCallEventsRead(timestamp: Long = Long.MAX_VALUE) {
@@ -1199,15 +1303,18 @@ class CallTable(context: Context, databaseHelper: SignalDatabase) : DatabaseTabl
 
   // endregion
 
-  private fun getCallsCursor(isCount: Boolean, offset: Int, limit: Int, searchTerm: String?, filter: CallLogFilter): Cursor {
-    val isMissedGenericGroupCall = "$EVENT = ${Event.serialize(Event.GENERIC_GROUP_CALL)} AND $LOCAL_JOINED = ${false.toInt()} AND $GROUP_CALL_ACTIVE = ${false.toInt()}"
-    val filterClause: SqlUtil.Query = when (filter) {
+  private val isMissedGenericGroupCall = "$EVENT = ${Event.serialize(Event.GENERIC_GROUP_CALL)} AND $LOCAL_JOINED = ${false.toInt()} AND $GROUP_CALL_ACTIVE = ${false.toInt()}"
+
+  private fun getCallLogFilterClause(filter: CallLogFilter): SqlUtil.Query {
+    return when (filter) {
       CallLogFilter.ALL -> SqlUtil.buildQuery("$DELETION_TIMESTAMP = 0")
       CallLogFilter.MISSED -> SqlUtil.buildQuery("($EVENT = ${Event.serialize(Event.MISSED)} OR $EVENT = ${Event.serialize(Event.MISSED_NOTIFICATION_PROFILE)} OR $EVENT = ${Event.serialize(Event.NOT_ACCEPTED)} OR $EVENT = ${Event.serialize(Event.DECLINED)} OR ($isMissedGenericGroupCall)) AND $DELETION_TIMESTAMP = 0")
       CallLogFilter.AD_HOC -> SqlUtil.buildQuery("$TYPE = ${Type.serialize(Type.AD_HOC_CALL)} AND $DELETION_TIMESTAMP = 0")
     }
+  }
 
-    val queryClause: SqlUtil.Query = if (!searchTerm.isNullOrEmpty()) {
+  private fun getCallLogSearchClause(searchTerm: String?): SqlUtil.Query {
+    return if (!searchTerm.isNullOrEmpty()) {
       val glob = SqlUtil.buildCaseInsensitiveGlobPattern(searchTerm)
       val selection =
         """
@@ -1229,19 +1336,28 @@ class CallTable(context: Context, databaseHelper: SignalDatabase) : DatabaseTabl
         0
       )
     }
+  }
 
-    val offsetLimit = if (limit > 0) {
-      "LIMIT $offset,$limit"
-    } else {
-      ""
-    }
-
-    val projection = if (isCount) {
-      "COUNT(*),"
-    } else {
-      "p.$ID, p.$TIMESTAMP, $EVENT, $DIRECTION, $PEER, p.$TYPE, $CALL_ID, $MESSAGE_ID, $RINGER, $LOCAL_JOINED, $GROUP_CALL_ACTIVE, children, in_period, ${MessageTable.BODY},"
-    }
+  //language=sql
+  private val sortNameProjection = """
+    LOWER(
+      COALESCE(
+        NULLIF(${GroupTable.TABLE_NAME}.${GroupTable.TITLE}, ''),
+        NULLIF(${RecipientTable.TABLE_NAME}.${RecipientTable.NICKNAME_JOINED_NAME}, ''),
+        NULLIF(${RecipientTable.TABLE_NAME}.${RecipientTable.NICKNAME_GIVEN_NAME}, ''),
+        NULLIF(${RecipientTable.TABLE_NAME}.${RecipientTable.SYSTEM_JOINED_NAME}, ''),
+        NULLIF(${RecipientTable.TABLE_NAME}.${RecipientTable.SYSTEM_GIVEN_NAME}, ''),
+        NULLIF(${RecipientTable.TABLE_NAME}.${RecipientTable.PROFILE_JOINED_NAME}, ''),
+        NULLIF(${RecipientTable.TABLE_NAME}.${RecipientTable.PROFILE_GIVEN_NAME}, ''),
+        NULLIF(${RecipientTable.TABLE_NAME}.${RecipientTable.USERNAME}, '')
+      )
+    ) AS sort_name
+  """
 
+  /**
+   * The parent, children, and in_period columns of the call log aggregation, for a call aliased as `c` that passes [filterClause].
+   */
+  private fun getCallLogAggregateColumns(filterClause: SqlUtil.Query): String {
     // Group call events by those we consider missed or not missed to build out our call log aggregation.
     val eventTypeSubQuery = """
       ($TABLE_NAME.$EVENT = c.$EVENT AND (
@@ -1264,63 +1380,96 @@ class CallTable(context: Context, databaseHelper: SignalDatabase) : DatabaseTabl
       )
       """
 
+    //language=sql
+    return """
+      (
+        SELECT
+          $ID
+        FROM
+          $TABLE_NAME
+        WHERE
+          $TABLE_NAME.$DIRECTION = c.$DIRECTION
+          AND $TABLE_NAME.$PEER = c.$PEER
+          AND $TABLE_NAME.$TIMESTAMP - $TIME_WINDOW <= c.$TIMESTAMP
+          AND $TABLE_NAME.$TIMESTAMP >= c.$TIMESTAMP
+          AND ($eventTypeSubQuery)
+          AND ${filterClause.where}
+        ORDER BY
+          $TIMESTAMP DESC
+      ) as parent,
+      (
+        SELECT
+          group_concat($ID)
+        FROM
+          $TABLE_NAME
+        WHERE
+          $TABLE_NAME.$DIRECTION = c.$DIRECTION
+          AND $TABLE_NAME.$PEER = c.$PEER
+          AND c.$TIMESTAMP - $TIME_WINDOW <= $TABLE_NAME.$TIMESTAMP
+          AND c.$TIMESTAMP >= $TABLE_NAME.$TIMESTAMP
+          AND ($eventTypeSubQuery)
+          AND ${filterClause.where}
+      ) as children,
+      (
+        SELECT
+          group_concat($ID)
+        FROM
+          $TABLE_NAME
+        WHERE
+          c.$TIMESTAMP - $TIME_WINDOW <= $TABLE_NAME.$TIMESTAMP
+          AND c.$TIMESTAMP >= $TABLE_NAME.$TIMESTAMP
+          AND ${filterClause.where}
+      ) as in_period
+    """
+  }
+
+  /**
+   * Only the calls in [inPeriod] that are part of an unbroken run of [children], newest first, are displayed as part of a call.
+   */
+  private fun getDisplayedChildren(children: String, inPeriod: String): Set<Long> {
+    val childIds = children
+      .split(',')
+      .map { it.toLong() }
+      .toSet()
+
+    return inPeriod
+      .split(',')
+      .map { it.toLong() }
+      .sortedDescending()
+      .toSet()
+      .takeWhile { childIds.contains(it) }
+      .toSet()
+  }
+
+  /**
+   * Builds the call log from scratch. Every call is compared to every other call within [TIME_WINDOW] of it, for every page, so this is
+   * only kept to check [CallLogGroupTable] against. See [getCallLogGroupsCursor].
+   */
+  private fun getCallsCursor(isCount: Boolean, offset: Int, limit: Int, searchTerm: String?, filter: CallLogFilter): Cursor {
+    val filterClause: SqlUtil.Query = getCallLogFilterClause(filter)
+    val queryClause: SqlUtil.Query = getCallLogSearchClause(searchTerm)
+
+    val offsetLimit = if (limit > 0) {
+      "LIMIT $offset,$limit"
+    } else {
+      ""
+    }
+
+    val projection = if (isCount) {
+      "COUNT(*),"
+    } else {
+      "p.$ID, p.$TIMESTAMP, $EVENT, $DIRECTION, $PEER, p.$TYPE, $CALL_ID, $MESSAGE_ID, $RINGER, $LOCAL_JOINED, $GROUP_CALL_ACTIVE, children, in_period, ${MessageTable.BODY},"
+    }
+
     //language=sql
     val statement = """
       SELECT $projection
-        LOWER(
-          COALESCE(
-            NULLIF(${GroupTable.TABLE_NAME}.${GroupTable.TITLE}, ''),
-            NULLIF(${RecipientTable.TABLE_NAME}.${RecipientTable.NICKNAME_JOINED_NAME}, ''),
-            NULLIF(${RecipientTable.TABLE_NAME}.${RecipientTable.NICKNAME_GIVEN_NAME}, ''),
-            NULLIF(${RecipientTable.TABLE_NAME}.${RecipientTable.SYSTEM_JOINED_NAME}, ''),
-            NULLIF(${RecipientTable.TABLE_NAME}.${RecipientTable.SYSTEM_GIVEN_NAME}, ''),
-            NULLIF(${RecipientTable.TABLE_NAME}.${RecipientTable.PROFILE_JOINED_NAME}, ''),
-            NULLIF(${RecipientTable.TABLE_NAME}.${RecipientTable.PROFILE_GIVEN_NAME}, ''),
-            NULLIF(${RecipientTable.TABLE_NAME}.${RecipientTable.USERNAME}, '')
-          )
-        ) AS sort_name
+        $sortNameProjection
       FROM (
         WITH cte AS (
           SELECT
             $ID, $TIMESTAMP, $EVENT, $DIRECTION, $PEER, $TYPE, $CALL_ID, $MESSAGE_ID, $RINGER, $LOCAL_JOINED, $GROUP_CALL_ACTIVE,
-            (
-              SELECT
-                $ID
-              FROM
-                $TABLE_NAME
-              WHERE
-                $TABLE_NAME.$DIRECTION = c.$DIRECTION
-                AND $TABLE_NAME.$PEER = c.$PEER
-                AND $TABLE_NAME.$TIMESTAMP - $TIME_WINDOW <= c.$TIMESTAMP
-                AND $TABLE_NAME.$TIMESTAMP >= c.$TIMESTAMP
-                AND ($eventTypeSubQuery)
-                AND ${filterClause.where}
-              ORDER BY
-                $TIMESTAMP DESC
-            ) as parent,
-            (
-              SELECT
-                group_concat($ID)
-              FROM
-                $TABLE_NAME
-              WHERE
-                $TABLE_NAME.$DIRECTION = c.$DIRECTION
-                AND $TABLE_NAME.$PEER = c.$PEER
-                AND c.$TIMESTAMP - $TIME_WINDOW <= $TABLE_NAME.$TIMESTAMP
-                AND c.$TIMESTAMP >= $TABLE_NAME.$TIMESTAMP
-                AND ($eventTypeSubQuery)
-                AND ${filterClause.where}
-            ) as children,
-            (
-              SELECT
-                group_concat($ID)
-              FROM
-                $TABLE_NAME
-              WHERE
-                c.$TIMESTAMP - $TIME_WINDOW <= $TABLE_NAME.$TIMESTAMP
-                AND c.$TIMESTAMP >= $TABLE_NAME.$TIMESTAMP
-                AND ${filterClause.where}
-            ) as in_period
+            ${getCallLogAggregateColumns(filterClause)}
           FROM
             $TABLE_NAME c
           WHERE ${filterClause.where}
@@ -1353,6 +1502,172 @@ class CallTable(context: Context, databaseHelper: SignalDatabase) : DatabaseTabl
     )
   }
 
+  private fun getCallLogGroupsCursor(isCount: Boolean, offset: Int, limit: Int, searchTerm: String?, filter: CallLogFilter): Cursor {
+    refreshCallLogGroups()
+
+    val queryClause: SqlUtil.Query = getCallLogSearchClause(searchTerm)
+
+    val offsetLimit = if (limit > 0) {
+      "LIMIT $offset,$limit"
+    } else {
+      ""
+    }
+
+    val projection = if (isCount) {
+      "COUNT(*),"
+    } else {
+      "$TABLE_NAME.$ID, $TABLE_NAME.$TIMESTAMP, $EVENT, $DIRECTION, $PEER, $TABLE_NAME.$TYPE, $CALL_ID, $MESSAGE_ID, $RINGER, $LOCAL_JOINED, $GROUP_CALL_ACTIVE, ${CallLogGroupTable.CHILDREN}, ${MessageTable.BODY},"
+    }
+
+    //language=sql
+    val statement = """
+      SELECT $projection
+        $sortNameProjection
+      FROM ${CallLogGroupTable.TABLE_NAME}
+      INNER JOIN $TABLE_NAME ON $TABLE_NAME.$ID = ${CallLogGroupTable.TABLE_NAME}.${CallLogGroupTable.CALL_ROW_ID}
+      INNER JOIN ${RecipientTable.TABLE_NAME} ON ${RecipientTable.TABLE_NAME}.${RecipientTable.ID} = $TABLE_NAME.$PEER
+      LEFT JOIN ${MessageTable.TABLE_NAME} ON ${MessageTable.TABLE_NAME}.${MessageTable.ID} = $TABLE_NAME.$MESSAGE_ID
+      LEFT JOIN ${GroupTable.TABLE_NAME} ON ${GroupTable.TABLE_NAME}.${GroupTable.RECIPIENT_ID} = ${RecipientTable.TABLE_NAME}.${RecipientTable.ID}
+      WHERE
+        ${CallLogGroupTable.TABLE_NAME}.${CallLogGroupTable.FILTER} = ${CallLogGroupTable.serializeFilter(filter)}
+        AND ${CallLogGroupTable.TABLE_NAME}.${CallLogGroupTable.DISPLAYED} = 1
+        AND ${queryClause.where}
+      ORDER BY ${CallLogGroupTable.TABLE_NAME}.${CallLogGroupTable.TIMESTAMP} DESC, ${CallLogGroupTable.TABLE_NAME}.${CallLogGroupTable.CALL_ROW_ID} DESC
+      $offsetLimit
+    """
+
+    return readableDatabase.query(
+      statement,
+      queryClause.whereArgs
+    )
+  }
+
+  /**
+   * Brings [CallLogGroupTable] up to date with every change to the call table since the last refresh.
+   *
+   * A change at some time can alter the parent of calls up to [TIME_WINDOW] before it, and the children of calls up to [TIME_WINDOW] after
+   * it, so that's the range that's recomputed around each change. Whether a call is displayed also depends on the parent of the call just
+   * newer than it, so the call just older than the range is revisited too.
+   */
+  private fun refreshCallLogGroups() {
+    if (!readableDatabase.exists(CallLogGroupTable.DIRTY_TABLE_NAME).run()) {
+      return
+    }
+
+    writableDatabase.withinTransaction { db ->
+      val dirtyTimestamps: List<Long> = db
+        .query("SELECT DISTINCT ${CallLogGroupTable.DIRTY_TIMESTAMP} FROM ${CallLogGroupTable.DIRTY_TABLE_NAME} ORDER BY ${CallLogGroupTable.DIRTY_TIMESTAMP}")
+        .readToList { it.requireLong(CallLogGroupTable.DIRTY_TIMESTAMP) }
+
+      if (dirtyTimestamps.isEmpty()) {
+        return@withinTransaction
+      }
+
+      val ranges: MutableList<LongRange> = mutableListOf()
+      for (timestamp in dirtyTimestamps) {
+        val last = ranges.lastOrNull()
+        if (last != null && timestamp - TIME_WINDOW <= last.last) {
+          ranges[ranges.lastIndex] = last.first..(timestamp + TIME_WINDOW)
+        } else {
+          ranges += (timestamp - TIME_WINDOW)..(timestamp + TIME_WINDOW)
+        }
+      }
+
+      for (filter in CallLogFilter.values()) {
+        for (range in ranges) {
+          refreshCallLogGroups(filter, range)
+        }
+      }
+
+      db.deleteAll(CallLogGroupTable.DIRTY_TABLE_NAME)
+    }
+  }
+
+  private fun refreshCallLogGroups(filter: CallLogFilter, range: LongRange) {
+    val db = writableDatabase
+    val filterCode = CallLogGroupTable.serializeFilter(filter)
+    val filterClause = getCallLogFilterClause(filter)
+
+    db.delete(CallLogGroupTable.TABLE_NAME)
+      .where("${CallLogGroupTable.FILTER} = ? AND ${CallLogGroupTable.TIMESTAMP} BETWEEN ? AND ?", filterCode, range.first, range.last)
+      .run()
+
+    //language=sql
+    val statement = """
+      SELECT
+        c.$ID, c.$TIMESTAMP,
+        ${getCallLogAggregateColumns(filterClause)}
+      FROM
+        $TABLE_NAME c
+      WHERE ${filterClause.where} AND c.$TIMESTAMP BETWEEN ${range.first} AND ${range.last}
+    """
+
+    db.query(statement, filterClause.whereArgs).use { cursor ->
+      while (cursor.moveToNext()) {
+        db.insertInto(CallLogGroupTable.TABLE_NAME)
+          .values(
+            CallLogGroupTable.FILTER to filterCode,
+            CallLogGroupTable.CALL_ROW_ID to cursor.requireLong(ID),
+            CallLogGroupTable.TIMESTAMP to cursor.requireLong(TIMESTAMP),
+            CallLogGroupTable.PARENT_ID to cursor.requireLong("parent"),
+            CallLogGroupTable.CHILDREN to getDisplayedChildren(cursor.requireNonNullString("children"), cursor.requireNonNullString("in_period")).joinToString(",")
+          )
+          .run()
+      }
+    }
+
+    val newerParentId: Long = db.select(CallLogGroupTable.PARENT_ID)
+      .from(CallLogGroupTable.TABLE_NAME)
+      .where("${CallLogGroupTable.FILTER} = ? AND ${CallLogGroupTable.TIMESTAMP} > ?", filterCode, range.last)
+      .orderBy("${CallLogGroupTable.TIMESTAMP} ASC, ${CallLogGroupTable.CALL_ROW_ID} ASC")
+      .limit(1)
+      .run()
+      .readToSingleLong(0)
+
+    val olderTimestamp: Long = db.select(CallLogGroupTable.TIMESTAMP)
+      .from(CallLogGroupTable.TABLE_NAME)
+      .where("${CallLogGroupTable.FILTER} = ? AND ${CallLogGroupTable.TIMESTAMP} < ?", filterCode, range.first)
+      .orderBy("${CallLogGroupTable.TIMESTAMP} DESC, ${CallLogGroupTable.CALL_ROW_ID} DESC")
+      .limit(1)
+      .run()
+      .readToSingleLong(range.first)
+
+    val groups: List<CallLogGroup> = db.select(CallLogGroupTable.ID, CallLogGroupTable.CALL_ROW_ID, CallLogGroupTable.PARENT_ID, CallLogGroupTable.DISPLAYED)
+      .from(CallLogGroupTable.TABLE_NAME)
+      .where("${CallLogGroupTable.FILTER} = ? AND ${CallLogGroupTable.TIMESTAMP} BETWEEN ? AND ?", filterCode, olderTimestamp, range.last)
+      .orderBy("${CallLogGroupTable.TIMESTAMP} DESC, ${CallLogGroupTable.CALL_ROW_ID} DESC")
+      .run()
+      .readToList { cursor ->
+        CallLogGroup(
+          id = cursor.requireLong(CallLogGroupTable.ID),
+          callRowId = cursor.requireLong(CallLogGroupTable.CALL_ROW_ID),
+          parentId = cursor.requireLong(CallLogGroupTable.PARENT_ID),
+          displayed = cursor.requireBoolean(CallLogGroupTable.DISPLAYED)
+        )
+      }
+
+    // Same as the true_parent column in getCallsCursor
+    var previousParentId = newerParentId
+    for (group in groups) {
+      val displayed = previousParentId != group.parentId || group.parentId == group.callRowId
+      previousParentId = group.parentId
+
+      if (displayed != group.displayed) {
+        db.update(CallLogGroupTable.TABLE_NAME)
+          .values(CallLogGroupTable.DISPLAYED to displayed.toInt())
+          .where("${CallLogGroupTable.ID} = ?", group.id)
+          .run()
+      }
+    }
+  }
+
+  private data class CallLogGroup(
+    val id: Long,
+    val callRowId: Long,
+    val parentId: Long,
+    val displayed: Boolean
+  )
+
   fun getLatestRingingCalls(): List<Call> {
     return readableDatabase.select()
       .from(TABLE_NAME)
@@ -1383,52 +1698,66 @@ class CallTable(context: Context, databaseHelper: SignalDatabase) : DatabaseTabl
   }
 
   fun getCallsCount(searchTerm: String?, filter: CallLogFilter): Int {
-    return getCallsCursor(true, 0, 0, searchTerm, filter).use {
+    return getCallLogGroupsCursor(true, 0, 0, searchTerm, filter).use {
       it.moveToFirst()
       it.getInt(0)
     }
   }
 
   fun getCalls(offset: Int, limit: Int, searchTerm: String?, filter: CallLogFilter): List<CallLogRow.Call> {
-    return getCallsCursor(false, offset, limit, searchTerm, filter).readToList { cursor ->
-      val call = Call.deserialize(cursor)
-      val groupCallDetails = GroupCallUpdateDetailsUtil.parse(cursor.requireString(MessageTable.BODY))
-
-      val children = cursor.requireNonNullString("children")
+    return getCallLogGroupsCursor(false, offset, limit, searchTerm, filter).readToList { cursor ->
+      val children = cursor.requireNonNullString(CallLogGroupTable.CHILDREN)
         .split(',')
+        .filter { it.isNotEmpty() }
         .map { it.toLong() }
         .toSet()
 
-      val inPeriod = cursor.requireNonNullString("in_period")
-        .split(',')
-        .map { it.toLong() }
-        .sortedDescending()
-        .toSet()
+      readCallLogRow(cursor, children, searchTerm)
+    }
+  }
 
-      val actualChildren = inPeriod.takeWhile { children.contains(it) }
-      val peer = Recipient.resolved(call.peer)
+  @VisibleForTesting
+  fun getCallsCountWithoutCallLogGroups(searchTerm: String?, filter: CallLogFilter): Int {
+    return getCallsCursor(true, 0, 0, searchTerm, filter).use {
+      it.moveToFirst()
+      it.getInt(0)
+    }
+  }
 
-      val canUserBeginCall = if (peer.isGroup) {
-        val record = SignalDatabase.groups.getGroup(peer.id)
+  @VisibleForTesting
+  fun getCallsWithoutCallLogGroups(offset: Int, limit: Int, searchTerm: String?, filter: CallLogFilter): List<CallLogRow.Call> {
+    return getCallsCursor(false, offset, limit, searchTerm, filter).readToList { cursor ->
+      val children = getDisplayedChildren(cursor.requireNonNullString("children"), cursor.requireNonNullString("in_period"))
 
-        !record.isAbsent() &&
-          record.get().isActive &&
-          (!record.get().isAnnouncementGroup || record.get().memberLevel(Recipient.self()) == GroupTable.MemberLevel.ADMINISTRATOR)
-      } else {
-        true
-      }
+      readCallLogRow(cursor, children, searchTerm)
+    }
+  }
 
-      CallLogRow.Call(
-        record = call,
-        date = call.timestamp,
-        peer = peer,
-        groupCallState = CallLogRow.GroupCallState.fromDetails(groupCallDetails),
-        children = actualChildren.toSet(),
-        searchQuery = searchTerm,
-        callLinkPeekInfo = ApplicationDependencies.getSignalCallManager().peekInfoSnapshot[peer.id],
-        canUserBeginCall = canUserBeginCall
-      )
+  private fun readCallLogRow(cursor: Cursor, children: Set<Long>, searchTerm: String?): CallLogRow.Call {
+    val call = Call.deserialize(cursor)
+    val groupCallDetails = GroupCallUpdateDetailsUtil.parse(cursor.requireString(MessageTable.BODY))
+    val peer = Recipient.resolved(call.peer)
+
+    val canUserBeginCall = if (peer.isGroup) {
+      val record = SignalDatabase.groups.getGroup(peer.id)
+
+      !record.isAbsent() &&
+        record.get().isActive &&
+        (!record.get().isAnnouncementGroup || record.get().memberLevel(Recipient.self()) == GroupTable.MemberLevel.ADMINISTRATOR)
+    } else {
+      true
     }
+
+    return CallLogRow.Call(
+      record = call,
+      date = call.timestamp,
+      peer = peer,
+      groupCallState = CallLogRow.GroupCallState.fromDetails(groupCallDetails),
+      children = children,
+      searchQuery = searchTerm,
+      callLinkPeekInfo = ApplicationDependencies.getSignalCallManager().peekInfoSnapshot[peer.id],
+      canUserBeginCall = canUserBeginCall
+    )
   }
 
   override fun remapRecipient(fromId: RecipientId, toId: RecipientId) {
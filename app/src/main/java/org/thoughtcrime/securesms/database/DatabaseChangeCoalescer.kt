@@ -0,0 +1,107 @@
+/*
+ * Copyright 2023 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.thoughtcrime.securesms.database
+
+import android.os.Handler
+import androidx.annotation.VisibleForTesting
+import org.signal.core.util.ThreadUtil
+import org.signal.core.util.concurrent.SignalExecutors
+import java.util.concurrent.Executor
+
+/**
+ * Gathers change notifications for a short window and hands them to [listener] as a single batch, with one [Change] per key
+ * that carries every id posted for that key during the window.
+ *
+ * The first [post] after a delivery opens the window, and everything posted before it closes is merged. Keys are delivered in the
+ * order they were first posted within the window, and ids within a key likewise keep their first-posted order.
+ *
+ * Delivery happens on [executor], which is expected to be serial, so that listeners never see two batches at once.
+ */
+class DatabaseChangeCoalescer<K : Any>(
+  private val windowMs: Long,
+  private val scheduler: Scheduler,
+  private val executor: Executor,
+  private val listener: Listener<K>
+) {
+
+  companion object {
+    const val DEFAULT_WINDOW_MS = 16L
+  }
+
+  private val lock = Any()
+  private var pending: LinkedHashMap<K, LinkedHashSet<Any>> = LinkedHashMap()
+  private var deliveryScheduled = false
+
+  /**
+   * Records a change to [key]. Pass a null [id] for keys whose listeners don't care which rows changed.
+   */
+  fun post(key: K, id: Any?) {
+    val schedule: Boolean
+
+    synchronized(lock) {
+      val ids = pending.getOrPut(key) { LinkedHashSet() }
+      if (id != null) {
+        ids += id
+      }
+
+      schedule = !deliveryScheduled
+      deliveryScheduled = true
+    }
+
+    if (schedule) {
+      scheduler.schedule(windowMs) { executor.execute(::deliver) }
+    }
+  }
+
+  /**
+   * Immediately delivers anything that is pending, without waiting for the window to close. Must be called on [executor].
+   */
+  @VisibleForTesting
+  fun deliver() {
+    val changes: Map<K, Set<Any>>
+
+    synchronized(lock) {
+      deliveryScheduled = false
+
+      if (pending.isEmpty()) {
+        return
+      }
+
+      changes = pending
+      pending = LinkedHashMap()
+    }
+
+    listener.onChanges(changes.map { (key, ids) -> Change(key, ids) })
+  }
+
+  data class Change<K>(val key: K, val ids: Set<Any>)
+
+  fun interface Listener<K> {
+    fun onChanges(changes: List<Change<K>>)
+  }
+
+  /**
+   * Runs a task after a delay. Swapped out in tests for one driven by a fake clock.
+   */
+  fun interface Scheduler {
+    fun schedule(delayMs: Long, task: Runnable)
+  }
+
+  /**
+   * Schedules on a dedicated background [Handler], since the window is far shorter than what our timer-based executors are good for.
+   */
+  class HandlerScheduler : Scheduler {
+    private val handler = Handler(SignalExecutors.getAndStartHandlerThread("signal-DatabaseObserver", ThreadUtil.PRIORITY_IMPORTANT_BACKGROUND_THREAD).looper)
+
+    override fun schedule(delayMs: Long, task: Runnable) {
+      if (delayMs <= 0) {
+        handler.post(task)
+      } else {
+        handler.postDelayed(task, delayMs)
+      }
+    }
+  }
+}
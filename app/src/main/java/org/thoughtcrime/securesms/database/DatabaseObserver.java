@@ -3,10 +3,12 @@ package org.thoughtcrime.securesms.database;
 import android.app.Application;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.annotation.VisibleForTesting;
 
 import org.jetbrains.annotations.NotNull;
 import org.signal.core.util.concurrent.SignalExecutors;
+import org.thoughtcrime.securesms.attachments.AttachmentId;
 import org.thoughtcrime.securesms.database.model.MessageId;
 import org.thoughtcrime.securesms.recipients.Recipient;
 import org.thoughtcrime.securesms.recipients.RecipientId;
@@ -14,9 +16,12 @@ import org.thoughtcrime.securesms.service.webrtc.links.CallLinkRoomId;
 import org.thoughtcrime.securesms.util.concurrent.SerialExecutor;
 
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.CountDownLatch;
@@ -26,6 +31,10 @@ import java.util.concurrent.Executor;
  * Allows listening to database changes to varying degrees of specificity.
  *
  * A replacement for the observer system in {@link DatabaseTable}. We should move to this over time.
+ *
+ * Notifications are only sent once the current transaction succeeds, and are then coalesced for a short window by a
+ * {@link DatabaseChangeCoalescer}, so that a burst of writes results in one callback per observer. {@link ChangesObserver}s get the
+ * full set of ids that changed in that window, so they can refresh just those rows.
  */
 public class DatabaseObserver {
 
@@ -38,6 +47,8 @@ public class DatabaseObserver {
   private static final String KEY_STICKERS              = "Stickers";
   private static final String KEY_STICKER_PACKS         = "StickerPacks";
   private static final String KEY_ATTACHMENTS           = "Attachments";
+  private static final String KEY_SOME_ATTACHMENTS      = "SomeAttachments";
+  private static final String KEY_ATTACHMENT_CHANGES    = "AttachmentChanges:";
   private static final String KEY_MESSAGE_UPDATE        = "MessageUpdate:";
   private static final String KEY_MESSAGE_INSERT        = "MessageInsert:";
   private static final String KEY_NOTIFICATION_PROFILES = "NotificationProfiles";
@@ -49,8 +60,13 @@ public class DatabaseObserver {
   private static final String KEY_CALL_UPDATES          = "CallUpdates";
   private static final String KEY_CALL_LINK_UPDATES     = "CallLinkUpdates";
 
-  private final Application application;
-  private final Executor    executor;
+  /** Posted for attachment changes that can't be pinned to particular attachments. */
+  private static final Object UNKNOWN_ATTACHMENTS = new Object();
+
+  private final Application                       application;
+  private final Executor                          executor;
+  private final PostTransactionRunner             postTransactionRunner;
+  private final DatabaseChangeCoalescer<Channel> coalescer;
 
   private final Set<Observer>                      conversationListObservers;
   private final Map<Long, Set<Observer>>           conversationObservers;
@@ -70,9 +86,30 @@ public class DatabaseObserver {
   private final Set<Observer>                      callUpdateObservers;
   private final Map<CallLinkRoomId, Set<Observer>> callLinkObservers;
 
+  private final Set<ChangesObserver<Long>>         threadChangesObservers;
+  private final Set<ChangesObserver<MessageId>>    messageChangesObservers;
+  private final Set<ChangesObserver<RecipientId>>  recipientChangesObservers;
+  private final Set<ChangesObserver<AttachmentId>> attachmentChangesObservers;
+
   public DatabaseObserver(Application application) {
+    this(application,
+         new SerialExecutor(SignalExecutors.BOUNDED),
+         new DatabaseChangeCoalescer.HandlerScheduler(),
+         DatabaseChangeCoalescer.DEFAULT_WINDOW_MS,
+         SignalDatabase::runPostSuccessfulTransaction);
+  }
+
+  @VisibleForTesting
+  DatabaseObserver(@NonNull Application application,
+                   @NonNull Executor executor,
+                   @NonNull DatabaseChangeCoalescer.Scheduler scheduler,
+                   long windowMs,
+                   @NonNull PostTransactionRunner postTransactionRunner)
+  {
     this.application                  = application;
-    this.executor                     = new SerialExecutor(SignalExecutors.BOUNDED);
+    this.executor                     = executor;
+    this.postTransactionRunner        = postTransactionRunner;
+    this.coalescer                    = new DatabaseChangeCoalescer<>(windowMs, scheduler, executor, this::onChanges);
     this.conversationListObservers    = new HashSet<>();
     this.conversationObservers        = new HashMap<>();
     this.verboseConversationObservers = new HashMap<>();
@@ -90,6 +127,10 @@ public class DatabaseObserver {
     this.scheduledMessageObservers    = new HashMap<>();
     this.callUpdateObservers          = new HashSet<>();
     this.callLinkObservers            = new HashMap<>();
+    this.threadChangesObservers       = new HashSet<>();
+    this.messageChangesObservers      = new HashSet<>();
+    this.recipientChangesObservers    = new HashSet<>();
+    this.attachmentChangesObservers   = new HashSet<>();
   }
 
   public void registerConversationListObserver(@NonNull Observer listener) {
@@ -195,6 +236,35 @@ public class DatabaseObserver {
     });
   }
 
+  /**
+   * Adds an observer that is told which threads changed, for the same changes that trigger {@link #registerConversationObserver(long, Observer)}.
+   */
+  public void registerThreadChangesObserver(@NonNull ChangesObserver<Long> observer) {
+    executor.execute(() -> threadChangesObservers.add(observer));
+  }
+
+  /**
+   * Adds an observer that is told which messages changed, for the same changes that trigger {@link #registerMessageUpdateObserver(MessageObserver)}.
+   */
+  public void registerMessageChangesObserver(@NonNull ChangesObserver<MessageId> observer) {
+    executor.execute(() -> messageChangesObservers.add(observer));
+  }
+
+  /**
+   * Adds an observer that is told which recipients changed. Live recipients are refreshed before it's called.
+   */
+  public void registerRecipientChangesObserver(@NonNull ChangesObserver<RecipientId> observer) {
+    executor.execute(() -> recipientChangesObservers.add(observer));
+  }
+
+  /**
+   * Adds an observer that is told which attachments changed. This includes changes to attachment rows that only notify the conversation,
+   * like transfer progress. An empty set means attachments changed, but there's no telling which.
+   */
+  public void registerAttachmentChangesObserver(@NonNull ChangesObserver<AttachmentId> observer) {
+    executor.execute(() -> attachmentChangesObservers.add(observer));
+  }
+
   public void unregisterObserver(@NonNull Observer listener) {
     executor.execute(() -> {
       conversationListObservers.remove(listener);
@@ -221,6 +291,15 @@ public class DatabaseObserver {
     });
   }
 
+  public void unregisterObserver(@NonNull ChangesObserver<?> observer) {
+    executor.execute(() -> {
+      threadChangesObservers.remove(observer);
+      messageChangesObservers.remove(observer);
+      recipientChangesObservers.remove(observer);
+      attachmentChangesObservers.remove(observer);
+    });
+  }
+
   public void notifyConversationListeners(Set<Long> threadIds) {
     for (long threadId : threadIds) {
       notifyConversationListeners(threadId);
@@ -228,17 +307,12 @@ public class DatabaseObserver {
   }
 
   public void notifyConversationListeners(long threadId) {
-    runPostSuccessfulTransaction(KEY_CONVERSATION + threadId, () -> {
-      notifyMapped(conversationObservers, threadId);
-      notifyMapped(verboseConversationObservers, threadId);
-    });
+    postChange(KEY_CONVERSATION + threadId, Channel.CONVERSATION, threadId);
   }
 
   public void notifyVerboseConversationListeners(Set<Long> threadIds) {
     for (long threadId : threadIds) {
-      runPostSuccessfulTransaction(KEY_VERBOSE_CONVERSATION + threadId, () -> {
-        notifyMapped(verboseConversationObservers, threadId);
-      });
+      postChange(KEY_VERBOSE_CONVERSATION + threadId, Channel.VERBOSE_CONVERSATION, threadId);
     }
   }
 
@@ -249,117 +323,190 @@ public class DatabaseObserver {
   }
 
   public void notifyConversationDeleteListeners(long threadId) {
-    runPostSuccessfulTransaction(KEY_CONVERSATION_DELETES + threadId, () -> {
-      notifyMapped(conversationDeleteObservers, threadId);
-    });
+    postChange(KEY_CONVERSATION_DELETES + threadId, Channel.CONVERSATION_DELETES, threadId);
   }
 
   public void notifyConversationListListeners() {
-    runPostSuccessfulTransaction(KEY_CONVERSATION_LIST, () -> {
-      for (Observer listener : conversationListObservers) {
-        listener.onChanged();
-      }
-    });
+    postChange(KEY_CONVERSATION_LIST, Channel.CONVERSATION_LIST, null);
   }
 
   public void notifyPaymentListeners(@NonNull UUID paymentId) {
-    runPostSuccessfulTransaction(KEY_PAYMENT + paymentId.toString(), () -> {
-      notifyMapped(paymentObservers, paymentId);
-    });
+    postChange(KEY_PAYMENT + paymentId.toString(), Channel.PAYMENT, paymentId);
   }
 
   public void notifyAllPaymentsListeners() {
-    runPostSuccessfulTransaction(KEY_ALL_PAYMENTS, () -> {
-      notifySet(allPaymentsObservers);
-    });
+    postChange(KEY_ALL_PAYMENTS, Channel.ALL_PAYMENTS, null);
   }
 
   public void notifyChatColorsListeners() {
-    runPostSuccessfulTransaction(KEY_CHAT_COLORS, () -> {
-      for (Observer chatColorsObserver : chatColorsObservers) {
-        chatColorsObserver.onChanged();
-      }
-    });
+    postChange(KEY_CHAT_COLORS, Channel.CHAT_COLORS, null);
   }
 
   public void notifyStickerObservers() {
-    runPostSuccessfulTransaction(KEY_STICKERS, () -> {
-      notifySet(stickerObservers);
-    });
+    postChange(KEY_STICKERS, Channel.STICKERS, null);
   }
 
   public void notifyStickerPackObservers() {
-    runPostSuccessfulTransaction(KEY_STICKER_PACKS, () -> {
-      notifySet(stickerPackObservers);
-    });
+    postChange(KEY_STICKER_PACKS, Channel.STICKER_PACKS, null);
   }
 
   public void notifyAttachmentObservers() {
-    runPostSuccessfulTransaction(KEY_ATTACHMENTS, () -> {
-      notifySet(attachmentObservers);
-    });
+    postChange(KEY_ATTACHMENTS, Channel.ATTACHMENTS, UNKNOWN_ATTACHMENTS);
+  }
+
+  public void notifyAttachmentObservers(@NonNull Collection<AttachmentId> attachmentIds) {
+    if (attachmentIds.isEmpty()) {
+      return;
+    }
+
+    postChange(KEY_SOME_ATTACHMENTS, Channel.ATTACHMENTS, null);
+    notifyAttachmentChangesObservers(attachmentIds);
+  }
+
+  /**
+   * Only tells {@link ChangesObserver}s, for attachment rows that changed in ways other observers have never been told about.
+   */
+  public void notifyAttachmentChangesObservers(@NonNull Collection<AttachmentId> attachmentIds) {
+    for (AttachmentId attachmentId : attachmentIds) {
+      postChange(KEY_ATTACHMENT_CHANGES + attachmentId, Channel.ATTACHMENT_CHANGES, attachmentId);
+    }
   }
 
   public void notifyMessageUpdateObservers(@NonNull MessageId messageId) {
-    runPostSuccessfulTransaction(KEY_MESSAGE_UPDATE + messageId.toString(), () -> {
-      messageUpdateObservers.stream().forEach(l -> l.onMessageChanged(messageId));
-    });
+    postChange(KEY_MESSAGE_UPDATE + messageId.toString(), Channel.MESSAGE_UPDATE, messageId);
   }
 
   public void notifyMessageInsertObservers(long threadId, @NonNull MessageId messageId) {
-    runPostSuccessfulTransaction(KEY_MESSAGE_INSERT + messageId, () -> {
-      Set<MessageObserver> listeners = messageInsertObservers.get(threadId);
-
-      if (listeners != null) {
-        listeners.stream().forEach(l -> l.onMessageChanged(messageId));
-      }
-    });
+    postChange(KEY_MESSAGE_INSERT + messageId, Channel.MESSAGE_INSERT, new InsertedMessage(threadId, messageId));
   }
 
   public void notifyNotificationProfileObservers() {
-    runPostSuccessfulTransaction(KEY_NOTIFICATION_PROFILES, () -> {
-      notifySet(notificationProfileObservers);
-    });
+    postChange(KEY_NOTIFICATION_PROFILES, Channel.NOTIFICATION_PROFILES, null);
   }
 
   public void notifyRecipientChanged(@NonNull RecipientId recipientId) {
-    SignalDatabase.runPostSuccessfulTransaction(KEY_RECIPIENT + recipientId.serialize(), () -> {
+    postTransactionRunner.runPostSuccessfulTransaction(KEY_RECIPIENT + recipientId.serialize(), () -> {
       Recipient.live(recipientId).refresh();
+      coalescer.post(Channel.RECIPIENT, recipientId);
     });
   }
 
   public void notifyStoryObservers(@NonNull RecipientId recipientId) {
-    runPostSuccessfulTransaction(KEY_STORY_OBSERVER, () -> {
-      notifyMapped(storyObservers, recipientId);
-    });
+    postChange(KEY_STORY_OBSERVER + recipientId.serialize(), Channel.STORY, recipientId);
   }
 
   public void notifyStoryObservers(@NonNull Collection<RecipientId> recipientIds) {
     for (RecipientId recipientId : recipientIds) {
-      runPostSuccessfulTransaction(KEY_STORY_OBSERVER, () -> {
-        notifyMapped(storyObservers, recipientId);
-      });
+      notifyStoryObservers(recipientId);
     }
   }
 
   public void notifyScheduledMessageObservers(long threadId) {
-    runPostSuccessfulTransaction(KEY_SCHEDULED_MESSAGES + threadId, () -> {
-      notifyMapped(scheduledMessageObservers, threadId);
-    });
+    postChange(KEY_SCHEDULED_MESSAGES + threadId, Channel.SCHEDULED_MESSAGES, threadId);
   }
 
   public void notifyCallUpdateObservers() {
-    runPostSuccessfulTransaction(KEY_CALL_UPDATES, () -> notifySet(callUpdateObservers));
+    postChange(KEY_CALL_UPDATES, Channel.CALL_UPDATES, null);
   }
 
   public void notifyCallLinkObservers(@NonNull CallLinkRoomId callLinkRoomId) {
-    runPostSuccessfulTransaction(KEY_CALL_LINK_UPDATES, () -> notifyMapped(callLinkObservers, callLinkRoomId));
+    postChange(KEY_CALL_LINK_UPDATES + callLinkRoomId, Channel.CALL_LINK_UPDATES, callLinkRoomId);
   }
 
-  private void runPostSuccessfulTransaction(@NonNull String dedupeKey, @NonNull Runnable runnable) {
-    SignalDatabase.runPostSuccessfulTransaction(dedupeKey, () -> {
-      executor.execute(runnable);
-    });
+  /**
+   * Once the current transaction succeeds, hands the change to the coalescer. The dedupe key still collapses repeated notifications
+   * within a single transaction, so only the first one is ever posted.
+   */
+  private void postChange(@NonNull String dedupeKey, @NonNull Channel channel, @Nullable Object id) {
+    postTransactionRunner.runPostSuccessfulTransaction(dedupeKey, () -> coalescer.post(channel, id));
+  }
+
+  /**
+   * Called on the executor with everything that changed during a coalescing window, in the order it was first notified.
+   */
+  private void onChanges(@NonNull List<DatabaseChangeCoalescer.Change<Channel>> changes) {
+    for (DatabaseChangeCoalescer.Change<Channel> change : changes) {
+      Set<Object> ids = change.getIds();
+
+      switch (change.getKey()) {
+        case CONVERSATION:
+          notifyMapped(conversationObservers, ids);
+          notifyMapped(verboseConversationObservers, ids);
+          notifyChanges(threadChangesObservers, ids);
+          break;
+        case VERBOSE_CONVERSATION:
+          notifyMapped(verboseConversationObservers, ids);
+          break;
+        case CONVERSATION_DELETES:
+          notifyMapped(conversationDeleteObservers, ids);
+          break;
+        case CONVERSATION_LIST:
+          notifySet(conversationListObservers);
+          break;
+        case PAYMENT:
+          notifyMapped(paymentObservers, ids);
+          break;
+        case ALL_PAYMENTS:
+          notifySet(allPaymentsObservers);
+          break;
+        case CHAT_COLORS:
+          notifySet(chatColorsObservers);
+          break;
+        case STICKERS:
+          notifySet(stickerObservers);
+          break;
+        case STICKER_PACKS:
+          notifySet(stickerPackObservers);
+          break;
+        case ATTACHMENTS:
+          notifySet(attachmentObservers);
+          if (ids.contains(UNKNOWN_ATTACHMENTS)) {
+            notifyChanges(attachmentChangesObservers, Collections.emptySet());
+          }
+          break;
+        case ATTACHMENT_CHANGES:
+          notifyChanges(attachmentChangesObservers, ids);
+          break;
+        case MESSAGE_UPDATE:
+          for (Object id : ids) {
+            for (MessageObserver listener : messageUpdateObservers) {
+              listener.onMessageChanged((MessageId) id);
+            }
+          }
+          notifyChanges(messageChangesObservers, ids);
+          break;
+        case MESSAGE_INSERT:
+          for (Object id : ids) {
+            InsertedMessage       inserted  = (InsertedMessage) id;
+            Set<MessageObserver> listeners = messageInsertObservers.get(inserted.threadId);
+
+            if (listeners != null) {
+              for (MessageObserver listener : listeners) {
+                listener.onMessageChanged(inserted.messageId);
+              }
+            }
+          }
+          break;
+        case NOTIFICATION_PROFILES:
+          notifySet(notificationProfileObservers);
+          break;
+        case RECIPIENT:
+          notifyChanges(recipientChangesObservers, ids);
+          break;
+        case STORY:
+          notifyMapped(storyObservers, ids);
+          break;
+        case SCHEDULED_MESSAGES:
+          notifyMapped(scheduledMessageObservers, ids);
+          break;
+        case CALL_UPDATES:
+          notifySet(callUpdateObservers);
+          break;
+        case CALL_LINK_UPDATES:
+          notifyMapped(callLinkObservers, ids);
+          break;
+      }
+    }
   }
 
   private <K, V> void registerMapped(@NonNull Map<K, Set<V>> map, @NonNull K key, @NonNull V listener) {
@@ -379,12 +526,14 @@ public class DatabaseObserver {
     }
   }
 
-  private static <K> void notifyMapped(@NonNull Map<K, Set<Observer>> map, @NonNull K key) {
-    Set<Observer> listeners = map.get(key);
+  private static <K> void notifyMapped(@NonNull Map<K, Set<Observer>> map, @NonNull Set<Object> keys) {
+    for (Object key : keys) {
+      Set<Observer> listeners = map.get(key);
 
-    if (listeners != null) {
-      for (Observer listener : listeners) {
-        listener.onChanged();
+      if (listeners != null) {
+        for (Observer listener : listeners) {
+          listener.onChanged();
+        }
       }
     }
   }
@@ -395,12 +544,26 @@ public class DatabaseObserver {
     }
   }
 
+  @SuppressWarnings("unchecked")
+  private static <T> void notifyChanges(@NonNull Set<ChangesObserver<T>> observers, @NonNull Set<Object> ids) {
+    if (observers.isEmpty()) {
+      return;
+    }
+
+    Set<T> changed = Collections.unmodifiableSet((Set<T>) (Set<?>) ids);
+
+    for (ChangesObserver<T> observer : observers) {
+      observer.onChanged(changed);
+    }
+  }
+
   /**
-   * Blocks until the executor is empty. Only intended to be used for testing.
+   * Delivers any coalesced changes and blocks until the executor is empty. Only intended to be used for testing.
    */
   @VisibleForTesting
   void flush() {
     CountDownLatch latch = new CountDownLatch(1);
+    executor.execute(coalescer::deliver);
     executor.execute(latch::countDown);
 
     try {
@@ -421,4 +584,64 @@ public class DatabaseObserver {
   public interface MessageObserver {
     void onMessageChanged(@NonNull MessageId messageId);
   }
+
+  public interface ChangesObserver<T> {
+    /**
+     * Called with every id that changed since the last call. Executed on a serial executor, so don't do any long-running tasks!
+     */
+    void onChanged(@NonNull Set<T> ids);
+  }
+
+  /**
+   * Mirrors {@link SignalDatabase#runPostSuccessfulTransaction(String, Runnable)}, so that tests can control when transactions commit.
+   */
+  @VisibleForTesting
+  interface PostTransactionRunner {
+    void runPostSuccessfulTransaction(@NonNull String dedupeKey, @NonNull Runnable task);
+  }
+
+  private enum Channel {
+    CONVERSATION,
+    VERBOSE_CONVERSATION,
+    CONVERSATION_DELETES,
+    CONVERSATION_LIST,
+    PAYMENT,
+    ALL_PAYMENTS,
+    CHAT_COLORS,
+    STICKERS,
+    STICKER_PACKS,
+    ATTACHMENTS,
+    ATTACHMENT_CHANGES,
+    MESSAGE_UPDATE,
+    MESSAGE_INSERT,
+    NOTIFICATION_PROFILES,
+    RECIPIENT,
+    STORY,
+    SCHEDULED_MESSAGES,
+    CALL_UPDATES,
+    CALL_LINK_UPDATES
+  }
+
+  private static final class InsertedMessage {
+    private final long      threadId;
+    private final MessageId messageId;
+
+    private InsertedMessage(long threadId, @NonNull MessageId messageId) {
+      this.threadId  = threadId;
+      this.messageId = messageId;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (o == null || getClass() != o.getClass()) return false;
+      InsertedMessage that = (InsertedMessage) o;
+      return threadId == that.threadId && messageId.equals(that.messageId);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(threadId, messageId);
+    }
+  }
 }
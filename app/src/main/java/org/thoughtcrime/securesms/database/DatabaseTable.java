@@ -18,8 +18,12 @@ package org.thoughtcrime.securesms.database;
 
 import android.content.Context;
 
+import androidx.annotation.NonNull;
+
+import org.thoughtcrime.securesms.attachments.AttachmentId;
 import org.thoughtcrime.securesms.dependencies.ApplicationDependencies;
 
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -75,6 +79,14 @@ public abstract class DatabaseTable {
     ApplicationDependencies.getDatabaseObserver().notifyAttachmentObservers();
   }
 
+  protected void notifyAttachmentListeners(@NonNull Collection<AttachmentId> attachmentIds) {
+    ApplicationDependencies.getDatabaseObserver().notifyAttachmentObservers(attachmentIds);
+  }
+
+  protected void notifyAttachmentChangeListeners(@NonNull Collection<AttachmentId> attachmentIds) {
+    ApplicationDependencies.getDatabaseObserver().notifyAttachmentChangesObservers(attachmentIds);
+  }
+
   public void reset(SignalDatabase databaseHelper) {
     this.databaseHelper = databaseHelper;
   }
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2023 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.thoughtcrime.securesms.database
+
+import org.signal.storageservice.protos.groups.Member
+import org.signal.storageservice.protos.groups.local.DecryptedGroup
+import org.thoughtcrime.securesms.groups.GroupId
+import org.thoughtcrime.securesms.util.LRUCache
+import org.whispersystems.signalservice.api.groupsv2.DecryptedGroupUtil
+import org.whispersystems.signalservice.api.push.ServiceId
+import org.whispersystems.signalservice.api.push.ServiceId.ACI
+
+/**
+ * Process-wide cache of parsed V2 group state, so that [GroupTable.V2GroupProperties] built from freshly read rows don't have to decode
+ * the [DecryptedGroup] blob, or scan its member lists, on every membership or admin check.
+ *
+ * Entries are keyed by group and revision, and also remember the hash of the blob they were parsed from. Any write that changes the
+ * blob without bumping the revision is therefore still picked up, even if the writer forgets to [invalidate].
+ */
+object DecryptedGroupCache {
+
+  private const val MAX_SIZE = 100
+
+  private val cache: LRUCache<GroupId.V2, ParsedDecryptedGroup> = LRUCache(MAX_SIZE)
+
+  @JvmStatic
+  fun get(groupId: GroupId.V2, revision: Int, decryptedGroupBytes: ByteArray): ParsedDecryptedGroup {
+    val hash = decryptedGroupBytes.contentHashCode()
+
+    synchronized(cache) {
+      val cached = cache[groupId]
+      if (cached != null && cached.revision == revision && cached.hash == hash) {
+        return cached
+      }
+    }
+
+    val parsed = ParsedDecryptedGroup(revision, hash, DecryptedGroup.ADAPTER.decode(decryptedGroupBytes))
+
+    synchronized(cache) {
+      val cached = cache[groupId]
+      if (cached == null || cached.revision <= revision) {
+        cache[groupId] = parsed
+      }
+    }
+
+    return parsed
+  }
+
+  @JvmStatic
+  fun invalidate(groupId: GroupId) {
+    synchronized(cache) {
+      cache.remove(groupId)
+    }
+  }
+
+  @JvmStatic
+  fun clear() {
+    synchronized(cache) {
+      cache.clear()
+    }
+  }
+}
+
+/**
+ * A [DecryptedGroup] along with lookups derived from it. Immutable, and therefore safe to share between threads.
+ */
+class ParsedDecryptedGroup(
+  val revision: Int,
+  val hash: Int,
+  val decryptedGroup: DecryptedGroup
+) {
+
+  /** Full members by ACI, with their role. */
+  val memberRoles: Map<ACI, Member.Role> = decryptedGroup.members
+    .mapNotNull { member -> ACI.parseOrNull(member.aciBytes)?.let { it to member.role } }
+    .toMap()
+
+  val pendingMembers: Set<ServiceId> = DecryptedGroupUtil.pendingToServiceIdList(decryptedGroup.pendingMembers).toSet()
+
+  val requestingMembers: Set<ACI> = decryptedGroup.requestingMembers.mapNotNull { ACI.parseOrNull(it.aciBytes) }.toSet()
+
+  val bannedMembers: Set<ServiceId> = DecryptedGroupUtil.bannedMembersToServiceIdSet(decryptedGroup.bannedMembers)
+
+  fun isAdmin(aci: ACI): Boolean {
+    return memberRoles[aci] == Member.Role.ADMINISTRATOR
+  }
+
+  fun memberLevel(serviceId: ServiceId): GroupTable.MemberLevel {
+    val role: Member.Role? = if (serviceId is ACI) memberRoles[serviceId] else null
+
+    return when {
+      role == Member.Role.ADMINISTRATOR -> GroupTable.MemberLevel.ADMINISTRATOR
+      role != null -> GroupTable.MemberLevel.FULL_MEMBER
+      pendingMembers.contains(serviceId) -> GroupTable.MemberLevel.PENDING_MEMBER
+      serviceId is ACI && requestingMembers.contains(serviceId) -> GroupTable.MemberLevel.REQUESTING_MEMBER
+      else -> GroupTable.MemberLevel.NOT_A_MEMBER
+    }
+  }
+}
@@ -31,7 +31,6 @@ import org.signal.core.util.select
 import org.signal.core.util.update
 import org.signal.core.util.withinTransaction
 import org.signal.libsignal.zkgroup.groups.GroupMasterKey
-import org.signal.storageservice.protos.groups.Member
 import org.signal.storageservice.protos.groups.local.DecryptedGroup
 import org.signal.storageservice.protos.groups.local.DecryptedPendingMember
 import org.thoughtcrime.securesms.contacts.paged.ContactSearchSortOrder
@@ -51,8 +50,6 @@ import org.thoughtcrime.securesms.recipients.RecipientId
 import org.whispersystems.signalservice.api.groupsv2.DecryptedGroupUtil
 import org.whispersystems.signalservice.api.groupsv2.GroupChangeReconstruct
 import org.whispersystems.signalservice.api.groupsv2.findMemberByAci
-import org.whispersystems.signalservice.api.groupsv2.findPendingByServiceId
-import org.whispersystems.signalservice.api.groupsv2.findRequestingByAci
 import org.whispersystems.signalservice.api.groupsv2.toAciList
 import org.whispersystems.signalservice.api.groupsv2.toAciListWithUnknowns
 import org.whispersystems.signalservice.api.messages.SignalServiceAttachmentPointer
@@ -817,6 +814,8 @@ class GroupTable(context: Context?, databaseHelper: SignalDatabase?) : DatabaseT
       performMembershipUpdate(database, groupId, groupMembers)
     }
 
+    DecryptedGroupCache.invalidate(groupId)
+
     if (decryptedGroup.disappearingMessagesTimer != null) {
       recipients.setExpireMessages(groupRecipientId, decryptedGroup.disappearingMessagesTimer!!.duration)
     }
@@ -869,17 +868,26 @@ class GroupTable(context: Context?, databaseHelper: SignalDatabase?) : DatabaseT
       .toMutableList()
   }
 
+  /**
+   * Brings the membership rows of the group in line with [members], only touching the rows of members that were added or removed.
+   */
   private fun performMembershipUpdate(database: SQLiteDatabase, groupId: GroupId, members: Collection<RecipientId>) {
     check(database.inTransaction())
-    database
-      .delete(MembershipTable.TABLE_NAME)
-      .where("${MembershipTable.GROUP_ID} = ?", groupId)
-      .run()
+
+    val current: Set<RecipientId> = getCurrentMembers(groupId).toSet()
+    val updated: Set<RecipientId> = members.toSet()
+
+    val removed: List<RecipientId> = current.filterNot { updated.contains(it) }
+    val added: List<RecipientId> = updated.filterNot { current.contains(it) }
+
+    SqlUtil.buildCollectionQuery(MembershipTable.RECIPIENT_ID, removed.map { it.serialize() }, "${MembershipTable.GROUP_ID} = ? AND", maxSize = 500).forEach { query ->
+      database.delete(MembershipTable.TABLE_NAME, query.where, arrayOf(groupId.toString()) + query.whereArgs)
+    }
 
     val inserts = SqlUtil.buildBulkInsert(
       MembershipTable.TABLE_NAME,
       arrayOf(MembershipTable.GROUP_ID, MembershipTable.RECIPIENT_ID),
-      members.toSet().toContentValues(groupId)
+      added.toContentValues(groupId)
     )
 
     inserts.forEach {
@@ -1032,22 +1040,31 @@ class GroupTable(context: Context?, databaseHelper: SignalDatabase?) : DatabaseT
     }
   }
 
-  class V2GroupProperties(val groupMasterKey: GroupMasterKey, val groupRevision: Int, private val decryptedGroupBytes: ByteArray) {
-    val decryptedGroup: DecryptedGroup by lazy {
-      DecryptedGroup.ADAPTER.decode(decryptedGroupBytes)
+  class V2GroupProperties @JvmOverloads constructor(
+    val groupMasterKey: GroupMasterKey,
+    val groupRevision: Int,
+    private val decryptedGroupBytes: ByteArray,
+    private val groupId: GroupId.V2? = null
+  ) {
+    private val parsed: ParsedDecryptedGroup by lazy {
+      if (groupId != null) {
+        DecryptedGroupCache.get(groupId, groupRevision, decryptedGroupBytes)
+      } else {
+        ParsedDecryptedGroup(groupRevision, decryptedGroupBytes.contentHashCode(), DecryptedGroup.ADAPTER.decode(decryptedGroupBytes))
+      }
     }
 
-    val bannedMembers: Set<ServiceId> by lazy {
-      DecryptedGroupUtil.bannedMembersToServiceIdSet(decryptedGroup.bannedMembers)
-    }
+    val decryptedGroup: DecryptedGroup
+      get() = parsed.decryptedGroup
+
+    val bannedMembers: Set<ServiceId>
+      get() = parsed.bannedMembers
 
     fun isAdmin(recipient: Recipient): Boolean {
       val aci = recipient.aci
 
       return if (aci.isPresent) {
-        decryptedGroup.members.findMemberByAci(aci.get())
-          .map { it.role == Member.Role.ADMINISTRATOR }
-          .orElse(false)
+        parsed.isAdmin(aci.get())
       } else {
         false
       }
@@ -1062,35 +1079,7 @@ class GroupTable(context: Context?, databaseHelper: SignalDatabase?) : DatabaseT
         return MemberLevel.NOT_A_MEMBER
       }
 
-      val serviceId: ServiceId = serviceIdOptional.get()
-      var memberLevel: Optional<MemberLevel> = Optional.empty()
-
-      if (serviceId is ACI) {
-        memberLevel = decryptedGroup.members.findMemberByAci(serviceId)
-          .map { member ->
-            if (member.role == Member.Role.ADMINISTRATOR) {
-              MemberLevel.ADMINISTRATOR
-            } else {
-              MemberLevel.FULL_MEMBER
-            }
-          }
-      }
-
-      if (memberLevel.isAbsent()) {
-        memberLevel = decryptedGroup.pendingMembers.findPendingByServiceId(serviceId)
-          .map { MemberLevel.PENDING_MEMBER }
-      }
-
-      if (memberLevel.isAbsent() && serviceId is ACI) {
-        memberLevel = decryptedGroup.requestingMembers.findRequestingByAci(serviceId)
-          .map { _ -> MemberLevel.REQUESTING_MEMBER }
-      }
-
-      return if (memberLevel.isPresent) {
-        memberLevel.get()
-      } else {
-        MemberLevel.NOT_A_MEMBER
-      }
+      return parsed.memberLevel(serviceIdOptional.get())
     }
 
     fun getMemberRecipients(memberSet: MemberSet): List<Recipient> {
@@ -1232,13 +1221,16 @@ class GroupTable(context: Context?, databaseHelper: SignalDatabase?) : DatabaseT
   }
 
   private fun serviceIdsToRecipientIds(serviceIds: Sequence<ServiceId>): MutableList<RecipientId> {
+    val known: List<ServiceId> = serviceIds.filterNot { it.isUnknown }.toList()
+    val recipientIds: Map<ServiceId, RecipientId> = RecipientId.fromServiceIds(known)
+
     return serviceIds
       .map { serviceId ->
         if (serviceId.isUnknown) {
           Log.w(TAG, "Saw an unknown UUID when mapping to RecipientIds!")
           null
         } else {
-          val id = RecipientId.from(serviceId)
+          val id = recipientIds[serviceId] ?: RecipientId.from(serviceId)
           val remapped = RemappedRecords.getInstance().getRecipient(id)
           if (remapped.isPresent) {
             Log.w(TAG, "Saw that $id remapped to $remapped. Using the mapping.")
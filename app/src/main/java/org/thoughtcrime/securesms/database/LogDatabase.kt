@@ -5,18 +5,18 @@ import android.app.Application
 import android.database.Cursor
 import net.zetetic.database.sqlcipher.SQLiteDatabase
 import net.zetetic.database.sqlcipher.SQLiteOpenHelper
-import org.signal.core.util.CursorUtil
 import org.signal.core.util.SqlUtil
 import org.signal.core.util.Stopwatch
 import org.signal.core.util.delete
 import org.signal.core.util.deleteAll
 import org.signal.core.util.exists
-import org.signal.core.util.getTableRowCount
 import org.signal.core.util.insertInto
 import org.signal.core.util.logging.Log
 import org.signal.core.util.mebiBytes
 import org.signal.core.util.readToList
 import org.signal.core.util.readToSingleInt
+import org.signal.core.util.readToSingleLong
+import org.signal.core.util.requireBoolean
 import org.signal.core.util.requireLong
 import org.signal.core.util.requireNonNullString
 import org.signal.core.util.select
@@ -25,8 +25,8 @@ import org.signal.core.util.withinTransaction
 import org.thoughtcrime.securesms.crypto.DatabaseSecret
 import org.thoughtcrime.securesms.crypto.DatabaseSecretProvider
 import org.thoughtcrime.securesms.database.model.LogEntry
+import org.thoughtcrime.securesms.logging.LogEntryFormatter
 import java.io.Closeable
-import kotlin.math.abs
 import kotlin.time.Duration.Companion.days
 
 /**
@@ -57,7 +57,7 @@ class LogDatabase private constructor(
   companion object {
     private val TAG = Log.tag(LogDatabase::class.java)
 
-    private const val DATABASE_VERSION = 4
+    private const val DATABASE_VERSION = 7
     private const val DATABASE_NAME = "signal-logs.db"
 
     @SuppressLint("StaticFieldLeak") // We hold an Application context, not a view context
@@ -91,6 +91,9 @@ class LogDatabase private constructor(
     Log.i(TAG, "onCreate()")
 
     db.execSQL(LogTable.CREATE_TABLE)
+    db.execSQL(LogTable.CREATE_STRING_TABLE)
+    db.execSQL(LogTable.CREATE_STACK_TRACE_TABLE)
+    db.execSQL(LogTable.CREATE_SEGMENT_TABLE)
     db.execSQL(CrashTable.CREATE_TABLE)
     db.execSQL(AnrTable.CREATE_TABLE)
 
@@ -117,6 +120,49 @@ class LogDatabase private constructor(
     if (oldVersion < 4) {
       db.execSQL("CREATE TABLE anr (_id INTEGER PRIMARY KEY, created_at INTEGER NOT NULL, thread_dump TEXT NOT NULL)")
     }
+
+    if (oldVersion < 5) {
+      db.execSQL("ALTER TABLE log ADD COLUMN level TEXT")
+      db.execSQL("ALTER TABLE log ADD COLUMN tag_id INTEGER")
+      db.execSQL("ALTER TABLE log ADD COLUMN thread_id INTEGER")
+      db.execSQL("ALTER TABLE log ADD COLUMN version_id INTEGER")
+      db.execSQL("ALTER TABLE log ADD COLUMN message TEXT")
+      db.execSQL("ALTER TABLE log ADD COLUMN stack_trace_id INTEGER")
+      db.execSQL("ALTER TABLE log ADD COLUMN line_count INTEGER DEFAULT 1")
+      db.execSQL("CREATE TABLE log_string (_id INTEGER PRIMARY KEY, value TEXT NOT NULL UNIQUE)")
+      db.execSQL("CREATE TABLE log_stack_trace (_id INTEGER PRIMARY KEY, hash INTEGER NOT NULL, stack_trace TEXT NOT NULL)")
+      db.execSQL("CREATE INDEX log_stack_trace_hash_index ON log_stack_trace (hash)")
+    }
+
+    if (oldVersion < 6) {
+      db.execSQL("CREATE TABLE log_segment (_id INTEGER PRIMARY KEY, keep_longer INTEGER NOT NULL, start_time INTEGER NOT NULL, end_time INTEGER NOT NULL, size INTEGER NOT NULL)")
+      db.execSQL("ALTER TABLE log ADD COLUMN segment_id INTEGER")
+
+      // Existing logs are split into a segment per hour, so that they can age out gradually rather than all at once
+      db.execSQL(
+        """
+        INSERT INTO log_segment (keep_longer, start_time, end_time, size)
+        SELECT keep_longer, MIN(created_at), MAX(created_at), SUM(size) FROM log
+        GROUP BY keep_longer, created_at / 3600000
+        ORDER BY MIN(created_at)
+        """
+      )
+      db.execSQL(
+        """
+        UPDATE log SET segment_id = (
+          SELECT log_segment._id FROM log_segment
+          WHERE log_segment.keep_longer = log.keep_longer AND log.created_at BETWEEN log_segment.start_time AND log_segment.end_time
+        )
+        """
+      )
+
+      db.execSQL("DROP INDEX keep_longer_index")
+      db.execSQL("CREATE INDEX log_segment_id_index ON log (segment_id)")
+    }
+
+    if (oldVersion < 7) {
+      db.execSQL("CREATE INDEX log_stack_trace_id_index ON log (stack_trace_id)")
+    }
   }
 
   override fun onOpen(db: SQLiteDatabase) {
@@ -135,125 +181,257 @@ class LogDatabase private constructor(
       const val KEEP_LONGER = "keep_longer"
       const val BODY = "body"
       const val SIZE = "size"
+      const val LEVEL = "level"
+      const val TAG_ID = "tag_id"
+      const val THREAD_ID = "thread_id"
+      const val VERSION_ID = "version_id"
+      const val MESSAGE = "message"
+      const val STACK_TRACE_ID = "stack_trace_id"
+      const val LINE_COUNT = "line_count"
+      const val SEGMENT_ID = "segment_id"
+
+      /** Interned tags and version names, which are shared by huge numbers of logs. */
+      const val STRING_TABLE_NAME = "log_string"
+      const val STRING_VALUE = "value"
+
+      /** Stack traces, deduplicated by [STACK_TRACE_HASH], since the same one is often logged over and over. */
+      const val STACK_TRACE_TABLE_NAME = "log_stack_trace"
+      const val STACK_TRACE_HASH = "hash"
+      const val STACK_TRACE = "stack_trace"
 
+      /** Groups of logs that are dropped together. See [LogSegments]. */
+      const val SEGMENT_TABLE_NAME = "log_segment"
+      const val SEGMENT_START_TIME = "start_time"
+      const val SEGMENT_END_TIME = "end_time"
+
+      /**
+       * Logs written before they were stored unformatted only have a [BODY], which is read back as-is. Newer logs leave it null and
+       * fill in everything else.
+       */
       const val CREATE_TABLE = """
         CREATE TABLE $TABLE_NAME (
           $ID INTEGER PRIMARY KEY,
           $CREATED_AT INTEGER, 
           $KEEP_LONGER INTEGER DEFAULT 0,
           $BODY TEXT,
-          $SIZE INTEGER
+          $SIZE INTEGER,
+          $LEVEL TEXT,
+          $TAG_ID INTEGER,
+          $THREAD_ID INTEGER,
+          $VERSION_ID INTEGER,
+          $MESSAGE TEXT,
+          $STACK_TRACE_ID INTEGER,
+          $LINE_COUNT INTEGER DEFAULT 1,
+          $SEGMENT_ID INTEGER
+        )
+      """
+
+      const val CREATE_STRING_TABLE = """
+        CREATE TABLE $STRING_TABLE_NAME (
+          $ID INTEGER PRIMARY KEY,
+          $STRING_VALUE TEXT NOT NULL UNIQUE
+        )
+      """
+
+      const val CREATE_STACK_TRACE_TABLE = """
+        CREATE TABLE $STACK_TRACE_TABLE_NAME (
+          $ID INTEGER PRIMARY KEY,
+          $STACK_TRACE_HASH INTEGER NOT NULL,
+          $STACK_TRACE TEXT NOT NULL
+        )
+      """
+
+      const val CREATE_SEGMENT_TABLE = """
+        CREATE TABLE $SEGMENT_TABLE_NAME (
+          $ID INTEGER PRIMARY KEY,
+          $KEEP_LONGER INTEGER NOT NULL,
+          $SEGMENT_START_TIME INTEGER NOT NULL,
+          $SEGMENT_END_TIME INTEGER NOT NULL,
+          $SIZE INTEGER NOT NULL
         )
       """
 
       val CREATE_INDEXES = arrayOf(
-        "CREATE INDEX keep_longer_index ON $TABLE_NAME ($KEEP_LONGER)",
-        "CREATE INDEX log_created_at_keep_longer_index ON $TABLE_NAME ($CREATED_AT, $KEEP_LONGER)"
+        "CREATE INDEX log_segment_id_index ON $TABLE_NAME ($SEGMENT_ID)",
+        "CREATE INDEX log_created_at_keep_longer_index ON $TABLE_NAME ($CREATED_AT, $KEEP_LONGER)",
+        "CREATE INDEX log_stack_trace_id_index ON $TABLE_NAME ($STACK_TRACE_ID)",
+        "CREATE INDEX log_stack_trace_hash_index ON $STACK_TRACE_TABLE_NAME ($STACK_TRACE_HASH)"
       )
 
+      private const val INSERT = """
+        INSERT INTO $TABLE_NAME ($CREATED_AT, $KEEP_LONGER, $SIZE, $LEVEL, $TAG_ID, $THREAD_ID, $VERSION_ID, $MESSAGE, $STACK_TRACE_ID, $LINE_COUNT, $SEGMENT_ID)
+        VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)
+      """
+
+      private const val SELECT_ENTRIES = """
+        SELECT
+          $TABLE_NAME.$ID,
+          $TABLE_NAME.$CREATED_AT,
+          $TABLE_NAME.$KEEP_LONGER,
+          $TABLE_NAME.$BODY,
+          $TABLE_NAME.$LEVEL,
+          tag.$STRING_VALUE,
+          $TABLE_NAME.$THREAD_ID,
+          version.$STRING_VALUE,
+          $TABLE_NAME.$MESSAGE,
+          trace.$STACK_TRACE
+        FROM $TABLE_NAME
+          LEFT JOIN $STRING_TABLE_NAME AS tag ON tag.$ID = $TABLE_NAME.$TAG_ID
+          LEFT JOIN $STRING_TABLE_NAME AS version ON version.$ID = $TABLE_NAME.$VERSION_ID
+          LEFT JOIN $STACK_TRACE_TABLE_NAME AS trace ON trace.$ID = $TABLE_NAME.$STACK_TRACE_ID
+      """
+
+      /** The rough length of everything in a formatted line besides the version, tag and message: brackets, thread, date and level. */
+      private const val LINE_OVERHEAD = 44
+
+      private const val MAX_CACHED_STACK_TRACES = 100
+
       val MAX_FILE_SIZE = 20L.mebiBytes.inWholeBytes
       val DEFAULT_LIFESPAN = 3.days.inWholeMilliseconds
       val LONGER_LIFESPAN = 21.days.inWholeMilliseconds
+      val SEGMENT_SIZE = MAX_FILE_SIZE / 64
     }
 
     private val readableDatabase: SQLiteDatabase get() = openHelper.readableDatabase
     private val writableDatabase: SQLiteDatabase get() = openHelper.writableDatabase
 
+    /**
+     * Ids of rows in [STRING_TABLE_NAME] and [STACK_TRACE_TABLE_NAME], so that the common case of logging with a tag and version we've
+     * seen before doesn't hit the database. Only touched while holding a write transaction, and cleared whenever rows might be removed
+     * from those tables, or when a transaction that may have added to them fails.
+     */
+    private val stringIds: MutableMap<String, Long> = HashMap()
+    private val stackTraceIds: MutableMap<String, Long> = object : LinkedHashMap<String, Long>(16, 0.75f, true) {
+      override fun removeEldestEntry(eldest: MutableMap.MutableEntry<String, Long>?): Boolean {
+        return size > MAX_CACHED_STACK_TRACES
+      }
+    }
+
+    private val segments = LogSegments(SegmentStore(), SEGMENT_SIZE, MAX_FILE_SIZE, DEFAULT_LIFESPAN, LONGER_LIFESPAN)
+
+    /**
+     * Retention and size limits are only enforced when a segment fills up, so most inserts don't delete anything.
+     */
     fun insert(logs: List<LogEntry>, currentTime: Long) {
-      writableDatabase.withinTransaction { db ->
-        logs.forEach { log ->
-          db.insertInto(TABLE_NAME)
-            .values(
-              CREATED_AT to log.createdAt,
-              KEEP_LONGER to if (log.keepLonger) 1 else 0,
-              BODY to log.body,
-              SIZE to log.body.length
-            )
-            .run()
-        }
+      try {
+        writableDatabase.withinTransaction { db ->
+          db.compileStatement(INSERT).use { statement ->
+            logs.forEach { log ->
+              val lineCount = log.lineCount
+              val size = estimateSize(log, lineCount)
+
+              statement.clearBindings()
+              statement.bindLong(1, log.createdAt)
+              statement.bindLong(2, if (log.keepLonger) 1 else 0)
+              statement.bindLong(3, size)
+              statement.bindString(4, log.level)
+              statement.bindLong(5, internString(db, log.tag))
+              statement.bindLong(6, log.threadId)
+              statement.bindLong(7, internString(db, log.versionName))
+              if (log.message != null) {
+                statement.bindString(8, log.message)
+              } else {
+                statement.bindNull(8)
+              }
+              if (log.stackTrace != null) {
+                statement.bindLong(9, internStackTrace(db, log.stackTrace))
+              } else {
+                statement.bindNull(9)
+              }
+              statement.bindLong(10, lineCount.toLong())
+              statement.bindLong(11, segments.assign(log, size))
+              statement.executeInsert()
+            }
+          }
 
-        db.delete(TABLE_NAME)
-          .where("($CREATED_AT < ? AND $KEEP_LONGER = 0) OR ($CREATED_AT < ? AND $KEEP_LONGER = 1)", currentTime - DEFAULT_LIFESPAN, currentTime - LONGER_LIFESPAN)
-          .run()
+          segments.finishBatch(currentTime)
+        }
+      } catch (e: RuntimeException) {
+        clearInternCaches()
+        segments.reset()
+        throw e
       }
     }
 
+    /**
+     * @return Every log line before [time], formatted and in the order they were written.
+     */
     fun getAllBeforeTime(time: Long): Reader {
       return readableDatabase
-        .select(BODY)
-        .from(TABLE_NAME)
-        .where("$CREATED_AT < $time")
-        .run()
+        .rawQuery("$SELECT_ENTRIES WHERE $TABLE_NAME.$CREATED_AT < ? ORDER BY $TABLE_NAME.$ID", SqlUtil.buildArgs(time))
         .toReader()
     }
 
+    /**
+     * Lines are counted the same way as [getLogCountBeforeTime], so [start] may land part way through a log with a stack trace.
+     */
     fun getRangeBeforeTime(start: Int, length: Int, time: Long): List<String> {
-      return readableDatabase
-        .select(BODY)
+      var firstId = -1L
+      var linesToSkip = 0
+
+      readableDatabase
+        .select(ID, LINE_COUNT)
         .from(TABLE_NAME)
         .where("$CREATED_AT < $time")
-        .limit(limit = length, offset = start)
+        .orderBy(ID)
         .run()
-        .readToList { it.requireNonNullString(BODY) }
-    }
-
-    fun trimToSize() {
-      val currentTime = System.currentTimeMillis()
-      val stopwatch = Stopwatch("trim")
+        .use { cursor ->
+          var linesBefore = 0
+          while (cursor.moveToNext()) {
+            val lineCount = cursor.getInt(1)
+            if (linesBefore + lineCount > start) {
+              firstId = cursor.getLong(0)
+              linesToSkip = start - linesBefore
+              break
+            }
+            linesBefore += lineCount
+          }
+        }
 
-      val sizeOfSpecialLogs: Long = getSize("$KEEP_LONGER = ?", arrayOf("1"))
-      val remainingSize = MAX_FILE_SIZE - sizeOfSpecialLogs
+      if (firstId == -1L) {
+        return emptyList()
+      }
 
-      stopwatch.split("keepers-size")
+      val lines = ArrayList<String>(length)
 
-      if (remainingSize <= 0) {
-        if (abs(remainingSize) > MAX_FILE_SIZE / 2) {
-          // Not only are KEEP_LONGER logs putting us over the storage limit, it's doing it by a lot! Delete half.
-          val logCount = readableDatabase.getTableRowCount(TABLE_NAME)
-          writableDatabase.execSQL("DELETE FROM $TABLE_NAME WHERE $ID < (SELECT MAX($ID) FROM (SELECT $ID FROM $TABLE_NAME LIMIT ${logCount / 2}))")
-        } else {
-          writableDatabase
-            .delete(TABLE_NAME)
-            .where("$KEEP_LONGER = 0")
+      readableDatabase
+        .rawQuery("$SELECT_ENTRIES WHERE $TABLE_NAME.$CREATED_AT < ? AND $TABLE_NAME.$ID >= ? ORDER BY $TABLE_NAME.$ID LIMIT $length", SqlUtil.buildArgs(time, firstId))
+        .toReader()
+        .use { reader ->
+          while (reader.hasNext() && lines.size < length) {
+            val line = reader.next()
+            if (linesToSkip > 0) {
+              linesToSkip--
+            } else {
+              lines += line
+            }
+          }
         }
-        return
-      }
 
-      val sizeDiffThreshold = MAX_FILE_SIZE * 0.01
-
-      var lhs: Long = currentTime - DEFAULT_LIFESPAN
-      var rhs: Long = currentTime
-      var mid: Long = 0
-      var sizeOfChunk: Long
+      return lines
+    }
 
-      while (lhs < rhs - 2) {
-        mid = (lhs + rhs) / 2
-        sizeOfChunk = getSize("$CREATED_AT > ? AND $CREATED_AT < ? AND $KEEP_LONGER = ?", SqlUtil.buildArgs(mid, currentTime, 0))
+    fun trimToSize() {
+      val stopwatch = Stopwatch("trim")
 
-        if (sizeOfChunk > remainingSize) {
-          lhs = mid
-        } else if (sizeOfChunk < remainingSize) {
-          if (remainingSize - sizeOfChunk < sizeDiffThreshold) {
-            break
-          } else {
-            rhs = mid
-          }
-        } else {
-          break
-        }
+      runSegmentTransaction {
+        segments.trim(System.currentTimeMillis())
       }
 
-      stopwatch.split("binary-search")
+      stopwatch.split("segments")
 
-      writableDatabase.delete(TABLE_NAME, "$CREATED_AT < ? AND $KEEP_LONGER = ?", SqlUtil.buildArgs(mid, 0))
+      deleteUnusedStackTraces()
 
-      stopwatch.split("delete")
+      stopwatch.split("stack-traces")
       stopwatch.stop(TAG)
     }
 
+    /**
+     * @return The number of lines that [getAllBeforeTime] would return.
+     */
     fun getLogCountBeforeTime(time: Long): Int {
       return readableDatabase
-        .select("COUNT(*)")
+        .select("SUM($LINE_COUNT)")
         .from(TABLE_NAME)
         .where("$CREATED_AT < $time")
         .run()
@@ -261,23 +439,168 @@ class LogDatabase private constructor(
     }
 
     fun clearKeepLonger() {
-      writableDatabase
-        .delete(TABLE_NAME)
-        .where("$KEEP_LONGER = 1")
-        .run()
+      runSegmentTransaction {
+        segments.dropKeepLonger()
+      }
     }
 
     fun clearAll() {
-      writableDatabase.deleteAll(TABLE_NAME)
+      writableDatabase.withinTransaction { db ->
+        db.deleteAll(TABLE_NAME)
+        db.deleteAll(STRING_TABLE_NAME)
+        db.deleteAll(STACK_TRACE_TABLE_NAME)
+        db.deleteAll(SEGMENT_TABLE_NAME)
+        clearInternCaches()
+        segments.reset()
+      }
       writableDatabase.execSQL("VACUUM")
     }
 
-    private fun getSize(query: String?, args: Array<String>?): Long {
-      readableDatabase.query(TABLE_NAME, arrayOf("SUM($SIZE)"), query, args, null, null, null).use { cursor ->
-        return if (cursor.moveToFirst()) {
-          cursor.getLong(0)
+    private fun runSegmentTransaction(block: () -> Unit) {
+      try {
+        writableDatabase.withinTransaction { block() }
+      } catch (e: RuntimeException) {
+        segments.reset()
+        throw e
+      }
+    }
+
+    private fun internString(db: SQLiteDatabase, value: String): Long {
+      synchronized(stringIds) {
+        stringIds[value]?.let { return it }
+
+        val existingId = db
+          .select(ID)
+          .from(STRING_TABLE_NAME)
+          .where("$STRING_VALUE = ?", value)
+          .run()
+          .readToSingleLong(-1)
+
+        val id = if (existingId != -1L) {
+          existingId
         } else {
-          0
+          db.insertInto(STRING_TABLE_NAME)
+            .values(STRING_VALUE to value)
+            .run()
+        }
+
+        stringIds[value] = id
+        return id
+      }
+    }
+
+    private fun internStackTrace(db: SQLiteDatabase, stackTrace: String): Long {
+      synchronized(stackTraceIds) {
+        stackTraceIds[stackTrace]?.let { return it }
+
+        val hash = stackTrace.hashCode()
+
+        val existingId = db
+          .select(ID, STACK_TRACE)
+          .from(STACK_TRACE_TABLE_NAME)
+          .where("$STACK_TRACE_HASH = ?", hash)
+          .run()
+          .use { cursor ->
+            var match = -1L
+            while (match == -1L && cursor.moveToNext()) {
+              if (cursor.getString(1) == stackTrace) {
+                match = cursor.getLong(0)
+              }
+            }
+            match
+          }
+
+        val id = if (existingId != -1L) {
+          existingId
+        } else {
+          db.insertInto(STACK_TRACE_TABLE_NAME)
+            .values(
+              STACK_TRACE_HASH to hash,
+              STACK_TRACE to stackTrace
+            )
+            .run()
+        }
+
+        stackTraceIds[stackTrace] = id
+        return id
+      }
+    }
+
+    private fun deleteUnusedStackTraces() {
+      writableDatabase.withinTransaction { db ->
+        db.delete(STACK_TRACE_TABLE_NAME)
+          .where("NOT EXISTS (SELECT 1 FROM $TABLE_NAME WHERE $TABLE_NAME.$STACK_TRACE_ID = $STACK_TRACE_TABLE_NAME.$ID)")
+          .run()
+
+        synchronized(stackTraceIds) {
+          stackTraceIds.clear()
+        }
+      }
+    }
+
+    private fun clearInternCaches() {
+      synchronized(stringIds) {
+        stringIds.clear()
+      }
+      synchronized(stackTraceIds) {
+        stackTraceIds.clear()
+      }
+    }
+
+    /**
+     * Roughly the length of the formatted lines, which is what [MAX_FILE_SIZE] was originally measured against.
+     */
+    private fun estimateSize(log: LogEntry, lineCount: Int): Long {
+      val lineLength = LINE_OVERHEAD + log.versionName.length + log.tag.length
+      return lineCount.toLong() * lineLength + (log.message?.length ?: 0) + (log.stackTrace?.length ?: 0)
+    }
+
+    private inner class SegmentStore : LogSegments.Store {
+      override fun getSegments(): List<LogSegments.Segment> {
+        return writableDatabase
+          .query(SEGMENT_TABLE_NAME, arrayOf(ID, KEEP_LONGER, SEGMENT_START_TIME, SEGMENT_END_TIME, SIZE), null, null, null, null, ID)
+          .readToList { cursor ->
+            LogSegments.Segment(
+              id = cursor.requireLong(ID),
+              keepLonger = cursor.requireBoolean(KEEP_LONGER),
+              startTime = cursor.requireLong(SEGMENT_START_TIME),
+              endTime = cursor.requireLong(SEGMENT_END_TIME),
+              size = cursor.requireLong(SIZE)
+            )
+          }
+      }
+
+      override fun createSegment(keepLonger: Boolean, createdAt: Long): Long {
+        return writableDatabase
+          .insertInto(SEGMENT_TABLE_NAME)
+          .values(
+            KEEP_LONGER to keepLonger,
+            SEGMENT_START_TIME to createdAt,
+            SEGMENT_END_TIME to createdAt,
+            SIZE to 0
+          )
+          .run()
+      }
+
+      override fun updateSegment(segment: LogSegments.Segment) {
+        writableDatabase
+          .update(SEGMENT_TABLE_NAME)
+          .values(
+            SEGMENT_START_TIME to segment.startTime,
+            SEGMENT_END_TIME to segment.endTime,
+            SIZE to segment.size
+          )
+          .where("$ID = ?", segment.id)
+          .run()
+      }
+
+      override fun deleteSegments(ids: Collection<Long>) {
+        SqlUtil.buildCollectionQuery(SEGMENT_ID, ids).forEach { query ->
+          writableDatabase.delete(TABLE_NAME, query.where, query.whereArgs)
+        }
+
+        SqlUtil.buildCollectionQuery(ID, ids).forEach { query ->
+          writableDatabase.delete(SEGMENT_TABLE_NAME, query.where, query.whereArgs)
         }
       }
     }
@@ -288,19 +611,49 @@ class LogDatabase private constructor(
 
     interface Reader : Iterator<String>, Closeable
 
+    /**
+     * Reads the rows of a [SELECT_ENTRIES] query, expanding each into its formatted lines as it goes.
+     */
     class CursorReader(private val cursor: Cursor) : Reader {
+      private val formatter = LogEntryFormatter()
+      private val pending: ArrayDeque<String> = ArrayDeque()
+
       override fun hasNext(): Boolean {
-        return !cursor.isLast && cursor.count > 0
+        fillPending()
+        return pending.isNotEmpty()
       }
 
       override fun next(): String {
-        cursor.moveToNext()
-        return CursorUtil.requireString(cursor, LogTable.BODY)
+        fillPending()
+        return pending.removeFirst()
       }
 
       override fun close() {
         cursor.close()
       }
+
+      private fun fillPending() {
+        while (pending.isEmpty() && cursor.moveToNext()) {
+          val body: String? = cursor.getString(3)
+
+          if (body != null) {
+            pending += body
+          } else {
+            val entry = LogEntry(
+              createdAt = cursor.getLong(1),
+              keepLonger = cursor.getInt(2) == 1,
+              level = cursor.getString(4),
+              tag = cursor.getString(5) ?: "",
+              threadId = cursor.getLong(6),
+              message = cursor.getString(8),
+              stackTrace = cursor.getString(9),
+              versionName = cursor.getString(7) ?: ""
+            )
+
+            formatter.format(entry, pending)
+          }
+        }
+      }
     }
   }
 
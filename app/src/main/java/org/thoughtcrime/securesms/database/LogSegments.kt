@@ -0,0 +1,207 @@
+/*
+ * Copyright 2023 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.thoughtcrime.securesms.database
+
+import org.thoughtcrime.securesms.database.model.LogEntry
+
+/**
+ * Groups logs into segments of roughly [segmentSize] bytes, each with a precomputed size and time range, so that retention and size
+ * limits can be enforced by dropping whole segments instead of searching through individual logs.
+ *
+ * Logs that should be kept longer go in their own segments, and there is one open segment of each kind that new logs are added to. Once a
+ * segment fills up, or spans more than a [MAX_SPAN_DIVISOR]th of its lifespan, it's closed and a new one is opened, and that's when expired
+ * segments are dropped and the total is brought back under [maxSize]. Room is left for both open segments to fill up, so the total never
+ * exceeds [maxSize] in between. Limiting the span means that a segment that's slow to fill up still expires, instead of holding on to its
+ * oldest logs indefinitely.
+ *
+ * Not thread safe. Every call is expected to be made within a write transaction, which serializes access. If that transaction fails, call
+ * [reset] so that state is reloaded from the [Store].
+ */
+class LogSegments(
+  private val store: Store,
+  private val segmentSize: Long,
+  private val maxSize: Long,
+  private val defaultLifespan: Long,
+  private val longerLifespan: Long
+) {
+
+  companion object {
+    const val MAX_SPAN_DIVISOR = 4
+  }
+
+  /** Every segment, oldest first. Loaded from the [store] on first use. */
+  private var segments: MutableList<Segment>? = null
+  private var openSegment: Segment? = null
+  private var openKeepLongerSegment: Segment? = null
+
+  private val modified: MutableSet<Segment> = LinkedHashSet()
+  private var segmentClosed = false
+
+  /**
+   * @return The id of the segment that a log of [size] bytes should be stored in.
+   */
+  fun assign(log: LogEntry, size: Long): Long {
+    val segments = load()
+    var segment = if (log.keepLonger) openKeepLongerSegment else openSegment
+
+    if (segment == null || (segment.size > 0 && (segment.size + size > segmentSize || log.createdAt - segment.startTime > maxSpan(segment)))) {
+      segment = Segment(
+        id = store.createSegment(log.keepLonger, log.createdAt),
+        keepLonger = log.keepLonger,
+        startTime = log.createdAt,
+        endTime = log.createdAt,
+        size = 0
+      )
+
+      segments += segment
+      segmentClosed = true
+
+      if (log.keepLonger) {
+        openKeepLongerSegment = segment
+      } else {
+        openSegment = segment
+      }
+    }
+
+    segment.size += size
+    segment.startTime = minOf(segment.startTime, log.createdAt)
+    segment.endTime = maxOf(segment.endTime, log.createdAt)
+    modified += segment
+
+    return segment.id
+  }
+
+  /**
+   * Saves the sizes and time ranges of every segment that was added to since the last call, and trims if a segment was closed.
+   */
+  fun finishBatch(currentTime: Long) {
+    modified.forEach { store.updateSegment(it) }
+    modified.clear()
+
+    if (segmentClosed) {
+      segmentClosed = false
+      trim(currentTime, maxSize - 2 * segmentSize)
+    }
+  }
+
+  /**
+   * Drops every expired segment, and then the oldest segments until the total size is at most [targetSize]. Logs that should be kept
+   * longer are only dropped for size once everything else is gone. Open segments are only dropped once they've expired.
+   */
+  fun trim(currentTime: Long, targetSize: Long = maxSize) {
+    val segments = load()
+
+    val dropped = segments.filter { segment ->
+      segment.endTime < currentTime - lifespan(segment)
+    }.toMutableSet()
+
+    var size = segments.sumOf { it.size } - dropped.sumOf { it.size }
+
+    for (keepLonger in listOf(false, true)) {
+      for (segment in segments) {
+        if (size <= targetSize) {
+          break
+        }
+
+        if (segment.keepLonger == keepLonger && !isOpen(segment) && segment !in dropped) {
+          dropped += segment
+          size -= segment.size
+        }
+      }
+    }
+
+    drop(dropped)
+  }
+
+  /**
+   * Drops every segment of logs that should be kept longer.
+   */
+  fun dropKeepLonger() {
+    drop(load().filter { it.keepLonger }.toSet())
+  }
+
+  fun getTotalSize(): Long {
+    return load().sumOf { it.size }
+  }
+
+  fun getSegmentCount(): Int {
+    return load().size
+  }
+
+  fun reset() {
+    segments = null
+    openSegment = null
+    openKeepLongerSegment = null
+    modified.clear()
+    segmentClosed = false
+  }
+
+  private fun lifespan(segment: Segment): Long {
+    return if (segment.keepLonger) longerLifespan else defaultLifespan
+  }
+
+  private fun maxSpan(segment: Segment): Long {
+    return lifespan(segment) / MAX_SPAN_DIVISOR
+  }
+
+  private fun isOpen(segment: Segment): Boolean {
+    return segment === openSegment || segment === openKeepLongerSegment
+  }
+
+  private fun drop(dropped: Set<Segment>) {
+    if (dropped.isEmpty()) {
+      return
+    }
+
+    store.deleteSegments(dropped.map { it.id })
+
+    segments?.removeAll(dropped)
+    modified.removeAll(dropped)
+
+    if (openSegment in dropped) {
+      openSegment = null
+    }
+
+    if (openKeepLongerSegment in dropped) {
+      openKeepLongerSegment = null
+    }
+  }
+
+  /**
+   * The newest segment of each kind is picked back up as the open one, so that a restart doesn't leave a trail of tiny segments.
+   */
+  private fun load(): MutableList<Segment> {
+    segments?.let { return it }
+
+    val loaded = store.getSegments().toMutableList()
+    openSegment = loaded.lastOrNull { !it.keepLonger }
+    openKeepLongerSegment = loaded.lastOrNull { it.keepLonger }
+    segments = loaded
+
+    return loaded
+  }
+
+  class Segment(
+    val id: Long,
+    val keepLonger: Boolean,
+    var startTime: Long,
+    var endTime: Long,
+    var size: Long
+  )
+
+  interface Store {
+    /** @return Every segment, oldest first. */
+    fun getSegments(): List<Segment>
+
+    /** @return The id of a new, empty segment. */
+    fun createSegment(keepLonger: Boolean, createdAt: Long): Long
+
+    fun updateSegment(segment: Segment)
+
+    /** Deletes the segments and every log in them. */
+    fun deleteSegments(ids: Collection<Long>)
+  }
+}
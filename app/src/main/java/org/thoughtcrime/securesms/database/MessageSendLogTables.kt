@@ -3,13 +3,14 @@ package org.thoughtcrime.securesms.database
 import android.content.ContentValues
 import android.content.Context
 import android.database.sqlite.SQLiteConstraintException
+import androidx.annotation.VisibleForTesting
+import org.signal.core.util.CryptoUtil
 import org.signal.core.util.CursorUtil
 import org.signal.core.util.SqlUtil
 import org.signal.core.util.delete
 import org.signal.core.util.logging.Log
-import org.signal.core.util.readToList
+import org.signal.core.util.readToSingleLong
 import org.signal.core.util.requireBoolean
-import org.signal.core.util.requireLong
 import org.signal.core.util.toInt
 import org.thoughtcrime.securesms.database.model.MessageId
 import org.thoughtcrime.securesms.database.model.MessageLogEntry
@@ -24,8 +25,9 @@ import org.whispersystems.signalservice.internal.push.Content
 /**
  * Stores a rolling buffer of all outgoing messages. Used for the retry logic required for sender key.
  *
- * General note: This class is actually three tables:
+ * General note: This class is actually four tables:
  * - one to store the entry
+ * - one to store the content of the entry, shared between every entry with identical content
  * - one to store all the devices that were sent it, and
  * - one to store the set of related messages.
  *
@@ -33,14 +35,16 @@ import org.whispersystems.signalservice.internal.push.Content
  * - Upon sending a message, put an entry in the 'payload table', an entry for each recipient you sent it to in the 'recipient table', and an entry for each
  *   related message in the 'message table'
  * - Whenever you get a delivery receipt, delete the entries in the 'recipient table'
- * - Whenever there's no more records in the 'recipient table' for a given message, delete the entry in the 'message table'
+ * - Whenever there's no more records in the 'recipient table' for a given entry, delete the entry in the 'payload table'
+ * - Whenever there's no more entries using some content, delete it from the 'content table'
  * - Whenever you delete a message, delete the relevant entries from the 'payload table'
  * - Whenever you read an entry from the table, first trim off all the entries that are too old
  *
  * Because of all of this, you can be sure that if an entry is in this store, it's safe to resend to someone upon request
  *
- * Worth noting that we use triggers + foreign keys to make sure entries in this table are properly cleaned up. Triggers for when you delete a message, and
- * cascading delete foreign keys between these three tables.
+ * Worth noting that we use triggers + foreign keys to make sure entries in this table are properly cleaned up. Triggers for when you delete a message,
+ * a recipient or a payload, and cascading delete foreign keys between the payload table and its children. Content is reference counted by triggers, so
+ * it's reclaimed no matter how the payloads that use it end up being deleted.
  *
  * Performance considerations:
  * - The most common operations by far are:
@@ -56,13 +60,55 @@ class MessageSendLogTables constructor(context: Context?, databaseHelper: Signal
     private val TAG = Log.tag(MessageSendLogTables::class.java)
 
     @JvmField
-    val CREATE_TABLE: Array<String> = arrayOf(MslPayloadTable.CREATE_TABLE, MslRecipientTable.CREATE_TABLE, MslMessageTable.CREATE_TABLE)
+    val CREATE_TABLE: Array<String> = arrayOf(MslContentTable.CREATE_TABLE, MslPayloadTable.CREATE_TABLE, MslRecipientTable.CREATE_TABLE, MslMessageTable.CREATE_TABLE)
 
     @JvmField
     val CREATE_INDEXES: Array<String> = MslPayloadTable.CREATE_INDEXES + MslRecipientTable.CREATE_INDEXES + MslMessageTable.CREATE_INDEXES
 
     @JvmField
-    val CREATE_TRIGGERS: Array<String> = MslPayloadTable.CREATE_TRIGGERS
+    val CREATE_TRIGGERS: Array<String> = MslPayloadTable.CREATE_TRIGGERS + MslRecipientTable.CREATE_TRIGGERS
+
+    /** Content reference counts are maintained by triggers as payloads are inserted, so the tables can't be restored row by row. */
+    @JvmField
+    val TABLE_NAMES: List<String> = listOf(MslContentTable.TABLE_NAME, MslPayloadTable.TABLE_NAME, MslRecipientTable.TABLE_NAME, MslMessageTable.TABLE_NAME)
+
+    /**
+     * The statements run by triggers while cleaning up entries, where `old` and `new` refer to the row being changed. Exposed so that tests can make sure
+     * none of them need to scan a whole table.
+     */
+    @VisibleForTesting
+    val TRIGGER_STATEMENTS: List<String> = listOf(
+      MslRecipientTable.DELETE_ORPHANED_PAYLOAD,
+      MslPayloadTable.INCREMENT_CONTENT_REF_COUNT,
+      MslPayloadTable.DECREMENT_CONTENT_REF_COUNT,
+      MslPayloadTable.DELETE_UNREFERENCED_CONTENT
+    )
+  }
+
+  private object MslContentTable {
+    const val TABLE_NAME = "msl_content"
+
+    const val ID = "_id"
+    const val HASH = "hash"
+    const val CONTENT = "content"
+    const val REF_COUNT = "ref_count"
+
+    /** [REF_COUNT] is the number of payloads using this content, and is only ever touched by [MslPayloadTable.CREATE_TRIGGERS]. */
+    const val CREATE_TABLE = """
+      CREATE TABLE $TABLE_NAME (
+        $ID INTEGER PRIMARY KEY,
+        $HASH BLOB NOT NULL UNIQUE,
+        $CONTENT BLOB NOT NULL,
+        $REF_COUNT INTEGER NOT NULL DEFAULT 0
+      )
+    """
+
+    /** Inserts content if there isn't already a row with the same hash, and either way returns the ID of the row with that hash. */
+    const val UPSERT = """
+      INSERT INTO $TABLE_NAME ($HASH, $CONTENT) VALUES (?, ?)
+      ON CONFLICT ($HASH) DO UPDATE SET $HASH = excluded.$HASH
+      RETURNING $ID
+    """
   }
 
   private object MslPayloadTable {
@@ -70,7 +116,7 @@ class MessageSendLogTables constructor(context: Context?, databaseHelper: Signal
 
     const val ID = "_id"
     const val DATE_SENT = "date_sent"
-    const val CONTENT = "content"
+    const val CONTENT_ID = "content_id"
     const val CONTENT_HINT = "content_hint"
     const val URGENT = "urgent"
 
@@ -78,17 +124,22 @@ class MessageSendLogTables constructor(context: Context?, databaseHelper: Signal
       CREATE TABLE $TABLE_NAME (
         $ID INTEGER PRIMARY KEY,
         $DATE_SENT INTEGER NOT NULL,
-        $CONTENT BLOB NOT NULL,
+        $CONTENT_ID INTEGER NOT NULL REFERENCES ${MslContentTable.TABLE_NAME} (${MslContentTable.ID}),
         $CONTENT_HINT INTEGER NOT NULL,
         $URGENT INTEGER NOT NULL DEFAULT 1
       )
     """
 
-    /** Created for [deleteEntriesForRecipient] */
+    /** Created for [deleteEntriesForRecipient], and for the foreign key to [MslContentTable] */
     val CREATE_INDEXES = arrayOf(
-      "CREATE INDEX msl_payload_date_sent_index ON $TABLE_NAME ($DATE_SENT)"
+      "CREATE INDEX msl_payload_date_sent_index ON $TABLE_NAME ($DATE_SENT)",
+      "CREATE INDEX msl_payload_content_index ON $TABLE_NAME ($CONTENT_ID)"
     )
 
+    const val INCREMENT_CONTENT_REF_COUNT = "UPDATE ${MslContentTable.TABLE_NAME} SET ${MslContentTable.REF_COUNT} = ${MslContentTable.REF_COUNT} + 1 WHERE ${MslContentTable.ID} = new.$CONTENT_ID"
+    const val DECREMENT_CONTENT_REF_COUNT = "UPDATE ${MslContentTable.TABLE_NAME} SET ${MslContentTable.REF_COUNT} = ${MslContentTable.REF_COUNT} - 1 WHERE ${MslContentTable.ID} = old.$CONTENT_ID"
+    const val DELETE_UNREFERENCED_CONTENT = "DELETE FROM ${MslContentTable.TABLE_NAME} WHERE ${MslContentTable.ID} = old.$CONTENT_ID AND ${MslContentTable.REF_COUNT} <= 0"
+
     val CREATE_TRIGGERS = arrayOf(
       """
         CREATE TRIGGER msl_message_delete AFTER DELETE ON ${MessageTable.TABLE_NAME} 
@@ -101,6 +152,19 @@ class MessageSendLogTables constructor(context: Context?, databaseHelper: Signal
         BEGIN
           DELETE FROM $TABLE_NAME WHERE $ID IN (SELECT ${MslMessageTable.PAYLOAD_ID} FROM ${MslMessageTable.TABLE_NAME} WHERE ${MslMessageTable.TABLE_NAME}.${MslMessageTable.MESSAGE_ID} = old.${AttachmentTable.MESSAGE_ID});
         END
+      """,
+      """
+        CREATE TRIGGER msl_payload_insert AFTER INSERT ON $TABLE_NAME
+        BEGIN
+          $INCREMENT_CONTENT_REF_COUNT;
+        END
+      """,
+      """
+        CREATE TRIGGER msl_payload_delete AFTER DELETE ON $TABLE_NAME
+        BEGIN
+          $DECREMENT_CONTENT_REF_COUNT;
+          $DELETE_UNREFERENCED_CONTENT;
+        END
       """
     )
   }
@@ -127,6 +191,21 @@ class MessageSendLogTables constructor(context: Context?, databaseHelper: Signal
       "CREATE INDEX msl_recipient_recipient_index ON $TABLE_NAME ($RECIPIENT_ID, $DEVICE, $PAYLOAD_ID)",
       "CREATE INDEX msl_recipient_payload_index ON $TABLE_NAME ($PAYLOAD_ID)"
     )
+
+    /** Relies on [CREATE_INDEXES] so that checking for remaining recipients is a lookup rather than a scan. */
+    const val DELETE_ORPHANED_PAYLOAD = """
+      DELETE FROM ${MslPayloadTable.TABLE_NAME}
+      WHERE ${MslPayloadTable.ID} = old.$PAYLOAD_ID AND NOT EXISTS (SELECT 1 FROM $TABLE_NAME WHERE $PAYLOAD_ID = old.$PAYLOAD_ID)
+    """
+
+    val CREATE_TRIGGERS = arrayOf(
+      """
+        CREATE TRIGGER msl_recipient_delete AFTER DELETE ON $TABLE_NAME
+        BEGIN
+          $DELETE_ORPHANED_PAYLOAD;
+        END
+      """
+    )
   }
 
   private object MslMessageTable {
@@ -234,9 +313,12 @@ class MessageSendLogTables constructor(context: Context?, databaseHelper: Signal
 
     db.beginTransaction()
     try {
+      val encodedContent = content.encode()
+      val contentId: Long = db.rawQuery(MslContentTable.UPSERT, arrayOf<Any>(CryptoUtil.sha256(encodedContent), encodedContent)).readToSingleLong(-1)
+
       val payloadValues = ContentValues().apply {
         put(MslPayloadTable.DATE_SENT, dateSent)
-        put(MslPayloadTable.CONTENT, content.encode())
+        put(MslPayloadTable.CONTENT_ID, contentId)
         put(MslPayloadTable.CONTENT_HINT, contentHint.type)
         put(MslPayloadTable.URGENT, urgent.toInt())
       }
@@ -279,7 +361,11 @@ class MessageSendLogTables constructor(context: Context?, databaseHelper: Signal
     trimOldMessages(System.currentTimeMillis(), FeatureFlags.retryRespondMaxAge())
 
     val db = databaseHelper.signalReadableDatabase
-    val table = "${MslPayloadTable.TABLE_NAME} LEFT JOIN ${MslRecipientTable.TABLE_NAME} ON ${MslPayloadTable.TABLE_NAME}.${MslPayloadTable.ID} = ${MslRecipientTable.TABLE_NAME}.${MslRecipientTable.PAYLOAD_ID}"
+    val table = """
+      ${MslPayloadTable.TABLE_NAME}
+      LEFT JOIN ${MslRecipientTable.TABLE_NAME} ON ${MslPayloadTable.TABLE_NAME}.${MslPayloadTable.ID} = ${MslRecipientTable.TABLE_NAME}.${MslRecipientTable.PAYLOAD_ID}
+      LEFT JOIN ${MslContentTable.TABLE_NAME} ON ${MslPayloadTable.TABLE_NAME}.${MslPayloadTable.CONTENT_ID} = ${MslContentTable.TABLE_NAME}.${MslContentTable.ID}
+    """
     val query = "${MslPayloadTable.DATE_SENT} = ? AND ${MslRecipientTable.RECIPIENT_ID} = ? AND ${MslRecipientTable.DEVICE} = ?"
     val args = SqlUtil.buildArgs(dateSent, recipientId, device)
 
@@ -301,7 +387,7 @@ class MessageSendLogTables constructor(context: Context?, databaseHelper: Signal
           return MessageLogEntry(
             recipientId = RecipientId.from(CursorUtil.requireLong(entryCursor, MslRecipientTable.RECIPIENT_ID)),
             dateSent = CursorUtil.requireLong(entryCursor, MslPayloadTable.DATE_SENT),
-            content = Content.ADAPTER.decode(CursorUtil.requireBlob(entryCursor, MslPayloadTable.CONTENT)),
+            content = Content.ADAPTER.decode(CursorUtil.requireBlob(entryCursor, MslContentTable.CONTENT)),
             contentHint = ContentHint.fromType(CursorUtil.requireInt(entryCursor, MslPayloadTable.CONTENT_HINT)),
             urgent = entryCursor.requireBoolean(MslPayloadTable.URGENT),
             relatedMessages = messageIds
@@ -325,36 +411,26 @@ class MessageSendLogTables constructor(context: Context?, databaseHelper: Signal
     deleteEntriesForRecipient(listOf(dateSent), recipientId, device)
   }
 
+  /**
+   * Payloads that no longer have any recipients are deleted by [MslRecipientTable.CREATE_TRIGGERS].
+   */
   fun deleteEntriesForRecipient(dateSent: List<Long>, recipientId: RecipientId, device: Int) {
-    val db = databaseHelper.signalWritableDatabase
-    db.beginTransaction()
-    try {
-      val query = """
-        DELETE FROM ${MslRecipientTable.TABLE_NAME} WHERE
-        ${MslRecipientTable.RECIPIENT_ID} = ? AND
-        ${MslRecipientTable.DEVICE} = ? AND
-        ${MslRecipientTable.PAYLOAD_ID} IN (
-          SELECT ${MslPayloadTable.ID} 
-          FROM ${MslPayloadTable.TABLE_NAME} 
-          WHERE ${MslPayloadTable.DATE_SENT} IN (${dateSent.joinToString(",")}) 
-        )
-        RETURNING ${MslRecipientTable.PAYLOAD_ID}"""
-      val args = SqlUtil.buildArgs(recipientId, device)
-
-      val payloadIds = db.rawQuery(query, args).readToList {
-        it.requireLong(MslRecipientTable.PAYLOAD_ID)
-      }
-
-      val queries = SqlUtil.buildCollectionQuery(MslPayloadTable.ID, payloadIds)
-      queries.forEach {
-        db.delete(MslPayloadTable.TABLE_NAME, "${it.where} AND ${MslPayloadTable.ID} NOT IN (SELECT ${MslRecipientTable.PAYLOAD_ID} FROM ${MslRecipientTable.TABLE_NAME})", it.whereArgs)
-      }
-      db.setTransactionSuccessful()
-    } finally {
-      db.endTransaction()
-    }
+    val query = """
+      ${MslRecipientTable.RECIPIENT_ID} = ? AND
+      ${MslRecipientTable.DEVICE} = ? AND
+      ${MslRecipientTable.PAYLOAD_ID} IN (
+        SELECT ${MslPayloadTable.ID} 
+        FROM ${MslPayloadTable.TABLE_NAME} 
+        WHERE ${MslPayloadTable.DATE_SENT} IN (${dateSent.joinToString(",")}) 
+      )"""
+    val args = SqlUtil.buildArgs(recipientId, device)
+
+    databaseHelper.signalWritableDatabase.delete(MslRecipientTable.TABLE_NAME, query, args)
   }
 
+  /**
+   * Payloads that no longer have any recipients are deleted by [MslRecipientTable.CREATE_TRIGGERS].
+   */
   fun deleteAllForRecipient(recipientId: RecipientId) {
     if (!FeatureFlags.retryReceipts()) return
 
@@ -362,11 +438,6 @@ class MessageSendLogTables constructor(context: Context?, databaseHelper: Signal
       .delete(MslRecipientTable.TABLE_NAME)
       .where("${MslRecipientTable.RECIPIENT_ID} = ?", recipientId)
       .run()
-
-    writableDatabase
-      .delete(MslPayloadTable.TABLE_NAME)
-      .where("${MslPayloadTable.ID} NOT IN (SELECT ${MslRecipientTable.PAYLOAD_ID} FROM ${MslRecipientTable.TABLE_NAME})")
-      .run()
   }
 
   fun deleteAll() {
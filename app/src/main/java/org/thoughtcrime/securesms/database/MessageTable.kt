@@ -111,6 +111,7 @@ import org.thoughtcrime.securesms.database.model.databaseprotos.SessionSwitchove
 import org.thoughtcrime.securesms.database.model.databaseprotos.ThreadMergeEvent
 import org.thoughtcrime.securesms.dependencies.ApplicationDependencies
 import org.thoughtcrime.securesms.groups.GroupMigrationMembershipChange
+import org.thoughtcrime.securesms.jobs.IndexPendingMessageSearchJob
 import org.thoughtcrime.securesms.jobs.OptimizeMessageSearchIndexJob
 import org.thoughtcrime.securesms.jobs.ThreadUpdateJob
 import org.thoughtcrime.securesms.jobs.TrimThreadJob
@@ -270,6 +271,7 @@ open class MessageTable(context: Context?, databaseHelper: SignalDatabase) : Dat
     private const val INDEX_DATE_SENT_FROM_TO_THREAD = "message_date_sent_from_to_thread_index"
     private const val INDEX_THREAD_COUNT = "message_thread_count_index"
     private const val INDEX_THREAD_UNREAD_COUNT = "message_thread_unread_count_index"
+    private const val INDEX_EXPIRES_AT = "message_expires_at_index"
 
     @JvmField
     val CREATE_INDEXS = arrayOf(
@@ -292,7 +294,9 @@ open class MessageTable(context: Context?, databaseHelper: SignalDatabase) : Dat
       // This index is created specifically for getting the number of messages in a thread and therefore needs to be kept in sync with that query
       "CREATE INDEX IF NOT EXISTS $INDEX_THREAD_COUNT ON $TABLE_NAME ($THREAD_ID) WHERE $STORY_TYPE = 0 AND $PARENT_STORY_ID <= 0 AND $SCHEDULED_DATE = -1 AND $LATEST_REVISION_ID IS NULL",
       // This index is created specifically for getting the number of unread messages in a thread and therefore needs to be kept in sync with that query
-      "CREATE INDEX IF NOT EXISTS $INDEX_THREAD_UNREAD_COUNT ON $TABLE_NAME ($THREAD_ID) WHERE $STORY_TYPE = 0 AND $PARENT_STORY_ID <= 0 AND $SCHEDULED_DATE = -1 AND $LATEST_REVISION_ID IS NULL AND $READ = 0"
+      "CREATE INDEX IF NOT EXISTS $INDEX_THREAD_UNREAD_COUNT ON $TABLE_NAME ($THREAD_ID) WHERE $STORY_TYPE = 0 AND $PARENT_STORY_ID <= 0 AND $SCHEDULED_DATE = -1 AND $LATEST_REVISION_ID IS NULL AND $READ = 0",
+      // This index is created specifically for paging through expiring messages in expiration order and therefore needs to be kept in sync with that query
+      "CREATE INDEX IF NOT EXISTS $INDEX_EXPIRES_AT ON $TABLE_NAME (($EXPIRE_STARTED + $EXPIRES_IN), $ID) WHERE $EXPIRE_STARTED > 0"
     )
 
     private val MMS_PROJECTION_BASE = arrayOf(
@@ -584,9 +588,29 @@ open class MessageTable(context: Context?, databaseHelper: SignalDatabase) : Dat
       .readToSingleObject { RecipientId.from(it.requireLong(FROM_RECIPIENT_ID)) }
   }
 
-  fun getExpirationStartedMessages(): Cursor {
-    val where = "$EXPIRE_STARTED > 0"
-    return rawQueryWithAttachments(where, null)
+  /**
+   * Pages through messages whose expiration timer has started, in order of expiration time and then id.
+   *
+   * @param afterExpiresAt Together with [afterId], the position of the last message of the previous page.
+   */
+  fun getExpiringMessages(afterExpiresAt: Long, afterId: Long, limit: Int): List<ExpirationInfo> {
+    val expiresAt = "($EXPIRE_STARTED + $EXPIRES_IN)"
+
+    return readableDatabase
+      .select(ID, EXPIRE_STARTED, EXPIRES_IN)
+      .from(TABLE_NAME)
+      .where("$EXPIRE_STARTED > 0 AND $expiresAt >= ? AND NOT ($expiresAt = ? AND $ID <= ?)", afterExpiresAt, afterExpiresAt, afterId)
+      .orderBy("$expiresAt ASC, $ID ASC")
+      .limit(limit)
+      .run()
+      .readToList { cursor ->
+        ExpirationInfo(
+          id = cursor.requireLong(ID),
+          expiresIn = cursor.requireLong(EXPIRES_IN),
+          expireStarted = cursor.requireLong(EXPIRE_STARTED),
+          isMms = true
+        )
+      }
   }
 
   fun getMessageCursor(messageId: Long): Cursor {
@@ -2657,6 +2681,8 @@ open class MessageTable(context: Context?, databaseHelper: SignalDatabase) : Dat
       ApplicationDependencies.getDatabaseObserver().notifyStoryObservers(threads.getRecipientIdForThreadId(threadId)!!)
     }
 
+    IndexPendingMessageSearchJob.enqueue()
+
     return Optional.of(
       InsertResult(
         messageId = messageId,
@@ -3059,6 +3085,7 @@ open class MessageTable(context: Context?, databaseHelper: SignalDatabase) : Dat
     }
 
     TrimThreadJob.enqueueAsync(threadId)
+    IndexPendingMessageSearchJob.enqueue()
 
     return messageId
   }
@@ -3206,8 +3233,56 @@ open class MessageTable(context: Context?, databaseHelper: SignalDatabase) : Dat
     return rowsDeleted
   }
 
-  fun deleteExpiringMessage(messageId: Long): Boolean =
-    deleteMessage(messageId, isExpiring = true)
+  /**
+   * Deletes a batch of expired messages in a single transaction, updating each affected thread and notifying observers only once.
+   * Messages that have since been deleted, or whose expiration was cleared, are skipped.
+   */
+  fun deleteExpiringMessages(messageIds: Collection<Long>) {
+    Log.d(TAG, "deleteExpiringMessages(${messageIds.size})")
+
+    val threadIds: Set<Long> = writableDatabase.withinTransaction { db ->
+      val messages: List<Pair<Long, Long>> = SqlUtil.buildCollectionQuery(ID, messageIds, prefix = "$EXPIRE_STARTED > 0 AND ").flatMap { query ->
+        db.select(ID, THREAD_ID)
+          .from(TABLE_NAME)
+          .where(query.where, query.whereArgs)
+          .run()
+          .readToList { cursor -> cursor.requireLong(ID) to cursor.requireLong(THREAD_ID) }
+      }
+
+      if (messages.isEmpty()) {
+        return@withinTransaction emptySet()
+      }
+
+      for ((messageId, _) in messages) {
+        attachments.deleteAttachmentsForMessage(messageId)
+        groupReceipts.deleteRowsForMessage(messageId)
+        mentions.deleteMentionsForMessage(messageId)
+      }
+
+      SqlUtil.buildCollectionQuery(ID, messages.map { it.first }).forEach { query ->
+        db.delete(TABLE_NAME)
+          .where(query.where, query.whereArgs)
+          .run()
+      }
+
+      calls.updateCallEventDeletionTimestamps()
+
+      val threadIds = messages.map { it.second }.toSet()
+      for (threadId in threadIds) {
+        threads.setLastScrolled(threadId, 0)
+        threads.update(threadId, false)
+      }
+
+      threadIds
+    }
+
+    if (threadIds.isNotEmpty()) {
+      notifyConversationListeners(threadIds)
+      notifyStickerListeners()
+      notifyStickerPackListeners()
+      OptimizeMessageSearchIndexJob.enqueue()
+    }
+  }
 
   fun deleteMessage(messageId: Long): Boolean =
     deleteMessage(messageId, isExpiring = false)
@@ -4676,6 +4751,24 @@ open class MessageTable(context: Context?, databaseHelper: SignalDatabase) : Dat
     return getNextAutoIncrementId(writableDatabase, TABLE_NAME)
   }
 
+  /**
+   * @return The lowest and highest message ids in the thread, or null if the thread has no messages.
+   */
+  fun getMessageIdRange(threadId: Long): LongRange? {
+    return readableDatabase
+      .select("MIN($ID)", "MAX($ID)")
+      .from(TABLE_NAME)
+      .where("$THREAD_ID = ?", threadId)
+      .run()
+      .use { cursor ->
+        if (cursor.moveToFirst() && !cursor.isNull(0)) {
+          cursor.getLong(0)..cursor.getLong(1)
+        } else {
+          null
+        }
+      }
+  }
+
   fun updateReactionsUnread(db: SQLiteDatabase, messageId: Long, hasReactions: Boolean, isRemoval: Boolean) {
     try {
       val isOutgoing = getMessageRecord(messageId).isOutgoing
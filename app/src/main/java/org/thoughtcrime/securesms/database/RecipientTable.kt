@@ -435,6 +435,34 @@ open class RecipientTable(context: Context, databaseHelper: SignalDatabase) : Da
     return getByColumn(PNI_COLUMN, pni.toString())
   }
 
+  /**
+   * Looks up the recipients for many service ids at once, in as few queries as possible. Service ids without a recipient are absent
+   * from the result; nothing is inserted.
+   */
+  fun getByServiceIds(serviceIds: Collection<ServiceId>): Map<ServiceId, RecipientId> {
+    val results: MutableMap<ServiceId, RecipientId> = HashMap(serviceIds.size)
+
+    getByServiceIdColumn(ACI_COLUMN, serviceIds.filterIsInstance<ACI>(), results)
+    getByServiceIdColumn(PNI_COLUMN, serviceIds.filterIsInstance<PNI>(), results)
+
+    return results
+  }
+
+  private fun getByServiceIdColumn(column: String, serviceIds: List<ServiceId>, results: MutableMap<ServiceId, RecipientId>) {
+    val serviceIdsByString: Map<String, ServiceId> = serviceIds.associateBy { it.toString() }
+
+    for (query in SqlUtil.buildCollectionQuery(column, serviceIdsByString.keys)) {
+      readableDatabase.query(TABLE_NAME, arrayOf(ID, column), query.where, query.whereArgs, null, null, null).use { cursor ->
+        while (cursor.moveToNext()) {
+          val serviceId: ServiceId? = serviceIdsByString[cursor.requireString(column)]
+          if (serviceId != null) {
+            results[serviceId] = RecipientId.from(cursor.requireLong(ID))
+          }
+        }
+      }
+    }
+  }
+
   fun getByUsername(username: String): Optional<RecipientId> {
     return getByColumn(USERNAME, username)
   }
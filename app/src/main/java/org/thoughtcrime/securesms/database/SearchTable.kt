@@ -8,7 +8,12 @@ import net.zetetic.database.sqlcipher.SQLiteDatabase
 import org.intellij.lang.annotations.Language
 import org.signal.core.util.SqlUtil
 import org.signal.core.util.ThreadUtil
+import org.signal.core.util.count
+import org.signal.core.util.delete
 import org.signal.core.util.logging.Log
+import org.signal.core.util.readToSingleInt
+import org.signal.core.util.readToSingleLong
+import org.signal.core.util.select
 import org.signal.core.util.withinTransaction
 import org.thoughtcrime.securesms.jobs.RebuildMessageSearchIndexJob
 
@@ -31,35 +36,67 @@ class SearchTable(context: Context, databaseHelper: SignalDatabase) : DatabaseTa
     const val MESSAGE_ID = "message_id"
     const val SNIPPET_WRAP = "..."
 
+    /**
+     * Messages that have been inserted or edited but not yet added to [FTS_TABLE_NAME]. See [indexPending].
+     */
+    const val PENDING_TABLE_NAME = "message_search_pending"
+    const val PENDING_MESSAGE_ID = "message_id"
+
     @Language("sql")
     val CREATE_TABLE = arrayOf(
-      "CREATE VIRTUAL TABLE $FTS_TABLE_NAME USING fts5($BODY, $THREAD_ID UNINDEXED, content=${MessageTable.TABLE_NAME}, content_rowid=${MessageTable.ID})"
+      "CREATE VIRTUAL TABLE $FTS_TABLE_NAME USING fts5($BODY, $THREAD_ID UNINDEXED, content=${MessageTable.TABLE_NAME}, content_rowid=${MessageTable.ID})",
+      "CREATE TABLE $PENDING_TABLE_NAME ($PENDING_MESSAGE_ID INTEGER PRIMARY KEY)"
     )
 
     private const val TRIGGER_AFTER_INSERT = "message_ai"
     private const val TRIGGER_AFTER_DELETE = "message_ad"
     private const val TRIGGER_AFTER_UPDATE = "message_au"
 
+    /**
+     * Tokenizing a message body is the expensive part of indexing, so it is kept out of the transactions that write messages. Inserts and edits only
+     * queue the message in [PENDING_TABLE_NAME], which is drained in batches by [indexPending].
+     *
+     * Removing a message from an external-content FTS table requires the exact values that were indexed, so deletes and edits of already-indexed
+     * messages still have to remove the old entry synchronously. Messages that are still pending were never indexed, and only need to be dequeued.
+     */
     @Language("sql")
     val CREATE_TRIGGERS = arrayOf(
       """
         CREATE TRIGGER $TRIGGER_AFTER_INSERT AFTER INSERT ON ${MessageTable.TABLE_NAME} BEGIN
-          INSERT INTO $FTS_TABLE_NAME($ID, $BODY, $THREAD_ID) VALUES (new.${MessageTable.ID}, new.${MessageTable.BODY}, new.${MessageTable.THREAD_ID});
+          INSERT OR IGNORE INTO $PENDING_TABLE_NAME ($PENDING_MESSAGE_ID) VALUES (new.${MessageTable.ID});
         END;
       """,
       """
         CREATE TRIGGER $TRIGGER_AFTER_DELETE AFTER DELETE ON ${MessageTable.TABLE_NAME} BEGIN
-          INSERT INTO $FTS_TABLE_NAME($FTS_TABLE_NAME, $ID, $BODY, $THREAD_ID) VALUES('delete', old.${MessageTable.ID}, old.${MessageTable.BODY}, old.${MessageTable.THREAD_ID});
+          INSERT INTO $FTS_TABLE_NAME($FTS_TABLE_NAME, $ID, $BODY, $THREAD_ID) SELECT 'delete', old.${MessageTable.ID}, old.${MessageTable.BODY}, old.${MessageTable.THREAD_ID} WHERE NOT EXISTS (SELECT 1 FROM $PENDING_TABLE_NAME WHERE $PENDING_MESSAGE_ID = old.${MessageTable.ID});
+          DELETE FROM $PENDING_TABLE_NAME WHERE $PENDING_MESSAGE_ID = old.${MessageTable.ID};
         END;
       """,
       """
-        CREATE TRIGGER $TRIGGER_AFTER_UPDATE AFTER UPDATE ON ${MessageTable.TABLE_NAME} BEGIN
-          INSERT INTO $FTS_TABLE_NAME($FTS_TABLE_NAME, $ID, $BODY, $THREAD_ID) VALUES('delete', old.${MessageTable.ID}, old.${MessageTable.BODY}, old.${MessageTable.THREAD_ID});
-          INSERT INTO $FTS_TABLE_NAME($ID, $BODY, $THREAD_ID) VALUES (new.${MessageTable.ID}, new.${MessageTable.BODY}, new.${MessageTable.THREAD_ID});
+        CREATE TRIGGER $TRIGGER_AFTER_UPDATE AFTER UPDATE OF ${MessageTable.BODY}, ${MessageTable.THREAD_ID} ON ${MessageTable.TABLE_NAME} BEGIN
+          INSERT INTO $FTS_TABLE_NAME($FTS_TABLE_NAME, $ID, $BODY, $THREAD_ID) SELECT 'delete', old.${MessageTable.ID}, old.${MessageTable.BODY}, old.${MessageTable.THREAD_ID} WHERE NOT EXISTS (SELECT 1 FROM $PENDING_TABLE_NAME WHERE $PENDING_MESSAGE_ID = old.${MessageTable.ID});
+          INSERT OR IGNORE INTO $PENDING_TABLE_NAME ($PENDING_MESSAGE_ID) VALUES (new.${MessageTable.ID});
         END;
       """
     )
 
+    private const val FTS_ID_RANGE = "$FTS_TABLE_NAME.$ID >= ? AND $FTS_TABLE_NAME.$ID < ?"
+
+    private const val ORDER_AND_LIMIT = "ORDER BY ${MessageTable.DATE_RECEIVED} DESC LIMIT 500"
+
+    private const val PENDING_SNIPPET_LEAD = 20
+    private const val PENDING_SNIPPET_LENGTH = 60
+
+    /** Where the pending snippet starts, given the lowercased first token as an argument. */
+    private const val PENDING_SNIPPET_START = "max(1, instr(lower(${MessageTable.TABLE_NAME}.${MessageTable.BODY}), ?) - $PENDING_SNIPPET_LEAD)"
+
+    @Language("sql")
+    private const val PENDING_SNIPPET = """
+      (CASE WHEN $PENDING_SNIPPET_START > 1 THEN '$SNIPPET_WRAP' ELSE '' END) || 
+      substr(${MessageTable.TABLE_NAME}.${MessageTable.BODY}, $PENDING_SNIPPET_START, $PENDING_SNIPPET_LENGTH) || 
+      (CASE WHEN length(${MessageTable.TABLE_NAME}.${MessageTable.BODY}) >= $PENDING_SNIPPET_START + $PENDING_SNIPPET_LENGTH THEN '$SNIPPET_WRAP' ELSE '' END)
+    """
+
     @Language("sql")
     private const val MESSAGES_QUERY = """
       SELECT 
@@ -81,8 +118,6 @@ class SearchTable(context: Context, databaseHelper: SignalDatabase) : DatabaseTa
         ${MessageTable.TABLE_NAME}.${MessageTable.TYPE} & ${MessageTypes.SPECIAL_TYPE_PAYMENTS_NOTIFICATION} = 0 AND
         ${MessageTable.TABLE_NAME}.${MessageTable.SCHEDULED_DATE} < 0 AND
         ${MessageTable.TABLE_NAME}.${MessageTable.LATEST_REVISION_ID} IS NULL
-      ORDER BY ${MessageTable.DATE_RECEIVED} DESC 
-      LIMIT 500
     """
 
     @Language("sql")
@@ -107,26 +142,126 @@ class SearchTable(context: Context, databaseHelper: SignalDatabase) : DatabaseTa
         ${MessageTable.TABLE_NAME}.${MessageTable.TYPE} & ${MessageTypes.SPECIAL_TYPE_PAYMENTS_NOTIFICATION} = 0 AND
         ${MessageTable.TABLE_NAME}.${MessageTable.SCHEDULED_DATE} < 0 AND
         ${MessageTable.TABLE_NAME}.${MessageTable.LATEST_REVISION_ID} IS NULL
-      ORDER BY ${MessageTable.DATE_RECEIVED} DESC 
-      LIMIT 500
+    """
+
+    /**
+     * Matches messages that have not been indexed yet by requiring every search token as a substring of the body, so that new messages can be found
+     * before [indexPending] gets to them. This only approximates the FTS prefix match: a token also matches in the middle of a word, and LIKE only
+     * folds case for ASCII, so a token that differs from the body only in the case of a non-ASCII letter won't match. Both differences go away
+     * once the message is indexed, which the pending tail being small keeps quick.
+     *
+     * The snippet imitates the one FTS produces: a window of the body around the first token, with [SNIPPET_WRAP] marking where it was cut.
+     */
+    @Language("sql")
+    private const val PENDING_MESSAGES_QUERY = """
+      SELECT 
+        ${ThreadTable.TABLE_NAME}.${ThreadTable.RECIPIENT_ID} AS $CONVERSATION_RECIPIENT, 
+        ${MessageTable.TABLE_NAME}.${MessageTable.FROM_RECIPIENT_ID} AS $MESSAGE_RECIPIENT, 
+        $PENDING_SNIPPET AS $SNIPPET, 
+        ${MessageTable.TABLE_NAME}.${MessageTable.DATE_RECEIVED}, 
+        ${MessageTable.TABLE_NAME}.${MessageTable.THREAD_ID}, 
+        ${MessageTable.TABLE_NAME}.${MessageTable.BODY}, 
+        ${MessageTable.TABLE_NAME}.${MessageTable.ID} AS $MESSAGE_ID, 
+        1 AS $IS_MMS 
+      FROM 
+        $PENDING_TABLE_NAME 
+          INNER JOIN ${MessageTable.TABLE_NAME} ON ${MessageTable.TABLE_NAME}.${MessageTable.ID} = $PENDING_TABLE_NAME.$PENDING_MESSAGE_ID 
+          INNER JOIN ${ThreadTable.TABLE_NAME} ON ${MessageTable.TABLE_NAME}.${MessageTable.THREAD_ID} = ${ThreadTable.TABLE_NAME}.${ThreadTable.ID} 
+      WHERE 
+        %s AND 
+        ${MessageTable.TABLE_NAME}.${MessageTable.TYPE} & ${MessageTypes.GROUP_V2_BIT} = 0 AND 
+        ${MessageTable.TABLE_NAME}.${MessageTable.TYPE} & ${MessageTypes.SPECIAL_TYPE_PAYMENTS_NOTIFICATION} = 0 AND
+        ${MessageTable.TABLE_NAME}.${MessageTable.SCHEDULED_DATE} < 0 AND
+        ${MessageTable.TABLE_NAME}.${MessageTable.LATEST_REVISION_ID} IS NULL
     """
   }
 
   fun queryMessages(query: String): Cursor? {
+    return queryMessagesInRange(query, 0, Long.MAX_VALUE)
+  }
+
+  fun queryMessages(query: String, threadId: Long): Cursor? {
+    return queryMessagesInRange(query, threadId, 0, Long.MAX_VALUE)
+  }
+
+  /**
+   * Like [queryMessages], but only considers messages with an id in [[minId], [maxId]). FTS5 applies the bound on the rowid
+   * while walking the index, so searching a range costs roughly in proportion to the size of the range rather than the whole table.
+   */
+  fun queryMessagesInRange(query: String, minId: Long, maxId: Long): Cursor? {
     val fullTextSearchQuery = createFullTextSearchQuery(query)
     return if (fullTextSearchQuery.isEmpty()) {
       null
     } else {
-      readableDatabase.rawQuery(MESSAGES_QUERY, SqlUtil.buildArgs(fullTextSearchQuery))
+      val pendingQuery = createPendingMessagesQuery(query, pendingIdRange(minId, maxId))
+      readableDatabase.rawQuery(
+        "$MESSAGES_QUERY AND $FTS_ID_RANGE UNION ALL ${pendingQuery.where} $ORDER_AND_LIMIT",
+        SqlUtil.buildArgs(fullTextSearchQuery, minId, maxId) + pendingQuery.whereArgs
+      )
     }
   }
 
-  fun queryMessages(query: String, threadId: Long): Cursor? {
+  /**
+   * Like [queryMessages], but only considers messages with an id in [[minId], [maxId]).
+   */
+  fun queryMessagesInRange(query: String, threadId: Long, minId: Long, maxId: Long): Cursor? {
     val fullTextSearchQuery = createFullTextSearchQuery(query)
     return if (TextUtils.isEmpty(fullTextSearchQuery)) {
       null
     } else {
-      readableDatabase.rawQuery(MESSAGES_FOR_THREAD_QUERY, SqlUtil.buildArgs(fullTextSearchQuery, threadId))
+      val pendingQuery = createPendingMessagesQuery(query, SqlUtil.buildQuery("${MessageTable.TABLE_NAME}.${MessageTable.THREAD_ID} = ?", threadId) and pendingIdRange(minId, maxId))
+      readableDatabase.rawQuery(
+        "$MESSAGES_FOR_THREAD_QUERY AND $FTS_ID_RANGE UNION ALL ${pendingQuery.where} $ORDER_AND_LIMIT",
+        SqlUtil.buildArgs(fullTextSearchQuery, threadId, minId, maxId) + pendingQuery.whereArgs
+      )
+    }
+  }
+
+  /**
+   * @return The number of messages that are waiting to be added to the index.
+   */
+  fun getPendingCount(): Int {
+    return readableDatabase
+      .count()
+      .from(PENDING_TABLE_NAME)
+      .run()
+      .readToSingleInt()
+  }
+
+  /**
+   * Adds up to [batchSize] of the oldest pending messages to the index, in a single transaction.
+   *
+   * @return The number of messages that were indexed. Zero means that nothing is pending anymore.
+   */
+  fun indexPending(batchSize: Int = 500): Int {
+    return writableDatabase.withinTransaction { db ->
+      val maxId: Long = db
+        .select("MAX($PENDING_MESSAGE_ID)")
+        .from("(SELECT $PENDING_MESSAGE_ID FROM $PENDING_TABLE_NAME ORDER BY $PENDING_MESSAGE_ID ASC LIMIT $batchSize)")
+        .run()
+        .readToSingleLong()
+
+      if (maxId <= 0) {
+        return@withinTransaction 0
+      }
+
+      db.execSQL(
+        """
+        INSERT INTO $FTS_TABLE_NAME ($ID, $BODY, $THREAD_ID) 
+          SELECT 
+            ${MessageTable.ID}, 
+            ${MessageTable.BODY}, 
+            ${MessageTable.THREAD_ID} 
+          FROM 
+            ${MessageTable.TABLE_NAME} 
+          WHERE 
+            ${MessageTable.ID} IN (SELECT $PENDING_MESSAGE_ID FROM $PENDING_TABLE_NAME WHERE $PENDING_MESSAGE_ID <= $maxId)
+        """
+      )
+
+      db.delete(PENDING_TABLE_NAME)
+        .where("$PENDING_MESSAGE_ID <= ?", maxId)
+        .run()
     }
   }
 
@@ -146,19 +281,25 @@ class SearchTable(context: Context, databaseHelper: SignalDatabase) : DatabaseTa
 
     for (i in 1..maxId step batchSize) {
       Log.i(TAG, "Reindexing ID's [$i, ${i + batchSize})")
-      writableDatabase.execSQL(
-        """
-        INSERT INTO $FTS_TABLE_NAME ($ID, $BODY) 
-            SELECT 
-              ${MessageTable.ID}, 
-              ${MessageTable.BODY}
-            FROM 
-              ${MessageTable.TABLE_NAME} 
-            WHERE 
-              ${MessageTable.ID} >= $i AND
-              ${MessageTable.ID} < ${i + batchSize}
-        """
-      )
+      writableDatabase.withinTransaction { db ->
+        db.execSQL(
+          """
+          INSERT INTO $FTS_TABLE_NAME ($ID, $BODY) 
+              SELECT 
+                ${MessageTable.ID}, 
+                ${MessageTable.BODY}
+              FROM 
+                ${MessageTable.TABLE_NAME} 
+              WHERE 
+                ${MessageTable.ID} >= $i AND
+                ${MessageTable.ID} < ${i + batchSize}
+          """
+        )
+
+        db.delete(PENDING_TABLE_NAME)
+          .where("$PENDING_MESSAGE_ID >= ? AND $PENDING_MESSAGE_ID < ?", i, i + batchSize)
+          .run()
+      }
     }
   }
 
@@ -240,6 +381,7 @@ class SearchTable(context: Context, databaseHelper: SignalDatabase) : DatabaseTa
     db.execSQL("DROP TABLE IF EXISTS ${FTS_TABLE_NAME}_content")
     db.execSQL("DROP TABLE IF EXISTS ${FTS_TABLE_NAME}_data")
     db.execSQL("DROP TABLE IF EXISTS ${FTS_TABLE_NAME}_idx")
+    db.execSQL("DROP TABLE IF EXISTS $PENDING_TABLE_NAME")
     db.execSQL("DROP TRIGGER IF EXISTS $TRIGGER_AFTER_INSERT")
     db.execSQL("DROP TRIGGER IF EXISTS $TRIGGER_AFTER_DELETE")
     db.execSQL("DROP TRIGGER IF EXISTS $TRIGGER_AFTER_UPDATE")
@@ -273,6 +415,53 @@ class SearchTable(context: Context, databaseHelper: SignalDatabase) : DatabaseTa
       )
   }
 
+  private fun pendingIdRange(minId: Long, maxId: Long): SqlUtil.Query {
+    return SqlUtil.buildQuery("${MessageTable.TABLE_NAME}.${MessageTable.ID} >= ? AND ${MessageTable.TABLE_NAME}.${MessageTable.ID} < ?", minId, maxId)
+  }
+
+  /**
+   * Builds [PENDING_MESSAGES_QUERY] for [query], limited to messages matching [filter]. The returned query is the complete statement rather than
+   * just a where clause, since the snippet takes arguments too.
+   */
+  private fun createPendingMessagesQuery(query: String, filter: SqlUtil.Query): SqlUtil.Query {
+    val match = createPendingSearchQuery(query) and filter
+    val firstToken = asciiLowercase(query.split(" ").map { it.trim() }.first { it.isNotEmpty() })
+
+    return SqlUtil.Query(
+      where = PENDING_MESSAGES_QUERY.format(match.where),
+      whereArgs = arrayOf(firstToken, firstToken, firstToken) + match.whereArgs
+    )
+  }
+
+  /**
+   * The equivalent of [createFullTextSearchQuery] for messages that have not been indexed yet: every token must appear somewhere in the body.
+   */
+  private fun createPendingSearchQuery(query: String): SqlUtil.Query {
+    val tokens = query
+      .split(" ")
+      .map { it.trim() }
+      .filter { it.isNotEmpty() }
+
+    return SqlUtil.Query(
+      where = tokens.joinToString(separator = " AND ") { "${MessageTable.TABLE_NAME}.${MessageTable.BODY} LIKE ? ESCAPE '\\'" },
+      whereArgs = tokens.map { "%${likeEscape(it)}%" }.toTypedArray()
+    )
+  }
+
+  /**
+   * Lowercases only ASCII letters, which is all SQLite's lower() does, so that the result can be found in a lowered body.
+   */
+  private fun asciiLowercase(s: String): String {
+    return String(CharArray(s.length) { i -> if (s[i] in 'A'..'Z') s[i] + ('a' - 'A') else s[i] })
+  }
+
+  private fun likeEscape(s: String): String {
+    return s
+      .replace("\\", "\\\\")
+      .replace("%", "\\%")
+      .replace("_", "\\_")
+  }
+
   /**
    * If you wrap a string in quotes, sqlite considers it a string literal when making a MATCH query.
    * In order to distinguish normal quotes, you turn all " into "".
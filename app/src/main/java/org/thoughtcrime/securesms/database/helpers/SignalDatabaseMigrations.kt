@@ -89,6 +89,10 @@ import org.thoughtcrime.securesms.database.helpers.migration.V228_AddNameCollisi
 import org.thoughtcrime.securesms.database.helpers.migration.V229_MarkMissedCallEventsNotified
 import org.thoughtcrime.securesms.database.helpers.migration.V230_UnreadCountIndices
 import org.thoughtcrime.securesms.database.helpers.migration.V231_ArchiveThumbnailColumns
+import org.thoughtcrime.securesms.database.helpers.migration.V232_DeferredMessageSearchIndex
+import org.thoughtcrime.securesms.database.helpers.migration.V233_ExpiringMessageIndex
+import org.thoughtcrime.securesms.database.helpers.migration.V234_MessageSendLogContentDedupe
+import org.thoughtcrime.securesms.database.helpers.migration.V235_CallLogGroups
 
 /**
  * Contains all of the database migrations for [SignalDatabase]. Broken into a separate file for cleanliness.
@@ -181,10 +185,14 @@ object SignalDatabaseMigrations {
     228 to V228_AddNameCollisionTables,
     229 to V229_MarkMissedCallEventsNotified,
     230 to V230_UnreadCountIndices,
-    231 to V231_ArchiveThumbnailColumns
+    231 to V231_ArchiveThumbnailColumns,
+    232 to V232_DeferredMessageSearchIndex,
+    233 to V233_ExpiringMessageIndex,
+    234 to V234_MessageSendLogContentDedupe,
+    235 to V235_CallLogGroups
   )
 
-  const val DATABASE_VERSION = 231
+  const val DATABASE_VERSION = 235
 
   @JvmStatic
   fun migrate(context: Application, db: SQLiteDatabase, oldVersion: Int, newVersion: Int) {
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2024 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.thoughtcrime.securesms.database.helpers.migration
+
+import android.app.Application
+import net.zetetic.database.sqlcipher.SQLiteDatabase
+
+/**
+ * Moves message search indexing out of the message write path. The triggers now only queue messages in a pending table, which is indexed in the
+ * background. Everything is already indexed at this point, so the pending table starts out empty.
+ */
+@Suppress("ClassName")
+object V232_DeferredMessageSearchIndex : SignalDatabaseMigration {
+  override fun migrate(context: Application, db: SQLiteDatabase, oldVersion: Int, newVersion: Int) {
+    db.execSQL("CREATE TABLE message_search_pending (message_id INTEGER PRIMARY KEY)")
+
+    db.execSQL("DROP TRIGGER IF EXISTS message_ai")
+    db.execSQL("DROP TRIGGER IF EXISTS message_ad")
+    db.execSQL("DROP TRIGGER IF EXISTS message_au")
+
+    db.execSQL(
+      """
+      CREATE TRIGGER message_ai AFTER INSERT ON message BEGIN
+        INSERT OR IGNORE INTO message_search_pending (message_id) VALUES (new._id);
+      END;
+      """
+    )
+
+    db.execSQL(
+      """
+      CREATE TRIGGER message_ad AFTER DELETE ON message BEGIN
+        INSERT INTO message_fts(message_fts, rowid, body, thread_id) SELECT 'delete', old._id, old.body, old.thread_id WHERE NOT EXISTS (SELECT 1 FROM message_search_pending WHERE message_id = old._id);
+        DELETE FROM message_search_pending WHERE message_id = old._id;
+      END;
+      """
+    )
+
+    db.execSQL(
+      """
+      CREATE TRIGGER message_au AFTER UPDATE OF body, thread_id ON message BEGIN
+        INSERT INTO message_fts(message_fts, rowid, body, thread_id) SELECT 'delete', old._id, old.body, old.thread_id WHERE NOT EXISTS (SELECT 1 FROM message_search_pending WHERE message_id = old._id);
+        INSERT OR IGNORE INTO message_search_pending (message_id) VALUES (new._id);
+      END;
+      """
+    )
+  }
+}
@@ -0,0 +1,19 @@
+/*
+ * Copyright 2024 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.thoughtcrime.securesms.database.helpers.migration
+
+import android.app.Application
+import net.zetetic.database.sqlcipher.SQLiteDatabase
+
+/**
+ * Adds an index on expiration time, so that expiring messages can be paged through in the order they expire.
+ */
+@Suppress("ClassName")
+object V233_ExpiringMessageIndex : SignalDatabaseMigration {
+  override fun migrate(context: Application, db: SQLiteDatabase, oldVersion: Int, newVersion: Int) {
+    db.execSQL("CREATE INDEX IF NOT EXISTS message_expires_at_index ON message ((expire_started + expires_in), _id) WHERE expire_started > 0")
+  }
+}
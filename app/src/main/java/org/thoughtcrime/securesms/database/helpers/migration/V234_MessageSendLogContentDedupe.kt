@@ -0,0 +1,136 @@
+/*
+ * Copyright 2024 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.thoughtcrime.securesms.database.helpers.migration
+
+import android.app.Application
+import net.zetetic.database.sqlcipher.SQLiteDatabase
+import org.signal.core.util.CryptoUtil
+import org.signal.core.util.Stopwatch
+import org.signal.core.util.logging.Log
+import org.signal.core.util.readToSingleLong
+import org.signal.core.util.requireLong
+import org.signal.core.util.requireNonNullBlob
+
+/**
+ * Moves MSL content into its own table, shared between every payload with the same content and reference counted by triggers. Payloads that lose
+ * their last recipient are now deleted by a trigger, rather than by scanning every recipient.
+ */
+@Suppress("ClassName")
+object V234_MessageSendLogContentDedupe : SignalDatabaseMigration {
+
+  private val TAG = Log.tag(V234_MessageSendLogContentDedupe::class.java)
+
+  override fun migrate(context: Application, db: SQLiteDatabase, oldVersion: Int, newVersion: Int) {
+    val stopwatch = Stopwatch("migration")
+
+    // These reference msl_payload, which would otherwise break the rename
+    db.execSQL("DROP TRIGGER IF EXISTS msl_message_delete")
+    db.execSQL("DROP TRIGGER IF EXISTS msl_attachment_delete")
+    db.execSQL("DROP INDEX IF EXISTS msl_payload_date_sent_index")
+
+    db.execSQL(
+      """
+        CREATE TABLE msl_content (
+          _id INTEGER PRIMARY KEY,
+          hash BLOB NOT NULL UNIQUE,
+          content BLOB NOT NULL,
+          ref_count INTEGER NOT NULL DEFAULT 0
+        )
+      """
+    )
+
+    db.execSQL(
+      """
+        CREATE TABLE msl_payload_tmp (
+          _id INTEGER PRIMARY KEY,
+          date_sent INTEGER NOT NULL,
+          content_id INTEGER NOT NULL REFERENCES msl_content (_id),
+          content_hint INTEGER NOT NULL,
+          urgent INTEGER NOT NULL DEFAULT 1
+        )
+      """
+    )
+    stopwatch.split("create")
+
+    db.rawQuery("SELECT _id, content FROM msl_payload", null).use { cursor ->
+      while (cursor.moveToNext()) {
+        val payloadId = cursor.requireLong("_id")
+        val content = cursor.requireNonNullBlob("content")
+
+        val contentId = db.rawQuery(
+          "INSERT INTO msl_content (hash, content) VALUES (?, ?) ON CONFLICT (hash) DO UPDATE SET hash = excluded.hash RETURNING _id",
+          arrayOf<Any>(CryptoUtil.sha256(content), content)
+        ).readToSingleLong(-1)
+
+        db.execSQL(
+          "INSERT INTO msl_payload_tmp SELECT _id, date_sent, ?, content_hint, urgent FROM msl_payload WHERE _id = ?",
+          arrayOf<Any>(contentId, payloadId)
+        )
+      }
+    }
+    stopwatch.split("copy-data")
+
+    db.execSQL("DROP TABLE msl_payload")
+    db.execSQL("ALTER TABLE msl_payload_tmp RENAME TO msl_payload")
+
+    db.execSQL("CREATE INDEX msl_payload_date_sent_index ON msl_payload (date_sent)")
+    db.execSQL("CREATE INDEX msl_payload_content_index ON msl_payload (content_id)")
+    stopwatch.split("index")
+
+    db.execSQL("UPDATE msl_content SET ref_count = (SELECT COUNT(*) FROM msl_payload WHERE msl_payload.content_id = msl_content._id)")
+    stopwatch.split("ref-count")
+
+    db.execSQL(
+      """
+        CREATE TRIGGER msl_message_delete AFTER DELETE ON message 
+        BEGIN 
+          DELETE FROM msl_payload WHERE _id IN (SELECT payload_id FROM msl_message WHERE message_id = old._id);
+        END
+      """
+    )
+
+    db.execSQL(
+      """
+        CREATE TRIGGER msl_attachment_delete AFTER DELETE ON attachment
+        BEGIN
+          DELETE FROM msl_payload WHERE _id IN (SELECT payload_id FROM msl_message WHERE msl_message.message_id = old.message_id);
+        END
+      """
+    )
+
+    db.execSQL(
+      """
+        CREATE TRIGGER msl_payload_insert AFTER INSERT ON msl_payload
+        BEGIN
+          UPDATE msl_content SET ref_count = ref_count + 1 WHERE _id = new.content_id;
+        END
+      """
+    )
+
+    db.execSQL(
+      """
+        CREATE TRIGGER msl_payload_delete AFTER DELETE ON msl_payload
+        BEGIN
+          UPDATE msl_content SET ref_count = ref_count - 1 WHERE _id = old.content_id;
+          DELETE FROM msl_content WHERE _id = old.content_id AND ref_count <= 0;
+        END
+      """
+    )
+
+    db.execSQL(
+      """
+        CREATE TRIGGER msl_recipient_delete AFTER DELETE ON msl_recipient
+        BEGIN
+          DELETE FROM msl_payload
+          WHERE _id = old.payload_id AND NOT EXISTS (SELECT 1 FROM msl_recipient WHERE payload_id = old.payload_id);
+        END
+      """
+    )
+    stopwatch.split("triggers")
+
+    stopwatch.stop(TAG)
+  }
+}
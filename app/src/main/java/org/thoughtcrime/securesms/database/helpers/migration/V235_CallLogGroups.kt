@@ -0,0 +1,84 @@
+/*
+ * Copyright 2024 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.thoughtcrime.securesms.database.helpers.migration
+
+import android.app.Application
+import net.zetetic.database.sqlcipher.SQLiteDatabase
+
+/**
+ * Adds a table that stores the call log aggregation, along with the triggers that record which parts of it need to be recomputed. Every
+ * existing call is marked as changed, so the whole call log is built the first time it's read.
+ */
+@Suppress("ClassName")
+object V235_CallLogGroups : SignalDatabaseMigration {
+  override fun migrate(context: Application, db: SQLiteDatabase, oldVersion: Int, newVersion: Int) {
+    db.execSQL(
+      """
+        CREATE TABLE call_log_group (
+          _id INTEGER PRIMARY KEY,
+          filter INTEGER NOT NULL,
+          call_row_id INTEGER NOT NULL REFERENCES call (_id) ON DELETE CASCADE,
+          timestamp INTEGER NOT NULL,
+          parent_id INTEGER NOT NULL,
+          children TEXT NOT NULL,
+          displayed INTEGER NOT NULL DEFAULT 0
+        )
+      """
+    )
+
+    db.execSQL(
+      """
+        CREATE TABLE call_log_group_dirty (
+          _id INTEGER PRIMARY KEY,
+          timestamp INTEGER NOT NULL
+        )
+      """
+    )
+
+    db.execSQL("CREATE INDEX IF NOT EXISTS call_timestamp_index ON call (timestamp)")
+    db.execSQL("CREATE INDEX IF NOT EXISTS call_log_group_displayed_index ON call_log_group (filter, displayed, timestamp, call_row_id)")
+    db.execSQL("CREATE INDEX IF NOT EXISTS call_log_group_timestamp_index ON call_log_group (filter, timestamp, call_row_id)")
+    db.execSQL("CREATE INDEX IF NOT EXISTS call_log_group_call_row_id_index ON call_log_group (call_row_id)")
+
+    db.execSQL(
+      """
+        CREATE TRIGGER call_log_group_call_insert AFTER INSERT ON call
+        BEGIN
+          INSERT INTO call_log_group_dirty (timestamp) VALUES (new.timestamp);
+        END
+      """
+    )
+
+    db.execSQL(
+      """
+        CREATE TRIGGER call_log_group_call_update AFTER UPDATE ON call
+        WHEN
+          old.timestamp IS NOT new.timestamp OR
+          old.peer IS NOT new.peer OR
+          old.type IS NOT new.type OR
+          old.direction IS NOT new.direction OR
+          old.event IS NOT new.event OR
+          old.deletion_timestamp IS NOT new.deletion_timestamp OR
+          old.local_joined IS NOT new.local_joined OR
+          old.group_call_active IS NOT new.group_call_active
+        BEGIN
+          INSERT INTO call_log_group_dirty (timestamp) VALUES (old.timestamp), (new.timestamp);
+        END
+      """
+    )
+
+    db.execSQL(
+      """
+        CREATE TRIGGER call_log_group_call_delete AFTER DELETE ON call
+        BEGIN
+          INSERT INTO call_log_group_dirty (timestamp) VALUES (old.timestamp);
+        END
+      """
+    )
+
+    db.execSQL("INSERT INTO call_log_group_dirty (timestamp) SELECT DISTINCT timestamp FROM call")
+  }
+}
@@ -54,7 +54,7 @@ class GroupRecord(
   private val v2GroupProperties: GroupTable.V2GroupProperties? by lazy {
     if (groupMasterKeyBytes != null && decryptedGroupBytes != null) {
       val groupMasterKey = GroupMasterKey(groupMasterKeyBytes)
-      GroupTable.V2GroupProperties(groupMasterKey, groupRevision, decryptedGroupBytes)
+      GroupTable.V2GroupProperties(groupMasterKey, groupRevision, decryptedGroupBytes, id as? GroupId.V2)
     } else {
       null
     }
@@ -0,0 +1,207 @@
+/*
+ * Copyright 2024 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.thoughtcrime.securesms.database.model
+
+import android.content.res.Configuration
+import android.text.Spannable
+import android.text.SpannableString
+import android.text.TextPaint
+import android.text.style.ClickableSpan
+import android.view.View
+import androidx.annotation.VisibleForTesting
+import org.signal.core.util.Base64
+import org.signal.core.util.logging.Log
+import org.thoughtcrime.securesms.database.model.databaseprotos.DecryptedGroupV2Context
+import org.thoughtcrime.securesms.database.model.databaseprotos.MessageExtras
+import org.thoughtcrime.securesms.dependencies.ApplicationDependencies
+import org.thoughtcrime.securesms.recipients.Recipient
+import org.thoughtcrime.securesms.recipients.RecipientId
+import org.thoughtcrime.securesms.util.LRUCache
+import org.whispersystems.signalservice.api.push.ServiceId.ACI
+import java.io.IOException
+import java.util.Locale
+import java.util.function.Consumer
+
+/**
+ * Memoizes group update descriptions, so that binding the same update over and over doesn't decode its [DecryptedGroupV2Context] and run
+ * it through a [GroupsV2UpdateMessageProducer] every time.
+ *
+ * Entries are keyed by message id, a hash of the body, and the locale and night mode it was described in, and hold the parsed context
+ * along with the description. The night mode is part of the key since the clickable names are colored with day/night resources. The rendered text is kept too, along with a snapshot of every recipient it mentions, and is only rebuilt once one of their
+ * display names changes. Names are only looked up again when a snapshot is replaced.
+ *
+ * Every description that's handed out gets its own copy of the rendered text, with the clickable names bound to the click handler it
+ * was requested with, so that views showing the same update don't steal each other's clicks.
+ */
+class GroupsV2UpdateDescriptionCache @VisibleForTesting constructor(
+  maxSize: Int,
+  private val parse: (String) -> DecryptedGroupV2Context?,
+  private val resolveRecipientId: (ACI) -> RecipientId,
+  private val getRecipient: (RecipientId) -> Recipient,
+  private val getDisplayName: (Recipient) -> String,
+  private val getLocale: () -> Locale
+) {
+
+  companion object {
+    private val TAG = Log.tag(GroupsV2UpdateDescriptionCache::class.java)
+
+    /** Used for descriptions that aren't tied to a message, like the ones shown in the conversation list. */
+    const val NO_MESSAGE_ID = -1L
+
+    private const val MAX_SIZE = 1_000
+
+    /** The click handler of the description whose name is being clicked, while the click is dispatched. */
+    private val clickTarget: ThreadLocal<Consumer<RecipientId>?> = ThreadLocal()
+
+    @JvmStatic
+    val instance: GroupsV2UpdateDescriptionCache by lazy {
+      GroupsV2UpdateDescriptionCache(
+        maxSize = MAX_SIZE,
+        parse = ::parseContext,
+        resolveRecipientId = { RecipientId.from(it) },
+        getRecipient = { Recipient.live(it).get() },
+        getDisplayName = { it.getDisplayName(ApplicationDependencies.getApplication()) },
+        getLocale = { Locale.getDefault() }
+      )
+    }
+
+    @JvmStatic
+    fun parseContext(body: String): DecryptedGroupV2Context? {
+      return try {
+        DecryptedGroupV2Context.ADAPTER.decode(Base64.decode(body))
+      } catch (e: IOException) {
+        Log.w(TAG, "GV2 Message update detail could not be read", e)
+        null
+      } catch (e: IllegalArgumentException) {
+        Log.w(TAG, "GV2 Message update detail could not be read", e)
+        null
+      } catch (e: IllegalStateException) {
+        Log.w(TAG, "GV2 Message update detail could not be read", e)
+        null
+      }
+    }
+  }
+
+  private val entries: LRUCache<Key, Entry> = LRUCache(maxSize)
+
+  /**
+   * @return The parsed [body], or null if it couldn't be parsed.
+   */
+  fun getContext(messageId: Long, body: String): DecryptedGroupV2Context? {
+    return getEntry(messageId, body, Configuration.UI_MODE_NIGHT_UNDEFINED).context
+  }
+
+  /**
+   * @param nightMode The night mode bits of the configuration the description will be shown in, which the [describer] must describe it for.
+   * @return The description of an update stored as a [body], which the [describer] is given parsed.
+   */
+  fun getDescription(messageId: Long, body: String, nightMode: Int, clickHandler: Consumer<RecipientId>?, describer: Describer): UpdateDescription {
+    return getEntry(messageId, body, nightMode).getDescription(clickHandler, describer)
+  }
+
+  /**
+   * @param nightMode The night mode bits of the configuration the description will be shown in, which the [describer] must describe it for.
+   * @return The description of an update stored in [messageExtras], which the [describer] is given a null context for.
+   */
+  fun getDescription(messageId: Long, messageExtras: MessageExtras, nightMode: Int, clickHandler: Consumer<RecipientId>?, describer: Describer): UpdateDescription {
+    return getEntry(messageId, messageExtras, nightMode).getDescription(clickHandler, describer)
+  }
+
+  private fun getEntry(messageId: Long, source: Any, nightMode: Int): Entry {
+    val key = Key(messageId, source.hashCode(), getLocale(), nightMode)
+
+    synchronized(entries) {
+      val existing = entries[key]
+      if (existing != null && existing.source == source) {
+        return existing
+      }
+
+      return Entry(source).also { entries[key] = it }
+    }
+  }
+
+  fun interface Describer {
+    fun describe(context: DecryptedGroupV2Context?, clickHandler: Consumer<RecipientId>): UpdateDescription
+  }
+
+  private data class Key(val messageId: Long, val sourceHash: Int, val locale: Locale, val nightMode: Int)
+
+  private inner class Entry(val source: Any) {
+    val context: DecryptedGroupV2Context? by lazy { (source as? String)?.let(parse) }
+
+    private var described: UpdateDescription? = null
+    private var dependencies: List<RecipientId>? = null
+    private var rendered: Spannable? = null
+    private var renderedRecipients: List<Recipient> = emptyList()
+    private var renderedNames: List<String> = emptyList()
+
+    @Synchronized
+    fun getDescription(clickHandler: Consumer<RecipientId>?, describer: Describer): UpdateDescription {
+      val described = this.described ?: describer.describe(context) { recipientId -> clickTarget.get()?.accept(recipientId) }.also { this.described = it }
+
+      return if (described.isStringStatic) {
+        described
+      } else {
+        UpdateDescription.mentioning(described.mentioned, { bindClicks(render(described), clickHandler) }, described.iconResource)
+      }
+    }
+
+    @Synchronized
+    private fun render(described: UpdateDescription): Spannable {
+      val dependencies = this.dependencies ?: described.mentioned.map(resolveRecipientId).also { this.dependencies = it }
+      val recipients = dependencies.map(getRecipient)
+
+      if (recipients.indices.any { recipients[it] !== renderedRecipients.getOrNull(it) }) {
+        val names = recipients.map(getDisplayName)
+
+        if (names != renderedNames) {
+          rendered = null
+          renderedNames = names
+        }
+
+        renderedRecipients = recipients
+      }
+
+      return rendered ?: described.spannable.also { rendered = it }
+    }
+  }
+
+  /**
+   * @return A copy of [rendered] whose clickable names call [clickHandler].
+   */
+  private fun bindClicks(rendered: Spannable, clickHandler: Consumer<RecipientId>?): Spannable {
+    val bound = SpannableString(rendered)
+
+    bound.getSpans(0, bound.length, ClickableSpan::class.java).forEach { span ->
+      val start = bound.getSpanStart(span)
+      val end = bound.getSpanEnd(span)
+      val flags = bound.getSpanFlags(span)
+
+      bound.removeSpan(span)
+      bound.setSpan(BoundClickableSpan(span, clickHandler), start, end, flags)
+    }
+
+    return bound
+  }
+
+  /**
+   * Dispatches a click on a cached [span] to the [clickHandler] of the description it was handed out with.
+   */
+  private class BoundClickableSpan(private val span: ClickableSpan, private val clickHandler: Consumer<RecipientId>?) : ClickableSpan() {
+    override fun onClick(widget: View) {
+      clickTarget.set(clickHandler)
+      try {
+        span.onClick(widget)
+      } finally {
+        clickTarget.remove()
+      }
+    }
+
+    override fun updateDrawState(ds: TextPaint) {
+      span.updateDrawState(ds)
+    }
+  }
+}
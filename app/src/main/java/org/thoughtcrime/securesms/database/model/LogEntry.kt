@@ -1,7 +1,25 @@
 package org.thoughtcrime.securesms.database.model
 
+/**
+ * A single call to the logger, stored as-is. Turning it into lines of text, and scrubbing them, is left to whoever reads it back.
+ * See [org.thoughtcrime.securesms.logging.LogEntryFormatter].
+ */
 data class LogEntry(
   val createdAt: Long,
   val keepLonger: Boolean,
-  val body: String
-)
+  val level: String,
+  val tag: String,
+  val threadId: Long,
+  val message: String?,
+  val stackTrace: String?,
+  val versionName: String
+) {
+  companion object {
+    /** Used as the [threadId] of anything logged from the main thread. */
+    const val MAIN_THREAD_ID = -1L
+  }
+
+  /** The number of lines this entry is displayed as: one for the message, plus one per line of the stack trace. */
+  val lineCount: Int
+    get() = if (stackTrace == null) 1 else 2 + stackTrace.count { it == '\n' }
+}
@@ -17,6 +17,7 @@
 package org.thoughtcrime.securesms.database.model;
 
 import android.content.Context;
+import android.content.res.Configuration;
 import android.text.Spannable;
 import android.text.SpannableString;
 import android.text.style.RelativeSizeSpan;
@@ -58,6 +59,7 @@ import org.thoughtcrime.securesms.profiles.ProfileName;
 import org.thoughtcrime.securesms.recipients.Recipient;
 import org.thoughtcrime.securesms.recipients.RecipientId;
 import org.signal.core.util.Base64;
+import org.thoughtcrime.securesms.util.ConfigurationUtil;
 import org.thoughtcrime.securesms.util.DateUtils;
 import org.thoughtcrime.securesms.util.ExpirationUtil;
 import org.thoughtcrime.securesms.util.GroupUtil;
@@ -181,9 +183,9 @@ public abstract class MessageRecord extends DisplayRecord {
   public @Nullable UpdateDescription getUpdateDisplayBody(@NonNull Context context, @Nullable Consumer<RecipientId> recipientClickHandler) {
     if (isGroupUpdate() && isGroupV2()) {
       if (messageExtras != null) {
-        return getGv2ChangeDescription(context, messageExtras, recipientClickHandler);
+        return getGv2ChangeDescription(context, id, messageExtras, recipientClickHandler);
       } else {
-        return getGv2ChangeDescription(context, getBody(), recipientClickHandler);
+        return getGv2ChangeDescription(context, id, getBody(), recipientClickHandler);
       }
     } else if (isGroupUpdate() && isOutgoing()) {
       return staticUpdateDescription(context.getString(R.string.MessageRecord_you_updated_group), R.drawable.ic_update_group_16);
@@ -308,16 +310,7 @@ public abstract class MessageRecord extends DisplayRecord {
       return null;
     }
 
-    DecryptedGroupV2Context decryptedGroupV2Context;
-    try {
-      byte[] decoded = Base64.decode(getBody());
-      decryptedGroupV2Context = DecryptedGroupV2Context.ADAPTER.decode(decoded);
-
-    } catch (IOException e) {
-      Log.w(TAG, "GV2 Message update detail could not be read", e);
-      decryptedGroupV2Context = null;
-    }
-    return decryptedGroupV2Context;
+    return GroupsV2UpdateDescriptionCache.getInstance().getContext(id, getBody());
   }
 
   private static boolean selfCreatedGroup(@Nullable DecryptedGroupChange change) {
@@ -327,17 +320,53 @@ public abstract class MessageRecord extends DisplayRecord {
   }
 
   public static @NonNull UpdateDescription getGv2ChangeDescription(@NonNull Context context, @NonNull String body, @Nullable Consumer<RecipientId> recipientClickHandler) {
-    try {
-      byte[]                         decoded                 = Base64.decode(body);
-      DecryptedGroupV2Context        decryptedGroupV2Context = DecryptedGroupV2Context.ADAPTER.decode(decoded);
-      return getGv2ChangeDescription(context, decryptedGroupV2Context, recipientClickHandler);
-    } catch (IOException | IllegalArgumentException | IllegalStateException e) {
-      Log.w(TAG, "GV2 Message update detail could not be read", e);
-      return staticUpdateDescription(context.getString(R.string.MessageRecord_group_updated), R.drawable.ic_update_group_16);
-    }
+    return getGv2ChangeDescription(context, GroupsV2UpdateDescriptionCache.NO_MESSAGE_ID, body, recipientClickHandler);
   }
 
   public static @NonNull UpdateDescription getGv2ChangeDescription(@NonNull Context context, @NonNull MessageExtras messageExtras, @Nullable Consumer<RecipientId> recipientClickHandler) {
+    return getGv2ChangeDescription(context, GroupsV2UpdateDescriptionCache.NO_MESSAGE_ID, messageExtras, recipientClickHandler);
+  }
+
+  /**
+   * Descriptions are cached, so they're built with the application context rather than whichever one happened to ask first, configured with
+   * the night mode of the one that asked so that names are colored for the theme they're shown in.
+   */
+  private static @NonNull UpdateDescription getGv2ChangeDescription(@NonNull Context context, long messageId, @NonNull String body, @Nullable Consumer<RecipientId> recipientClickHandler) {
+    Context applicationContext = context.getApplicationContext();
+    int     nightMode          = ConfigurationUtil.getNightModeConfiguration(context);
+
+    return GroupsV2UpdateDescriptionCache.getInstance().getDescription(messageId, body, nightMode, recipientClickHandler, (decryptedGroupV2Context, clickHandler) -> {
+      if (decryptedGroupV2Context == null) {
+        return staticUpdateDescription(applicationContext.getString(R.string.MessageRecord_group_updated), R.drawable.ic_update_group_16);
+      }
+
+      return getGv2ChangeDescription(getDescriptionContext(applicationContext, nightMode), decryptedGroupV2Context, clickHandler);
+    });
+  }
+
+  private static @NonNull UpdateDescription getGv2ChangeDescription(@NonNull Context context, long messageId, @NonNull MessageExtras messageExtras, @Nullable Consumer<RecipientId> recipientClickHandler) {
+    Context applicationContext = context.getApplicationContext();
+    int     nightMode          = ConfigurationUtil.getNightModeConfiguration(context);
+
+    return GroupsV2UpdateDescriptionCache.getInstance().getDescription(messageId, messageExtras, nightMode, recipientClickHandler, (unused, clickHandler) -> describeGv2Update(getDescriptionContext(applicationContext, nightMode), messageExtras, clickHandler));
+  }
+
+  /**
+   * @return The application context, with its night mode replaced by {@code nightMode}.
+   */
+  private static @NonNull Context getDescriptionContext(@NonNull Context applicationContext, int nightMode) {
+    Configuration configuration = new Configuration(applicationContext.getResources().getConfiguration());
+
+    if (ConfigurationUtil.getNightModeConfiguration(configuration) == nightMode) {
+      return applicationContext;
+    }
+
+    configuration.uiMode = (configuration.uiMode & ~Configuration.UI_MODE_NIGHT_MASK) | nightMode;
+
+    return applicationContext.createConfigurationContext(configuration);
+  }
+
+  private static @NonNull UpdateDescription describeGv2Update(@NonNull Context context, @NonNull MessageExtras messageExtras, @Nullable Consumer<RecipientId> recipientClickHandler) {
     if (messageExtras.gv2UpdateDescription != null) {
       if (messageExtras.gv2UpdateDescription.groupChangeUpdate != null) {
         GroupsV2UpdateMessageProducer updateMessageProducer = new GroupsV2UpdateMessageProducer(context, SignalStore.account().getServiceIds(), recipientClickHandler);
@@ -7,9 +7,10 @@ import androidx.annotation.MainThread
 import androidx.annotation.WorkerThread
 import org.signal.core.util.concurrent.SimpleTask
 import org.signal.core.util.logging.Log
+import org.signal.core.util.mebiBytes
 import org.thoughtcrime.securesms.mms.PartAuthority
 import org.thoughtcrime.securesms.util.ListenableFutureTask
-import org.thoughtcrime.securesms.util.SoftHashMap
+import org.thoughtcrime.securesms.util.SizedLruCache
 import java.io.IOException
 import java.io.InputStream
 
@@ -17,7 +18,7 @@ object EmojiPageCache {
 
   private val TAG = Log.tag(EmojiPageCache::class.java)
 
-  private val cache: SoftHashMap<EmojiPageRequest, Bitmap> = SoftHashMap()
+  private val cache: SizedLruCache<EmojiPageRequest, Bitmap> = SizedLruCache.forBitmaps("EmojiPages", SizedLruCache.heapBudget(1 / 16f, 32.mebiBytes.inWholeBytes))
   private val tasks: HashMap<EmojiPageRequest, ListenableFutureTask<Bitmap>> = hashMapOf()
 
   @MainThread
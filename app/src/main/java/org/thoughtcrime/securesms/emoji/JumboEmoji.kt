@@ -9,12 +9,13 @@ import org.signal.core.util.ThreadUtil
 import org.signal.core.util.concurrent.SignalExecutors
 import org.signal.core.util.concurrent.SimpleTask
 import org.signal.core.util.logging.Log
+import org.signal.core.util.mebiBytes
 import org.thoughtcrime.securesms.components.emoji.parsing.EmojiDrawInfo
 import org.thoughtcrime.securesms.emoji.protos.JumbomojiPack
 import org.thoughtcrime.securesms.jobmanager.impl.AutoDownloadEmojiConstraint
 import org.thoughtcrime.securesms.keyvalue.SignalStore
 import org.thoughtcrime.securesms.util.ListenableFutureTask
-import org.thoughtcrime.securesms.util.SoftHashMap
+import org.thoughtcrime.securesms.util.SizedLruCache
 import java.io.IOException
 import java.util.UUID
 import java.util.concurrent.ExecutionException
@@ -33,7 +34,7 @@ object JumboEmoji {
 
   private const val JUMBOMOJI_SUPPORTED_VERSION = 5
 
-  private val cache: MutableMap<String, Bitmap> = SoftHashMap(16)
+  private val cache: SizedLruCache<String, Bitmap> = SizedLruCache.forBitmaps("JumboEmoji", SizedLruCache.heapBudget(1 / 32f, 8.mebiBytes.inWholeBytes))
   private val versionToFormat: MutableMap<UUID, String?> = hashMapOf()
   private val downloadedJumbos: MutableSet<String> = mutableSetOf()
 
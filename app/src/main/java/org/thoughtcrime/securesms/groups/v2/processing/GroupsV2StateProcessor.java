@@ -7,6 +7,8 @@ import androidx.annotation.Nullable;
 import androidx.annotation.VisibleForTesting;
 import androidx.annotation.WorkerThread;
 
+import org.signal.core.util.ThreadUtil;
+import org.signal.core.util.concurrent.SignalExecutors;
 import org.signal.core.util.logging.Log;
 import org.signal.libsignal.zkgroup.VerificationFailedException;
 import org.signal.libsignal.zkgroup.groups.GroupMasterKey;
@@ -48,6 +50,7 @@ import org.whispersystems.signalservice.api.groupsv2.DecryptedGroupUtil;
 import org.whispersystems.signalservice.api.groupsv2.GroupChangeReconstruct;
 import org.whispersystems.signalservice.api.groupsv2.GroupHistoryPage;
 import org.whispersystems.signalservice.api.groupsv2.GroupsV2Api;
+import org.whispersystems.signalservice.api.groupsv2.GroupsV2AuthorizationString;
 import org.whispersystems.signalservice.api.groupsv2.InvalidGroupStateException;
 import org.whispersystems.signalservice.api.groupsv2.NotAbleToApplyGroupV2ChangeException;
 import org.whispersystems.signalservice.api.groupsv2.PartialDecryptedGroup;
@@ -59,6 +62,7 @@ import org.whispersystems.signalservice.internal.push.exceptions.GroupNotFoundEx
 import org.whispersystems.signalservice.internal.push.exceptions.NotInGroupException;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -66,6 +70,9 @@ import java.util.Locale;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 /**
  * Advances a groups state to a specified revision.
@@ -88,6 +95,16 @@ public class GroupsV2StateProcessor {
    */
   public static final int RESTORE_PLACEHOLDER_REVISION = GroupStateMapper.RESTORE_PLACEHOLDER_REVISION;
 
+  /**
+   * Fetches the next page of group history while the current page is being applied.
+   */
+  private static final ExecutorService HISTORY_PREFETCH_EXECUTOR = SignalExecutors.newCachedBoundedExecutor("signal-gv2-history", ThreadUtil.PRIORITY_IMPORTANT_BACKGROUND_THREAD, 1, 4, 15);
+
+  /**
+   * Decrypts the entries of a group history page. Kept separate from {@link #HISTORY_PREFETCH_EXECUTOR}, whose tasks block on this one.
+   */
+  private static final ExecutorService HISTORY_DECRYPT_EXECUTOR = SignalExecutors.newCachedBoundedExecutor("signal-gv2-decrypt", ThreadUtil.PRIORITY_IMPORTANT_BACKGROUND_THREAD, 1, 4, 15);
+
   private GroupsV2StateProcessor() {
   }
 
@@ -426,58 +443,70 @@ public class GroupsV2StateProcessor {
         inputGroupState = getFullMemberHistoryPage(localState, logsNeededFrom, includeFirstState);
       }
 
-      ProfileKeySet    profileKeys           = new ProfileKeySet();
-      DecryptedGroup   finalState            = localState;
-      GlobalGroupState finalGlobalGroupState = inputGroupState;
-      boolean          performCdsLookup      = false;
+      ProfileKeySet            profileKeys           = new ProfileKeySet();
+      DecryptedGroup           finalState            = localState;
+      GlobalGroupState         finalGlobalGroupState = inputGroupState;
+      boolean                  performCdsLookup      = false;
+      Future<GroupHistoryPage> nextPage              = null;
 
       boolean hasMore = true;
 
-      while (hasMore) {
-        AdvanceGroupStateResult advanceGroupStateResult = GroupStateMapper.partiallyAdvanceGroupState(inputGroupState, revision);
-        DecryptedGroup          newLocalState           = advanceGroupStateResult.getNewGlobalGroupState().getLocalState();
-        info("Advanced group to revision: " + (newLocalState != null ? newLocalState.revision : "null"));
-
-        if (newLocalState != null && !inputGroupState.hasMore() && !forceIncludeFirst) {
-          int newLocalRevision = newLocalState.revision;
-          int requestRevision  = (revision == LATEST) ? latestServerGroup.getRevision() : revision;
-          if (newLocalRevision < requestRevision) {
-            warn( "Paging again with force first snapshot enabled due to error processing changes. New local revision [" + newLocalRevision + "] hasn't reached our desired level [" + requestRevision + "]");
-            return updateLocalGroupFromServerPaged(revision, localState, timestamp, true, serverGuid);
+      try {
+        while (hasMore) {
+          if (inputGroupState.hasMore()) {
+            nextPage = prefetchHistoryPage(inputGroupState.getNextPageRevision());
           }
-        }
 
-        if (newLocalState == null || newLocalState == inputGroupState.getLocalState()) {
-          return new GroupUpdateResult(GroupState.GROUP_CONSISTENT_OR_AHEAD, null);
-        }
+          AdvanceGroupStateResult advanceGroupStateResult = GroupStateMapper.partiallyAdvanceGroupState(inputGroupState, revision);
+          DecryptedGroup          newLocalState           = advanceGroupStateResult.getNewGlobalGroupState().getLocalState();
+          info("Advanced group to revision: " + (newLocalState != null ? newLocalState.revision : "null"));
 
-        updateLocalDatabaseGroupState(inputGroupState, newLocalState);
+          if (newLocalState != null && !inputGroupState.hasMore() && !forceIncludeFirst) {
+            int newLocalRevision = newLocalState.revision;
+            int requestRevision  = (revision == LATEST) ? latestServerGroup.getRevision() : revision;
+            if (newLocalRevision < requestRevision) {
+              warn( "Paging again with force first snapshot enabled due to error processing changes. New local revision [" + newLocalRevision + "] hasn't reached our desired level [" + requestRevision + "]");
+              return updateLocalGroupFromServerPaged(revision, localState, timestamp, true, serverGuid);
+            }
+          }
 
-        if (localState == null || localState.revision != GroupsV2StateProcessor.RESTORE_PLACEHOLDER_REVISION) {
-          timestamp = profileAndMessageHelper.insertUpdateMessages(timestamp, localState, advanceGroupStateResult.getProcessedLogEntries(), serverGuid);
-        }
+          if (newLocalState == null || newLocalState == inputGroupState.getLocalState()) {
+            return new GroupUpdateResult(GroupState.GROUP_CONSISTENT_OR_AHEAD, null);
+          }
+
+          updateLocalDatabaseGroupState(inputGroupState, newLocalState);
 
-        for (ServerGroupLogEntry entry : inputGroupState.getServerHistory()) {
-          if (entry.getGroup() != null) {
-            profileKeys.addKeysFromGroupState(entry.getGroup());
+          if (localState == null || localState.revision != GroupsV2StateProcessor.RESTORE_PLACEHOLDER_REVISION) {
+            timestamp = profileAndMessageHelper.insertUpdateMessages(timestamp, localState, advanceGroupStateResult.getProcessedLogEntries(), serverGuid);
           }
 
-          if (entry.getChange() != null) {
-            profileKeys.addKeysFromGroupChange(entry.getChange());
+          for (ServerGroupLogEntry entry : inputGroupState.getServerHistory()) {
+            if (entry.getGroup() != null) {
+              profileKeys.addKeysFromGroupState(entry.getGroup());
+            }
+
+            if (entry.getChange() != null) {
+              profileKeys.addKeysFromGroupChange(entry.getChange());
 
-            if (!entry.getChange().promotePendingPniAciMembers.isEmpty()) {
-              performCdsLookup = true;
+              if (!entry.getChange().promotePendingPniAciMembers.isEmpty()) {
+                performCdsLookup = true;
+              }
             }
           }
-        }
 
-        finalState            = newLocalState;
-        finalGlobalGroupState = advanceGroupStateResult.getNewGlobalGroupState();
-        hasMore               = inputGroupState.hasMore();
+          finalState            = newLocalState;
+          finalGlobalGroupState = advanceGroupStateResult.getNewGlobalGroupState();
+          hasMore               = inputGroupState.hasMore();
 
-        if (hasMore) {
-          info("Request next page from server revision: " + finalState.revision + " nextPageRevision: " + inputGroupState.getNextPageRevision());
-          inputGroupState = getFullMemberHistoryPage(finalState, inputGroupState.getNextPageRevision(), false);
+          if (hasMore) {
+            info("Request next page from server revision: " + finalState.revision + " nextPageRevision: " + inputGroupState.getNextPageRevision());
+            inputGroupState = toGlobalGroupState(finalState, awaitHistoryPage(nextPage));
+            nextPage        = null;
+          }
+        }
+      } finally {
+        if (nextPage != null) {
+          nextPage.cancel(true);
         }
       }
 
@@ -574,30 +603,64 @@ public class GroupsV2StateProcessor {
     }
 
     private GlobalGroupState getFullMemberHistoryPage(DecryptedGroup localState, int logsNeededFromRevision, boolean includeFirstState) throws IOException {
-      try {
-        GroupHistoryPage               groupHistoryPage    = groupsV2Api.getGroupHistoryPage(groupSecretParams, logsNeededFromRevision, groupsV2Authorization.getAuthorizationForToday(serviceIds, groupSecretParams), includeFirstState);
-        ArrayList<ServerGroupLogEntry> history             = new ArrayList<>(groupHistoryPage.getResults().size());
-        boolean                        ignoreServerChanges = SignalStore.internalValues().gv2IgnoreServerChanges();
+      return toGlobalGroupState(localState, fetchHistoryPage(logsNeededFromRevision, groupsV2Authorization.getAuthorizationForToday(serviceIds, groupSecretParams), includeFirstState));
+    }
 
-        if (ignoreServerChanges) {
-          warn( "Server change logs are ignored by setting");
-        }
+    /**
+     * Starts fetching and decrypting the page of history starting at {@code fromRevision} in the background. Pages after the first never
+     * include the first state, and only depend on the revision the previous page reported, not on the outcome of applying it.
+     */
+    private Future<GroupHistoryPage> prefetchHistoryPage(int fromRevision) throws IOException {
+      GroupsV2AuthorizationString authorization = groupsV2Authorization.getAuthorizationForToday(serviceIds, groupSecretParams);
 
-        for (DecryptedGroupHistoryEntry entry : groupHistoryPage.getResults()) {
-          DecryptedGroup       group  = entry.getGroup().orElse(null);
-          DecryptedGroupChange change = ignoreServerChanges ? null : entry.getChange().orElse(null);
+      return HISTORY_PREFETCH_EXECUTOR.submit(() -> fetchHistoryPage(fromRevision, authorization, false));
+    }
 
-          if (group != null || change != null) {
-            history.add(new ServerGroupLogEntry(group, change));
-          }
+    private GroupHistoryPage awaitHistoryPage(@NonNull Future<GroupHistoryPage> page) throws IOException {
+      try {
+        return page.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while waiting for group history");
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof IOException) {
+          throw (IOException) e.getCause();
+        } else if (e.getCause() instanceof RuntimeException) {
+          throw (RuntimeException) e.getCause();
+        } else {
+          throw new IOException(e.getCause());
         }
+      }
+    }
 
-        return new GlobalGroupState(localState, history, groupHistoryPage.getPagingData());
+    private GroupHistoryPage fetchHistoryPage(int fromRevision, @NonNull GroupsV2AuthorizationString authorization, boolean includeFirstState) throws IOException {
+      try {
+        return groupsV2Api.getGroupHistoryPage(groupSecretParams, fromRevision, authorization, includeFirstState, HISTORY_DECRYPT_EXECUTOR);
       } catch (InvalidGroupStateException | VerificationFailedException e) {
         throw new IOException(e);
       }
     }
 
+    private GlobalGroupState toGlobalGroupState(DecryptedGroup localState, @NonNull GroupHistoryPage groupHistoryPage) {
+      ArrayList<ServerGroupLogEntry> history             = new ArrayList<>(groupHistoryPage.getResults().size());
+      boolean                        ignoreServerChanges = SignalStore.internalValues().gv2IgnoreServerChanges();
+
+      if (ignoreServerChanges) {
+        warn( "Server change logs are ignored by setting");
+      }
+
+      for (DecryptedGroupHistoryEntry entry : groupHistoryPage.getResults()) {
+        DecryptedGroup       group  = entry.getGroup().orElse(null);
+        DecryptedGroupChange change = ignoreServerChanges ? null : entry.getChange().orElse(null);
+
+        if (group != null || change != null) {
+          history.add(new ServerGroupLogEntry(group, change));
+        }
+      }
+
+      return new GlobalGroupState(localState, history, groupHistoryPage.getPagingData());
+    }
+
     private void info(String message) {
       Log.i(TAG, "[" + groupId.toString() + "] " + message);
     }
@@ -285,9 +285,9 @@ public final class AttachmentCompressionJob extends BaseJob {
                                                         100,
                                                         100));
 
-              final Mp4FaststartPostProcessor postProcessor = new Mp4FaststartPostProcessor(() -> {
+              final Mp4FaststartPostProcessor postProcessor = new Mp4FaststartPostProcessor(position -> {
                 try {
-                  return ModernDecryptingPartInputStream.createFor(attachmentSecret, file, 0);
+                  return ModernDecryptingPartInputStream.createFor(attachmentSecret, file, position);
                 } catch (IOException e) {
                   Log.w(TAG, "IOException thrown while creating CipherInputStream.", e);
                   throw new VideoPostProcessingException("Exception while opening InputStream!", e);
@@ -5,41 +5,68 @@
 
 package org.thoughtcrime.securesms.jobs
 
+import androidx.annotation.VisibleForTesting
 import org.signal.core.util.ThreadUtil
+import org.signal.core.util.TokenBucket
+import org.signal.core.util.concurrent.SignalExecutors
 import org.signal.core.util.drain
 import org.signal.core.util.logging.Log
+import org.signal.core.util.stream.ThrottledInputStream
 import org.thoughtcrime.securesms.attachments.AttachmentId
 import org.thoughtcrime.securesms.database.SignalDatabase
 import org.thoughtcrime.securesms.dependencies.ApplicationDependencies
 import org.thoughtcrime.securesms.jobmanager.Job
+import org.thoughtcrime.securesms.keyvalue.SignalStore
 import java.io.File
 import java.io.FileNotFoundException
 import java.io.IOException
 import java.security.DigestInputStream
 import java.security.MessageDigest
+import java.util.concurrent.Callable
 
 /**
  * This job backfills hashes for attachments that were sent before we started hashing them.
- * In order to avoid hammering the device with hash calculations and disk I/O, this job will
- * calculate the hash for a single attachment and then reschedule itself to run again if necessary.
+ *
+ * A single instance works through every unhashed file in one run. Files are claimed in batches, newest first, and hashed on [threadCount]
+ * threads. In order to avoid hammering the device with disk I/O, every read draws from a shared [TokenBucket] that caps the bandwidth of
+ * the whole backfill. Each batch is committed in one transaction, after which a cursor is saved, so that a process death only repeats the
+ * batch that was in progress. If a batch fails, the job is retried from that cursor, and if it runs out of attempts or is canceled, it
+ * enqueues a new instance that picks back up from there too.
  */
-class AttachmentHashBackfillJob private constructor(parameters: Parameters) : Job(parameters) {
+class AttachmentHashBackfillJob private constructor(
+  parameters: Parameters,
+  private val threadCount: Int,
+  private val tokenBucket: TokenBucket
+) : Job(parameters) {
 
   companion object {
     val TAG = Log.tag(AttachmentHashBackfillJob::class.java)
 
     const val KEY = "AttachmentHashBackfillJob"
+
+    private const val BATCH_SIZE = 50
+    private const val THREAD_COUNT = 2
+    private const val BYTES_PER_SECOND = 4L * 1024 * 1024
+    private const val BURST_BYTES = 1024L * 1024
+
+    /** How many times a file can fail to hash within a run before it's marked as unhashable. */
+    private const val MAX_HASH_ATTEMPTS = 3
+
+    private fun createTokenBucket() = TokenBucket(capacity = BURST_BYTES, permitsPerSecond = BYTES_PER_SECOND)
   }
 
-  private var activeFile: File? = null
+  constructor() : this(THREAD_COUNT, createTokenBucket())
 
-  constructor() : this(
+  @VisibleForTesting
+  constructor(threadCount: Int, tokenBucket: TokenBucket) : this(
     Parameters.Builder()
       .setQueue(KEY)
-      .setMaxInstancesForFactory(2)
+      .setMaxInstancesForFactory(1)
       .setLifespan(Parameters.IMMORTAL)
       .setMaxAttempts(10)
-      .build()
+      .build(),
+    threadCount,
+    tokenBucket
   )
 
   override fun serialize() = null
@@ -47,65 +74,101 @@ class AttachmentHashBackfillJob private constructor(parameters: Parameters) : Jo
   override fun getFactoryKey() = KEY
 
   override fun run(): Result {
-    val (file: File?, attachmentId: AttachmentId?) = SignalDatabase.attachments.getUnhashedDataFile() ?: (null to null)
-    if (file == null || attachmentId == null) {
-      Log.i(TAG, "No more unhashed files! Task complete.")
-      return Result.success()
+    val executor = SignalExecutors.newCachedBoundedExecutor("signal-hash-backfill", ThreadUtil.PRIORITY_BACKGROUND_THREAD, threadCount, threadCount, 30)
+    val failedAttempts: MutableMap<File, Int> = mutableMapOf()
+
+    try {
+      while (!isCanceled) {
+        val cursor = SignalStore.misc().attachmentHashBackfillCursor
+        val batch = SignalDatabase.attachments.getUnhashedDataFiles(beforeId = cursor, limit = BATCH_SIZE)
+
+        if (batch.isEmpty()) {
+          if (cursor == Long.MAX_VALUE) {
+            Log.i(TAG, "No more unhashed files! Task complete.")
+            return Result.success()
+          }
+
+          Log.i(TAG, "Reached the end of this pass. Starting over to pick up any files that were skipped.")
+          SignalStore.misc().attachmentHashBackfillCursor = Long.MAX_VALUE
+          continue
+        }
+
+        val results: List<HashResult> = batch
+          .map { (file, attachmentId) -> executor.submit(Callable { hash(file, attachmentId) }) }
+          .map { it.get() }
+
+        val hashes: Map<File, ByteArray> = results.filterIsInstance<HashResult.Hashed>().associate { it.file to it.hash }
+        val missingFiles: List<File> = results.filterIsInstance<HashResult.Missing>().map { it.file }
+        val unhashableFiles: List<File> = results.filterIsInstance<HashResult.Failed>().map { it.file }.filter { file ->
+          val attempts = failedAttempts.getOrDefault(file, 0) + 1
+          failedAttempts[file] = attempts
+          attempts >= MAX_HASH_ATTEMPTS
+        }
+
+        SignalDatabase.attachments.setHashesForDataFiles(hashes, missingFiles, unhashableFiles)
+        SignalStore.misc().attachmentHashBackfillCursor = batch.minOf { it.second.id }
+
+        Log.i(TAG, "Finished a batch of ${batch.size}. Hashed: ${hashes.size}, Missing: ${missingFiles.size}, Unhashable: ${unhashableFiles.size}")
+      }
+    } catch (e: Exception) {
+      Log.w(TAG, "Failed to process a batch. Retrying from the saved cursor.", e)
+      return Result.retry(defaultBackoff())
+    } finally {
+      executor.shutdown()
     }
 
-    activeFile = file
+    Log.w(TAG, "Canceled.")
+    return Result.failure()
+  }
 
+  override fun onFailure() {
+    Log.w(TAG, "Backfill failed. Enqueueing a new one to pick back up from the saved cursor.")
+    ApplicationDependencies.getJobManager().add(AttachmentHashBackfillJob())
+  }
+
+  private fun hash(file: File, attachmentId: AttachmentId): HashResult {
     if (!file.exists()) {
       Log.w(TAG, "File does not exist! Clearing all usages.", true)
-      SignalDatabase.attachments.clearUsagesOfDataFile(file)
-      ApplicationDependencies.getJobManager().add(AttachmentHashBackfillJob())
-      return Result.success()
+      return HashResult.Missing(file)
     }
 
-    try {
-      val inputStream = SignalDatabase.attachments.getAttachmentStream(attachmentId, 0)
+    return try {
+      val inputStream = ThrottledInputStream(SignalDatabase.attachments.getAttachmentStream(attachmentId, 0), tokenBucket)
       val messageDigest = MessageDigest.getInstance("SHA-256")
 
       DigestInputStream(inputStream, messageDigest).use {
         it.drain()
       }
 
-      val hash = messageDigest.digest()
-
-      SignalDatabase.attachments.setHashForDataFile(file, hash)
+      HashResult.Hashed(file, messageDigest.digest())
     } catch (e: FileNotFoundException) {
       Log.w(TAG, "File could not be found! Clearing all usages.", true)
-      SignalDatabase.attachments.clearUsagesOfDataFile(file)
+      HashResult.Missing(file)
     } catch (e: IOException) {
-      Log.e(TAG, "Error hashing attachment. Retrying.", e)
-
       if (e.cause is FileNotFoundException) {
         Log.w(TAG, "Underlying cause was a FileNotFoundException. Clearing all usages.", true)
-        SignalDatabase.attachments.clearUsagesOfDataFile(file)
+        HashResult.Missing(file)
       } else {
-        return Result.retry(defaultBackoff())
+        Log.w(TAG, "Error hashing attachment $attachmentId.", e)
+        HashResult.Failed(file)
       }
+    } catch (e: RuntimeException) {
+      Log.w(TAG, "Error hashing attachment $attachmentId.", e)
+      HashResult.Failed(file)
     }
-
-    // Sleep just so we don't hammer the device with hash calculations and disk I/O
-    ThreadUtil.sleep(1000)
-
-    ApplicationDependencies.getJobManager().add(AttachmentHashBackfillJob())
-    return Result.success()
   }
 
-  override fun onFailure() {
-    activeFile?.let { file ->
-      Log.w(TAG, "Failed to calculate hash, marking as unhashable: $file", true)
-      SignalDatabase.attachments.markDataFileAsUnhashable(file)
-    } ?: Log.w(TAG, "Job failed, but no active file is set!")
+  private sealed interface HashResult {
+    val file: File
 
-    ApplicationDependencies.getJobManager().add(AttachmentHashBackfillJob())
+    class Hashed(override val file: File, val hash: ByteArray) : HashResult
+    class Missing(override val file: File) : HashResult
+    class Failed(override val file: File) : HashResult
   }
 
   class Factory : Job.Factory<AttachmentHashBackfillJob> {
     override fun create(parameters: Parameters, serializedData: ByteArray?): AttachmentHashBackfillJob {
-      return AttachmentHashBackfillJob(parameters)
+      return AttachmentHashBackfillJob(parameters, THREAD_COUNT, createTokenBucket())
     }
   }
 }
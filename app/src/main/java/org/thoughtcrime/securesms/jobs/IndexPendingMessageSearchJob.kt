@@ -0,0 +1,99 @@
+/*
+ * Copyright 2024 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.thoughtcrime.securesms.jobs
+
+import org.signal.core.util.ThreadUtil
+import org.signal.core.util.logging.Log
+import org.thoughtcrime.securesms.database.SignalDatabase
+import org.thoughtcrime.securesms.dependencies.ApplicationDependencies
+import org.thoughtcrime.securesms.jobmanager.Job
+import org.thoughtcrime.securesms.jobmanager.impl.DataRestoreConstraint
+import org.thoughtcrime.securesms.transport.RetryLaterException
+import java.util.concurrent.atomic.AtomicBoolean
+import kotlin.time.Duration.Companion.seconds
+
+/**
+ * Adds messages that were queued by the message search triggers to the search index, in bounded batches so that no single transaction holds
+ * the database for long. Once a large backlog has been drained, the index is optimized to merge the many small segments the batches created.
+ */
+class IndexPendingMessageSearchJob private constructor(parameters: Parameters) : BaseJob(parameters) {
+
+  companion object {
+    const val KEY = "IndexPendingMessageSearchJob"
+
+    private val TAG = Log.tag(IndexPendingMessageSearchJob::class.java)
+
+    private const val BATCH_SIZE = 500
+    private const val OPTIMIZE_THRESHOLD = 5_000
+    private val TIMEOUT = 10.seconds.inWholeMilliseconds
+
+    /** Whether a job has been added that hasn't started running yet, and will therefore pick up anything queued since. */
+    private val enqueued = AtomicBoolean(false)
+
+    /**
+     * Called for every message insert, so this only adds a job once the current transaction (if any) commits, and only if there isn't already
+     * one waiting to run.
+     */
+    @JvmStatic
+    fun enqueue() {
+      SignalDatabase.runPostSuccessfulTransaction(KEY) {
+        if (enqueued.compareAndSet(false, true)) {
+          ApplicationDependencies.getJobManager().add(IndexPendingMessageSearchJob())
+        }
+      }
+    }
+  }
+
+  constructor() : this(
+    Parameters.Builder()
+      .setQueue("IndexPendingMessageSearchJob")
+      .addConstraint(DataRestoreConstraint.KEY)
+      .setMaxAttempts(Parameters.UNLIMITED)
+      .setMaxInstancesForQueue(2)
+      .build()
+  )
+
+  override fun serialize(): ByteArray? = null
+  override fun getFactoryKey() = KEY
+  override fun onFailure() {
+    enqueued.set(false)
+  }
+  override fun onShouldRetry(e: Exception) = e is RetryLaterException
+  override fun getNextRunAttemptBackoff(pastAttemptCount: Int, exception: Exception): Long = 5.seconds.inWholeMilliseconds
+
+  override fun onRun() {
+    enqueued.set(false)
+
+    val startTime = System.currentTimeMillis()
+    var totalIndexed = 0
+    var batchIndexed: Int
+
+    do {
+      batchIndexed = SignalDatabase.messageSearch.indexPending(BATCH_SIZE)
+      totalIndexed += batchIndexed
+
+      if (batchIndexed > 0) {
+        // Give other db operations a chance to run in between batches
+        ThreadUtil.sleep(10)
+      }
+    } while (batchIndexed > 0 && System.currentTimeMillis() - startTime < TIMEOUT)
+
+    Log.d(TAG, "Indexed $totalIndexed messages in ${System.currentTimeMillis() - startTime} ms.")
+
+    if (totalIndexed >= OPTIMIZE_THRESHOLD) {
+      OptimizeMessageSearchIndexJob.enqueue()
+    }
+
+    if (batchIndexed > 0) {
+      Log.i(TAG, "Timed out with messages still pending. Retrying later.")
+      throw RetryLaterException()
+    }
+  }
+
+  class Factory : Job.Factory<IndexPendingMessageSearchJob> {
+    override fun create(parameters: Parameters, serializedData: ByteArray?) = IndexPendingMessageSearchJob(parameters)
+  }
+}
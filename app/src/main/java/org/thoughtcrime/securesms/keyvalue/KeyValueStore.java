@@ -3,6 +3,7 @@ package org.thoughtcrime.securesms.keyvalue;
 import androidx.annotation.AnyThread;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
 import androidx.annotation.WorkerThread;
 
 import org.signal.core.util.ThreadUtil;
@@ -12,6 +13,7 @@ import org.thoughtcrime.securesms.util.SignalUncaughtExceptionHandler;
 
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.Locale;
 import java.util.Set;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
@@ -22,7 +24,10 @@ import java.util.concurrent.ExecutorService;
  *
  * Implemented as a write-through cache that is safe to read and write to on the main thread.
  *
- * Writes are enqueued on a separate executor, but writes are finished up in
+ * The cache is an immutable snapshot that is replaced on every write, so reads never take a lock.
+ *
+ * Writes are enqueued on a separate executor, where all writes that arrive before the executor gets
+ * to them are coalesced into a single transaction. Writes are finished up in
  * {@link SignalUncaughtExceptionHandler}, meaning all write should finish barring a native crash
  * or the system killing us unexpectedly (i.e. a force-stop).
  */
@@ -33,60 +38,66 @@ public final class KeyValueStore implements KeyValueReader {
   private final ExecutorService           executor;
   private final KeyValuePersistentStorage storage;
 
-  private KeyValueDataSet dataSet;
+  /** Never modified once published, so it can be read without holding a lock. */
+  private volatile KeyValueDataSet dataSet;
+
+  /** Changes that are visible in {@link #dataSet} but have not been written to disk yet. Guarded by this. */
+  private KeyValueDataSet pendingDataSet = new KeyValueDataSet();
+  private Set<String>     pendingRemoves = new HashSet<>();
+  private boolean         flushScheduled;
+
+  private final Metrics metrics = new Metrics();
 
   public KeyValueStore(@NonNull KeyValuePersistentStorage storage) {
-    this.executor = SignalExecutors.newCachedSingleThreadExecutor("signal-KeyValueStore", ThreadUtil.PRIORITY_BACKGROUND_THREAD);
+    this(SignalExecutors.newCachedSingleThreadExecutor("signal-KeyValueStore", ThreadUtil.PRIORITY_BACKGROUND_THREAD), storage);
+  }
+
+  @VisibleForTesting
+  KeyValueStore(@NonNull ExecutorService executor, @NonNull KeyValuePersistentStorage storage) {
+    this.executor = executor;
     this.storage  = storage;
   }
 
   @AnyThread
   @Override
-  public synchronized byte[] getBlob(@NonNull String key, byte[] defaultValue) {
-    initializeIfNecessary();
-    return dataSet.getBlob(key, defaultValue);
+  public byte[] getBlob(@NonNull String key, byte[] defaultValue) {
+    return getDataSet().getBlob(key, defaultValue);
   }
 
   @AnyThread
   @Override
-  public synchronized boolean getBoolean(@NonNull String key, boolean defaultValue) {
-    initializeIfNecessary();
-    return dataSet.getBoolean(key, defaultValue);
+  public boolean getBoolean(@NonNull String key, boolean defaultValue) {
+    return getDataSet().getBoolean(key, defaultValue);
   }
 
   @AnyThread
   @Override
-  public synchronized float getFloat(@NonNull String key, float defaultValue) {
-    initializeIfNecessary();
-    return dataSet.getFloat(key, defaultValue);
+  public float getFloat(@NonNull String key, float defaultValue) {
+    return getDataSet().getFloat(key, defaultValue);
   }
 
   @AnyThread
   @Override
-  public synchronized int getInteger(@NonNull String key, int defaultValue) {
-    initializeIfNecessary();
-    return dataSet.getInteger(key, defaultValue);
+  public int getInteger(@NonNull String key, int defaultValue) {
+    return getDataSet().getInteger(key, defaultValue);
   }
 
   @AnyThread
   @Override
-  public synchronized long getLong(@NonNull String key, long defaultValue) {
-    initializeIfNecessary();
-    return dataSet.getLong(key, defaultValue);
+  public long getLong(@NonNull String key, long defaultValue) {
+    return getDataSet().getLong(key, defaultValue);
   }
 
   @AnyThread
   @Override
-  public synchronized String getString(@NonNull String key, String defaultValue) {
-    initializeIfNecessary();
-    return dataSet.getString(key, defaultValue);
+  public String getString(@NonNull String key, String defaultValue) {
+    return getDataSet().getString(key, defaultValue);
   }
 
   @AnyThread
   @Override
-  public synchronized boolean containsKey(@NonNull String key) {
-    initializeIfNecessary();
-    return dataSet.containsKey(key);
+  public boolean containsKey(@NonNull String key) {
+    return getDataSet().containsKey(key);
   }
 
   /**
@@ -100,24 +111,19 @@ public final class KeyValueStore implements KeyValueReader {
 
   /**
    * @return A reader that lets you read from an immutable snapshot of the store, ensuring that data
-   *         is consistent between reads. If you're only reading a single value, it is more
-   *         efficient to use the various get* methods instead.
+   *         is consistent between reads. Since the cache itself is an immutable snapshot, this
+   *         does not copy anything.
    */
   @AnyThread
-  synchronized @NonNull KeyValueReader beginRead() {
-    initializeIfNecessary();
-
-    KeyValueDataSet copy = new KeyValueDataSet();
-    copy.putAll(dataSet);
-
-    return copy;
+  @NonNull KeyValueReader beginRead() {
+    return getDataSet();
   }
 
   /**
    * Ensures that any pending writes (such as those made via {@link Writer#apply()}) are finished.
    */
   @AnyThread
-  synchronized void blockUntilAllWritesFinished() {
+  void blockUntilAllWritesFinished() {
     CountDownLatch latch = new CountDownLatch(1);
 
     executor.execute(latch::countDown);
@@ -137,16 +143,72 @@ public final class KeyValueStore implements KeyValueReader {
     initializeIfNecessary();
   }
 
-  private synchronized void write(@NonNull KeyValueDataSet newDataSet, @NonNull Collection<String> removes) {
-    initializeIfNecessary();
+  /**
+   * @return A description of how long writers have waited on each other and how long writes to disk take, for debugging.
+   */
+  @AnyThread
+  @NonNull String getMetrics() {
+    return metrics.toString();
+  }
 
-    dataSet.putAll(newDataSet);
-    dataSet.removeAll(removes);
+  private @NonNull KeyValueDataSet getDataSet() {
+    KeyValueDataSet current = dataSet;
 
-    executor.execute(() -> storage.writeDataSet(newDataSet, removes));
+    if (current != null) {
+      return current;
+    }
+
+    synchronized (this) {
+      initializeIfNecessary();
+      return dataSet;
+    }
   }
 
-  private void initializeIfNecessary() {
+  private void write(@NonNull KeyValueDataSet newDataSet, @NonNull Collection<String> removes) {
+    long waitStart = System.nanoTime();
+
+    synchronized (this) {
+      metrics.onWrite(System.nanoTime() - waitStart);
+
+      initializeIfNecessary();
+
+      KeyValueDataSet updated = new KeyValueDataSet();
+      updated.putAll(dataSet);
+      updated.putAll(newDataSet);
+      updated.removeAll(removes);
+
+      dataSet = updated;
+
+      pendingRemoves.removeAll(newDataSet.getValues().keySet());
+      pendingDataSet.removeAll(removes);
+      pendingDataSet.putAll(newDataSet);
+      pendingRemoves.addAll(removes);
+
+      if (!flushScheduled) {
+        flushScheduled = true;
+        executor.execute(this::flush);
+      }
+    }
+  }
+
+  private void flush() {
+    KeyValueDataSet toWrite;
+    Set<String>     toRemove;
+
+    synchronized (this) {
+      toWrite        = pendingDataSet;
+      toRemove       = pendingRemoves;
+      pendingDataSet = new KeyValueDataSet();
+      pendingRemoves = new HashSet<>();
+      flushScheduled = false;
+    }
+
+    long start = System.nanoTime();
+    storage.writeDataSet(toWrite, toRemove);
+    metrics.onFlush(System.nanoTime() - start);
+  }
+
+  private synchronized void initializeIfNecessary() {
     if (dataSet != null) return;
     this.dataSet = storage.getDataSet();
   }
@@ -207,4 +269,37 @@ public final class KeyValueStore implements KeyValueReader {
       blockUntilAllWritesFinished();
     }
   }
+
+  private static final class Metrics {
+    private long writes;
+    private long totalWriteWaitNanos;
+    private long maxWriteWaitNanos;
+    private long flushes;
+    private long totalFlushNanos;
+    private long maxFlushNanos;
+
+    synchronized void onWrite(long waitNanos) {
+      writes++;
+      totalWriteWaitNanos += waitNanos;
+      maxWriteWaitNanos    = Math.max(maxWriteWaitNanos, waitNanos);
+    }
+
+    synchronized void onFlush(long durationNanos) {
+      flushes++;
+      totalFlushNanos += durationNanos;
+      maxFlushNanos    = Math.max(maxFlushNanos, durationNanos);
+    }
+
+    @Override
+    public synchronized @NonNull String toString() {
+      return String.format(Locale.US,
+                           "writes: %d (avg wait %.3f ms, max %.3f ms), flushes: %d (avg %.3f ms, max %.3f ms)",
+                           writes,
+                           writes > 0 ? totalWriteWaitNanos / 1_000_000.0 / writes : 0.0,
+                           maxWriteWaitNanos / 1_000_000.0,
+                           flushes,
+                           flushes > 0 ? totalFlushNanos / 1_000_000.0 / flushes : 0.0,
+                           maxFlushNanos / 1_000_000.0);
+    }
+  }
 }
@@ -36,6 +36,7 @@ internal class MiscellaneousValues internal constructor(store: KeyValueStore) :
     private const val LINKED_DEVICE_LAST_ACTIVE_CHECK_TIME = "misc.linked_device.last_active_check_time"
     private const val LEAST_ACTIVE_LINKED_DEVICE = "misc.linked_device.least_active"
     private const val NEXT_DATABASE_ANALYSIS_TIME = "misc.next_database_analysis_time"
+    private const val ATTACHMENT_HASH_BACKFILL_CURSOR = "misc.attachment_hash_backfill_cursor"
   }
 
   public override fun onFirstEverAppLaunch() {
@@ -242,4 +243,9 @@ internal class MiscellaneousValues internal constructor(store: KeyValueStore) :
    * When the next scheduled database analysis is.
    */
   var nextDatabaseAnalysisTime: Long by longValue(NEXT_DATABASE_ANALYSIS_TIME, 0)
+
+  /**
+   * The attachment ID that the hash backfill has worked its way down to. Only attachments below it are left to be hashed in this pass.
+   */
+  var attachmentHashBackfillCursor: Long by longValue(ATTACHMENT_HASH_BACKFILL_CURSOR, Long.MAX_VALUE)
 }
@@ -296,6 +296,13 @@ public final class SignalStore {
     getStore().blockUntilAllWritesFinished();
   }
 
+  /**
+   * @return Write contention and latency of the underlying store, for the debug log.
+   */
+  public static @NonNull String getStoreMetrics() {
+    return getStore().getMetrics();
+  }
+
   private static @NonNull KeyValueStore getStore() {
     return getInstance().store;
   }
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2023 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.thoughtcrime.securesms.logging
+
+import org.signal.core.util.logging.Log
+import org.signal.core.util.logging.Scrubber
+import org.thoughtcrime.securesms.database.model.LogEntry
+import java.text.SimpleDateFormat
+import java.util.Date
+import java.util.Locale
+
+/**
+ * Turns stored [LogEntry]s into the lines that show up in the debug log.
+ *
+ * Every line of an entry shares the same prefix, so a stack trace reads as a run of lines from the same tag. Lines are scrubbed here
+ * rather than when they're written, unless [Log.alwaysRedact] is set, in which case the message was already scrubbed before it reached
+ * the logger.
+ *
+ * Not thread safe.
+ */
+class LogEntryFormatter {
+
+  private val dateFormat = SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS zzz", Locale.US)
+  private val date = Date()
+  private val prefix = StringBuilder()
+
+  /**
+   * Adds the lines of [entry] to [out], in order.
+   */
+  fun format(entry: LogEntry, out: MutableCollection<String>) {
+    date.time = entry.createdAt
+
+    prefix.setLength(0)
+    prefix.append('[').append(entry.versionName).append("] [")
+    appendThread(entry.threadId)
+    prefix.append("] ").append(dateFormat.format(date))
+    prefix.append(' ').append(entry.level)
+    prefix.append(' ').append(entry.tag).append(": ")
+
+    val prefixLength = prefix.length
+
+    out += line(prefixLength, entry.message)
+
+    if (entry.stackTrace != null) {
+      var start = 0
+      while (true) {
+        val end = entry.stackTrace.indexOf('\n', start)
+        if (end < 0) {
+          out += line(prefixLength, entry.stackTrace.substring(start))
+          break
+        }
+
+        out += line(prefixLength, entry.stackTrace.substring(start, end))
+        start = end + 1
+      }
+    }
+  }
+
+  fun format(entry: LogEntry): List<String> {
+    return ArrayList<String>(entry.lineCount).also { format(entry, it) }
+  }
+
+  private fun line(prefixLength: Int, message: String?): String {
+    prefix.setLength(prefixLength)
+    prefix.append(if (Log.alwaysRedact) message ?: "" else Scrubber.scrub(message ?: ""))
+    return prefix.toString()
+  }
+
+  /**
+   * Thread ids are left-aligned in a column of five, and the main thread is always "main ".
+   */
+  private fun appendThread(threadId: Long) {
+    val start = prefix.length
+
+    if (threadId == LogEntry.MAIN_THREAD_ID) {
+      prefix.append("main")
+    } else {
+      prefix.append(threadId)
+    }
+
+    while (prefix.length - start < 5) {
+      prefix.append(' ')
+    }
+  }
+}
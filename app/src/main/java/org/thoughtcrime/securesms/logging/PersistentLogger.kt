@@ -2,8 +2,8 @@ package org.thoughtcrime.securesms.logging
 
 import android.app.Application
 import android.os.Looper
+import androidx.annotation.VisibleForTesting
 import org.signal.core.util.logging.Log
-import org.signal.core.util.logging.Scrubber
 import org.thoughtcrime.securesms.BuildConfig
 import org.thoughtcrime.securesms.database.LogDatabase
 import org.thoughtcrime.securesms.database.model.LogEntry
@@ -11,9 +11,6 @@ import org.thoughtcrime.securesms.logging.PersistentLogger.LogRequest
 import org.thoughtcrime.securesms.logging.PersistentLogger.WriteThread
 import java.io.ByteArrayOutputStream
 import java.io.PrintStream
-import java.text.SimpleDateFormat
-import java.util.Date
-import java.util.Locale
 
 /**
  * A logger that will persist log entries in [LogDatabase].
@@ -23,7 +20,10 @@ import java.util.Locale
  *
  * The process looks something like:
  * - Main thread creates a [LogRequest] object and puts it in a queue
- * - The [WriteThread] constantly pulls from that queue, formats the logs, and writes them to the database.
+ * - The [WriteThread] constantly pulls from that queue, turns them into [LogEntry]s, and writes them to the database.
+ *
+ * Entries are stored unformatted and unscrubbed. That work is only done for the comparatively tiny fraction of logs that are ever read
+ * back, by [LogEntryFormatter].
  */
 class PersistentLogger(
   application: Application
@@ -35,11 +35,31 @@ class PersistentLogger(
     private const val LOG_I = "I"
     private const val LOG_W = "W"
     private const val LOG_E = "E"
+
+    @VisibleForTesting
+    fun createLogEntry(level: String, tag: String, message: String?, createTime: Long, threadId: Long, throwable: Throwable?, keepLonger: Boolean): LogEntry {
+      return LogEntry(
+        createdAt = createTime,
+        keepLonger = keepLonger,
+        level = level,
+        tag = tag,
+        threadId = threadId,
+        message = message,
+        stackTrace = throwable?.let { stackTraceString(it) },
+        versionName = BuildConfig.VERSION_NAME
+      )
+    }
+
+    private fun stackTraceString(throwable: Throwable): String {
+      val outputStream = ByteArrayOutputStream()
+      throwable.printStackTrace(PrintStream(outputStream))
+      return String(outputStream.toByteArray())
+    }
   }
 
   private val logEntries = LogRequests()
   private val logDatabase = LogDatabase.getInstance(application)
-  private val cachedThreadString: ThreadLocal<String> = ThreadLocal()
+  private val cachedThreadId: ThreadLocal<Long> = ThreadLocal()
 
   init {
     WriteThread(logEntries, logDatabase).apply {
@@ -78,23 +98,23 @@ class PersistentLogger(
   }
 
   private fun write(level: String, tag: String?, message: String?, t: Throwable?, keepLonger: Boolean) {
-    logEntries.add(LogRequest(level, tag ?: "null", message, System.currentTimeMillis(), getThreadString(), t, keepLonger))
+    logEntries.add(LogRequest(level, tag ?: "null", message, System.currentTimeMillis(), getThreadId(), t, keepLonger))
   }
 
-  private fun getThreadString(): String {
-    var threadString = cachedThreadString.get()
+  private fun getThreadId(): Long {
+    var threadId = cachedThreadId.get()
 
-    if (cachedThreadString.get() == null) {
-      threadString = if (Looper.myLooper() == Looper.getMainLooper()) {
-        "main "
+    if (threadId == null) {
+      threadId = if (Looper.myLooper() == Looper.getMainLooper()) {
+        LogEntry.MAIN_THREAD_ID
       } else {
-        String.format("%-5s", Thread.currentThread().id)
+        Thread.currentThread().id
       }
 
-      cachedThreadString.set(threadString)
+      cachedThreadId.set(threadId)
     }
 
-    return threadString!!
+    return threadId
   }
 
   private data class LogRequest(
@@ -102,7 +122,7 @@ class PersistentLogger(
     val tag: String,
     val message: String?,
     val createTime: Long,
-    val threadString: String,
+    val threadId: Long,
     val throwable: Throwable?,
     val keepLonger: Boolean
   )
@@ -112,56 +132,19 @@ class PersistentLogger(
     private val db: LogDatabase
   ) : Thread("signal-logger") {
 
-    private val dateFormat = SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS zzz", Locale.US)
     private val buffer = mutableListOf<LogRequest>()
+    private val entries = mutableListOf<LogEntry>()
 
     override fun run() {
       while (true) {
         requests.blockForRequests(buffer)
-        db.logs.insert(buffer.flatMap { requestToEntries(it) }, System.currentTimeMillis())
+        buffer.mapTo(entries) { createLogEntry(it.level, it.tag, it.message, it.createTime, it.threadId, it.throwable, it.keepLonger) }
+        db.logs.insert(entries, System.currentTimeMillis())
         buffer.clear()
+        entries.clear()
         requests.notifyFlushed()
       }
     }
-
-    fun requestToEntries(request: LogRequest): List<LogEntry> {
-      val out = mutableListOf<LogEntry>()
-
-      val createDate = Date(request.createTime)
-
-      out.add(
-        LogEntry(
-          createdAt = request.createTime,
-          keepLonger = request.keepLonger,
-          body = formatBody(request.threadString, createDate, request.level, request.tag, request.message)
-        )
-      )
-
-      if (request.throwable != null) {
-        val outputStream = ByteArrayOutputStream()
-        request.throwable.printStackTrace(PrintStream(outputStream))
-
-        val trace = String(outputStream.toByteArray())
-        val lines = trace.split("\\n".toRegex()).toTypedArray()
-
-        val entries = lines.map { line ->
-          LogEntry(
-            createdAt = request.createTime,
-            keepLonger = request.keepLonger,
-            body = formatBody(request.threadString, createDate, request.level, request.tag, line)
-          )
-        }
-
-        out.addAll(entries)
-      }
-
-      return out
-    }
-
-    fun formatBody(threadString: String, date: Date, level: String, tag: String, message: String?): String {
-      val redacted = if (Log.alwaysRedact) message ?: "" else Scrubber.scrub(message ?: "")
-      return "[${BuildConfig.VERSION_NAME}] [$threadString] ${dateFormat.format(date)} $level $tag: $redacted"
-    }
   }
 
   private class LogRequests {
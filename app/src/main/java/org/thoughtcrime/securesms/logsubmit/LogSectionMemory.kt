@@ -6,6 +6,8 @@ import org.signal.core.util.MemoryTracker
 import org.signal.core.util.bytes
 import org.signal.core.util.kibiBytes
 import org.signal.core.util.roundedString
+import org.thoughtcrime.securesms.dependencies.ApplicationDependencies
+import org.thoughtcrime.securesms.util.SizedLruCache
 
 class LogSectionMemory : LogSection {
   override fun getTitle(): String = "MEMORY"
@@ -43,6 +45,16 @@ class LogSectionMemory : LogSection {
       """.trimIndent()
     }
 
+    base += "\n\n"
+    base += """
+      -- Caches
+      Recipients: ${ApplicationDependencies.getRecipientCache().stats}
+    """.trimIndent()
+
+    for (cache in SizedLruCache.getAll()) {
+      base += "\n${cache.name}: ${cache.getStats()}"
+    }
+
     return base
   }
 
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2023 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.thoughtcrime.securesms.messages
+
+import org.signal.libsignal.metadata.certificate.CertificateValidator
+import org.thoughtcrime.securesms.crypto.ReentrantSessionLock
+import org.thoughtcrime.securesms.crypto.UnidentifiedAccessUtil
+import org.thoughtcrime.securesms.keyvalue.SignalStore
+import org.thoughtcrime.securesms.messages.protocol.BufferedProtocolStore
+import org.whispersystems.signalservice.api.SignalServiceAccountDataStore
+import org.whispersystems.signalservice.api.crypto.SignalServiceCipher
+import org.whispersystems.signalservice.api.push.ServiceId
+import org.whispersystems.signalservice.api.push.ServiceId.ACI
+import org.whispersystems.signalservice.api.push.ServiceId.PNI
+import org.whispersystems.signalservice.api.push.SignalServiceAddress
+
+/**
+ * Everything [MessageDecryptor] needs that doesn't change between envelopes in a batch: our own identifiers, and a
+ * [SignalServiceCipher] per identity that we can receive at. Build one per batch with [create], so that the per-envelope
+ * cost is only the decryption itself.
+ *
+ * Ciphers are bound to the protocol store they were created with, so a context must not outlive the batch's
+ * [BufferedProtocolStore].
+ */
+class DecryptContext(
+  val selfAci: ACI,
+  val selfPni: PNI,
+  selfE164: String?,
+  private val deviceId: Int,
+  private val certificateValidator: CertificateValidator?,
+  private val protocolStoreFor: (ServiceId) -> SignalServiceAccountDataStore
+) {
+
+  companion object {
+    @JvmStatic
+    fun create(bufferedProtocolStore: BufferedProtocolStore): DecryptContext {
+      return DecryptContext(
+        selfAci = SignalStore.account().requireAci(),
+        selfPni = SignalStore.account().requirePni(),
+        selfE164 = SignalStore.account().e164,
+        deviceId = SignalStore.account().deviceId,
+        certificateValidator = UnidentifiedAccessUtil.getCertificateValidator(),
+        protocolStoreFor = { bufferedProtocolStore.get(it) }
+      )
+    }
+  }
+
+  private val localAddress = SignalServiceAddress(selfAci, selfE164)
+
+  private val ciphers: MutableMap<ServiceId, SignalServiceCipher> = HashMap(2)
+
+  /**
+   * @param destination Must be either [selfAci] or [selfPni].
+   */
+  fun cipherFor(destination: ServiceId): SignalServiceCipher {
+    return ciphers.getOrPut(destination) {
+      SignalServiceCipher(localAddress, deviceId, protocolStoreFor(destination), ReentrantSessionLock.INSTANCE, certificateValidator)
+    }
+  }
+}
@@ -279,7 +279,12 @@ class IncomingMessageObserver(private val context: Application) {
   }
 
   @VisibleForTesting
-  fun processEnvelope(bufferedProtocolStore: BufferedProtocolStore, envelope: Envelope, serverDeliveredTimestamp: Long): List<FollowUpOperation>? {
+  fun processEnvelope(
+    bufferedProtocolStore: BufferedProtocolStore,
+    envelope: Envelope,
+    serverDeliveredTimestamp: Long,
+    decryptContext: DecryptContext = DecryptContext.create(bufferedProtocolStore)
+  ): List<FollowUpOperation>? {
     return when (envelope.type) {
       Envelope.Type.RECEIPT -> {
         processReceipt(envelope)
@@ -290,7 +295,7 @@ class IncomingMessageObserver(private val context: Application) {
       Envelope.Type.CIPHERTEXT,
       Envelope.Type.UNIDENTIFIED_SENDER,
       Envelope.Type.PLAINTEXT_CONTENT -> {
-        processMessage(bufferedProtocolStore, envelope, serverDeliveredTimestamp)
+        processMessage(bufferedProtocolStore, decryptContext, envelope, serverDeliveredTimestamp)
       }
 
       else -> {
@@ -300,9 +305,9 @@ class IncomingMessageObserver(private val context: Application) {
     }
   }
 
-  private fun processMessage(bufferedProtocolStore: BufferedProtocolStore, envelope: Envelope, serverDeliveredTimestamp: Long): List<FollowUpOperation> {
+  private fun processMessage(bufferedProtocolStore: BufferedProtocolStore, decryptContext: DecryptContext, envelope: Envelope, serverDeliveredTimestamp: Long): List<FollowUpOperation> {
     val localReceiveMetric = SignalLocalMetrics.MessageReceive.start()
-    val result = MessageDecryptor.decrypt(context, bufferedProtocolStore, envelope, serverDeliveredTimestamp)
+    val result = MessageDecryptor.decrypt(context, bufferedProtocolStore, envelope, serverDeliveredTimestamp, decryptContext)
     localReceiveMetric.onEnvelopeDecrypted()
 
     SignalLocalMetrics.MessageLatency.onMessageReceived(envelope.serverTimestamp!!, serverDeliveredTimestamp, envelope.urgent!!)
@@ -404,6 +409,7 @@ class IncomingMessageObserver(private val context: Application) {
               val hasMore = signalWebSocket.readMessageBatch(websocketReadTimeout, 30) { batch ->
                 Log.i(TAG, "Retrieved ${batch.size} envelopes!")
                 val bufferedStore = BufferedProtocolStore.create()
+                val decryptContext = DecryptContext.create(bufferedStore)
 
                 val startTime = System.currentTimeMillis()
                 GroupsV2ProcessingLock.acquireGroupProcessingLock().use {
@@ -411,7 +417,7 @@ class IncomingMessageObserver(private val context: Application) {
                     batch.forEach { response ->
                       Log.d(TAG, "Beginning database transaction...")
                       val followUpOperations = SignalDatabase.runInTransaction { db ->
-                        val followUps: List<FollowUpOperation>? = processEnvelope(bufferedStore, response.envelope, response.serverDeliveredTimestamp)
+                        val followUps: List<FollowUpOperation>? = processEnvelope(bufferedStore, response.envelope, response.serverDeliveredTimestamp, decryptContext)
                         bufferedStore.flushToDisk()
                         followUps
                       }
@@ -32,7 +32,6 @@ import org.signal.libsignal.protocol.message.SenderKeyDistributionMessage
 import org.signal.libsignal.zkgroup.groups.GroupMasterKey
 import org.thoughtcrime.securesms.R
 import org.thoughtcrime.securesms.crypto.ReentrantSessionLock
-import org.thoughtcrime.securesms.crypto.UnidentifiedAccessUtil
 import org.thoughtcrime.securesms.database.SignalDatabase
 import org.thoughtcrime.securesms.dependencies.ApplicationDependencies
 import org.thoughtcrime.securesms.groups.BadGroupIdException
@@ -56,7 +55,6 @@ import org.whispersystems.signalservice.api.InvalidMessageStructureException
 import org.whispersystems.signalservice.api.crypto.ContentHint
 import org.whispersystems.signalservice.api.crypto.EnvelopeMetadata
 import org.whispersystems.signalservice.api.crypto.SignalGroupSessionBuilder
-import org.whispersystems.signalservice.api.crypto.SignalServiceCipher
 import org.whispersystems.signalservice.api.crypto.SignalServiceCipherResult
 import org.whispersystems.signalservice.api.messages.EnvelopeContentValidator
 import org.whispersystems.signalservice.api.push.ServiceId
@@ -86,15 +84,18 @@ object MessageDecryptor {
    * That means that this operation should be atomic when performed within a transaction.
    * To keep that property, there may be [Result.followUpOperations] you have to perform after your transaction is committed.
    * These can vary from enqueueing jobs to inserting items into the [org.thoughtcrime.securesms.database.PendingRetryReceiptCache].
+   *
+   * When decrypting a batch of envelopes, pass the same [decryptContext] for all of them.
    */
   fun decrypt(
     context: Context,
     bufferedProtocolStore: BufferedProtocolStore,
     envelope: Envelope,
-    serverDeliveredTimestamp: Long
+    serverDeliveredTimestamp: Long,
+    decryptContext: DecryptContext = DecryptContext.create(bufferedProtocolStore)
   ): Result {
-    val selfAci: ACI = SignalStore.account().requireAci()
-    val selfPni: PNI = SignalStore.account().requirePni()
+    val selfAci: ACI = decryptContext.selfAci
+    val selfPni: PNI = decryptContext.selfPni
 
     val destination: ServiceId? = ServiceId.parseOrNull(envelope.destinationServiceId)
 
@@ -135,9 +136,7 @@ object MessageDecryptor {
       }
     }
 
-    val bufferedStore = bufferedProtocolStore.get(destination)
-    val localAddress = SignalServiceAddress(selfAci, SignalStore.account().e164)
-    val cipher = SignalServiceCipher(localAddress, SignalStore.account().deviceId, bufferedStore, ReentrantSessionLock.INSTANCE, UnidentifiedAccessUtil.getCertificateValidator())
+    val cipher = decryptContext.cipherFor(destination)
 
     return try {
       val startTimeNanos = System.nanoTime()
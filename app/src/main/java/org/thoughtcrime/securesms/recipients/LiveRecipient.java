@@ -197,9 +197,28 @@ public final class LiveRecipient {
     return observableLiveDataResolved;
   }
 
+  /**
+   * Resolves this recipient from a record that has already been read from disk, as part of a bulk load. If the recipient was resolved
+   * in the meantime, the current value is kept.
+   */
+  @WorkerThread
+  @NonNull Recipient resolve(@NonNull RecipientRecord record) {
+    Recipient current = recipient.get();
+
+    if (!current.isResolving() || current.getId().isUnknown()) {
+      return current;
+    }
+
+    Recipient updated = createAndCacheRecipient(record);
+    set(updated);
+    return updated;
+  }
+
   private @NonNull Recipient fetchAndCacheRecipientFromDisk(@NonNull RecipientId id) {
-    RecipientRecord record = recipientTable.getRecord(id);
+    return createAndCacheRecipient(recipientTable.getRecord(id));
+  }
 
+  private @NonNull Recipient createAndCacheRecipient(@NonNull RecipientRecord record) {
     Recipient recipient;
     if (record.getGroupId() != null) {
       recipient = getGroupRecipientDetails(record);
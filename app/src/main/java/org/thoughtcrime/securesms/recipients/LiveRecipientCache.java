@@ -7,6 +7,7 @@ import androidx.annotation.AnyThread;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.annotation.VisibleForTesting;
+import androidx.annotation.WorkerThread;
 
 import org.signal.core.util.ThreadUtil;
 import org.signal.core.util.concurrent.SignalExecutors;
@@ -15,35 +16,44 @@ import org.thoughtcrime.securesms.database.RecipientTable;
 import org.thoughtcrime.securesms.database.RecipientTable.MissingRecipientException;
 import org.thoughtcrime.securesms.database.SignalDatabase;
 import org.thoughtcrime.securesms.database.ThreadTable;
+import org.thoughtcrime.securesms.database.model.RecipientRecord;
 import org.thoughtcrime.securesms.database.model.ThreadRecord;
 import org.thoughtcrime.securesms.keyvalue.SignalStore;
 import org.signal.core.util.CursorUtil;
-import org.thoughtcrime.securesms.util.LRUCache;
 import org.signal.core.util.Stopwatch;
 import org.thoughtcrime.securesms.util.concurrent.FilteredExecutor;
 import org.whispersystems.signalservice.api.push.ServiceId.ACI;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 
 public final class LiveRecipientCache {
 
   private static final String TAG = Log.tag(LiveRecipientCache.class);
 
-  private static final int CACHE_MAX              = 1000;
+  private static final int CACHE_MIN              = 1000;
+  private static final int CACHE_MAX              = 5000;
+  private static final int CACHE_HEAP_PER_ENTRY   = 64 * 1024;
   private static final int THREAD_CACHE_WARM_MAX  = 500;
   private static final int CONTACT_CACHE_WARM_MAX = 50;
+  private static final int PARALLEL_RESOLVE_MIN   = 16;
+  private static final int RESOLVE_HELPERS        = 3;
 
-  private final Context                         context;
-  private final RecipientTable                  recipientTable;
-  private final Map<RecipientId, LiveRecipient> recipients;
-  private final LiveRecipient                   unknown;
-  private final Executor                        resolveExecutor;
+  private final Context           context;
+  private final RecipientTable    recipientTable;
+  private final RecipientLruCache recipients;
+  private final LiveRecipient     unknown;
+  private final Executor          resolveExecutor;
 
   private final AtomicReference<RecipientId> localRecipientId;
   private final AtomicBoolean                warmedUp;
@@ -54,13 +64,13 @@ public final class LiveRecipientCache {
 
   @VisibleForTesting
   public LiveRecipientCache(@NonNull Context context, @NonNull Executor executor) {
-    this.context        = context.getApplicationContext();
-    this.recipientTable = SignalDatabase.recipients();
-    this.recipients     = new LRUCache<>(CACHE_MAX);
-    this.warmedUp          = new AtomicBoolean(false);
-    this.localRecipientId  = new AtomicReference<>(null);
-    this.unknown           = new LiveRecipient(context, Recipient.UNKNOWN);
-    this.resolveExecutor   = executor;
+    this.context          = context.getApplicationContext();
+    this.recipientTable   = SignalDatabase.recipients();
+    this.recipients       = new RecipientLruCache(getInitialCacheSize());
+    this.warmedUp         = new AtomicBoolean(false);
+    this.localRecipientId = new AtomicReference<>(null);
+    this.unknown          = new LiveRecipient(context, Recipient.UNKNOWN);
+    this.resolveExecutor  = executor;
   }
 
   @AnyThread
@@ -76,8 +86,10 @@ public final class LiveRecipientCache {
       if (live == null) {
         live = new LiveRecipient(context, RecipientCreator.forId(id));
         recipients.put(id, live);
+        recipients.misses++;
         needsResolve = true;
       } else {
+        recipients.hits++;
         needsResolve = false;
       }
     }
@@ -89,6 +101,106 @@ public final class LiveRecipientCache {
     return live;
   }
 
+  /**
+   * Resolves all of the provided recipients. Rather than reading unresolved recipients from disk one at a time, they are all read with a
+   * single bulk query, built in parallel, and added to the cache together. The cache is sized for each batch, so that a large one (like the
+   * members of a big group) does not evict itself, and it shrinks back once smaller batches are being loaded again.
+   *
+   * @return The resolved recipients, in the same order as the provided ids.
+   */
+  @WorkerThread
+  @NonNull List<Recipient> getResolved(@NonNull Collection<RecipientId> ids) {
+    List<LiveRecipient>             live       = new ArrayList<>(ids.size());
+    Map<RecipientId, LiveRecipient> unresolved = new LinkedHashMap<>();
+
+    synchronized (recipients) {
+      recipients.resizeFor(ids.size() * 2);
+
+      for (RecipientId id : ids) {
+        if (id.isUnknown()) {
+          live.add(unknown);
+          continue;
+        }
+
+        LiveRecipient entry = recipients.get(id);
+
+        if (entry == null) {
+          entry = new LiveRecipient(context, RecipientCreator.forId(id));
+          recipients.put(id, entry);
+          recipients.misses++;
+        } else {
+          recipients.hits++;
+        }
+
+        if (entry.get().isResolving()) {
+          unresolved.put(id, entry);
+        }
+
+        live.add(entry);
+      }
+
+      if (!unresolved.isEmpty()) {
+        recipients.bulkLoads++;
+      }
+    }
+
+    if (!unresolved.isEmpty()) {
+      Map<RecipientId, RecipientRecord> records = recipientTable.getRecords(unresolved.keySet());
+      resolveAll(new ArrayList<>(unresolved.values()), records);
+    }
+
+    List<Recipient> resolved = new ArrayList<>(live.size());
+    for (LiveRecipient entry : live) {
+      resolved.add(entry.resolve());
+    }
+
+    return resolved;
+  }
+
+  /**
+   * Builds recipients from bulk loaded records. Large batches are shared with tasks on the resolve executor, but the calling thread works
+   * through the batch too, and only ever waits on recipients a task has already started building. That way, a busy executor just means
+   * the calling thread does more of the work itself.
+   */
+  private void resolveAll(@NonNull List<LiveRecipient> toResolve, @NonNull Map<RecipientId, RecipientRecord> records) {
+    AtomicInteger  next      = new AtomicInteger(0);
+    CountDownLatch remaining = new CountDownLatch(toResolve.size());
+
+    Runnable worker = () -> {
+      int i;
+      while ((i = next.getAndIncrement()) < toResolve.size()) {
+        try {
+          LiveRecipient   live   = toResolve.get(i);
+          RecipientRecord record = records.get(live.getId());
+
+          if (record != null) {
+            live.resolve(record);
+          } else {
+            live.resolve();
+          }
+        } finally {
+          remaining.countDown();
+        }
+      }
+    };
+
+    // Building group and distribution list recipients reads from the database, which would deadlock with a transaction held by this thread.
+    int helpers = SignalDatabase.inTransaction() ? 0 : Math.min(RESOLVE_HELPERS, toResolve.size() / PARALLEL_RESOLVE_MIN);
+
+    for (int i = 0; i < helpers; i++) {
+      resolveExecutor.execute(worker);
+    }
+
+    worker.run();
+
+    try {
+      remaining.await();
+    } catch (InterruptedException e) {
+      Log.w(TAG, "Interrupted while waiting on a bulk resolve. Anything still unresolved will be resolved by the caller.");
+      Thread.currentThread().interrupt();
+    }
+  }
+
   /**
    * Handles remapping cache entries when recipients are merged.
    */
@@ -234,14 +346,14 @@ public final class LiveRecipientCache {
 
       if (SignalStore.registrationValues().isRegistrationComplete() && SignalStore.account().getAci() != null) {
         try (Cursor cursor = SignalDatabase.recipients().getNonGroupContacts(false)) {
-          int count = 0;
-          while (cursor != null && cursor.moveToNext() && count < CONTACT_CACHE_WARM_MAX) {
-            RecipientId id = RecipientId.from(CursorUtil.requireLong(cursor, RecipientTable.ID));
-            Recipient.resolved(id);
-            count++;
+          List<RecipientId> ids = new ArrayList<>(CONTACT_CACHE_WARM_MAX);
+          while (cursor != null && cursor.moveToNext() && ids.size() < CONTACT_CACHE_WARM_MAX) {
+            ids.add(RecipientId.from(CursorUtil.requireLong(cursor, RecipientTable.ID)));
           }
 
-          Log.d(TAG, "Warmed up " + count + " contact recipient.");
+          getResolved(ids);
+
+          Log.d(TAG, "Warmed up " + ids.size() + " contact recipient.");
 
           stopwatch.split("contact");
         }
@@ -261,11 +373,93 @@ public final class LiveRecipientCache {
   @AnyThread
   public void clear() {
     synchronized (recipients) {
-      recipients.clear();
+      recipients.reset();
+    }
+  }
+
+  @AnyThread
+  public @NonNull String getStats() {
+    synchronized (recipients) {
+      long requests = recipients.hits + recipients.misses;
+      return String.format(Locale.US,
+                           "size: %d/%d, hits: %d, misses: %d (%.1f%%), evictions: %d, bulk loads: %d",
+                           recipients.size(),
+                           recipients.maxSize,
+                           recipients.hits,
+                           recipients.misses,
+                           requests > 0 ? recipients.misses * 100f / requests : 0f,
+                           recipients.evictions,
+                           recipients.bulkLoads);
     }
   }
 
   private boolean isValidForCache(@NonNull Recipient recipient) {
     return !recipient.getId().isUnknown() && (recipient.getHasServiceId() || recipient.getGroupId().isPresent() || recipient.getHasSmsAddress());
   }
+
+  /**
+   * Sizes the cache by the available heap, so that devices with more memory can keep more recipients around.
+   */
+  private static int getInitialCacheSize() {
+    long bySize = Runtime.getRuntime().maxMemory() / CACHE_HEAP_PER_ENTRY;
+    return (int) Math.max(CACHE_MIN, Math.min(CACHE_MAX, bySize));
+  }
+
+  /**
+   * An LRU cache whose size can grow up to {@link #CACHE_MAX} and shrink back to its initial size, which keeps track of how well it is doing. All access must be synchronized
+   * on the instance.
+   */
+  private static final class RecipientLruCache extends LinkedHashMap<RecipientId, LiveRecipient> {
+
+    private final int initialSize;
+
+    private int  maxSize;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long bulkLoads;
+
+    RecipientLruCache(int maxSize) {
+      super(maxSize / 2, 0.75f, true);
+      this.initialSize = maxSize;
+      this.maxSize     = maxSize;
+    }
+
+    /**
+     * Sizes the cache to hold {@code size} entries, within its initial size and {@link #CACHE_MAX}. When it shrinks, the least recently
+     * used entries that no longer fit are evicted.
+     */
+    void resizeFor(int size) {
+      int newSize = Math.max(initialSize, Math.min(CACHE_MAX, size));
+
+      if (newSize == maxSize) {
+        return;
+      }
+
+      Log.i(TAG, (newSize > maxSize ? "Growing" : "Shrinking") + " cache from " + maxSize + " to " + newSize);
+      maxSize = newSize;
+
+      Iterator<LiveRecipient> iterator = values().iterator();
+      while (size() > maxSize && iterator.hasNext()) {
+        iterator.next();
+        iterator.remove();
+        evictions++;
+      }
+    }
+
+    void reset() {
+      clear();
+      maxSize = initialSize;
+    }
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<RecipientId, LiveRecipient> eldest) {
+      if (size() > maxSize) {
+        evictions++;
+        return true;
+      } else {
+        return false;
+      }
+    }
+  }
 }
@@ -888,7 +888,7 @@ class Recipient(
     @JvmStatic
     @WorkerThread
     fun resolvedList(ids: Collection<RecipientId>): List<Recipient> {
-      return ids.map { resolved(it) }
+      return ApplicationDependencies.getRecipientCache().getResolved(ids)
     }
 
     @JvmStatic
@@ -7,6 +7,7 @@ import android.os.Parcelable;
 import androidx.annotation.AnyThread;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
 
 import com.annimon.stream.Stream;
 
@@ -22,7 +23,9 @@ import org.whispersystems.signalservice.api.push.SignalServiceAddress;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.regex.Pattern;
 
 public class RecipientId implements Parcelable, Comparable<RecipientId>, DatabaseId {
@@ -66,6 +69,49 @@ public class RecipientId implements Parcelable, Comparable<RecipientId>, Databas
     return from(serviceId, null);
   }
 
+  /**
+   * Equivalent to calling {@link #from(ServiceId)} for each service id, but looks up everything that isn't cached with a single
+   * query. Only service ids that don't have a recipient yet are inserted one at a time.
+   */
+  @WorkerThread
+  public static @NonNull Map<ServiceId, RecipientId> fromServiceIds(@NonNull Collection<? extends ServiceId> serviceIds) {
+    Map<ServiceId, RecipientId> results = new HashMap<>(serviceIds.size());
+    List<ServiceId>             misses  = new ArrayList<>();
+
+    for (ServiceId serviceId : serviceIds) {
+      if (serviceId.isUnknown()) {
+        results.put(serviceId, RecipientId.UNKNOWN);
+        continue;
+      }
+
+      RecipientId cached = RecipientIdCache.INSTANCE.get(serviceId, null);
+      if (cached != null) {
+        results.put(serviceId, cached);
+      } else {
+        misses.add(serviceId);
+      }
+    }
+
+    if (misses.isEmpty()) {
+      return results;
+    }
+
+    Map<ServiceId, RecipientId> found = SignalDatabase.recipients().getByServiceIds(misses);
+
+    for (ServiceId serviceId : misses) {
+      RecipientId recipientId = found.get(serviceId);
+
+      if (recipientId != null) {
+        RecipientIdCache.INSTANCE.put(recipientId, null, serviceId);
+        results.put(serviceId, recipientId);
+      } else {
+        results.put(serviceId, from(serviceId));
+      }
+    }
+
+    return results;
+  }
+
   @AnyThread
   public static @NonNull RecipientId fromE164(@NonNull String identifier) {
     return from(null, identifier);
@@ -1,3 +1,6 @@
 package org.thoughtcrime.securesms.search
 
-data class MessageSearchResult(val results: List<MessageResult>, val query: String)
+/**
+ * @param unresolvedMessageIds Ids of results whose bodies and snippets do not have mentions and styles applied yet. See [SearchRepository.resolveMessageResults].
+ */
+data class MessageSearchResult(val results: List<MessageResult>, val query: String, val unresolvedMessageIds: Set<Long> = emptySet())
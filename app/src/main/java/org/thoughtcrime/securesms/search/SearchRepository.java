@@ -9,10 +9,12 @@ import android.text.TextUtils;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
 import androidx.annotation.WorkerThread;
 
 import org.signal.core.util.CursorUtil;
 import org.signal.core.util.StringUtil;
+import org.signal.core.util.ThreadUtil;
 import org.signal.core.util.concurrent.SignalExecutors;
 import org.signal.core.util.logging.Log;
 import org.thoughtcrime.securesms.contacts.ContactRepository;
@@ -42,6 +44,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashSet;
 import java.util.LinkedList;
@@ -49,7 +52,15 @@ import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import io.reactivex.rxjava3.core.Observable;
+import io.reactivex.rxjava3.schedulers.Schedulers;
+import kotlin.ranges.LongRange;
 
 import static org.thoughtcrime.securesms.database.SearchTable.SNIPPET_WRAP;
 
@@ -60,6 +71,20 @@ public class SearchRepository {
 
   private static final String TAG = Log.tag(SearchRepository.class);
 
+  /** The maximum number of message results for a query, matching the limit of a single search query. */
+  private static final int MESSAGE_LIMIT = 500;
+
+  /** How many id ranges a full search is split into, each of which is searched in parallel. */
+  private static final int SHARD_COUNT = 4;
+
+  /** How many id ranges a thread search is split into at most. */
+  private static final int STREAMING_SHARD_COUNT = 8;
+
+  /** Below this many message ids, a thread search isn't split up further, since one query is quick anyway. */
+  private static final long STREAMING_MIN_SHARD_SIZE = 2_000;
+
+  private static final ExecutorService SEARCH_EXECUTOR = SignalExecutors.newCachedBoundedExecutor("signal-search", ThreadUtil.PRIORITY_BACKGROUND_THREAD, 1, SHARD_COUNT + 1, 30);
+
   private final Context           context;
   private final String            noteToSelfTitle;
   private final SearchTable       searchDatabase;
@@ -93,34 +118,123 @@ public class SearchRepository {
     return new ThreadSearchResult(result, query);
   }
 
+  /**
+   * Searches all messages. The message id space is split into shards that are searched in parallel alongside the mention search.
+   *
+   * Mentions and styles are not applied to the bodies and snippets of full text search results, since most of them will never be shown.
+   * Use {@link #resolveMessageResults(MessageSearchResult, List)} for the results that are about to be displayed.
+   */
   @WorkerThread
   public @NonNull MessageSearchResult queryMessagesSync(@NonNull String query) {
     long start = System.currentTimeMillis();
 
-    List<MessageResult> messages        = queryMessages(query);
-    List<MessageResult> mentionMessages = queryMentions(convertMentionsQueryToTokens(query));
-    List<MessageResult> combined        = mergeMessagesAndMentions(messages, mentionMessages);
+    Future<List<MessageResult>> mentionMessages = SEARCH_EXECUTOR.submit(() -> queryMentions(convertMentionsQueryToTokens(query)));
+    List<MessageResult>         messages        = queryMessagesSharded(query);
+    List<MessageResult>         combined        = mergeMessagesAndMentions(messages, await(mentionMessages));
+
+    Set<Long> unresolvedMessageIds = new HashSet<>(messages.size());
+    for (MessageResult result : messages) {
+      unresolvedMessageIds.add(result.getMessageId());
+    }
 
     Log.d(TAG, "[messages] Search took " + (System.currentTimeMillis() - start) + " ms");
 
-    return new MessageSearchResult(combined, query);
+    return new MessageSearchResult(combined, query, unresolvedMessageIds);
   }
 
-  public void query(@NonNull String query, long threadId, @NonNull Callback<List<MessageResult>> callback) {
+  /**
+   * Applies mentions and styles to the bodies and snippets of the given results of {@link #queryMessagesSync(String)}, which should be
+   * limited to what is about to be displayed. Results that have already been processed are returned as-is.
+   */
+  @WorkerThread
+  public @NonNull List<MessageResult> resolveMessageResults(@NonNull MessageSearchResult searchResult, @NonNull List<MessageResult> results) {
+    List<MessageResult> unresolved = new ArrayList<>(results.size());
+    for (MessageResult result : results) {
+      if (searchResult.getUnresolvedMessageIds().contains(result.getMessageId())) {
+        unresolved.add(result);
+      }
+    }
+
+    if (unresolved.isEmpty()) {
+      return results;
+    }
+
+    Map<Long, MessageResult> resolved = new HashMap<>(unresolved.size());
+    for (MessageResult result : applyMentionsAndStyles(unresolved)) {
+      resolved.put(result.getMessageId(), result);
+    }
+
+    List<MessageResult> output = new ArrayList<>(results.size());
+    for (MessageResult result : results) {
+      MessageResult resolvedResult = resolved.get(result.getMessageId());
+      output.add(resolvedResult != null ? resolvedResult : result);
+    }
+
+    return output;
+  }
+
+  /**
+   * Searches the messages of a thread, newest first. The thread is searched in shards of message ids, starting with the most recent, and
+   * the merged results so far are emitted after each shard that finds something, so the newest matches show up without waiting for the
+   * whole thread to be searched. The mention search runs in parallel and is merged in once it is done.
+   *
+   * Disposing the returned observable stops the search at the next shard boundary, so an obsolete query only holds up the next one for
+   * the duration of a single shard.
+   */
+  public @NonNull Observable<List<MessageResult>> queryMessages(@NonNull String query, long threadId) {
     if (TextUtils.isEmpty(query)) {
-      callback.onResult(Collections.emptyList());
-      return;
+      return Observable.just(Collections.emptyList());
     }
 
-    serialExecutor.execute(() -> {
-      long                startTime       = System.currentTimeMillis();
-      List<MessageResult> messages        = queryMessages(query, threadId);
-      List<MessageResult> mentionMessages = queryMentions(convertMentionsQueryToTokens(query), threadId);
+    return Observable.<List<MessageResult>>create(emitter -> {
+      long                        startTime       = System.currentTimeMillis();
+      Future<List<MessageResult>> mentionMessages = SEARCH_EXECUTOR.submit(() -> queryMentions(convertMentionsQueryToTokens(query), threadId));
+
+      emitter.setCancellable(() -> mentionMessages.cancel(false));
+
+      LongRange           idRange        = messageTable.getMessageIdRange(threadId);
+      long                minId          = idRange != null ? idRange.getFirst() : 0;
+      long                shardSize      = idRange != null ? getStreamingShardSize(idRange.getFirst(), idRange.getLast()) : 0;
+      List<MessageResult> messages       = new ArrayList<>();
+      boolean             mentionsMerged = false;
+      long                shards         = 0;
+
+      for (long maxId = idRange != null ? idRange.getLast() + 1 : minId; maxId > minId && messages.size() < MESSAGE_LIMIT && !emitter.isDisposed(); maxId -= shardSize) {
+        List<MessageResult> shardMessages = queryMessages(query, threadId, Math.max(minId, maxId - shardSize), maxId);
+        shards++;
 
-      Log.d(TAG, "[ConversationQuery] " + (System.currentTimeMillis() - startTime) + " ms");
+        boolean mentionsReady = !mentionsMerged && mentionMessages.isDone() && !mentionMessages.isCancelled();
 
-      callback.onResult(mergeMessagesAndMentions(messages, mentionMessages));
-    });
+        if ((!shardMessages.isEmpty() || mentionsReady) && !emitter.isDisposed()) {
+          messages.addAll(shardMessages);
+          mentionsMerged |= mentionsReady;
+
+          emitter.onNext(mergeMessagesAndMentions(messages, mentionsMerged ? await(mentionMessages) : Collections.emptyList()));
+        }
+      }
+
+      if (emitter.isDisposed()) {
+        Log.d(TAG, "[ConversationQuery] Cancelled after " + shards + " shards, " + (System.currentTimeMillis() - startTime) + " ms");
+        return;
+      }
+
+      if (!mentionsMerged && !emitter.isDisposed()) {
+        emitter.onNext(mergeMessagesAndMentions(messages, await(mentionMessages)));
+      }
+
+      Log.d(TAG, "[ConversationQuery] " + shards + " shards, " + (System.currentTimeMillis() - startTime) + " ms");
+
+      emitter.onComplete();
+    }).subscribeOn(Schedulers.from(serialExecutor));
+  }
+
+  /**
+   * Sizes the shards of a thread search from the ids the thread actually spans, so that a thread costs at most
+   * {@link #STREAMING_SHARD_COUNT} queries no matter how many messages there are in other threads.
+   */
+  @VisibleForTesting
+  static long getStreamingShardSize(long minId, long maxId) {
+    return Math.max(STREAMING_MIN_SHARD_SIZE, (maxId - minId) / STREAMING_SHARD_COUNT + 1);
   }
 
   private @NonNull List<ThreadRecord> queryConversations(@NonNull String query, boolean unreadOnly) {
@@ -164,16 +278,37 @@ public class SearchRepository {
     }
   }
 
-  private @NonNull List<MessageResult> queryMessages(@NonNull String query) {
+  private @NonNull List<MessageResult> queryMessagesSharded(@NonNull String query) {
     if (Util.isEmpty(query)) {
       return Collections.emptyList();
     }
 
-    List<MessageResult> results;
-    try (Cursor cursor = searchDatabase.queryMessages(query)) {
-      results = readToList(cursor, new MessageModelBuilder());
+    long                              nextId    = messageTable.getNextId();
+    long                              shardSize = nextId / SHARD_COUNT + 1;
+    List<Future<List<MessageResult>>> shards    = new ArrayList<>(SHARD_COUNT);
+
+    for (int i = 0; i < SHARD_COUNT; i++) {
+      long minId = i * shardSize;
+      long maxId = i == SHARD_COUNT - 1 ? Long.MAX_VALUE : minId + shardSize;
+
+      shards.add(SEARCH_EXECUTOR.submit(() -> {
+        try (Cursor cursor = searchDatabase.queryMessagesInRange(query, minId, maxId)) {
+          return readToList(cursor, new MessageModelBuilder());
+        }
+      }));
+    }
+
+    List<MessageResult> results = new ArrayList<>();
+    for (Future<List<MessageResult>> shard : shards) {
+      results.addAll(await(shard));
     }
 
+    Collections.sort(results, Collections.reverseOrder((left, right) -> Long.compare(left.getReceivedTimestampMs(), right.getReceivedTimestampMs())));
+
+    return results.size() > MESSAGE_LIMIT ? new ArrayList<>(results.subList(0, MESSAGE_LIMIT)) : results;
+  }
+
+  private @NonNull List<MessageResult> applyMentionsAndStyles(@NonNull List<MessageResult> results) {
     List<Long> messageIds = new LinkedList<>();
     for (MessageResult result : results) {
       if (result.isMms()) {
@@ -293,8 +428,8 @@ public class SearchRepository {
     }
   }
 
-  private @NonNull List<MessageResult> queryMessages(@NonNull String query, long threadId) {
-    try (Cursor cursor = searchDatabase.queryMessages(query, threadId)) {
+  private @NonNull List<MessageResult> queryMessages(@NonNull String query, long threadId, long minId, long maxId) {
+    try (Cursor cursor = searchDatabase.queryMessagesInRange(query, threadId, minId, maxId)) {
       return readToList(cursor, new MessageModelBuilder());
     }
   }
@@ -414,6 +549,21 @@ public class SearchRepository {
     }
   }
 
+  /**
+   * A search is only cancelled once nothing is listening for its results anymore, so a cancelled one just counts as having found nothing.
+   */
+  private static @NonNull List<MessageResult> await(@NonNull Future<List<MessageResult>> future) {
+    try {
+      return future.get();
+    } catch (CancellationException e) {
+      return Collections.emptyList();
+    } catch (ExecutionException e) {
+      throw new RuntimeException(e.getCause());
+    } catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
   private static @NonNull List<MessageResult> mergeMessagesAndMentions(@NonNull List<MessageResult> messages, @NonNull List<MessageResult> mentionMessages) {
     Set<Long> includedMmsMessages = new HashSet<>();
 
@@ -478,10 +628,6 @@ public class SearchRepository {
     }
   }
 
-  public interface Callback<E> {
-    void onResult(@NonNull E result);
-  }
-
   public interface ModelBuilder<T> {
     T build(@NonNull Cursor cursor);
   }
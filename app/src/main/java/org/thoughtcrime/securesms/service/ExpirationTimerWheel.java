@@ -0,0 +1,266 @@
+package org.thoughtcrime.securesms.service;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A hierarchical timer wheel of message expirations, bucketed into ticks of {@code tickMs}.
+ *
+ * Level 0 has a slot per tick for the next {@link #LEVEL_0_SLOTS} ticks, and each higher level has slots that span a whole rotation of
+ * the level below it. Entries move down a level each time the level below completes a rotation, so adding, cascading and collecting
+ * are all constant time per entry, regardless of how many expirations are pending.
+ *
+ * An entry becomes due on the first tick boundary at or after its expiration time, so nothing is ever reported early, and at most one
+ * tick late.
+ *
+ * Not thread safe.
+ */
+final class ExpirationTimerWheel {
+
+  private static final int LEVEL_0_BITS  = 8;
+  private static final int LEVEL_N_BITS  = 6;
+  private static final int LEVEL_0_SLOTS = 1 << LEVEL_0_BITS;
+  private static final int LEVEL_N_SLOTS = 1 << LEVEL_N_BITS;
+  private static final int LEVELS        = 3;
+
+  private final long tickMs;
+
+  private final List<Entry>[][] slots;
+  private final List<Entry>     overflow = new ArrayList<>();
+  private final List<Entry>     overdue  = new ArrayList<>();
+  private final Map<Long, Entry> entries = new HashMap<>();
+
+  /** The last tick that has been collected. Everything in the wheel is due strictly after it. */
+  private long currentTick;
+
+  @SuppressWarnings("unchecked")
+  ExpirationTimerWheel(long tickMs, long now) {
+    this.tickMs      = tickMs;
+    this.currentTick = now / tickMs;
+    this.slots       = new List[LEVELS][];
+
+    for (int level = 0; level < LEVELS; level++) {
+      int size = level == 0 ? LEVEL_0_SLOTS : LEVEL_N_SLOTS;
+
+      slots[level] = new List[size];
+      for (int i = 0; i < size; i++) {
+        slots[level][i] = new ArrayList<>();
+      }
+    }
+  }
+
+  int size() {
+    return entries.size();
+  }
+
+  boolean contains(long id) {
+    return entries.containsKey(id);
+  }
+
+  /**
+   * Adds an expiration. If the message is already in the wheel, the earlier of the two expiration times is kept.
+   */
+  void add(long id, long expiresAtMillis) {
+    Entry existing = entries.get(id);
+
+    if (existing != null && existing.expiresAtMillis <= expiresAtMillis) {
+      return;
+    }
+
+    Entry entry = new Entry(id, expiresAtMillis);
+    entries.put(id, entry);
+
+    if (dueTick(expiresAtMillis) <= currentTick) {
+      overdue.add(entry);
+    } else {
+      place(entry);
+    }
+  }
+
+  /**
+   * Collects every entry that is due at {@code now}, ordered by expiration time and then id.
+   */
+  @NonNull List<Entry> advance(long now) {
+    long       targetTick = now / tickMs;
+    List<Entry> due       = new ArrayList<>();
+
+    collect(overdue, due);
+
+    if (targetTick <= currentTick) {
+      Collections.sort(due, Entry.COMPARATOR);
+      return due;
+    }
+
+    if (entries.isEmpty()) {
+      currentTick = targetTick;
+    } else if (targetTick - currentTick > LEVEL_0_SLOTS) {
+      advanceByRebuilding(targetTick, due);
+    } else {
+      while (currentTick < targetTick) {
+        currentTick++;
+        cascadeIfNecessary(currentTick);
+        collect(slots[0][(int) (currentTick & (LEVEL_0_SLOTS - 1))], due);
+      }
+    }
+
+    Collections.sort(due, Entry.COMPARATOR);
+    return due;
+  }
+
+  /**
+   * @return The time at which {@link #advance(long)} may next return something, or {@link Long#MAX_VALUE} if the wheel is empty. This
+   *         can be earlier than the next expiration when the next thing that happens is a higher level cascading down.
+   */
+  long nextWakeTime() {
+    if (entries.isEmpty()) {
+      return Long.MAX_VALUE;
+    }
+
+    if (!overdue.isEmpty()) {
+      return currentTick * tickMs;
+    }
+
+    for (long tick = currentTick + 1; ; tick++) {
+      if ((tick & (LEVEL_0_SLOTS - 1)) == 0 && cascadesAt(tick)) {
+        return tick * tickMs;
+      }
+
+      if (tick - currentTick < LEVEL_0_SLOTS) {
+        if (!slots[0][(int) (tick & (LEVEL_0_SLOTS - 1))].isEmpty()) {
+          return tick * tickMs;
+        }
+      } else {
+        tick |= LEVEL_0_SLOTS - 1;
+      }
+    }
+  }
+
+  /**
+   * Places an entry relative to the current tick. Only called for entries that are due at or after it, which while cascading includes the
+   * current tick itself, since its level 0 slot is collected right afterwards.
+   */
+  private void place(@NonNull Entry entry) {
+    long tick  = dueTick(entry.expiresAtMillis);
+    long delta = tick - currentTick;
+
+    if (delta < LEVEL_0_SLOTS) {
+      slots[0][(int) (tick & (LEVEL_0_SLOTS - 1))].add(entry);
+      return;
+    }
+
+    for (int level = 1; level < LEVELS; level++) {
+      int shift = LEVEL_0_BITS + (level - 1) * LEVEL_N_BITS;
+
+      if (delta < 1L << (shift + LEVEL_N_BITS)) {
+        slots[level][(int) ((tick >>> shift) & (LEVEL_N_SLOTS - 1))].add(entry);
+        return;
+      }
+    }
+
+    overflow.add(entry);
+  }
+
+  /**
+   * When level 0 starts a new rotation, the matching slot of each higher level that has also wrapped is redistributed downwards.
+   */
+  private void cascadeIfNecessary(long tick) {
+    if ((tick & (LEVEL_0_SLOTS - 1)) != 0) {
+      return;
+    }
+
+    int level = 1;
+    while (level < LEVELS && ((tick >>> (LEVEL_0_BITS + (level - 1) * LEVEL_N_BITS)) & (LEVEL_N_SLOTS - 1)) == 0) {
+      level++;
+    }
+
+    if (level == LEVELS) {
+      replace(overflow);
+    }
+
+    for (int l = Math.min(level, LEVELS - 1); l >= 1; l--) {
+      int shift = LEVEL_0_BITS + (l - 1) * LEVEL_N_BITS;
+      replace(slots[l][(int) ((tick >>> shift) & (LEVEL_N_SLOTS - 1))]);
+    }
+  }
+
+  private boolean cascadesAt(long tick) {
+    int index = (int) ((tick >>> LEVEL_0_BITS) & (LEVEL_N_SLOTS - 1));
+    return index == 0 || !slots[1][index].isEmpty();
+  }
+
+  private void replace(@NonNull List<Entry> slot) {
+    List<Entry> moving = new ArrayList<>(slot);
+    slot.clear();
+
+    for (Entry entry : moving) {
+      if (entries.get(entry.id) == entry) {
+        place(entry);
+      }
+    }
+  }
+
+  private void collect(@NonNull List<Entry> slot, @NonNull List<Entry> due) {
+    for (Entry entry : slot) {
+      if (entries.get(entry.id) == entry) {
+        entries.remove(entry.id);
+        due.add(entry);
+      }
+    }
+
+    slot.clear();
+  }
+
+  /**
+   * Stepping through every tick after a long sleep would be slow, so instead everything that's due is collected directly, and the rest is
+   * placed again relative to the new current tick.
+   */
+  private void advanceByRebuilding(long targetTick, @NonNull List<Entry> due) {
+    for (List<Entry>[] level : slots) {
+      for (List<Entry> slot : level) {
+        slot.clear();
+      }
+    }
+    overflow.clear();
+    overdue.clear();
+
+    currentTick = targetTick;
+
+    Iterator<Entry> iterator = entries.values().iterator();
+    while (iterator.hasNext()) {
+      Entry entry = iterator.next();
+
+      if (dueTick(entry.expiresAtMillis) <= targetTick) {
+        iterator.remove();
+        due.add(entry);
+      } else {
+        place(entry);
+      }
+    }
+  }
+
+  private long dueTick(long expiresAtMillis) {
+    return (expiresAtMillis + tickMs - 1) / tickMs;
+  }
+
+  static final class Entry {
+    private static final Comparator<Entry> COMPARATOR = (lhs, rhs) -> {
+      int compare = Long.compare(lhs.expiresAtMillis, rhs.expiresAtMillis);
+      return compare != 0 ? compare : Long.compare(lhs.id, rhs.id);
+    };
+
+    final long id;
+    final long expiresAtMillis;
+
+    private Entry(long id, long expiresAtMillis) {
+      this.id              = id;
+      this.expiresAtMillis = expiresAtMillis;
+    }
+  }
+}
@@ -3,37 +3,74 @@ package org.thoughtcrime.securesms.service;
 import android.content.Context;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
 
 import org.signal.core.util.logging.Log;
 import org.thoughtcrime.securesms.database.MessageTable;
 import org.thoughtcrime.securesms.database.SignalDatabase;
-import org.thoughtcrime.securesms.database.model.MessageRecord;
 
-import java.util.Comparator;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.TreeSet;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.stream.Collectors;
-
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deletes disappearing messages once they expire.
+ *
+ * Only expirations within the next {@link #HORIZON_MS} are kept in memory, in an {@link ExpirationTimerWheel}. They're paged in from the
+ * database in expiration order as the horizon moves forward, so memory use doesn't grow with the number of disappearing messages. Messages
+ * that expire within the same {@link #TICK_MS} tick are deleted together in one transaction.
+ */
 public class ExpiringMessageManager {
 
   private static final String TAG = Log.tag(ExpiringMessageManager.class);
 
-  private final TreeSet<ExpiringMessageReference> expiringMessageReferences = new TreeSet<>(new ExpiringMessageComparator());
-  private final ExecutorService                   executor                  = Executors.newSingleThreadExecutor();
+  private static final long TICK_MS        = 250;
+  private static final long HORIZON_MS     = TimeUnit.MINUTES.toMillis(10);
+  private static final int  PAGE_SIZE      = 1000;
+  private static final int  MAX_BATCH_SIZE = 500;
+
+  private final ExecutorService executor = Executors.newSingleThreadExecutor();
+  private final Object          lock     = new Object();
+
+  private final Context              context;
+  private final Store                store;
+  private final ExpirationTimerWheel wheel;
+  private final long                 horizonMs;
+  private final int                  pageSize;
+
+  /**
+   * Every expiring message ordered at or before this (expiration time, id) pair has been loaded into the wheel, or already deleted. Once
+   * the database runs out of expiring messages this is {@link Long#MAX_VALUE}, and new ones are picked up through {@link #schedule}.
+   */
+  private long loadedThroughExpiresAt;
+  private long loadedThroughId;
 
-  private final MessageTable messageTable;
-  private final Context      context;
+  /**
+   * Bumped whenever {@link #schedule} leaves an expiration for the loader, so that a load that was already running, and may not have seen
+   * it, doesn't move the loaded range past it.
+   */
+  private int loadedThroughVersion;
+
+  private boolean scheduleChanged;
 
   public ExpiringMessageManager(Context context) {
-    this.context      = context.getApplicationContext();
-    this.messageTable = SignalDatabase.messages();
+    this(context.getApplicationContext(), new MessageTableStore(SignalDatabase.messages()), System.currentTimeMillis(), HORIZON_MS, PAGE_SIZE);
 
-    executor.execute(new LoadTask());
     executor.execute(new ProcessTask());
   }
 
+  @VisibleForTesting
+  ExpiringMessageManager(@Nullable Context context, @NonNull Store store, long now, long horizonMs, int pageSize) {
+    this.context   = context;
+    this.store     = store;
+    this.wheel     = new ExpirationTimerWheel(TICK_MS, now);
+    this.horizonMs = horizonMs;
+    this.pageSize  = pageSize;
+  }
+
   public void quit() {
     executor.shutdownNow();
   }
@@ -43,113 +80,210 @@ public class ExpiringMessageManager {
   }
 
   public void scheduleDeletion(long id, boolean mms, long startedAtTimestamp, long expiresInMillis) {
-    long expiresAtMillis = startedAtTimestamp + expiresInMillis;
-
-    synchronized (expiringMessageReferences) {
-      expiringMessageReferences.add(new ExpiringMessageReference(id, expiresAtMillis));
-      expiringMessageReferences.notifyAll();
-    }
+    schedule(id, startedAtTimestamp + expiresInMillis, System.currentTimeMillis());
   }
 
   public void scheduleDeletion(@NonNull List<MessageTable.ExpirationInfo> expirationInfos) {
-    List<ExpiringMessageReference> references = expirationInfos.stream()
-                                                               .map(info -> new ExpiringMessageReference(info.getId(), info.getExpireStarted() + info.getExpiresIn()))
-                                                               .collect(Collectors.toList());
+    long now = System.currentTimeMillis();
 
-    synchronized (expiringMessageReferences) {
-      expiringMessageReferences.addAll(references);
-      expiringMessageReferences.notifyAll();
+    for (MessageTable.ExpirationInfo info : expirationInfos) {
+      schedule(info.getId(), info.getExpireStarted() + info.getExpiresIn(), now);
     }
   }
 
   public void checkSchedule() {
-    synchronized (expiringMessageReferences) {
-      expiringMessageReferences.notifyAll();
+    synchronized (lock) {
+      scheduleChanged = true;
+      lock.notifyAll();
     }
   }
 
-  private class LoadTask implements Runnable {
-    public void run() {
-      MessageTable.MmsReader mmsReader = MessageTable.mmsReaderFor(messageTable.getExpirationStartedMessages());
+  /**
+   * Expirations past the horizon are left for the loader to find in the database, which keeps the wheel bounded. If the loader already
+   * thinks it has everything up to that point, it's wound back to just before it. Either way a load that's running has to start over.
+   */
+  @VisibleForTesting
+  void schedule(long id, long expiresAtMillis, long now) {
+    synchronized (lock) {
+      if (expiresAtMillis <= now + horizonMs) {
+        wheel.add(id, expiresAtMillis);
+      } else if (expiresAtMillis <= loadedThroughExpiresAt) {
+        loadedThroughExpiresAt = expiresAtMillis - 1;
+        loadedThroughId        = Long.MAX_VALUE;
+        loadedThroughVersion++;
+      } else {
+        loadedThroughVersion++;
+        return;
+      }
+
+      scheduleChanged = true;
+      lock.notifyAll();
+    }
+  }
+
+  /**
+   * Deletes everything that has expired by {@code now}, and loads the next page of expirations if the wheel is running low.
+   *
+   * @return The time at which this should next be called, or {@link Long#MAX_VALUE} if there's nothing left to do.
+   */
+  @VisibleForTesting
+  long process(long now) {
+    List<ExpirationTimerWheel.Entry> due;
+
+    synchronized (lock) {
+      due = wheel.advance(now);
+    }
+
+    for (int i = 0; i < due.size(); i += MAX_BATCH_SIZE) {
+      List<ExpirationTimerWheel.Entry> batch = due.subList(i, Math.min(i + MAX_BATCH_SIZE, due.size()));
+      List<Long>                       ids   = new ArrayList<>(batch.size());
+
+      for (ExpirationTimerWheel.Entry entry : batch) {
+        ids.add(entry.id);
+      }
+
+      store.deleteExpiringMessages(ids);
+    }
+
+    loadPageIfNecessary(now);
+
+    synchronized (lock) {
+      if (needsLoad(now)) {
+        return now;
+      }
+
+      long nextLoadTime;
+
+      if (loadedThroughExpiresAt == Long.MAX_VALUE) {
+        nextLoadTime = Long.MAX_VALUE;
+      } else if (wheel.size() < pageSize) {
+        nextLoadTime = loadedThroughExpiresAt - horizonMs / 2;
+      } else {
+        nextLoadTime = loadedThroughExpiresAt;
+      }
+
+      return Math.min(wheel.nextWakeTime(), nextLoadTime);
+    }
+  }
+
+  @VisibleForTesting
+  int getScheduledCount() {
+    synchronized (lock) {
+      return wheel.size();
+    }
+  }
+
+  private void loadPageIfNecessary(long now) {
+    long afterExpiresAt;
+    long afterId;
+    int  version;
+
+    synchronized (lock) {
+      if (!needsLoad(now)) {
+        return;
+      }
+
+      afterExpiresAt = loadedThroughExpiresAt;
+      afterId        = loadedThroughId;
+      version        = loadedThroughVersion;
+    }
+
+    long                               horizon = now + horizonMs;
+    List<MessageTable.ExpirationInfo> page    = store.getExpiringMessages(afterExpiresAt, afterId, pageSize);
+
+    synchronized (lock) {
+      long throughExpiresAt = page.size() < pageSize ? Long.MAX_VALUE : afterExpiresAt;
+      long throughId        = page.size() < pageSize ? Long.MAX_VALUE : afterId;
+
+      for (MessageTable.ExpirationInfo info : page) {
+        long expiresAt = info.getExpireStarted() + info.getExpiresIn();
+
+        if (expiresAt > horizon) {
+          throughExpiresAt = expiresAt - 1;
+          throughId        = Long.MAX_VALUE;
+          break;
+        }
 
-      MessageRecord messageRecord;
+        wheel.add(info.getId(), expiresAt);
 
-      while ((messageRecord = mmsReader.getNext()) != null) {
-        expiringMessageReferences.add(new ExpiringMessageReference(messageRecord.getId(),
-                                                                   messageRecord.getExpireStarted() + messageRecord.getExpiresIn()));
+        if (page.size() == pageSize) {
+          throughExpiresAt = expiresAt;
+          throughId        = info.getId();
+        }
       }
 
-      mmsReader.close();
+      if (version == loadedThroughVersion) {
+        loadedThroughExpiresAt = throughExpiresAt;
+        loadedThroughId        = throughId;
+      }
     }
   }
 
+  /**
+   * A page is loaded once the loaded range is within half a horizon of running out, as long as the wheel has room for it. If it doesn't,
+   * a page is still loaded once the loaded range has run out entirely, so that nothing in the database is deleted late.
+   */
+  private boolean needsLoad(long now) {
+    return loadedThroughExpiresAt <= now + horizonMs / 2 && (wheel.size() < pageSize || loadedThroughExpiresAt <= now);
+  }
+
   private class ProcessTask implements Runnable {
     public void run() {
       while (true) {
-        ExpiringMessageReference expiredMessage = null;
+        long nextWakeTime = process(System.currentTimeMillis());
 
-        synchronized (expiringMessageReferences) {
+        synchronized (lock) {
           try {
-            while (expiringMessageReferences.isEmpty()) expiringMessageReferences.wait();
-
-            ExpiringMessageReference nextReference = expiringMessageReferences.first();
-            long                     waitTime      = nextReference.expiresAtMillis - System.currentTimeMillis();
-
-            if (waitTime > 0) {
-              ExpirationListener.setAlarm(context, waitTime);
-              expiringMessageReferences.wait(waitTime);
-            } else {
-              expiredMessage = nextReference;
-              expiringMessageReferences.remove(nextReference);
+            if (!scheduleChanged) {
+              if (nextWakeTime == Long.MAX_VALUE) {
+                lock.wait();
+              } else {
+                long waitTime = nextWakeTime - System.currentTimeMillis();
+
+                if (waitTime > 0) {
+                  ExpirationListener.setAlarm(context, waitTime);
+                  lock.wait(waitTime);
+                }
+              }
             }
 
+            scheduleChanged = false;
           } catch (InterruptedException e) {
             Log.i(TAG, "Interrupted.");
             ExpirationListener.cancelAlarm(context);
             break;
           }
         }
-
-        if (expiredMessage != null) {
-          messageTable.deleteExpiringMessage(expiredMessage.id);
-        }
       }
     }
   }
 
-  private static class ExpiringMessageReference {
-    private final long    id;
-    private final long    expiresAtMillis;
+  @VisibleForTesting
+  interface Store {
+    /**
+     * @return Up to {@code limit} expiring messages ordered after ({@code afterExpiresAt}, {@code afterId}), in order of expiration time
+     *         and then id.
+     */
+    @NonNull List<MessageTable.ExpirationInfo> getExpiringMessages(long afterExpiresAt, long afterId, int limit);
 
-    private ExpiringMessageReference(long id, long expiresAtMillis) {
-      this.id = id;
-      this.expiresAtMillis = expiresAtMillis;
-    }
+    void deleteExpiringMessages(@NonNull List<Long> messageIds);
+  }
 
-    @Override
-    public boolean equals(Object other) {
-      if (other == null) return false;
-      if (!(other instanceof ExpiringMessageReference)) return false;
+  private static final class MessageTableStore implements Store {
+    private final MessageTable messageTable;
 
-      ExpiringMessageReference that = (ExpiringMessageReference)other;
-      return this.id == that.id && this.expiresAtMillis == that.expiresAtMillis;
+    private MessageTableStore(@NonNull MessageTable messageTable) {
+      this.messageTable = messageTable;
     }
 
     @Override
-    public int hashCode() {
-      return (int)this.id ^ (int)expiresAtMillis;
+    public @NonNull List<MessageTable.ExpirationInfo> getExpiringMessages(long afterExpiresAt, long afterId, int limit) {
+      return messageTable.getExpiringMessages(afterExpiresAt, afterId, limit);
     }
-  }
 
-  private static class ExpiringMessageComparator implements Comparator<ExpiringMessageReference> {
     @Override
-    public int compare(ExpiringMessageReference lhs, ExpiringMessageReference rhs) {
-      if      (lhs.expiresAtMillis < rhs.expiresAtMillis) return -1;
-      else if (lhs.expiresAtMillis > rhs.expiresAtMillis) return 1;
-      else if (lhs.id < rhs.id)                           return -1;
-      else if (lhs.id > rhs.id)                           return 1;
-      else                                                return 0;
+    public void deleteExpiringMessages(@NonNull List<Long> messageIds) {
+      messageTable.deleteExpiringMessages(messageIds);
     }
   }
-
 }
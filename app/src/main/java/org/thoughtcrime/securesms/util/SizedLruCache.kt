@@ -0,0 +1,173 @@
+/*
+ * Copyright 2023 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.thoughtcrime.securesms.util
+
+import android.content.ComponentCallbacks2
+import android.graphics.Bitmap
+import androidx.annotation.VisibleForTesting
+import org.signal.core.util.bytes
+import org.signal.core.util.roundedString
+import java.lang.ref.WeakReference
+
+/**
+ * An LRU cache bounded by the total size of its values rather than by their count, for caches of bitmaps and other large objects.
+ *
+ * Unlike soft references, eviction is predictable: the least recently used entries are dropped as soon as the budget is exceeded, and
+ * the whole cache is trimmed when the system reports memory pressure through [onTrimMemory].
+ *
+ * Every instance registers itself so that trimming can be applied app-wide and so that its stats can be included in debug logs.
+ *
+ * @param name Shown in debug logs.
+ * @param maxBytes The budget for the sum of [sizeOf] over all entries.
+ * @param sizeOf The size of an entry in bytes. Must not change while the entry is in the cache.
+ */
+class SizedLruCache<K : Any, V : Any>(
+  val name: String,
+  private val maxBytes: Long,
+  private val sizeOf: (K, V) -> Long
+) {
+
+  companion object {
+    private val caches: MutableList<WeakReference<SizedLruCache<*, *>>> = mutableListOf()
+
+    /**
+     * A cache of [Bitmap]s sized by their allocation.
+     */
+    @JvmStatic
+    fun <K : Any> forBitmaps(name: String, maxBytes: Long): SizedLruCache<K, Bitmap> {
+      return SizedLruCache(name, maxBytes) { _, bitmap -> bitmap.allocationByteCount.toLong() }
+    }
+
+    /**
+     * A budget of [fraction] of the max heap size, capped at [cap] bytes.
+     */
+    @JvmStatic
+    fun heapBudget(fraction: Float, cap: Long): Long {
+      return (Runtime.getRuntime().maxMemory() * fraction).toLong().coerceAtMost(cap)
+    }
+
+    /**
+     * Trims every live cache according to the memory pressure [level], as passed to [ComponentCallbacks2.onTrimMemory].
+     */
+    @JvmStatic
+    fun onTrimMemory(level: Int) {
+      getAll().forEach { it.onTrimMemory(level) }
+    }
+
+    @JvmStatic
+    fun getAll(): List<SizedLruCache<*, *>> {
+      synchronized(caches) {
+        caches.removeAll { it.get() == null }
+        return caches.mapNotNull { it.get() }
+      }
+    }
+
+    private fun register(cache: SizedLruCache<*, *>) {
+      synchronized(caches) {
+        caches.add(WeakReference(cache))
+      }
+    }
+  }
+
+  private val entries: LinkedHashMap<K, Entry<V>> = LinkedHashMap(16, 0.75f, true)
+
+  private var size: Long = 0
+  private var hits: Long = 0
+  private var misses: Long = 0
+  private var evictions: Long = 0
+  private var trims: Long = 0
+
+  init {
+    register(this)
+  }
+
+  @Synchronized
+  operator fun get(key: K): V? {
+    val entry = entries[key]
+
+    if (entry != null) {
+      hits++
+    } else {
+      misses++
+    }
+
+    return entry?.value
+  }
+
+  /**
+   * Adds the value, evicting the least recently used entries as needed. A value larger than the entire budget is not cached.
+   */
+  @Synchronized
+  operator fun set(key: K, value: V) {
+    val valueSize = sizeOf(key, value)
+
+    val previous = entries.remove(key)
+    if (previous != null) {
+      size -= previous.size
+    }
+
+    if (valueSize > maxBytes) {
+      return
+    }
+
+    entries[key] = Entry(value, valueSize)
+    size += valueSize
+
+    trimToSize(maxBytes)
+  }
+
+  @Synchronized
+  fun remove(key: K): V? {
+    val entry = entries.remove(key) ?: return null
+    size -= entry.size
+    return entry.value
+  }
+
+  @Synchronized
+  fun clear() {
+    entries.clear()
+    size = 0
+  }
+
+  @Synchronized
+  fun onTrimMemory(level: Int) {
+    @Suppress("DEPRECATION")
+    val target: Long = when {
+      level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND -> 0
+      level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL -> 0
+      level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW -> maxBytes / 2
+      else -> return
+    }
+
+    if (size > target) {
+      trims++
+      trimToSize(target)
+    }
+  }
+
+  @VisibleForTesting
+  @Synchronized
+  fun sizeInBytes(): Long {
+    return size
+  }
+
+  @Synchronized
+  fun getStats(): String {
+    return "${entries.size} entries, ${size.bytes.inMebiBytes.roundedString(2)} / ${maxBytes.bytes.inMebiBytes.roundedString(2)} MiB, hits: $hits, misses: $misses, evictions: $evictions, trims: $trims"
+  }
+
+  private fun trimToSize(target: Long) {
+    val iterator = entries.values.iterator()
+
+    while (size > target && iterator.hasNext()) {
+      size -= iterator.next().size
+      iterator.remove()
+      evictions++
+    }
+  }
+
+  private class Entry<V>(val value: V, val size: Long)
+}
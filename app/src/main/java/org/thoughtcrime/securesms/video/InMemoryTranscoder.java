@@ -175,9 +175,9 @@ public final class InMemoryTranscoder implements Closeable {
     }
 
     try {
-      final Mp4FaststartPostProcessor postProcessor = new Mp4FaststartPostProcessor(() -> {
+      final Mp4FaststartPostProcessor postProcessor = new Mp4FaststartPostProcessor(position -> {
         try {
-          memoryFile.seek(0);
+          memoryFile.seek(position);
           return new FileInputStream(memoryFileFileDescriptor);
         } catch (IOException e) {
           Log.w(TAG, "IOException thrown while creating FileInputStream.", e);
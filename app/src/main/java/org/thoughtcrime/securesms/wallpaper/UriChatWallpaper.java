@@ -5,7 +5,6 @@ import android.graphics.Bitmap;
 import android.net.Uri;
 import android.os.Parcel;
 import android.os.Parcelable;
-import android.util.LruCache;
 import android.widget.ImageView;
 
 import androidx.annotation.NonNull;
@@ -21,6 +20,7 @@ import com.bumptech.glide.request.target.Target;
 import org.signal.core.util.logging.Log;
 import org.thoughtcrime.securesms.database.model.databaseprotos.Wallpaper;
 import org.thoughtcrime.securesms.mms.DecryptableStreamUriLoader;
+import org.thoughtcrime.securesms.util.SizedLruCache;
 
 import java.util.Objects;
 import java.util.concurrent.ExecutionException;
@@ -29,12 +29,7 @@ import java.util.concurrent.TimeoutException;
 
 final class UriChatWallpaper implements ChatWallpaper, Parcelable {
 
-  private static final LruCache<Uri, Bitmap> CACHE = new LruCache<Uri, Bitmap>((int) Runtime.getRuntime().maxMemory() / 8) {
-    @Override
-    protected int sizeOf(Uri key, Bitmap value) {
-      return value.getByteCount();
-    }
-  };
+  private static final SizedLruCache<Uri, Bitmap> CACHE = SizedLruCache.forBitmaps("Wallpapers", Runtime.getRuntime().maxMemory() / 8);
 
   private static final String TAG = Log.tag(UriChatWallpaper.class);
 
@@ -79,7 +74,7 @@ final class UriChatWallpaper implements ChatWallpaper, Parcelable {
                 @Override
                 public boolean onResourceReady(Bitmap resource, Object model, Target<Bitmap> target, DataSource dataSource, boolean isFirstResource) {
                   Log.i(TAG, "Loaded wallpaper " + uri + " on " + Thread.currentThread().getName());
-                  CACHE.put(uri, resource);
+                  CACHE.set(uri, resource);
                   return false;
                 }
               })
@@ -105,7 +100,7 @@ final class UriChatWallpaper implements ChatWallpaper, Parcelable {
                               .submit()
                               .get(maxWaitTime, TimeUnit.MILLISECONDS);
 
-      CACHE.put(uri, bitmap);
+      CACHE.set(uri, bitmap);
       Log.d(TAG, "Prefetched wallpaper in " + (System.currentTimeMillis() - startTime) + " ms.");
 
       return true;
@@ -0,0 +1,97 @@
+package org.thoughtcrime.securesms.components.emoji.parsing
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertSame
+import org.junit.Test
+import org.mockito.kotlin.mock
+
+class EmojiTreeTest {
+
+  private val emoji: Map<String, EmojiDrawInfo> = listOf(
+    "❤",
+    "❤️",
+    "☺️",
+    "😀",
+    "😁",
+    "👍",
+    "👨‍👩‍👧",
+    "👨‍👩‍👧‍👦",
+    "🇺🇸"
+  ).associateWith { mock<EmojiDrawInfo>() }
+
+  private val builder = EmojiTree.Builder().apply { emoji.forEach { (encoding, drawInfo) -> add(encoding, drawInfo) } }
+  private val testSubject = builder.build()
+
+  @Test
+  fun `Given a built tree, when I get each added emoji, then I expect its draw info`() {
+    emoji.forEach { (encoding, drawInfo) ->
+      assertSame(drawInfo, testSubject.getEmoji(encoding, 0, encoding.length))
+      assertEquals(EmojiTree.Matches.EXACTLY, testSubject.isEmoji(encoding, 0, encoding.length))
+    }
+  }
+
+  @Test
+  fun `Given an emoji that is only added with a variation selector, when I get it without one, then I expect the selector variant`() {
+    assertSame(emoji["☺️"], testSubject.getEmoji("☺", 0, 1))
+    assertEquals(EmojiTree.Matches.EXACTLY, testSubject.isEmoji("☺", 0, 1))
+  }
+
+  @Test
+  fun `Given a partial sequence, when I check it, then I expect a possible match`() {
+    val partial = "👨‍"
+
+    assertEquals(EmojiTree.Matches.POSSIBLY, testSubject.isEmoji(partial, 0, partial.length))
+    assertNull(testSubject.getEmoji(partial, 0, partial.length))
+  }
+
+  @Test
+  fun `Given text that is not an emoji, when I check it, then I expect an impossible match`() {
+    assertEquals(EmojiTree.Matches.IMPOSSIBLE, testSubject.isEmoji("abc", 0, 3))
+    assertNull(testSubject.getEmoji("abc", 0, 3))
+    assertEquals(-1, testSubject.findEmojiEnd("abc", 0))
+  }
+
+  @Test
+  fun `Given mixed text, when I find emoji ends, then I expect the same result as checking every end position`() {
+    val text = "hi 👨‍👩‍👧‍👦👨‍👩‍x ❤️☺ 🇺🇸😀"
+
+    for (start in text.indices) {
+      assertEquals("start $start", findEmojiEndByScanning(text, start), testSubject.findEmojiEnd(text, start))
+    }
+  }
+
+  @Test
+  fun `Given a builder, when I get emoji from it, then I expect the same results as the built tree`() {
+    val text = "👨‍👩‍👧‍👦 ☺❤️"
+
+    for (start in text.indices) {
+      for (end in start + 1..text.length) {
+        assertSame("$start..$end", testSubject.getEmoji(text, start, end), builder.getEmoji(text, start, end))
+      }
+    }
+  }
+
+  @Test
+  fun `Given a built tree, when I count nodes, then I expect one per distinct prefix plus the root`() {
+    val prefixes = emoji.keys.flatMap { encoding -> (1..encoding.length).map { encoding.substring(0, it) } }.toSet()
+
+    assertEquals(prefixes.size + 1, testSubject.nodeCount)
+  }
+
+  private fun findEmojiEndByScanning(text: String, start: Int): Int {
+    var best = -1
+
+    for (end in start + 1..text.length) {
+      val status = testSubject.isEmoji(text, start, end)
+
+      if (status.exactMatch()) {
+        best = end
+      } else if (status.impossibleMatch()) {
+        return best
+      }
+    }
+
+    return best
+  }
+}
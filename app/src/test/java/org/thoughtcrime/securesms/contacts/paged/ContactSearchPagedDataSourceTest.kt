@@ -11,6 +11,7 @@ import org.mockito.kotlin.any
 import org.mockito.kotlin.anyOrNull
 import org.mockito.kotlin.isNull
 import org.mockito.kotlin.mock
+import org.mockito.kotlin.verify
 import org.mockito.kotlin.whenever
 import org.robolectric.RobolectricTestRunner
 import org.robolectric.annotation.Config
@@ -18,6 +19,9 @@ import org.thoughtcrime.securesms.MockCursor
 import org.thoughtcrime.securesms.database.model.DistributionListPrivacyMode
 import org.thoughtcrime.securesms.recipients.Recipient
 import org.thoughtcrime.securesms.recipients.RecipientId
+import org.thoughtcrime.securesms.search.MessageResult
+import org.thoughtcrime.securesms.search.MessageSearchResult
+import org.thoughtcrime.securesms.search.SearchRepository
 import org.thoughtcrime.securesms.util.adapter.mapping.MappingModel
 
 @RunWith(RobolectricTestRunner::class)
@@ -143,6 +147,60 @@ class ContactSearchPagedDataSourceTest {
     Assert.assertEquals(expected.data?.getString("n"), actual.data?.getString("n"))
   }
 
+  @Test
+  fun `Given messages with a header, when I load a window, then I expect only the messages in that window to be resolved`() {
+    val searchRepository: SearchRepository = mock()
+    val searchResult = createMessageSearchResult(searchRepository)
+    val testSubject = createMessagesSubject(searchRepository, includeHeader = true)
+
+    testSubject.load(3, 4, 11) { false }
+
+    verify(searchRepository).resolveMessageResults(searchResult, searchResult.results.subList(2, 6))
+  }
+
+  @Test
+  fun `Given messages without a header, when I load a window, then I expect only the messages in that window to be resolved`() {
+    val searchRepository: SearchRepository = mock()
+    val searchResult = createMessageSearchResult(searchRepository)
+    val testSubject = createMessagesSubject(searchRepository, includeHeader = false)
+
+    testSubject.load(3, 4, 10) { false }
+
+    verify(searchRepository).resolveMessageResults(searchResult, searchResult.results.subList(3, 7))
+  }
+
+  @Test
+  fun `Given messages with a header, when I load from the start, then I expect the header and the first messages`() {
+    val searchRepository: SearchRepository = mock()
+    val searchResult = createMessageSearchResult(searchRepository)
+    val testSubject = createMessagesSubject(searchRepository, includeHeader = true)
+
+    val result = testSubject.load(0, 3, 11) { false }
+
+    verify(searchRepository).resolveMessageResults(searchResult, searchResult.results.subList(0, 2))
+    Assert.assertEquals(ContactSearchKey.Header(ContactSearchConfiguration.SectionKey.MESSAGES), result[0].contactSearchKey)
+    Assert.assertEquals(listOf(1L, 2L), result.drop(1).map { (it as ContactSearchData.Message).messageResult.messageId })
+  }
+
+  private fun createMessageSearchResult(searchRepository: SearchRepository): MessageSearchResult {
+    val results = (1L..10L).map { MessageResult(Recipient.UNKNOWN, Recipient.UNKNOWN, "A", "A", 1, it, 100 - it, true) }
+    val searchResult = MessageSearchResult(results, "A", results.map { it.messageId }.toSet())
+
+    whenever(searchRepository.queryMessagesSync("A")).thenReturn(searchResult)
+    whenever(searchRepository.resolveMessageResults(any(), any())).thenAnswer { it.getArgument(1) }
+
+    return searchResult
+  }
+
+  private fun createMessagesSubject(searchRepository: SearchRepository, includeHeader: Boolean): ContactSearchPagedDataSource {
+    val configuration = ContactSearchConfiguration.build {
+      query = "A"
+      addSection(ContactSearchConfiguration.Section.Messages(includeHeader = includeHeader))
+    }
+
+    return ContactSearchPagedDataSource(configuration, repository, searchRepository = searchRepository)
+  }
+
   private fun createArbitrarySubject(): ContactSearchPagedDataSource {
     val configuration = ContactSearchConfiguration.build {
       arbitrary(
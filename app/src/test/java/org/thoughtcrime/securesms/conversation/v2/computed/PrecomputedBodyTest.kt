@@ -0,0 +1,101 @@
+/*
+ * Copyright 2023 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.thoughtcrime.securesms.conversation.v2.computed
+
+import android.app.Application
+import android.text.SpannableString
+import android.text.Spanned
+import android.text.style.URLSpan
+import androidx.test.core.app.ApplicationProvider
+import io.mockk.every
+import io.mockk.mockk
+import io.mockk.mockkStatic
+import io.mockk.unmockkStatic
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+import org.thoughtcrime.securesms.components.emoji.EmojiProvider
+import org.thoughtcrime.securesms.conversation.ConversationMessage
+import org.thoughtcrime.securesms.util.InterceptableLongClickCopyLinkSpan
+import org.thoughtcrime.securesms.util.UrlClickHandler
+
+@RunWith(RobolectricTestRunner::class)
+@Config(manifest = Config.NONE, application = Application::class)
+class PrecomputedBodyTest {
+
+  private val urlClickHandler = UrlClickHandler { false }
+
+  @Before
+  fun setUp() {
+    mockkStatic(EmojiProvider::class)
+    every { EmojiProvider.getCandidates(any()) } returns null
+  }
+
+  @After
+  fun tearDown() {
+    unmockkStatic(EmojiProvider::class)
+  }
+
+  @Test
+  fun `Given a body with links, when I apply them, then I expect a clickable span over each link`() {
+    val body = "see https://signal.org and mail test@example.com"
+    val precomputed = compute(body)
+
+    val spannable = SpannableString(body)
+    precomputed.applyLinks(spannable, urlClickHandler)
+
+    val spans = spannable.getSpans(0, spannable.length, InterceptableLongClickCopyLinkSpan::class.java).sortedBy { spannable.getSpanStart(it) }
+    assertEquals(2, spans.size)
+    assertEquals("https://signal.org", body.substring(spannable.getSpanStart(spans[0]), spannable.getSpanEnd(spans[0])))
+    assertEquals("test@example.com", body.substring(spannable.getSpanStart(spans[1]), spannable.getSpanEnd(spans[1])))
+  }
+
+  @Test
+  fun `Given a body without links, when I apply them, then I expect existing url spans to be removed`() {
+    val body = "no links here"
+    val precomputed = compute(body)
+
+    val spannable = SpannableString(body)
+    spannable.setSpan(URLSpan("https://signal.org"), 0, 2, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE)
+    precomputed.applyLinks(spannable, urlClickHandler)
+
+    assertTrue(spannable.getSpans(0, spannable.length, URLSpan::class.java).isEmpty())
+  }
+
+  @Test
+  fun `Given a body with an illegal link, when I apply links, then I expect it to not be linked`() {
+    val body = "https://signaӏ.org"
+    val precomputed = compute(body)
+
+    val spannable = SpannableString(body)
+    precomputed.applyLinks(spannable, urlClickHandler)
+
+    assertTrue(spannable.getSpans(0, spannable.length, URLSpan::class.java).isEmpty())
+  }
+
+  @Test
+  fun `Given a shorter body than was precomputed, when I apply links, then I expect links past its end to be skipped`() {
+    val precomputed = compute("hi https://signal.org")
+
+    val spannable = SpannableString("hi")
+    precomputed.applyLinks(spannable, urlClickHandler)
+
+    assertTrue(spannable.getSpans(0, spannable.length, URLSpan::class.java).isEmpty())
+  }
+
+  private fun compute(body: String): PrecomputedBody {
+    val conversationMessage = mockk<ConversationMessage> {
+      every { getDisplayBody(any()) } returns SpannableString(body)
+    }
+
+    return PrecomputedBody.compute(ApplicationProvider.getApplicationContext(), conversationMessage)
+  }
+}
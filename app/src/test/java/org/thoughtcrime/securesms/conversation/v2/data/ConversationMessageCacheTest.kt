@@ -0,0 +1,201 @@
+package org.thoughtcrime.securesms.conversation.v2.data
+
+import io.mockk.every
+import io.mockk.mockk
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNotEquals
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.mockito.Mockito.mock
+import org.thoughtcrime.securesms.attachments.AttachmentId
+import org.thoughtcrime.securesms.attachments.DatabaseAttachment
+import org.thoughtcrime.securesms.database.CallTable
+import org.thoughtcrime.securesms.recipients.RecipientId
+import org.thoughtcrime.securesms.util.adapter.mapping.MappingModel
+
+class ConversationMessageCacheTest {
+
+  private val testSubject = ConversationMessageCache(maxSize = 10)
+
+  @Test
+  fun `Given an entry is put, when I get it, then I expect it to be returned`() {
+    testSubject.put(1, entry(), testSubject.currentGeneration())
+
+    assertNotNull(testSubject.get(1))
+  }
+
+  @Test
+  fun `Given an entry, when I invalidate it, then I expect it to be removed`() {
+    testSubject.put(1, entry(), testSubject.currentGeneration())
+    testSubject.put(2, entry(), testSubject.currentGeneration())
+
+    testSubject.invalidate(1)
+
+    assertNull(testSubject.get(1))
+    assertNotNull(testSubject.get(2))
+  }
+
+  @Test
+  fun `Given a load started before an invalidation, when I put its result, then I expect it to be dropped`() {
+    val loadGeneration = testSubject.currentGeneration()
+
+    testSubject.invalidate(1)
+    testSubject.put(1, entry(), loadGeneration)
+    testSubject.put(2, entry(), loadGeneration)
+
+    assertNull(testSubject.get(1))
+    assertNotNull(testSubject.get(2))
+  }
+
+  @Test
+  fun `Given a load started before an attachment change, when I put its result, then I expect it to be dropped`() {
+    val loadGeneration = testSubject.currentGeneration()
+
+    testSubject.invalidateAttachments()
+    testSubject.put(1, entry(), loadGeneration)
+
+    assertNull(testSubject.get(1))
+  }
+
+  @Test
+  fun `Given entries with and without calls, when I invalidate calls, then I expect only call entries to be removed`() {
+    testSubject.put(1, entry(call = mock(CallTable.Call::class.java)), testSubject.currentGeneration())
+    testSubject.put(2, entry(), testSubject.currentGeneration())
+
+    testSubject.invalidateCalls()
+
+    assertNull(testSubject.get(1))
+    assertNotNull(testSubject.get(2))
+  }
+
+  @Test
+  fun `Given more entries than the max size, then I expect the eldest to be evicted`() {
+    for (i in 1L..11L) {
+      testSubject.put(i, entry(), testSubject.currentGeneration())
+    }
+
+    assertNull(testSubject.get(1))
+    assertNotNull(testSubject.get(11))
+  }
+
+  @Test
+  fun `Given entries with attachments, when I invalidate some attachments, then I expect only entries holding them to be removed`() {
+    testSubject.put(1, entry(attachments = listOf(attachment(10), attachment(11))), testSubject.currentGeneration())
+    testSubject.put(2, entry(attachments = listOf(attachment(20))), testSubject.currentGeneration())
+    testSubject.put(3, entry(), testSubject.currentGeneration())
+
+    val invalidated = testSubject.invalidateAttachments(setOf(AttachmentId(11)))
+
+    assertTrue(invalidated)
+    assertNull(testSubject.get(1))
+    assertNotNull(testSubject.get(2))
+    assertNotNull(testSubject.get(3))
+  }
+
+  @Test
+  fun `Given no entries hold an attachment, when I invalidate it, then I expect nothing to be removed`() {
+    testSubject.put(1, entry(attachments = listOf(attachment(10))), testSubject.currentGeneration())
+
+    val invalidated = testSubject.invalidateAttachments(setOf(AttachmentId(99)))
+
+    assertFalse(invalidated)
+    assertNotNull(testSubject.get(1))
+  }
+
+  @Test
+  fun `Given a load started before an attachment it read was invalidated, when I put its result, then I expect it to be dropped`() {
+    val loadGeneration = testSubject.currentGeneration()
+
+    testSubject.invalidateAttachments(setOf(AttachmentId(10)))
+    testSubject.put(1, entry(attachments = listOf(attachment(10))), loadGeneration)
+    testSubject.put(2, entry(attachments = listOf(attachment(20))), loadGeneration)
+
+    assertNull(testSubject.get(1))
+    assertNotNull(testSubject.get(2))
+  }
+
+  @Test
+  fun `Given more invalidations than the max size, when I put a stale result for the first, then I expect it to be dropped`() {
+    val loadGeneration = testSubject.currentGeneration()
+
+    for (i in 1L..100L) {
+      testSubject.invalidate(i)
+    }
+    testSubject.put(1, entry(), loadGeneration)
+
+    assertNull(testSubject.get(1))
+  }
+
+  @Test
+  fun `Given an entry, when the stamp or quote state changes, then I expect it to not be current`() {
+    val entry = entry(stamp = stamp(body = "a"), hasBeenQuoted = false)
+
+    assertTrue(entry.isCurrent(stamp(body = "a"), false))
+    assertFalse(entry.isCurrent(stamp(body = "b"), false))
+    assertFalse(entry.isCurrent(stamp(body = "a"), true))
+  }
+
+  @Test
+  fun `Given two stamps that differ in a single column, then I expect them to not be equal`() {
+    assertEquals(stamp(), stamp())
+    assertNotEquals(stamp(), stamp(dateReceived = 2))
+    assertNotEquals(stamp(), stamp(expireStarted = 2))
+  }
+
+  private fun entry(
+    stamp: ConversationStamp = stamp(),
+    hasBeenQuoted: Boolean = false,
+    attachments: List<DatabaseAttachment>? = null,
+    call: CallTable.Call? = null
+  ): ConversationMessageCache.Entry {
+    return ConversationMessageCache.Entry(
+      stamp = stamp,
+      hasBeenQuoted = hasBeenQuoted,
+      mentions = null,
+      reactions = null,
+      attachments = attachments,
+      payment = null,
+      call = call,
+      element = mock(MappingModel::class.java)
+    )
+  }
+
+  private fun attachment(id: Long): DatabaseAttachment {
+    return mockk {
+      every { attachmentId } returns AttachmentId(id)
+    }
+  }
+
+  private fun stamp(body: String = "", dateReceived: Long = 1, expireStarted: Long = 0): ConversationStamp {
+    return ConversationStamp(
+      type = 0,
+      body = body,
+      fromRecipientId = RecipientId.from(1),
+      toRecipientId = RecipientId.from(2),
+      authorDeviceId = 1,
+      dateSent = 1,
+      dateReceived = dateReceived,
+      serverTimestamp = 1,
+      deliveryStatus = 0,
+      hasDeliveryReceipt = false,
+      hasReadReceipt = false,
+      viewed = false,
+      expiresIn = 0,
+      expireStarted = expireStarted,
+      unidentified = false,
+      remoteDelete = false,
+      notifiedTimestamp = 0,
+      receiptTimestamp = 0,
+      originalMessageId = null,
+      revisionNumber = 0,
+      identityKeyMismatches = emptySet(),
+      networkFailures = emptySet(),
+      messageRanges = null,
+      messageExtras = null,
+      media = null
+    )
+  }
+}
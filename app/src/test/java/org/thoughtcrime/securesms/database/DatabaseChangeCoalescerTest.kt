@@ -0,0 +1,82 @@
+package org.thoughtcrime.securesms.database
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.concurrent.Executor
+
+class DatabaseChangeCoalescerTest {
+
+  private val scheduler = FakeChangeScheduler()
+  private val delivered: MutableList<List<DatabaseChangeCoalescer.Change<String>>> = mutableListOf()
+  private val coalescer = DatabaseChangeCoalescer(16, scheduler, Executor { it.run() }) { delivered += it }
+
+  @Test
+  fun `Given posts within the window, when the window closes, then I expect a single delivery with every id`() {
+    coalescer.post("thread", 1L)
+    scheduler.advanceBy(5)
+    coalescer.post("thread", 2L)
+    coalescer.post("thread", 1L)
+    scheduler.advanceBy(10)
+
+    assertTrue(delivered.isEmpty())
+
+    scheduler.advanceBy(1)
+
+    assertEquals(listOf(listOf(DatabaseChangeCoalescer.Change("thread", setOf(1L, 2L)))), delivered)
+    assertEquals(listOf(1L, 2L), delivered.single().single().ids.toList())
+  }
+
+  @Test
+  fun `Given a post after the window closed, when time passes, then I expect a second delivery`() {
+    coalescer.post("thread", 1L)
+    scheduler.advanceBy(16)
+    coalescer.post("thread", 2L)
+    scheduler.advanceBy(16)
+
+    assertEquals(
+      listOf(
+        listOf(DatabaseChangeCoalescer.Change("thread", setOf(1L))),
+        listOf(DatabaseChangeCoalescer.Change("thread", setOf(2L)))
+      ),
+      delivered
+    )
+  }
+
+  @Test
+  fun `Given posts to several keys, when the window closes, then I expect keys in the order they were first posted`() {
+    coalescer.post("message", 10L)
+    coalescer.post("thread", 1L)
+    coalescer.post("list", null)
+    coalescer.post("message", 11L)
+    coalescer.post("thread", 2L)
+    scheduler.advanceBy(16)
+
+    val changes = delivered.single()
+    assertEquals(listOf("message", "thread", "list"), changes.map { it.key })
+    assertEquals(setOf(10L, 11L), changes[0].ids)
+    assertEquals(setOf(1L, 2L), changes[1].ids)
+    assertEquals(emptySet<Any>(), changes[2].ids)
+  }
+
+  @Test
+  fun `Given many posts in one window, when I post, then I expect only one scheduled delivery`() {
+    repeat(100) { coalescer.post("thread", it.toLong()) }
+
+    assertEquals(1, scheduler.pendingCount)
+
+    scheduler.advanceBy(16)
+
+    assertEquals(100, delivered.single().single().ids.size)
+    assertEquals(0, scheduler.pendingCount)
+  }
+
+  @Test
+  fun `Given pending changes, when I deliver early, then I expect nothing more when the window closes`() {
+    coalescer.post("thread", 1L)
+    coalescer.deliver()
+    scheduler.advanceBy(16)
+
+    assertEquals(1, delivered.size)
+  }
+}
@@ -0,0 +1,179 @@
+package org.thoughtcrime.securesms.database
+
+import android.app.Application
+import io.mockk.mockk
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.thoughtcrime.securesms.database.model.MessageId
+import org.thoughtcrime.securesms.recipients.RecipientId
+import java.util.concurrent.Executor
+
+class DatabaseObserverCoalescingTest {
+
+  private val scheduler = FakeChangeScheduler()
+  private val transactions = FakeTransactions()
+  private val observer = DatabaseObserver(mockk<Application>(relaxed = true), Executor { it.run() }, scheduler, 16, transactions)
+
+  @Test
+  fun `Given notifications outside of a transaction, when the window closes, then I expect one callback per observer`() {
+    var changes = 0
+    val threadChanges: MutableList<Set<Long>> = mutableListOf()
+
+    observer.registerConversationObserver(1) { changes++ }
+    observer.registerThreadChangesObserver { threadChanges += it }
+
+    observer.notifyConversationListeners(1)
+    observer.notifyConversationListeners(2)
+    observer.notifyConversationListeners(1)
+
+    assertEquals(0, changes)
+
+    scheduler.advanceBy(16)
+
+    assertEquals(1, changes)
+    assertEquals(listOf(setOf(1L, 2L)), threadChanges)
+  }
+
+  @Test
+  fun `Given repeated notifications in a transaction, when it succeeds, then I expect only the first per dedupe key to be posted`() {
+    val threadChanges: MutableList<Set<Long>> = mutableListOf()
+    observer.registerThreadChangesObserver { threadChanges += it }
+
+    transactions.begin()
+    observer.notifyConversationListeners(1)
+    observer.notifyConversationListeners(1)
+    observer.notifyConversationListeners(setOf(1L, 2L))
+
+    assertEquals(2, transactions.pendingCount)
+
+    scheduler.advanceBy(16)
+    assertTrue(threadChanges.isEmpty())
+
+    transactions.commit()
+    scheduler.advanceBy(16)
+
+    assertEquals(listOf(setOf(1L, 2L)), threadChanges)
+  }
+
+  @Test
+  fun `Given notifications in a failed transaction, when the window closes, then I expect no callbacks`() {
+    var changes = 0
+    observer.registerConversationListObserver { changes++ }
+
+    transactions.begin()
+    observer.notifyConversationListListeners()
+    transactions.rollback()
+    scheduler.advanceBy(16)
+
+    assertEquals(0, changes)
+  }
+
+  @Test
+  fun `Given two transactions within one window, when the window closes, then I expect them merged`() {
+    val messageChanges: MutableList<Set<MessageId>> = mutableListOf()
+    val updated: MutableList<MessageId> = mutableListOf()
+
+    observer.registerMessageChangesObserver { messageChanges += it }
+    observer.registerMessageUpdateObserver { updated += it }
+
+    transactions.begin()
+    observer.notifyMessageUpdateObservers(MessageId(1))
+    transactions.commit()
+
+    scheduler.advanceBy(8)
+
+    transactions.begin()
+    observer.notifyMessageUpdateObservers(MessageId(2))
+    observer.notifyMessageUpdateObservers(MessageId(1))
+    transactions.commit()
+
+    scheduler.advanceBy(8)
+
+    assertEquals(listOf(setOf(MessageId(1), MessageId(2))), messageChanges)
+    assertEquals(listOf(MessageId(1), MessageId(2)), updated)
+  }
+
+  @Test
+  fun `Given changes to different keys, when the window closes, then I expect observers called in notification order`() {
+    val calls: MutableList<String> = mutableListOf()
+
+    observer.registerStickerObserver { calls += "stickers" }
+    observer.registerConversationListObserver { calls += "list" }
+    observer.registerConversationObserver(1) { calls += "conversation" }
+
+    observer.notifyConversationListListeners()
+    observer.notifyConversationListeners(1)
+    observer.notifyStickerObservers()
+    observer.notifyConversationListListeners()
+    scheduler.advanceBy(16)
+
+    assertEquals(listOf("list", "conversation", "stickers"), calls)
+  }
+
+  @Test
+  fun `Given story notifications for several recipients in a transaction, when it succeeds, then I expect each recipient notified`() {
+    val notified: MutableList<RecipientId> = mutableListOf()
+    val first = RecipientId.from(1)
+    val second = RecipientId.from(2)
+
+    observer.registerStoryObserver(first) { notified += first }
+    observer.registerStoryObserver(second) { notified += second }
+
+    transactions.begin()
+    observer.notifyStoryObservers(listOf(first, second))
+    transactions.commit()
+    scheduler.advanceBy(16)
+
+    assertEquals(listOf(first, second), notified)
+  }
+
+  @Test
+  fun `Given pending changes, when I flush, then I expect them delivered without waiting for the window`() {
+    var changes = 0
+    observer.registerAttachmentObserver { changes++ }
+
+    observer.notifyAttachmentObservers()
+    observer.flush()
+
+    assertEquals(1, changes)
+
+    scheduler.advanceBy(16)
+
+    assertEquals(1, changes)
+  }
+
+  /**
+   * Matches the semantics of [SignalDatabase.runPostSuccessfulTransaction]: outside of a transaction tasks run immediately, and inside
+   * one only the first task for each dedupe key is kept, to be run once the transaction succeeds.
+   */
+  private class FakeTransactions : DatabaseObserver.PostTransactionRunner {
+    private var tasks: LinkedHashMap<String, Runnable>? = null
+
+    val pendingCount: Int
+      get() = tasks?.size ?: 0
+
+    fun begin() {
+      tasks = LinkedHashMap()
+    }
+
+    fun commit() {
+      val committed = tasks!!
+      tasks = null
+      committed.values.forEach { it.run() }
+    }
+
+    fun rollback() {
+      tasks = null
+    }
+
+    override fun runPostSuccessfulTransaction(dedupeKey: String, task: Runnable) {
+      val pending = tasks
+      if (pending == null) {
+        task.run()
+      } else {
+        pending.putIfAbsent(dedupeKey, task)
+      }
+    }
+  }
+}
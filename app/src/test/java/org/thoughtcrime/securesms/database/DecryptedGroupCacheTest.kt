@@ -0,0 +1,104 @@
+package org.thoughtcrime.securesms.database
+
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNotSame
+import org.junit.Assert.assertSame
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.signal.libsignal.zkgroup.groups.GroupIdentifier
+import org.signal.storageservice.protos.groups.Member
+import org.signal.storageservice.protos.groups.local.DecryptedGroup
+import org.signal.storageservice.protos.groups.local.DecryptedMember
+import org.signal.storageservice.protos.groups.local.DecryptedPendingMember
+import org.signal.storageservice.protos.groups.local.DecryptedRequestingMember
+import org.thoughtcrime.securesms.groups.GroupId
+import org.whispersystems.signalservice.api.push.ServiceId.ACI
+import org.whispersystems.signalservice.api.push.ServiceId.PNI
+import java.util.UUID
+import kotlin.random.Random
+
+class DecryptedGroupCacheTest {
+
+  private val groupId: GroupId.V2 = GroupId.v2(GroupIdentifier(Random.nextBytes(GroupIdentifier.SIZE)))
+
+  private val admin = ACI.from(UUID.randomUUID())
+  private val member = ACI.from(UUID.randomUUID())
+  private val pending = PNI.from(UUID.randomUUID())
+  private val requesting = ACI.from(UUID.randomUUID())
+  private val stranger = ACI.from(UUID.randomUUID())
+
+  @After
+  fun tearDown() {
+    DecryptedGroupCache.clear()
+  }
+
+  @Test
+  fun `Given a parsed group, when I check member levels, then I expect each level to be found`() {
+    val parsed = DecryptedGroupCache.get(groupId, 1, group(1).encode())
+
+    assertEquals(GroupTable.MemberLevel.ADMINISTRATOR, parsed.memberLevel(admin))
+    assertEquals(GroupTable.MemberLevel.FULL_MEMBER, parsed.memberLevel(member))
+    assertEquals(GroupTable.MemberLevel.PENDING_MEMBER, parsed.memberLevel(pending))
+    assertEquals(GroupTable.MemberLevel.REQUESTING_MEMBER, parsed.memberLevel(requesting))
+    assertEquals(GroupTable.MemberLevel.NOT_A_MEMBER, parsed.memberLevel(stranger))
+
+    assertTrue(parsed.isAdmin(admin))
+    assertFalse(parsed.isAdmin(member))
+  }
+
+  @Test
+  fun `Given a cached revision, when I get the same bytes, then I expect the cached instance`() {
+    val bytes = group(1).encode()
+
+    val first = DecryptedGroupCache.get(groupId, 1, bytes)
+    val second = DecryptedGroupCache.get(groupId, 1, bytes.copyOf())
+
+    assertSame(first, second)
+  }
+
+  @Test
+  fun `Given a cached revision, when I get a newer revision, then I expect it to be parsed again`() {
+    val first = DecryptedGroupCache.get(groupId, 1, group(1).encode())
+    val second = DecryptedGroupCache.get(groupId, 2, group(2).encode())
+
+    assertNotSame(first, second)
+    assertEquals(2, second.decryptedGroup.revision)
+  }
+
+  @Test
+  fun `Given a cached revision, when the bytes change without a new revision, then I expect it to be parsed again`() {
+    val first = DecryptedGroupCache.get(groupId, 1, group(1).encode())
+    val second = DecryptedGroupCache.get(groupId, 1, group(1, title = "Renamed").encode())
+
+    assertNotSame(first, second)
+    assertEquals("Renamed", second.decryptedGroup.title)
+  }
+
+  @Test
+  fun `Given a cached revision, when I invalidate it, then I expect it to be parsed again`() {
+    val bytes = group(1).encode()
+
+    val first = DecryptedGroupCache.get(groupId, 1, bytes)
+    DecryptedGroupCache.invalidate(groupId)
+    val second = DecryptedGroupCache.get(groupId, 1, bytes)
+
+    assertNotSame(first, second)
+  }
+
+  private fun group(revision: Int, title: String = "Group"): DecryptedGroup {
+    return DecryptedGroup.Builder()
+      .title(title)
+      .revision(revision)
+      .members(
+        listOf(
+          DecryptedMember.Builder().aciBytes(admin.toByteString()).role(Member.Role.ADMINISTRATOR).build(),
+          DecryptedMember.Builder().aciBytes(member.toByteString()).role(Member.Role.DEFAULT).build()
+        )
+      )
+      .pendingMembers(listOf(DecryptedPendingMember.Builder().serviceIdBytes(pending.toByteString()).build()))
+      .requestingMembers(listOf(DecryptedRequestingMember.Builder().aciBytes(requesting.toByteString()).build()))
+      .build()
+  }
+}
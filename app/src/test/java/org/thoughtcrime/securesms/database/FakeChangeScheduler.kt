@@ -0,0 +1,32 @@
+package org.thoughtcrime.securesms.database
+
+/**
+ * A [DatabaseChangeCoalescer.Scheduler] driven by a fake clock, which only runs tasks when the test advances time.
+ */
+class FakeChangeScheduler : DatabaseChangeCoalescer.Scheduler {
+
+  var now: Long = 0
+    private set
+
+  private val tasks: MutableList<Pair<Long, Runnable>> = mutableListOf()
+
+  val pendingCount: Int
+    get() = tasks.size
+
+  override fun schedule(delayMs: Long, task: Runnable) {
+    tasks += (now + delayMs) to task
+  }
+
+  fun advanceBy(ms: Long) {
+    val target = now + ms
+
+    while (true) {
+      val next = tasks.filter { it.first <= target }.minByOrNull { it.first } ?: break
+      tasks.remove(next)
+      now = next.first
+      next.second.run()
+    }
+
+    now = target
+  }
+}
@@ -66,8 +66,8 @@ class ChangeSet {
     changeSet += entry
   }
 
-  fun toApiResponse(): GroupHistoryPage {
-    return GroupHistoryPage(changeSet.map { DecryptedGroupHistoryEntry(Optional.ofNullable(it.groupSnapshot), Optional.ofNullable(it.groupChange)) }, GroupHistoryPage.PagingData.NONE)
+  fun toApiResponse(pagingData: GroupHistoryPage.PagingData = GroupHistoryPage.PagingData.NONE): GroupHistoryPage {
+    return GroupHistoryPage(changeSet.map { DecryptedGroupHistoryEntry(Optional.ofNullable(it.groupSnapshot), Optional.ofNullable(it.groupChange)) }, pagingData)
   }
 }
 
@@ -0,0 +1,244 @@
+package org.thoughtcrime.securesms.database
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.thoughtcrime.securesms.database.model.LogEntry
+import kotlin.random.Random
+import kotlin.time.Duration.Companion.hours
+
+class LogSegmentsTest {
+
+  companion object {
+    private const val LINE_COUNT = 1_000_000
+    private const val BATCH_SIZE = 100
+    private const val LINE_INTERVAL_MS = 2_600L
+    private const val KEEP_LONGER_EVERY = 100
+    private const val START_TIME = 1_700_000_000_000L
+    private const val MIN_LINE_SIZE = 200L
+
+    private val MAX_FILE_SIZE = LogDatabase.LogTable.MAX_FILE_SIZE
+    private val SEGMENT_SIZE = LogDatabase.LogTable.SEGMENT_SIZE
+    private val DEFAULT_LIFESPAN = LogDatabase.LogTable.DEFAULT_LIFESPAN
+    private val LONGER_LIFESPAN = LogDatabase.LogTable.LONGER_LIFESPAN
+  }
+
+  private val store = FakeStore()
+  private val segments = LogSegments(store, SEGMENT_SIZE, MAX_FILE_SIZE, DEFAULT_LIFESPAN, LONGER_LIFESPAN)
+
+  @Test
+  fun `Given a million lines, when I insert them, then I expect the total size to never exceed the max`() {
+    insertLines { _, now ->
+      assertTrue("Size ${store.getTotalSize()} exceeded the max at $now", store.getTotalSize() <= MAX_FILE_SIZE)
+    }
+
+    assertEquals(store.getTotalSize(), segments.getTotalSize())
+    assertEquals(store.getLogSize(), store.getTotalSize())
+  }
+
+  @Test
+  fun `Given a million lines, when I insert them, then I expect keepLonger lines to outlive the default lifespan`() {
+    val now = insertLines { _, _ -> }
+
+    val keepLongerTimes = store.getKeepLongerTimes()
+    val expectedTimes = (0 until LINE_COUNT)
+      .filter { it % KEEP_LONGER_EVERY == 0 }
+      .map { START_TIME + it * LINE_INTERVAL_MS }
+      .filter { it >= now - LONGER_LIFESPAN }
+
+    assertTrue(keepLongerTimes.containsAll(expectedTimes))
+    assertTrue(keepLongerTimes.any { it < now - DEFAULT_LIFESPAN })
+    assertTrue(store.getOldestTime(keepLonger = false) > now - DEFAULT_LIFESPAN)
+  }
+
+  @Test
+  fun `Given a million lines, when I insert them, then I expect every remaining segment to be within its lifespan`() {
+    val now = insertLines { _, _ -> }
+
+    store.segments.values.forEach { segment ->
+      val lifespan = if (segment.keepLonger) LONGER_LIFESPAN else DEFAULT_LIFESPAN
+      assertTrue(segment.endTime >= now - lifespan)
+    }
+  }
+
+  @Test
+  fun `Given a million lines, when I insert them, then I expect the cost of an insert to not grow with the number of lines`() {
+    val operations = IntArray(LINE_COUNT / BATCH_SIZE)
+    val durations = LongArray(LINE_COUNT / BATCH_SIZE)
+
+    insertLines { batch, _ ->
+      operations[batch] = store.operations
+      durations[batch] = store.duration
+    }
+
+    val maxOperations = operations.max()
+    val maxRowsDeleted = store.maxRowsDeleted
+
+    assertTrue("An insert ran $maxOperations store operations", maxOperations <= 8)
+    assertTrue("An insert deleted $maxRowsDeleted rows", maxRowsDeleted <= 3 * SEGMENT_SIZE / MIN_LINE_SIZE)
+
+    val early = durations.copyOfRange(durations.size / 10, durations.size / 5).median()
+    val late = durations.copyOfRange(durations.size - durations.size / 10, durations.size).median()
+
+    assertTrue("Median insert took ${early}ns early on and ${late}ns at the end", late <= early * 5)
+  }
+
+  @Test
+  fun `Given keepLonger segments, when I drop them, then I expect only the other segments to remain`() {
+    insertLines(count = 50_000) { _, _ -> }
+
+    segments.dropKeepLonger()
+
+    assertTrue(store.getKeepLongerTimes().isEmpty())
+    assertTrue(store.segments.values.none { it.keepLonger })
+    assertEquals(store.getTotalSize(), segments.getTotalSize())
+  }
+
+  @Test
+  fun `Given segments already in the store, when I reset, then I expect to keep adding to the newest one`() {
+    insertLines(count = 1_000) { _, _ -> }
+    val segmentCount = store.segments.size
+
+    segments.reset()
+    insertLines(count = 10, startIndex = 1_000) { _, _ -> }
+
+    assertEquals(segmentCount, store.segments.size)
+    assertEquals(store.getLogSize(), store.getTotalSize())
+  }
+
+  @Test
+  fun `Given a few small lines a day, when I insert them for months, then I expect segments to roll over and old lines to expire`() {
+    val interval = 6.hours.inWholeMilliseconds
+    var now = START_TIME
+
+    for (i in 0 until 4 * 120) {
+      now = START_TIME + i * interval
+
+      val log = LogEntry(
+        createdAt = now,
+        keepLonger = i % 2 == 0,
+        level = "I",
+        tag = "Tag",
+        threadId = 1,
+        message = "Line $i",
+        stackTrace = null,
+        versionName = "1.0"
+      )
+
+      store.insertLog(segments.assign(log, MIN_LINE_SIZE), log, MIN_LINE_SIZE)
+      segments.finishBatch(now)
+    }
+
+    store.segments.values.forEach { segment ->
+      val lifespan = if (segment.keepLonger) LONGER_LIFESPAN else DEFAULT_LIFESPAN
+      assertTrue("Segment spans ${segment.endTime - segment.startTime} ms", segment.endTime - segment.startTime <= lifespan / LogSegments.MAX_SPAN_DIVISOR)
+    }
+
+    val defaultLimit = DEFAULT_LIFESPAN + 2 * (DEFAULT_LIFESPAN / LogSegments.MAX_SPAN_DIVISOR + interval)
+    val longerLimit = LONGER_LIFESPAN + 2 * (LONGER_LIFESPAN / LogSegments.MAX_SPAN_DIVISOR + interval)
+    assertTrue(store.getOldestTime(keepLonger = false) >= now - defaultLimit)
+    assertTrue(store.getOldestTime(keepLonger = true) >= now - longerLimit)
+  }
+
+  /**
+   * Inserts lines in batches, the way [org.thoughtcrime.securesms.logging.PersistentLogger] would, and returns the time of the last one.
+   */
+  private fun insertLines(count: Int = LINE_COUNT, startIndex: Int = 0, afterBatch: (Int, Long) -> Unit): Long {
+    val random = Random(count)
+    var now = 0L
+    var batch = 0
+
+    for (batchStart in startIndex until startIndex + count step BATCH_SIZE) {
+      store.operations = 0
+      val start = System.nanoTime()
+
+      for (i in batchStart until minOf(batchStart + BATCH_SIZE, startIndex + count)) {
+        now = START_TIME + i * LINE_INTERVAL_MS
+
+        val log = LogEntry(
+          createdAt = now,
+          keepLonger = i % KEEP_LONGER_EVERY == 0,
+          level = "I",
+          tag = "Tag",
+          threadId = 1,
+          message = "Line $i",
+          stackTrace = null,
+          versionName = "1.0"
+        )
+        val size = MIN_LINE_SIZE + random.nextInt(400)
+
+        store.insertLog(segments.assign(log, size), log, size)
+      }
+
+      segments.finishBatch(now)
+
+      store.duration = System.nanoTime() - start
+      afterBatch(batch++, now)
+    }
+
+    return now
+  }
+
+  private fun LongArray.median(): Long {
+    return sorted()[size / 2]
+  }
+
+  private class FakeStore : LogSegments.Store {
+    val segments: MutableMap<Long, LogSegments.Segment> = LinkedHashMap()
+    val logs: MutableMap<Long, MutableList<Pair<Long, Long>>> = HashMap()
+
+    var operations = 0
+    var duration = 0L
+    var maxRowsDeleted = 0
+
+    private var nextId = 1L
+
+    override fun getSegments(): List<LogSegments.Segment> {
+      operations++
+      return segments.values.map { it.copy() }
+    }
+
+    override fun createSegment(keepLonger: Boolean, createdAt: Long): Long {
+      operations++
+      val id = nextId++
+      segments[id] = LogSegments.Segment(id, keepLonger, createdAt, createdAt, 0)
+      logs[id] = ArrayList()
+      return id
+    }
+
+    override fun updateSegment(segment: LogSegments.Segment) {
+      operations++
+      segments[segment.id] = segment.copy()
+    }
+
+    override fun deleteSegments(ids: Collection<Long>) {
+      operations++
+      var rowsDeleted = 0
+      ids.forEach {
+        segments.remove(it)
+        rowsDeleted += logs.remove(it)?.size ?: 0
+      }
+      maxRowsDeleted = maxOf(maxRowsDeleted, rowsDeleted)
+    }
+
+    fun insertLog(segmentId: Long, log: LogEntry, size: Long) {
+      logs.getValue(segmentId) += log.createdAt to size
+    }
+
+    fun getTotalSize(): Long = segments.values.sumOf { it.size }
+
+    fun getLogSize(): Long = logs.values.sumOf { rows -> rows.sumOf { it.second } }
+
+    fun getKeepLongerTimes(): Set<Long> {
+      return segments.values.filter { it.keepLonger }.flatMap { segment -> logs.getValue(segment.id).map { it.first } }.toSet()
+    }
+
+    fun getOldestTime(keepLonger: Boolean): Long {
+      return segments.values.filter { it.keepLonger == keepLonger }.minOf { it.startTime }
+    }
+
+    private fun LogSegments.Segment.copy(): LogSegments.Segment {
+      return LogSegments.Segment(id, keepLonger, startTime, endTime, size)
+    }
+  }
+}
@@ -0,0 +1,203 @@
+package org.thoughtcrime.securesms.database.model
+
+import android.app.Application
+import android.content.res.Configuration
+import android.text.SpannableString
+import android.text.Spanned
+import android.text.style.ClickableSpan
+import android.view.View
+import androidx.test.core.app.ApplicationProvider
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+import org.signal.core.util.Base64
+import org.signal.storageservice.protos.groups.local.DecryptedGroupChange
+import org.signal.storageservice.protos.groups.local.DecryptedMember
+import org.thoughtcrime.securesms.database.model.databaseprotos.DecryptedGroupV2Context
+import org.thoughtcrime.securesms.recipients.Recipient
+import org.thoughtcrime.securesms.recipients.RecipientId
+import org.whispersystems.signalservice.api.push.ServiceId.ACI
+import java.util.Locale
+import java.util.UUID
+
+@RunWith(RobolectricTestRunner::class)
+@Config(manifest = Config.NONE, application = Application::class)
+class GroupsV2UpdateDescriptionCacheTest {
+
+  companion object {
+    private const val RECORD_COUNT = 1_000
+    private const val RECIPIENT_COUNT = 50
+  }
+
+  private val acis: List<ACI> = (0 until RECIPIENT_COUNT).map { ACI.from(UUID.randomUUID()) }
+  private val recipientIds: Map<ACI, RecipientId> = acis.mapIndexed { i, aci -> aci to RecipientId.from(i + 1L) }.toMap()
+  private val names: MutableMap<RecipientId, String> = recipientIds.values.associateWith { "Name $it" }.toMutableMap()
+  private val recipients: MutableMap<RecipientId, Recipient> = recipientIds.values.associateWith { Recipient(it, isResolving = false) }.toMutableMap()
+
+  private var locale = Locale.US
+  private var nightMode = Configuration.UI_MODE_NIGHT_NO
+  private var parseCount = 0
+  private var describeCount = 0
+  private var renderCount = 0
+  private var nameLookupCount = 0
+
+  private val cache = GroupsV2UpdateDescriptionCache(
+    maxSize = RECORD_COUNT,
+    parse = {
+      parseCount++
+      GroupsV2UpdateDescriptionCache.parseContext(it)
+    },
+    resolveRecipientId = { recipientIds.getValue(it) },
+    getRecipient = { recipients.getValue(it) },
+    getDisplayName = {
+      nameLookupCount++
+      names.getValue(it.id)
+    },
+    getLocale = { locale }
+  )
+
+  private val bodies: List<String> = (0 until RECORD_COUNT).map { createBody(editor = editor(it), added = added(it), revision = it) }
+
+  @Test
+  fun `Given a thousand group updates, when I render them twice, then I expect each to be parsed and described once`() {
+    val first = renderAll()
+    val second = renderAll()
+
+    assertEquals(RECORD_COUNT, parseCount)
+    assertEquals(RECORD_COUNT, describeCount)
+    assertEquals(RECORD_COUNT, renderCount)
+    assertEquals(first, second)
+    assertEquals(expectedText(0), first[0])
+  }
+
+  @Test
+  fun `Given rendered group updates, when I render them again without changes, then I expect no display names to be looked up`() {
+    renderAll()
+    val lookups = nameLookupCount
+
+    renderAll()
+
+    assertEquals(2 * RECORD_COUNT, lookups)
+    assertEquals(lookups, nameLookupCount)
+  }
+
+  @Test
+  fun `Given rendered group updates, when the locale changes, then I expect them to be described again`() {
+    renderAll()
+
+    locale = Locale.FRANCE
+    renderAll()
+
+    assertEquals(2 * RECORD_COUNT, describeCount)
+  }
+
+  @Test
+  fun `Given rendered group updates, when the night mode changes, then I expect them to be described again`() {
+    renderAll()
+
+    nightMode = Configuration.UI_MODE_NIGHT_YES
+    renderAll()
+
+    assertEquals(2 * RECORD_COUNT, describeCount)
+  }
+
+  @Test
+  fun `Given rendered group updates, when a recipient is renamed, then I expect only the descriptions that mention them to be rebuilt`() {
+    renderAll()
+
+    val renamed = recipientIds.getValue(acis[3])
+    names[renamed] = "Renamed"
+    recipients[renamed] = Recipient(renamed, isResolving = false)
+
+    val rendered = renderAll()
+    val mentioning = bodies.indices.filter { i -> recipientIds.getValue(editor(i)) == renamed || recipientIds.getValue(added(i)) == renamed }
+
+    assertEquals(RECORD_COUNT, parseCount)
+    assertEquals(RECORD_COUNT, describeCount)
+    assertEquals(RECORD_COUNT + mentioning.size, renderCount)
+    mentioning.forEach { i -> assertEquals(expectedText(i), rendered[i]) }
+    assertTrue(mentioning.all { rendered[it].contains("Renamed") })
+  }
+
+  @Test
+  fun `Given a message whose body changed, when I render it, then I expect it to be parsed again`() {
+    render(0, bodies[0])
+    val rendered = render(0, bodies[1])
+
+    assertEquals(2, parseCount)
+    assertEquals(expectedText(1), rendered)
+  }
+
+  @Test
+  fun `Given a description bound with two click handlers, when I click a name in each, then I expect each click to go to its own handler`() {
+    val clicked = mutableListOf<String>()
+    val describer = GroupsV2UpdateDescriptionCache.Describer { _, clickHandler ->
+      describeCount++
+
+      UpdateDescription.mentioning(listOf(acis[0]), {
+        SpannableString("Name").apply {
+          setSpan(
+            object : ClickableSpan() {
+              override fun onClick(widget: View) = clickHandler.accept(recipientIds.getValue(acis[0]))
+            },
+            0,
+            length,
+            Spanned.SPAN_EXCLUSIVE_EXCLUSIVE
+          )
+        }
+      }, 0)
+    }
+
+    val first = cache.getDescription(0, bodies[0], nightMode, { clicked += "first $it" }, describer).spannable
+    val second = cache.getDescription(0, bodies[0], nightMode, { clicked += "second $it" }, describer).spannable
+
+    val view = View(ApplicationProvider.getApplicationContext())
+    second.getSpans(0, second.length, ClickableSpan::class.java).single().onClick(view)
+    first.getSpans(0, first.length, ClickableSpan::class.java).single().onClick(view)
+
+    val id = recipientIds.getValue(acis[0])
+    assertEquals(1, describeCount)
+    assertEquals(listOf("second $id", "first $id"), clicked)
+  }
+
+  private fun renderAll(): List<String> {
+    return bodies.mapIndexed { i, body -> render(i.toLong(), body) }
+  }
+
+  private fun render(messageId: Long, body: String): String {
+    val describer = GroupsV2UpdateDescriptionCache.Describer { context, _ ->
+      describeCount++
+
+      val editor = ACI.parseOrThrow(context!!.change!!.editorServiceIdBytes)
+      val added = ACI.parseOrThrow(context.change!!.newMembers.single().aciBytes)
+
+      UpdateDescription.mentioning(listOf(editor, added), {
+        renderCount++
+        SpannableString("${names.getValue(recipientIds.getValue(editor))} added ${names.getValue(recipientIds.getValue(added))}.")
+      }, 0)
+    }
+
+    return cache.getDescription(messageId, body, nightMode, null, describer).spannable.toString()
+  }
+
+  private fun editor(i: Int): ACI = acis[i % RECIPIENT_COUNT]
+
+  private fun added(i: Int): ACI = acis[(i * 7 + 1) % RECIPIENT_COUNT]
+
+  private fun expectedText(i: Int): String {
+    return "${names.getValue(recipientIds.getValue(editor(i)))} added ${names.getValue(recipientIds.getValue(added(i)))}."
+  }
+
+  private fun createBody(editor: ACI, added: ACI, revision: Int): String {
+    val change = DecryptedGroupChange.Builder()
+      .editorServiceIdBytes(editor.toByteString())
+      .revision(revision)
+      .newMembers(listOf(DecryptedMember.Builder().aciBytes(added.toByteString()).build()))
+      .build()
+
+    return Base64.encodeWithPadding(DecryptedGroupV2Context.Builder().change(change).build().encode())
+  }
+}
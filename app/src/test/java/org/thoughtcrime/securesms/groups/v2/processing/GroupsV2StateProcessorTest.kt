@@ -24,6 +24,7 @@ import org.signal.storageservice.protos.groups.local.DecryptedGroupChange
 import org.signal.storageservice.protos.groups.local.DecryptedMember
 import org.signal.storageservice.protos.groups.local.DecryptedTimer
 import org.thoughtcrime.securesms.SignalStoreRule
+import org.thoughtcrime.securesms.database.ChangeSet
 import org.thoughtcrime.securesms.database.GroupStateTestData
 import org.thoughtcrime.securesms.database.GroupTable
 import org.thoughtcrime.securesms.database.RecipientTable
@@ -39,12 +40,16 @@ import org.thoughtcrime.securesms.jobmanager.JobManager
 import org.thoughtcrime.securesms.jobs.RequestGroupV2InfoJob
 import org.thoughtcrime.securesms.logging.CustomSignalProtocolLogger
 import org.thoughtcrime.securesms.testutil.SystemOutLogger
+import org.whispersystems.signalservice.api.groupsv2.GroupHistoryPage
 import org.whispersystems.signalservice.api.groupsv2.GroupsV2Api
 import org.whispersystems.signalservice.api.groupsv2.PartialDecryptedGroup
 import org.whispersystems.signalservice.api.push.ServiceId.ACI
 import org.whispersystems.signalservice.api.push.ServiceId.PNI
 import org.whispersystems.signalservice.api.push.ServiceIds
 import java.util.UUID
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
 
 @RunWith(RobolectricTestRunner::class)
 @Config(manifest = Config.NONE, application = Application::class)
@@ -112,7 +117,7 @@ class GroupsV2StateProcessorTest {
     }
 
     data.changeSet?.let { changeSet ->
-      every { groupsV2API.getGroupHistoryPage(any(), data.requestedRevision, any(), data.includeFirst) } returns changeSet.toApiResponse()
+      every { groupsV2API.getGroupHistoryPage(any(), data.requestedRevision, any(), data.includeFirst, any()) } returns changeSet.toApiResponse()
     }
   }
 
@@ -450,7 +455,7 @@ class GroupsV2StateProcessorTest {
         }
       }
     }
-    every { groupsV2API.getGroupHistoryPage(any(), 100, any(), true) } returns secondApiCallChangeSet.changeSet!!.toApiResponse()
+    every { groupsV2API.getGroupHistoryPage(any(), 100, any(), true, any()) } returns secondApiCallChangeSet.changeSet!!.toApiResponse()
 
     val result = processor.updateLocalGroupToRevision(GroupsV2StateProcessor.LATEST, 0, null)
 
@@ -565,4 +570,83 @@ class GroupsV2StateProcessorTest {
     val result = processor.forceSanityUpdateFromServer(0)
     assertThat("local should be unchanged", result.groupState, `is`(GroupsV2StateProcessor.GroupState.GROUP_CONSISTENT_OR_AHEAD))
   }
+
+  /**
+   * Serves 1000 revisions in pages of 100. The second page should be fetched while the first one is applied, so fetching it waits for
+   * applying to start, and applying waits for fetching it to start. Each only sees the other if the two overlap.
+   */
+  @Test
+  fun largeHistoryIsFetchedWhileEarlierPagesAreApplied() {
+    val latestRevision = 1000
+    val pageSize = 100
+
+    given {
+      localState(
+        revision = 0,
+        title = "Title 0",
+        members = selfAndOthers
+      )
+      serverState(
+        revision = latestRevision,
+        extendGroup = localState,
+        title = "Title $latestRevision"
+      )
+    }
+
+    val requestedPages = mutableListOf<Int>()
+    val applyStarted = CountDownLatch(1)
+    val secondFetchStarted = CountDownLatch(1)
+    val firstApply = AtomicBoolean(true)
+    val applySeenByFetch = AtomicBoolean(false)
+    val fetchSeenByApply = AtomicBoolean(false)
+
+    every { groupsV2API.getGroupHistoryPage(any(), any(), any(), any(), any()) } answers {
+      val fromRevision: Int = secondArg()
+      val includeFirst: Boolean = arg(3)
+      val toRevision = minOf(fromRevision + pageSize - 1, latestRevision)
+
+      synchronized(requestedPages) {
+        requestedPages += fromRevision
+      }
+
+      if (fromRevision == pageSize) {
+        secondFetchStarted.countDown()
+        applySeenByFetch.set(applyStarted.await(5, TimeUnit.SECONDS))
+      }
+
+      val page = ChangeSet().apply {
+        for (revision in fromRevision..toRevision) {
+          changeLog(revision) {
+            if (revision == fromRevision && includeFirst) {
+              fullSnapshot(title = "Title $revision", members = selfAndOthers)
+            } else {
+              change {
+                setNewTitle("Title $revision")
+              }
+            }
+          }
+        }
+      }
+
+      page.toApiResponse(if (toRevision < latestRevision) GroupHistoryPage.PagingData.forNextPage(toRevision + 1) else GroupHistoryPage.PagingData.NONE)
+    }
+
+    every { profileAndMessageHelper.insertUpdateMessages(any(), any(), any(), any()) } answers {
+      if (firstApply.getAndSet(false)) {
+        applyStarted.countDown()
+        fetchSeenByApply.set(secondFetchStarted.await(5, TimeUnit.SECONDS))
+      }
+      firstArg()
+    }
+
+    val result = processor.updateLocalGroupToRevision(GroupsV2StateProcessor.LATEST, 0, null)
+
+    assertThat("local should update to server", result.groupState, `is`(GroupsV2StateProcessor.GroupState.GROUP_UPDATED))
+    assertThat("revision matches latest revision on server", result.latestServer!!.revision, `is`(latestRevision))
+    assertThat("title matches latest revision on server", result.latestServer!!.title, `is`("Title $latestRevision"))
+    assertThat("pages are requested in order", requestedPages, `is`((0..latestRevision step pageSize).toList()))
+    assertThat("second page is fetched while the first is applied", applySeenByFetch.get(), `is`(true))
+    assertThat("first page is applied while the second is fetched", fetchSeenByApply.get(), `is`(true))
+    verify(exactly = 0) { jobManager.add(ofType(RequestGroupV2InfoJob::class)) }
+  }
 }
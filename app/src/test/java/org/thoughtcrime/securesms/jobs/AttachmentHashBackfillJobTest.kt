@@ -0,0 +1,302 @@
+package org.thoughtcrime.securesms.jobs
+
+import android.app.Application
+import android.database.sqlite.SQLiteException
+import io.mockk.every
+import io.mockk.mockk
+import io.mockk.mockkObject
+import io.mockk.mockkStatic
+import io.mockk.unmockkObject
+import io.mockk.unmockkStatic
+import io.mockk.verify
+import org.junit.After
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+import org.signal.core.util.TokenBucket
+import org.thoughtcrime.securesms.SignalStoreRule
+import org.thoughtcrime.securesms.attachments.AttachmentId
+import org.thoughtcrime.securesms.crypto.AttachmentSecret
+import org.thoughtcrime.securesms.crypto.ModernDecryptingPartInputStream
+import org.thoughtcrime.securesms.crypto.ModernEncryptingPartOutputStream
+import org.thoughtcrime.securesms.database.AttachmentTable
+import org.thoughtcrime.securesms.database.SignalDatabase
+import org.thoughtcrime.securesms.dependencies.ApplicationDependencies
+import org.thoughtcrime.securesms.jobmanager.JobManager
+import org.thoughtcrime.securesms.keyvalue.SignalStore
+import java.io.File
+import java.io.FilterInputStream
+import java.io.IOException
+import java.io.InputStream
+import java.security.MessageDigest
+import java.util.concurrent.atomic.AtomicLong
+import kotlin.random.Random
+
+@RunWith(RobolectricTestRunner::class)
+@Config(manifest = Config.NONE, application = Application::class)
+class AttachmentHashBackfillJobTest {
+
+  companion object {
+    private const val FILE_COUNT = 300
+    private const val MAX_FILE_SIZE = 64 * 1024
+    private const val THREAD_COUNT = 4
+    private const val BYTES_PER_SECOND = 256L * 1024
+    private const val BURST_BYTES = 32L * 1024
+    private const val BATCH_SIZE = 50
+  }
+
+  @get:Rule
+  val signalStore: SignalStoreRule = SignalStoreRule()
+
+  @get:Rule
+  val temporaryFolder = TemporaryFolder()
+
+  private val attachmentSecret = AttachmentSecret(null, null, Random(1).nextBytes(32))
+  private val clock = AtomicLong(0)
+  private val attachmentTable: AttachmentTable = mockk()
+  private val jobManager: JobManager = mockk(relaxed = true)
+
+  private val rows: MutableMap<Long, Row> = sortedMapOf()
+  private val hashes: MutableMap<File, ByteArray> = mutableMapOf()
+  private val missingFiles: MutableList<File> = mutableListOf()
+  private val unhashableFiles: MutableList<File> = mutableListOf()
+  private val claims: MutableList<Long> = mutableListOf()
+
+  /** Every read from an attachment stream, as the time it finished and the total bytes read by then. */
+  private val reads: MutableList<Pair<Long, Long>> = mutableListOf()
+  private var totalBytesRead = 0L
+
+  private var commitsUntilProcessDeath = Int.MAX_VALUE
+
+  @Before
+  fun setUp() {
+    mockkObject(SignalDatabase.Companion)
+    every { SignalDatabase.attachments } returns attachmentTable
+
+    mockkStatic(ApplicationDependencies::class)
+    every { ApplicationDependencies.getJobManager() } returns jobManager
+
+    every { attachmentTable.getUnhashedDataFiles(any(), any()) } answers { getUnhashedDataFiles(firstArg(), secondArg()) }
+    every { attachmentTable.getAttachmentStream(any(), 0L) } answers { openStream(firstArg()) }
+    every { attachmentTable.setHashesForDataFiles(any(), any(), any()) } answers { commit(firstArg(), secondArg(), thirdArg()) }
+  }
+
+  @After
+  fun tearDown() {
+    unmockkObject(SignalDatabase.Companion)
+    unmockkStatic(ApplicationDependencies::class)
+  }
+
+  @Test
+  fun `Given encrypted files, when I run the backfill, then I expect the hash of every file's plaintext`() {
+    val plaintexts = createFiles(FILE_COUNT)
+
+    val result = createJob().run()
+
+    assertTrue(result.isSuccess)
+    assertEquals(FILE_COUNT, hashes.size)
+    plaintexts.forEach { (file, plaintext) ->
+      assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(plaintext), hashes[file])
+    }
+  }
+
+  @Test
+  fun `Given encrypted files, when I run the backfill, then I expect reads to never exceed the bandwidth budget`() {
+    createFiles(FILE_COUNT)
+
+    createJob().run()
+
+    reads.forEach { (time, totalBytes) ->
+      assertTrue("Read $totalBytes bytes by ${time}ms", totalBytes <= BURST_BYTES + BYTES_PER_SECOND * time / 1000)
+    }
+
+    val minimumTime = (totalBytesRead - BURST_BYTES) * 1000 / BYTES_PER_SECOND
+    assertTrue("Read $totalBytesRead bytes in ${clock.get()}ms", clock.get() >= minimumTime)
+  }
+
+  @Test
+  fun `Given encrypted files, when I run the backfill, then I expect it to finish without enqueueing any other jobs`() {
+    createFiles(FILE_COUNT)
+
+    val result = createJob().run()
+
+    assertTrue(result.isSuccess)
+    assertTrue(rows.values.all { it.hashed })
+    verify(exactly = 0) { jobManager.add(any()) }
+  }
+
+  @Test
+  fun `Given the process dies partway through, when I run the backfill again, then I expect it to resume from the saved cursor`() {
+    createFiles(FILE_COUNT)
+    commitsUntilProcessDeath = 2
+
+    try {
+      createJob().run()
+    } catch (e: ProcessDeath) {
+      // Expected
+    }
+
+    val cursor = SignalStore.misc().attachmentHashBackfillCursor
+    assertEquals(2 * BATCH_SIZE, hashes.size)
+    assertEquals(FILE_COUNT - 2L * BATCH_SIZE, cursor - 1)
+
+    claims.clear()
+    commitsUntilProcessDeath = Int.MAX_VALUE
+
+    val result = createJob().run()
+
+    assertTrue(result.isSuccess)
+    assertEquals(cursor, claims.first())
+    assertEquals(FILE_COUNT, hashes.size)
+  }
+
+  @Test
+  fun `Given missing and unreadable files, when I run the backfill, then I expect them to be cleared and marked unhashable`() {
+    val plaintexts = createFiles(FILE_COUNT)
+    val missing = rows.getValue(10).file
+    val unreadable = rows.getValue(20).file
+
+    missing.delete()
+    rows.getValue(20).unreadable = true
+
+    val result = createJob().run()
+
+    assertTrue(result.isSuccess)
+    assertEquals(listOf(missing), missingFiles)
+    assertEquals(listOf(unreadable), unhashableFiles)
+    assertEquals(FILE_COUNT - 2, hashes.size)
+    assertFalse(hashes.containsKey(unreadable))
+    assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(plaintexts.getValue(rows.getValue(30).file)), hashes[rows.getValue(30).file])
+  }
+
+  @Test
+  fun `Given a batch fails to commit, when I run the backfill, then I expect a retry from the saved cursor`() {
+    createFiles(FILE_COUNT)
+    every { attachmentTable.setHashesForDataFiles(any(), any(), any()) } throws SQLiteException("disk I/O error")
+
+    val result = createJob().run()
+
+    assertTrue(result.isRetry)
+    assertEquals(Long.MAX_VALUE, SignalStore.misc().attachmentHashBackfillCursor)
+  }
+
+  @Test
+  fun `Given a file throws while it's being read, when I run the backfill, then I expect it to be marked unhashable`() {
+    createFiles(FILE_COUNT)
+    val broken = rows.getValue(20).file
+    rows.getValue(20).throwsRuntimeException = true
+
+    val result = createJob().run()
+
+    assertTrue(result.isSuccess)
+    assertEquals(listOf(broken), unhashableFiles)
+    assertEquals(FILE_COUNT - 1, hashes.size)
+  }
+
+  @Test
+  fun `Given the backfill fails, when it gives up, then I expect a new one to be enqueued`() {
+    createJob().onFailure()
+
+    verify(exactly = 1) { jobManager.add(any<AttachmentHashBackfillJob>()) }
+  }
+
+  private fun createJob(): AttachmentHashBackfillJob {
+    val tokenBucket = TokenBucket(
+      capacity = BURST_BYTES,
+      permitsPerSecond = BYTES_PER_SECOND,
+      clock = { clock.get() },
+      sleep = { clock.addAndGet(it) }
+    )
+
+    return AttachmentHashBackfillJob(THREAD_COUNT, tokenBucket)
+  }
+
+  private fun createFiles(count: Int): Map<File, ByteArray> {
+    val random = Random(count)
+
+    return (1..count).associate { id ->
+      val file = temporaryFolder.newFile("part$id.mms")
+      val plaintext = random.nextBytes(random.nextInt(1, MAX_FILE_SIZE))
+      val (dataRandom, outputStream) = ModernEncryptingPartOutputStream.createFor(attachmentSecret, file, false).let { it.first to it.second }
+
+      outputStream.use { it.write(plaintext) }
+      rows[id.toLong()] = Row(file, dataRandom)
+
+      file to plaintext
+    }
+  }
+
+  private fun getUnhashedDataFiles(beforeId: Long, limit: Int): List<Pair<File, AttachmentId>> {
+    synchronized(this) {
+      claims += beforeId
+      return rows.entries
+        .filter { (id, row) -> id < beforeId && !row.hashed }
+        .sortedByDescending { it.key }
+        .take(limit)
+        .map { (id, row) -> row.file to AttachmentId(id) }
+    }
+  }
+
+  private fun openStream(attachmentId: AttachmentId): InputStream {
+    val row = rows.getValue(attachmentId.id)
+
+    if (row.unreadable) {
+      throw IOException("Unreadable!")
+    }
+
+    if (row.throwsRuntimeException) {
+      throw IllegalStateException("Broken!")
+    }
+
+    val inputStream = ModernDecryptingPartInputStream.createFor(attachmentSecret, row.random, row.file, 0)
+
+    return object : FilterInputStream(inputStream) {
+      override fun read(): Int {
+        return super.read().also { if (it >= 0) onRead(1) }
+      }
+
+      override fun read(destination: ByteArray, offset: Int, length: Int): Int {
+        return super.read(destination, offset, length).also { if (it > 0) onRead(it) }
+      }
+    }
+  }
+
+  private fun onRead(bytes: Int) {
+    synchronized(this) {
+      totalBytesRead += bytes
+      reads += clock.get() to totalBytesRead
+    }
+  }
+
+  private fun commit(newHashes: Map<File, ByteArray>, newMissingFiles: Collection<File>, newUnhashableFiles: Collection<File>) {
+    synchronized(this) {
+      if (commitsUntilProcessDeath-- <= 0) {
+        throw ProcessDeath()
+      }
+
+      hashes += newHashes
+      missingFiles += newMissingFiles
+      unhashableFiles += newUnhashableFiles
+
+      val done = newHashes.keys + newMissingFiles + newUnhashableFiles
+      rows.values.filter { it.file in done }.forEach { it.hashed = true }
+    }
+  }
+
+  private class Row(val file: File, val random: ByteArray) {
+    var hashed = false
+    var unreadable = false
+    var throwsRuntimeException = false
+  }
+
+  /** An [Error], so that it gets past the job's error handling the same way killing the process would. */
+  private class ProcessDeath : Error()
+}
@@ -0,0 +1,172 @@
+package org.thoughtcrime.securesms.keyvalue;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class KeyValueStoreTest {
+
+  private ManualExecutor executor;
+  private FakeStorage    storage;
+  private KeyValueStore  subject;
+
+  @Before
+  public void setUp() {
+    executor = new ManualExecutor();
+    storage  = new FakeStorage();
+    subject  = new KeyValueStore(executor, storage);
+  }
+
+  @Test
+  public void write_isVisibleBeforeFlush() {
+    subject.beginWrite().putString("a", "1").apply();
+
+    assertEquals("1", subject.getString("a", null));
+    assertTrue(storage.writes.isEmpty());
+  }
+
+  @Test
+  public void write_multipleAppliesCoalescedIntoOneFlush() {
+    subject.beginWrite().putString("a", "1").apply();
+    subject.beginWrite().putLong("b", 2).apply();
+    subject.beginWrite().putString("a", "3").apply();
+
+    executor.runAll();
+
+    assertEquals(1, storage.writes.size());
+    assertEquals("3", storage.writes.get(0).getString("a", null));
+    assertEquals(2, storage.writes.get(0).getLong("b", 0));
+    assertTrue(storage.removes.get(0).isEmpty());
+  }
+
+  @Test
+  public void write_removeAfterPut_onlyRemoves() {
+    subject.beginWrite().putString("a", "1").apply();
+    subject.beginWrite().remove("a").apply();
+
+    executor.runAll();
+
+    assertFalse(subject.containsKey("a"));
+    assertFalse(storage.writes.get(0).containsKey("a"));
+    assertTrue(storage.removes.get(0).contains("a"));
+  }
+
+  @Test
+  public void write_putAfterRemove_onlyPuts() {
+    subject.beginWrite().remove("a").apply();
+    subject.beginWrite().putString("a", "1").apply();
+
+    executor.runAll();
+
+    assertEquals("1", subject.getString("a", null));
+    assertEquals("1", storage.writes.get(0).getString("a", null));
+    assertFalse(storage.removes.get(0).contains("a"));
+  }
+
+  @Test
+  public void write_afterFlushStarts_isWrittenInNextFlush() {
+    subject.beginWrite().putString("a", "1").apply();
+    executor.runAll();
+
+    subject.beginWrite().putString("b", "2").apply();
+    executor.runAll();
+
+    assertEquals(2, storage.writes.size());
+    assertFalse(storage.writes.get(1).containsKey("a"));
+    assertEquals("2", storage.writes.get(1).getString("b", null));
+  }
+
+  @Test
+  public void beginRead_isUnaffectedByLaterWrites() {
+    subject.beginWrite().putString("a", "1").apply();
+
+    KeyValueReader reader = subject.beginRead();
+
+    subject.beginWrite().putString("a", "2").apply();
+
+    assertEquals("1", reader.getString("a", null));
+    assertEquals("2", subject.getString("a", null));
+  }
+
+  @Test
+  public void beginRead_withoutWrites_returnsSameSnapshot() {
+    assertSame(subject.beginRead(), subject.beginRead());
+
+    KeyValueReader before = subject.beginRead();
+    subject.beginWrite().putString("a", "1").apply();
+
+    assertNotSame(before, subject.beginRead());
+  }
+
+  private static final class FakeStorage implements KeyValuePersistentStorage {
+    private final List<KeyValueDataSet> writes  = new ArrayList<>();
+    private final List<Set<String>>     removes = new ArrayList<>();
+
+    @Override
+    public void writeDataSet(@NonNull KeyValueDataSet dataSet, @NonNull Collection<String> removes) {
+      this.writes.add(dataSet);
+      this.removes.add(new HashSet<>(removes));
+    }
+
+    @Override
+    public @NonNull KeyValueDataSet getDataSet() {
+      return new KeyValueDataSet();
+    }
+  }
+
+  private static final class ManualExecutor extends AbstractExecutorService {
+    private final Queue<Runnable> tasks = new LinkedList<>();
+
+    void runAll() {
+      while (!tasks.isEmpty()) {
+        tasks.remove().run();
+      }
+    }
+
+    @Override
+    public void execute(@NonNull Runnable command) {
+      tasks.add(command);
+    }
+
+    @Override
+    public void shutdown() {
+    }
+
+    @Override
+    public @NonNull List<Runnable> shutdownNow() {
+      return new ArrayList<>(tasks);
+    }
+
+    @Override
+    public boolean isShutdown() {
+      return false;
+    }
+
+    @Override
+    public boolean isTerminated() {
+      return false;
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, @NonNull TimeUnit unit) {
+      return true;
+    }
+  }
+}
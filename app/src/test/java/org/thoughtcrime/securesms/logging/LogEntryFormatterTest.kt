@@ -0,0 +1,180 @@
+package org.thoughtcrime.securesms.logging
+
+import org.junit.After
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Assume.assumeTrue
+import org.junit.Test
+import org.signal.core.util.logging.Log
+import org.signal.core.util.logging.Scrubber
+import org.thoughtcrime.securesms.BuildConfig
+import org.thoughtcrime.securesms.database.model.LogEntry
+import java.io.ByteArrayOutputStream
+import java.io.IOException
+import java.io.PrintStream
+import java.lang.management.ManagementFactory
+import java.text.SimpleDateFormat
+import java.util.Date
+import java.util.Locale
+
+class LogEntryFormatterTest {
+
+  companion object {
+    private const val CREATE_TIME = 1_700_000_000_123L
+    private const val BENCHMARK_ITERATIONS = 20_000
+  }
+
+  private val alwaysRedact = Log.alwaysRedact
+
+  @After
+  fun tearDown() {
+    Log.alwaysRedact = alwaysRedact
+  }
+
+  @Test
+  fun `Given a variety of logs, when I export them, then I expect the same bytes as formatting at write time`() {
+    Log.alwaysRedact = false
+    assertExportsMatch(createRequests())
+  }
+
+  @Test
+  fun `Given a variety of logs and alwaysRedact, when I export them, then I expect the same bytes as formatting at write time`() {
+    Log.alwaysRedact = true
+    assertExportsMatch(createRequests())
+  }
+
+  @Test
+  fun `Given a log with a stack trace, when I format it, then I expect one line per line of the trace`() {
+    val entry = PersistentLogger.createLogEntry("W", "Tag", "message", CREATE_TIME, 12, IOException("boom", IllegalStateException("cause")), false)
+
+    assertEquals(entry.lineCount, LogEntryFormatter().format(entry).size)
+  }
+
+  @Test
+  fun `Given a plain message, when I log it, then I expect fewer bytes allocated than formatting at write time`() {
+    val legacy = LegacyPipeline()
+    val request = Request("I", "SomeTag", "Sent message 1234 to +14155550123", 1234, null)
+
+    val legacyBytes = allocatedBytesPerCall { legacy.requestToBodies(request) }
+    val structuredBytes = allocatedBytesPerCall { request.toLogEntry() }
+
+    assertTrue("Formatted: $legacyBytes, structured: $structuredBytes", structuredBytes < legacyBytes)
+  }
+
+  @Test
+  fun `Given a message with a throwable, when I log it, then I expect fewer bytes allocated than formatting at write time`() {
+    val legacy = LegacyPipeline()
+    val request = Request("W", "SomeTag", "Failed to send", 1234, IOException("Connection reset", IllegalStateException("Closed")))
+
+    val legacyBytes = allocatedBytesPerCall { legacy.requestToBodies(request) }
+    val structuredBytes = allocatedBytesPerCall { request.toLogEntry() }
+
+    assertTrue("Formatted: $legacyBytes, structured: $structuredBytes", structuredBytes < legacyBytes)
+  }
+
+  private fun assertExportsMatch(requests: List<Request>) {
+    val legacy = LegacyPipeline()
+    val formatter = LogEntryFormatter()
+
+    val expected = export(requests.flatMap { legacy.requestToBodies(it) })
+    val actual = export(requests.flatMap { formatter.format(it.toLogEntry()) })
+
+    assertEquals(String(expected), String(actual))
+    assertArrayEquals(expected, actual)
+  }
+
+  /**
+   * Mirrors how [org.thoughtcrime.securesms.logsubmit.SubmitDebugLogRepository] writes lines out.
+   */
+  private fun export(lines: List<String>): ByteArray {
+    val outputStream = ByteArrayOutputStream()
+
+    lines.forEach {
+      outputStream.write(it.toByteArray())
+      outputStream.write("\n".toByteArray())
+    }
+
+    return outputStream.toByteArray()
+  }
+
+  private fun createRequests(): List<Request> {
+    return listOf(
+      Request("V", "Tag", "A verbose message", LogEntry.MAIN_THREAD_ID, null),
+      Request("D", "Tag", null, 7, null),
+      Request("I", "null", "", 42, null),
+      Request("W", "LongerTagName", "Sending to +14155550123 and someone@example.com", 12345, null),
+      Request("E", "Tag", "Group __signal_group__v2__!abcdef0123456789 and 38a2a9a8-4b7d-4c4f-9a4d-8d0d5e3b2c1a", 123456, null),
+      Request("I", "Tag", "Multiple\nline\nmessage", 3, null),
+      Request("W", "Tag", "With a throwable", LogEntry.MAIN_THREAD_ID, IOException("Failed to reach chat.signal.org at 192.168.0.1")),
+      Request("E", "Tag", null, 99, RuntimeException("Outer", IllegalStateException("Inner +14155550123"))),
+      Request("E", "Tag", "Throwable without a message", 99, NullPointerException())
+    )
+  }
+
+  private fun allocatedBytesPerCall(block: () -> Any): Long {
+    val threadMXBean = ManagementFactory.getThreadMXBean() as? com.sun.management.ThreadMXBean
+    assumeTrue(threadMXBean != null && threadMXBean.isThreadAllocatedMemorySupported)
+    threadMXBean!!.isThreadAllocatedMemoryEnabled = true
+
+    val threadId = Thread.currentThread().id
+    var sink: Any? = null
+
+    repeat(BENCHMARK_ITERATIONS) { sink = block() }
+
+    val before = threadMXBean.getThreadAllocatedBytes(threadId)
+    repeat(BENCHMARK_ITERATIONS) { sink = block() }
+    val after = threadMXBean.getThreadAllocatedBytes(threadId)
+
+    assertTrue(sink != null)
+
+    return (after - before) / BENCHMARK_ITERATIONS
+  }
+
+  private data class Request(
+    val level: String,
+    val tag: String,
+    val message: String?,
+    val threadId: Long,
+    val throwable: Throwable?
+  ) {
+    /** The legacy logger cached this per thread, so it's not counted against it. */
+    val threadString: String = if (threadId == LogEntry.MAIN_THREAD_ID) "main " else String.format("%-5s", threadId)
+
+    fun toLogEntry(): LogEntry {
+      return PersistentLogger.createLogEntry(level, tag, message, CREATE_TIME, threadId, throwable, false)
+    }
+  }
+
+  /**
+   * How [PersistentLogger] used to format logs before writing them.
+   */
+  private class LegacyPipeline {
+    private val dateFormat = SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS zzz", Locale.US)
+
+    fun requestToBodies(request: Request): List<String> {
+      val out = mutableListOf<String>()
+      val createDate = Date(CREATE_TIME)
+      val threadString = request.threadString
+
+      out.add(formatBody(threadString, createDate, request.level, request.tag, request.message))
+
+      if (request.throwable != null) {
+        val outputStream = ByteArrayOutputStream()
+        request.throwable.printStackTrace(PrintStream(outputStream))
+
+        val trace = String(outputStream.toByteArray())
+        val lines = trace.split("\\n".toRegex()).toTypedArray()
+
+        out.addAll(lines.map { line -> formatBody(threadString, createDate, request.level, request.tag, line) })
+      }
+
+      return out
+    }
+
+    private fun formatBody(threadString: String, date: Date, level: String, tag: String, message: String?): String {
+      val redacted = if (Log.alwaysRedact) message ?: "" else Scrubber.scrub(message ?: "")
+      return "[${BuildConfig.VERSION_NAME}] [$threadString] ${dateFormat.format(date)} $level $tag: $redacted"
+    }
+  }
+}
@@ -0,0 +1,166 @@
+package org.thoughtcrime.securesms.messages
+
+import okio.ByteString.Companion.toByteString
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertSame
+import org.junit.Before
+import org.junit.Test
+import org.signal.core.util.Base64
+import org.signal.libsignal.metadata.certificate.CertificateValidator
+import org.signal.libsignal.protocol.IdentityKeyPair
+import org.signal.libsignal.protocol.SessionBuilder
+import org.signal.libsignal.protocol.SignalProtocolAddress
+import org.signal.libsignal.protocol.ecc.Curve
+import org.signal.libsignal.protocol.state.KyberPreKeyRecord
+import org.signal.libsignal.protocol.state.PreKeyBundle
+import org.signal.libsignal.protocol.state.PreKeyRecord
+import org.signal.libsignal.protocol.state.SessionRecord
+import org.signal.libsignal.protocol.state.SignalProtocolStore
+import org.signal.libsignal.protocol.state.SignedPreKeyRecord
+import org.signal.libsignal.protocol.state.impl.InMemorySignalProtocolStore
+import org.signal.libsignal.protocol.util.KeyHelper
+import org.thoughtcrime.securesms.crypto.ReentrantSessionLock
+import org.whispersystems.signalservice.api.SignalServiceAccountDataStore
+import org.whispersystems.signalservice.api.crypto.ContentHint
+import org.whispersystems.signalservice.api.crypto.EnvelopeContent
+import org.whispersystems.signalservice.api.crypto.SignalServiceCipher
+import org.whispersystems.signalservice.api.crypto.SignalServiceCipherResult
+import org.whispersystems.signalservice.api.push.DistributionId
+import org.whispersystems.signalservice.api.push.ServiceId.ACI
+import org.whispersystems.signalservice.api.push.ServiceId.PNI
+import org.whispersystems.signalservice.api.push.SignalServiceAddress
+import org.whispersystems.signalservice.internal.push.Content
+import org.whispersystems.signalservice.internal.push.DataMessage
+import org.whispersystems.signalservice.internal.push.Envelope
+import org.whispersystems.signalservice.test.LibSignalLibraryUtil.assumeLibSignalSupportedOnOS
+import java.util.Optional
+import java.util.UUID
+
+class DecryptContextTest {
+
+  companion object {
+    private const val ENVELOPE_COUNT = 500
+  }
+
+  private val selfAci = ACI.from(UUID.randomUUID())
+  private val selfPni = PNI.from(UUID.randomUUID())
+  private val senderAci = ACI.from(UUID.randomUUID())
+
+  @Before
+  fun ensureNativeSupported() {
+    assumeLibSignalSupportedOnOS()
+  }
+
+  @Test
+  fun `Given the same destination, when I get a cipher, then I expect the same instance`() {
+    val store = InMemoryAccountDataStore(IdentityKeyPair.generate(), 1)
+    val decryptContext = DecryptContext(selfAci, selfPni, null, 1, null) { store }
+
+    assertSame(decryptContext.cipherFor(selfAci), decryptContext.cipherFor(selfAci))
+  }
+
+  @Test
+  fun `Given a batch of envelopes, when I decrypt them with one context, then I expect the same output as building a cipher per envelope`() {
+    val identityKeyPair = IdentityKeyPair.generate()
+    val registrationId = KeyHelper.generateRegistrationId(false)
+    val certificateValidator = CertificateValidator(Curve.generateKeyPair().publicKey)
+
+    val perEnvelopeStore = InMemoryAccountDataStore(identityKeyPair, registrationId)
+    val perBatchStore = InMemoryAccountDataStore(identityKeyPair, registrationId)
+    val bundle = createPreKeys(identityKeyPair, registrationId, perEnvelopeStore, perBatchStore)
+
+    val envelopes = createEnvelopes(bundle)
+    val localAddress = SignalServiceAddress(selfAci, null)
+
+    val expected: List<SignalServiceCipherResult> = envelopes.map { envelope ->
+      SignalServiceCipher(localAddress, 1, perEnvelopeStore, ReentrantSessionLock.INSTANCE, certificateValidator).decrypt(envelope, envelope.serverTimestamp!! + 1)
+    }
+
+    val decryptContext = DecryptContext(selfAci, selfPni, null, 1, certificateValidator) { perBatchStore }
+    val actual: List<SignalServiceCipherResult> = envelopes.map { envelope ->
+      decryptContext.cipherFor(selfAci).decrypt(envelope, envelope.serverTimestamp!! + 1)
+    }
+
+    assertEquals(ENVELOPE_COUNT, actual.size)
+
+    expected.zip(actual).forEach { (e, a) ->
+      assertEquals(e.content, a.content)
+      assertEquals(e.metadata.sourceServiceId, a.metadata.sourceServiceId)
+      assertEquals(e.metadata.sourceE164, a.metadata.sourceE164)
+      assertEquals(e.metadata.sourceDeviceId, a.metadata.sourceDeviceId)
+      assertEquals(e.metadata.sealedSender, a.metadata.sealedSender)
+      assertArrayEquals(e.metadata.groupId, a.metadata.groupId)
+      assertEquals(e.metadata.destinationServiceId, a.metadata.destinationServiceId)
+    }
+  }
+
+  /**
+   * Stores the same prekeys in each of the receiving stores, so that they end up in identical states after decrypting the same envelopes.
+   */
+  private fun createPreKeys(identityKeyPair: IdentityKeyPair, registrationId: Int, vararg stores: InMemoryAccountDataStore): PreKeyBundle {
+    val preKey = PreKeyRecord(1, Curve.generateKeyPair())
+    val signedPreKeyPair = Curve.generateKeyPair()
+    val signature = Curve.calculateSignature(identityKeyPair.privateKey, signedPreKeyPair.publicKey.serialize())
+    val signedPreKey = SignedPreKeyRecord(2, System.currentTimeMillis(), signedPreKeyPair, signature)
+
+    stores.forEach {
+      it.storePreKey(preKey.id, preKey)
+      it.storeSignedPreKey(signedPreKey.id, signedPreKey)
+    }
+
+    return PreKeyBundle(registrationId, 1, preKey.id, preKey.keyPair.publicKey, signedPreKey.id, signedPreKeyPair.publicKey, signature, identityKeyPair.publicKey)
+  }
+
+  private fun createEnvelopes(bundle: PreKeyBundle): List<Envelope> {
+    val senderStore = InMemoryAccountDataStore(IdentityKeyPair.generate(), KeyHelper.generateRegistrationId(false))
+    val selfAddress = SignalProtocolAddress(selfAci.toString(), 1)
+
+    SessionBuilder(senderStore, selfAddress).process(bundle)
+
+    val senderCipher = SignalServiceCipher(SignalServiceAddress(senderAci, null), 1, senderStore, ReentrantSessionLock.INSTANCE, null)
+
+    return (1..ENVELOPE_COUNT).map { i ->
+      val timestamp = 1_000_000L + i
+      val content = Content.Builder()
+        .dataMessage(DataMessage.Builder().body("Message $i").timestamp(timestamp).build())
+        .build()
+
+      val message = senderCipher.encrypt(selfAddress, Optional.empty(), EnvelopeContent.encrypted(content, ContentHint.RESENDABLE, Optional.empty()))
+
+      Envelope.Builder()
+        .type(Envelope.Type.fromValue(message.type))
+        .sourceServiceId(senderAci.toString())
+        .sourceDevice(1)
+        .destinationServiceId(selfAci.toString())
+        .timestamp(timestamp)
+        .serverTimestamp(timestamp + 1)
+        .serverGuid(UUID.randomUUID().toString())
+        .content(Base64.decode(message.content).toByteString())
+        .urgent(true)
+        .story(false)
+        .build()
+    }
+  }
+
+  private class InMemoryAccountDataStore private constructor(
+    private val delegate: InMemorySignalProtocolStore
+  ) : SignalServiceAccountDataStore, SignalProtocolStore by delegate {
+
+    constructor(identityKeyPair: IdentityKeyPair, registrationId: Int) : this(InMemorySignalProtocolStore(identityKeyPair, registrationId))
+
+    override fun isMultiDevice(): Boolean = false
+    override fun archiveSession(address: SignalProtocolAddress?) = Unit
+    override fun getAllAddressesWithActiveSessions(addressNames: MutableList<String>?): MutableMap<SignalProtocolAddress, SessionRecord> = mutableMapOf()
+    override fun getSenderKeySharedWith(distributionId: DistributionId?): MutableSet<SignalProtocolAddress> = mutableSetOf()
+    override fun markSenderKeySharedWith(distributionId: DistributionId?, addresses: MutableCollection<SignalProtocolAddress>?) = Unit
+    override fun clearSenderKeySharedWith(addresses: MutableCollection<SignalProtocolAddress>?) = Unit
+    override fun markAllOneTimeEcPreKeysStaleIfNecessary(staleTime: Long) = Unit
+    override fun deleteAllStaleOneTimeEcPreKeys(threshold: Long, minCount: Int) = Unit
+    override fun storeLastResortKyberPreKey(kyberPreKeyId: Int, kyberPreKeyRecord: KyberPreKeyRecord) = delegate.storeKyberPreKey(kyberPreKeyId, kyberPreKeyRecord)
+    override fun loadLastResortKyberPreKeys(): List<KyberPreKeyRecord> = emptyList()
+    override fun removeKyberPreKey(kyberPreKeyId: Int) = Unit
+    override fun markAllOneTimeKyberPreKeysStaleIfNecessary(staleTime: Long) = Unit
+    override fun deleteAllStaleOneTimeKyberPreKeys(threshold: Long, minCount: Int) = Unit
+  }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2024 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.thoughtcrime.securesms.recipients
+
+import android.app.Application
+import androidx.test.core.app.ApplicationProvider
+import io.mockk.every
+import io.mockk.mockk
+import io.mockk.mockkObject
+import io.mockk.unmockkObject
+import io.mockk.verify
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+import org.thoughtcrime.securesms.database.RecipientTable
+import org.thoughtcrime.securesms.database.SignalDatabase
+import org.thoughtcrime.securesms.database.model.RecipientRecord
+import java.util.concurrent.Executor
+import java.util.concurrent.Executors
+
+@RunWith(RobolectricTestRunner::class)
+@Config(manifest = Config.NONE, application = Application::class)
+class LiveRecipientCacheTest {
+
+  private val recipientTable: RecipientTable = mockk()
+
+  /** Collects what's submitted to the resolve executor, without ever running it. */
+  private val submitted: MutableList<Runnable> = mutableListOf()
+  private val idleExecutor = Executor { submitted += it }
+
+  @Before
+  fun setUp() {
+    mockkObject(SignalDatabase.Companion)
+    every { SignalDatabase.recipients } returns recipientTable
+    every { SignalDatabase.groups } returns mockk()
+    every { SignalDatabase.distributionLists } returns mockk()
+    every { SignalDatabase.inTransaction } returns false
+
+    mockkObject(RecipientCreator)
+    every { RecipientCreator.forIndividual(any(), any()) } answers { Recipient(secondArg<RecipientRecord>().id, isResolving = false) }
+
+    every { recipientTable.getRecords(any()) } answers { firstArg<Collection<RecipientId>>().associateWith { record(it) } }
+  }
+
+  @After
+  fun tearDown() {
+    unmockkObject(SignalDatabase.Companion)
+    unmockkObject(RecipientCreator)
+  }
+
+  @Test
+  fun `Given a large batch, when I resolve it, then I expect every recipient resolved in order with a single query`() {
+    val cache = LiveRecipientCache(ApplicationProvider.getApplicationContext(), Executors.newFixedThreadPool(4))
+    val ids = ids(1, 200)
+
+    val resolved = cache.getResolved(ids)
+
+    assertEquals(ids, resolved.map { it.id })
+    assertTrue(resolved.none { it.isResolving })
+    verify(exactly = 1) { recipientTable.getRecords(any()) }
+  }
+
+  @Test
+  fun `Given an executor that never runs its tasks, when I resolve a large batch, then I expect the caller to resolve all of it`() {
+    val cache = LiveRecipientCache(ApplicationProvider.getApplicationContext(), idleExecutor)
+    val ids = ids(1, 200)
+
+    val resolved = cache.getResolved(ids)
+
+    assertEquals(ids, resolved.map { it.id })
+    assertTrue(resolved.none { it.isResolving })
+    assertEquals(3, submitted.size)
+  }
+
+  @Test
+  fun `Given a small batch, when I resolve it, then I expect it to be resolved without the executor`() {
+    val cache = LiveRecipientCache(ApplicationProvider.getApplicationContext(), idleExecutor)
+
+    val resolved = cache.getResolved(ids(1, 10))
+
+    assertTrue(resolved.none { it.isResolving })
+    assertTrue(submitted.isEmpty())
+  }
+
+  @Test
+  fun `Given an open transaction, when I resolve a large batch, then I expect it to be resolved without the executor`() {
+    every { SignalDatabase.inTransaction } returns true
+    val cache = LiveRecipientCache(ApplicationProvider.getApplicationContext(), idleExecutor)
+
+    val resolved = cache.getResolved(ids(1, 200))
+
+    assertTrue(resolved.none { it.isResolving })
+    assertTrue(submitted.isEmpty())
+  }
+
+  @Test
+  fun `Given a batch larger than the cache, when I resolve a smaller one after, then I expect the cache to grow and shrink back`() {
+    val cache = LiveRecipientCache(ApplicationProvider.getApplicationContext(), idleExecutor)
+    val (_, initialSize) = cache.sizes()
+
+    cache.getResolved(ids(1, 2_500))
+    val (grownSize, grownMax) = cache.sizes()
+    assertEquals(5_000, grownMax)
+    assertEquals(2_500, grownSize)
+
+    cache.getResolved(ids(5_001, 5_010))
+    val (shrunkSize, shrunkMax) = cache.sizes()
+    assertEquals(initialSize, shrunkMax)
+    assertTrue("$shrunkSize > $shrunkMax", shrunkSize <= shrunkMax)
+  }
+
+  private fun LiveRecipientCache.sizes(): Pair<Int, Int> {
+    val (size, max) = Regex("size: (\\d+)/(\\d+)").find(stats)!!.destructured
+    return size.toInt() to max.toInt()
+  }
+
+  private fun ids(first: Long, last: Long): List<RecipientId> {
+    return (first..last).map { RecipientId.from(it) }
+  }
+
+  private fun record(id: RecipientId): RecipientRecord {
+    return mockk {
+      every { this@mockk.id } returns id
+      every { groupId } returns null
+      every { distributionListId } returns null
+      every { callLinkRoomId } returns null
+    }
+  }
+}
@@ -0,0 +1,154 @@
+package org.thoughtcrime.securesms.search
+
+import android.app.Application
+import android.database.Cursor
+import android.database.MatrixCursor
+import androidx.test.core.app.ApplicationProvider
+import io.mockk.every
+import io.mockk.mockk
+import io.mockk.mockkObject
+import io.mockk.mockkStatic
+import io.mockk.unmockkObject
+import io.mockk.unmockkStatic
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+import org.thoughtcrime.securesms.database.MentionTable
+import org.thoughtcrime.securesms.database.MessageTable
+import org.thoughtcrime.securesms.database.RecipientTable
+import org.thoughtcrime.securesms.database.SearchTable
+import org.thoughtcrime.securesms.database.SignalDatabase
+import org.thoughtcrime.securesms.database.ThreadTable
+import org.thoughtcrime.securesms.dependencies.ApplicationDependencies
+import org.thoughtcrime.securesms.recipients.Recipient
+import java.util.concurrent.TimeUnit
+
+@RunWith(RobolectricTestRunner::class)
+@Config(manifest = Config.NONE, application = Application::class)
+class SearchRepositoryTest {
+
+  companion object {
+    private const val THREAD_ID = 1L
+    private const val QUERY = "hello"
+  }
+
+  private val searchTable: SearchTable = mockk()
+  private val messageTable: MessageTable = mockk()
+  private val mentionTable: MentionTable = mockk()
+  private val recipientTable: RecipientTable = mockk(relaxed = true)
+
+  /** The id ranges that were searched, in order. */
+  private val searchedRanges: MutableList<LongRange> = mutableListOf()
+
+  private var matchingIds: List<Long> = emptyList()
+
+  @Before
+  fun setUp() {
+    mockkObject(SignalDatabase.Companion)
+    every { SignalDatabase.messageSearch } returns searchTable
+    every { SignalDatabase.messages } returns messageTable
+    every { SignalDatabase.mentions } returns mentionTable
+    every { SignalDatabase.recipients } returns recipientTable
+    every { SignalDatabase.threads } returns mockk<ThreadTable>()
+
+    mockkStatic(ApplicationDependencies::class)
+    every { ApplicationDependencies.getApplication() } returns ApplicationProvider.getApplicationContext()
+
+    mockkObject(Recipient.Companion)
+    every { Recipient.live(any()) } returns mockk { every { get() } returns Recipient.UNKNOWN }
+
+    every { recipientTable.queryRecipientsForMentions(any(), any()) } returns emptyList()
+    every { mentionTable.getMentionsContainingRecipients(any(), any(), any()) } returns emptyMap()
+    every { searchTable.queryMessagesInRange(QUERY, THREAD_ID, any(), any()) } answers { search(thirdArg(), arg(3)) }
+  }
+
+  @After
+  fun tearDown() {
+    unmockkObject(SignalDatabase.Companion)
+    unmockkObject(Recipient.Companion)
+    unmockkStatic(ApplicationDependencies::class)
+  }
+
+  @Test
+  fun `Given a thread spanning many ids, when I search it, then I expect its id range to be covered newest first in a bounded number of queries`() {
+    every { messageTable.getMessageIdRange(THREAD_ID) } returns 1_000L..500_000L
+
+    SearchRepository("").queryMessages(QUERY, THREAD_ID).test().awaitDone(5, TimeUnit.SECONDS).assertComplete()
+
+    assertTrue("Searched ${searchedRanges.size} ranges", searchedRanges.size <= 8)
+    assertEquals(500_001L, searchedRanges.first().last + 1)
+    assertEquals(1_000L, searchedRanges.last().first)
+    searchedRanges.zipWithNext().forEach { (newer, older) ->
+      assertEquals(newer.first, older.last + 1)
+    }
+  }
+
+  @Test
+  fun `Given a small thread, when I search it, then I expect a single query`() {
+    every { messageTable.getMessageIdRange(THREAD_ID) } returns 400_000L..400_050L
+
+    SearchRepository("").queryMessages(QUERY, THREAD_ID).test().awaitDone(5, TimeUnit.SECONDS).assertComplete()
+
+    assertEquals(listOf(400_000L..400_050L), searchedRanges)
+  }
+
+  @Test
+  fun `Given a thread without messages, when I search it, then I expect no results and no queries`() {
+    every { messageTable.getMessageIdRange(THREAD_ID) } returns null
+
+    val observer = SearchRepository("").queryMessages(QUERY, THREAD_ID).test().awaitDone(5, TimeUnit.SECONDS)
+
+    observer.assertComplete()
+    assertEquals(emptyList<MessageResult>(), observer.values().last())
+    assertTrue(searchedRanges.isEmpty())
+  }
+
+  @Test
+  fun `Given matches at both ends of a thread, when I search it, then I expect the newest match to be emitted first`() {
+    every { messageTable.getMessageIdRange(THREAD_ID) } returns 1L..100_000L
+    matchingIds = listOf(5L, 99_000L)
+
+    val observer = SearchRepository("").queryMessages(QUERY, THREAD_ID).test().awaitDone(5, TimeUnit.SECONDS)
+
+    observer.assertComplete()
+    assertEquals(listOf(99_000L), observer.values().first().map { it.messageId })
+    assertEquals(listOf(99_000L, 5L), observer.values().last().map { it.messageId })
+  }
+
+  @Test
+  fun `Given an id range, when I size shards, then I expect no more than eight and none below the minimum`() {
+    assertEquals(2_000L, SearchRepository.getStreamingShardSize(1, 100))
+    assertEquals(2_000L, SearchRepository.getStreamingShardSize(1, 16_000))
+
+    val shardSize = SearchRepository.getStreamingShardSize(1, 1_000_000)
+    assertTrue((1_000_000 + shardSize - 1) / shardSize <= 8)
+  }
+
+  private fun search(minId: Long, maxId: Long): Cursor {
+    searchedRanges += minId until maxId
+
+    val cursor = MatrixCursor(
+      arrayOf(
+        SearchTable.CONVERSATION_RECIPIENT,
+        SearchTable.MESSAGE_RECIPIENT,
+        SearchTable.BODY,
+        SearchTable.SNIPPET,
+        MessageTable.DATE_RECEIVED,
+        MessageTable.THREAD_ID,
+        SearchTable.MESSAGE_ID,
+        SearchTable.IS_MMS
+      )
+    )
+
+    matchingIds
+      .filter { it in minId until maxId }
+      .forEach { cursor.addRow(arrayOf<Any>(1L, 1L, QUERY, QUERY, it, THREAD_ID, it, 1)) }
+
+    return cursor
+  }
+}
@@ -0,0 +1,80 @@
+package org.thoughtcrime.securesms.service
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import kotlin.random.Random
+
+class ExpirationTimerWheelTest {
+
+  companion object {
+    private const val TICK = 250L
+    private const val START = 1_000_000_000L
+  }
+
+  @Test
+  fun `Given entries in the same tick, when I advance past it, then I expect them together in order`() {
+    val wheel = ExpirationTimerWheel(TICK, START)
+    wheel.add(3, START + 120)
+    wheel.add(1, START + 200)
+    wheel.add(2, START + 120)
+
+    assertTrue(wheel.advance(START + 249).isEmpty())
+    assertEquals(listOf(2L, 3L, 1L), wheel.advance(START + 250).map { it.id })
+    assertEquals(0, wheel.size())
+  }
+
+  @Test
+  fun `Given an entry that is already due, when I advance without moving forward, then I expect it immediately`() {
+    val wheel = ExpirationTimerWheel(TICK, START)
+    wheel.add(1, START - 5_000)
+
+    assertEquals(START, wheel.nextWakeTime())
+    assertEquals(listOf(1L), wheel.advance(START).map { it.id })
+  }
+
+  @Test
+  fun `Given random entries across every level, when I advance to each wake time, then I expect them in order and never early or late`() {
+    val random = Random(1234)
+    val wheel = ExpirationTimerWheel(TICK, START)
+    val expected = (1L..20_000L).map { id ->
+      val range = when (id % 4) {
+        0L -> 60_000L
+        1L -> 3_600_000L
+        2L -> 300_000_000L
+        else -> 10_000_000_000L
+      }
+      id to START + random.nextLong(range)
+    }
+
+    expected.forEach { (id, expiresAt) -> wheel.add(id, expiresAt) }
+
+    val collected = mutableListOf<Pair<Long, Long>>()
+    var now = START
+
+    while (wheel.size() > 0) {
+      now = maxOf(now, wheel.nextWakeTime())
+
+      for (entry in wheel.advance(now)) {
+        assertTrue(entry.expiresAtMillis <= now)
+        assertTrue(now - entry.expiresAtMillis < TICK)
+        collected += entry.id to entry.expiresAtMillis
+      }
+    }
+
+    assertEquals(expected.sortedWith(compareBy({ it.second }, { it.first })), collected)
+  }
+
+  @Test
+  fun `Given a long sleep, when I advance far ahead, then I expect everything due in one batch`() {
+    val wheel = ExpirationTimerWheel(TICK, START)
+    (1L..1000L).forEach { wheel.add(it, START + it * 60_000) }
+
+    val due = wheel.advance(START + 500 * 60_000L)
+
+    assertEquals((1L..500L).toList(), due.map { it.id })
+    assertEquals(500, wheel.size())
+    assertTrue(wheel.advance(START + 501 * 60_000L - 1).isEmpty())
+    assertEquals(listOf(501L), wheel.advance(START + 501 * 60_000L).map { it.id })
+  }
+}
@@ -0,0 +1,176 @@
+package org.thoughtcrime.securesms.service
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.thoughtcrime.securesms.database.MessageTable.ExpirationInfo
+import java.util.TreeSet
+import java.util.concurrent.TimeUnit
+
+class ExpiringMessageManagerTest {
+
+  companion object {
+    private const val START = 1_000_000_000L
+    private val HORIZON = TimeUnit.SECONDS.toMillis(60)
+    private const val PAGE_SIZE = 1000
+  }
+
+  private val store = FakeStore()
+
+  @Test
+  fun `Given 100k scheduled expirations, when time passes, then I expect them deleted in order, in bulk, and with bounded memory`() {
+    val perSecond = 50
+    val expirations = (0 until 100_000).map { i ->
+      ExpirationInfo(id = i + 1L, expiresIn = 1100L + (i / perSecond) * 1000L + (i % perSecond), expireStarted = START, isMms = true)
+    }
+
+    expirations.forEach { store.insert(it) }
+
+    val manager = ExpiringMessageManager(null, store, START, HORIZON, PAGE_SIZE)
+    expirations.forEach { manager.schedule(it.id, it.expiresAt, START) }
+
+    val maxScheduled = runUntilIdle(manager, START)
+
+    assertEquals(expirations.map { it.id }, store.deletions.flatMap { it.ids })
+    assertEquals(expirations.size / perSecond, store.deletions.size)
+    assertTrue(store.deletions.all { it.ids.size == perSecond })
+
+    val expiresAt = expirations.associate { it.id to it.expiresAt }
+    for (deletion in store.deletions) {
+      for (id in deletion.ids) {
+        val lateness = deletion.time - expiresAt[id]!!
+        assertTrue("Deleted $lateness ms early", lateness >= 0)
+        assertTrue("Deleted $lateness ms late", lateness < 250)
+      }
+    }
+
+    val maxInHorizon = (HORIZON / 1000 + 1) * perSecond
+    assertTrue("$maxScheduled scheduled at once", maxScheduled <= maxInHorizon)
+  }
+
+  @Test
+  fun `Given a backlog of already expired messages, when I start, then I expect them deleted a page at a time`() {
+    val expirations = (0 until 5_000).map { i ->
+      ExpirationInfo(id = i + 1L, expiresIn = 1000L, expireStarted = START - 100_000 + i, isMms = true)
+    }
+
+    expirations.forEach { store.insert(it) }
+
+    val manager = ExpiringMessageManager(null, store, START, HORIZON, PAGE_SIZE)
+    val maxScheduled = runUntilIdle(manager, START)
+
+    assertEquals(expirations.map { it.id }, store.deletions.flatMap { it.ids })
+    assertTrue(store.deletions.all { it.time == START && it.ids.size <= 500 })
+    assertTrue("$maxScheduled scheduled at once", maxScheduled <= PAGE_SIZE)
+  }
+
+  @Test
+  fun `Given nothing left to load, when a message is scheduled past the horizon, then I expect it to be loaded and deleted on time`() {
+    val manager = ExpiringMessageManager(null, store, START, HORIZON, PAGE_SIZE)
+    assertEquals(Long.MAX_VALUE, manager.process(START))
+
+    val later = ExpirationInfo(id = 1, expiresIn = HORIZON * 5, expireStarted = START, isMms = true)
+    store.insert(later)
+    manager.schedule(later.id, later.expiresAt, START)
+
+    assertEquals(0, manager.scheduledCount)
+
+    runUntilIdle(manager, START)
+
+    assertEquals(listOf(1L), store.deletions.single().ids)
+    assertTrue(store.deletions.single().time - later.expiresAt in 0 until 250)
+  }
+
+  @Test
+  fun `Given a load in progress, when a message is scheduled past the horizon, then I expect it to still be loaded and deleted on time`() {
+    val manager = ExpiringMessageManager(null, store, START, HORIZON, PAGE_SIZE)
+    val later = ExpirationInfo(id = 1, expiresIn = HORIZON * 5, expireStarted = START, isMms = true)
+
+    store.onQuery = {
+      store.onQuery = null
+      store.insert(later)
+      manager.schedule(later.id, later.expiresAt, START)
+    }
+
+    runUntilIdle(manager, START)
+
+    assertEquals(listOf(1L), store.deletions.single().ids)
+    assertTrue(store.deletions.single().time - later.expiresAt in 0 until 250)
+  }
+
+  @Test
+  fun `Given an expiration within the horizon, when it is scheduled twice, then I expect it deleted once at the earlier time`() {
+    val manager = ExpiringMessageManager(null, store, START, HORIZON, PAGE_SIZE)
+    manager.process(START)
+
+    store.insert(ExpirationInfo(id = 1, expiresIn = 10_000, expireStarted = START, isMms = true))
+    manager.schedule(1, START + 10_000, START)
+    manager.schedule(1, START + 5_000, START)
+
+    runUntilIdle(manager, START)
+
+    assertEquals(1, store.deletions.size)
+    assertEquals(START + 5_000, store.deletions.single().time)
+  }
+
+  /**
+   * Repeatedly processes and then jumps the fake clock to the requested wake time, like the real processing thread would.
+   *
+   * @return The most expirations that were held in memory at once.
+   */
+  private fun runUntilIdle(manager: ExpiringMessageManager, start: Long): Int {
+    var now = start
+    var maxScheduled = manager.scheduledCount
+    var iterations = 0
+
+    while (true) {
+      store.now = now
+      val next = manager.process(now)
+      maxScheduled = maxOf(maxScheduled, manager.scheduledCount)
+
+      if (next == Long.MAX_VALUE) {
+        return maxScheduled
+      }
+
+      now = maxOf(now, next)
+      iterations++
+      assertTrue("Not making progress", iterations < 1_000_000)
+    }
+  }
+
+  private val ExpirationInfo.expiresAt: Long
+    get() = expireStarted + expiresIn
+
+  private data class Deletion(val time: Long, val ids: List<Long>)
+
+  private class FakeStore : ExpiringMessageManager.Store {
+    var now: Long = 0
+    val deletions: MutableList<Deletion> = mutableListOf()
+
+    /** Runs while a page is being queried, after the query has picked its snapshot. */
+    var onQuery: (() -> Unit)? = null
+
+    private val messages: TreeSet<ExpirationInfo> = TreeSet(compareBy<ExpirationInfo>({ it.expireStarted + it.expiresIn }, { it.id }))
+    private val byId: MutableMap<Long, ExpirationInfo> = mutableMapOf()
+
+    fun insert(info: ExpirationInfo) {
+      messages += info
+      byId[info.id] = info
+    }
+
+    override fun getExpiringMessages(afterExpiresAt: Long, afterId: Long, limit: Int): List<ExpirationInfo> {
+      val after = ExpirationInfo(id = afterId, expiresIn = 0, expireStarted = afterExpiresAt, isMms = true)
+      val page = messages.tailSet(after, false).take(limit)
+      onQuery?.invoke()
+      return page
+    }
+
+    override fun deleteExpiringMessages(messageIds: List<Long>) {
+      val deleted = messageIds.filter { id -> byId.remove(id)?.let { messages.remove(it) } == true }
+
+      if (deleted.isNotEmpty()) {
+        deletions += Deletion(now, deleted)
+      }
+    }
+  }
+}
@@ -0,0 +1,84 @@
+package org.thoughtcrime.securesms.util
+
+import android.content.ComponentCallbacks2
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Test
+
+class SizedLruCacheTest {
+
+  private val cache = SizedLruCache<String, ByteArray>("test", 100) { _, value -> value.size.toLong() }
+
+  @Test
+  fun `Given entries within the budget, when I get them, then I expect all of them`() {
+    cache["a"] = ByteArray(40)
+    cache["b"] = ByteArray(40)
+
+    assertEquals(40, cache["a"]?.size)
+    assertEquals(40, cache["b"]?.size)
+    assertEquals(80, cache.sizeInBytes())
+  }
+
+  @Test
+  fun `Given an entry that exceeds the budget, when I add it, then I expect the least recently used entry to be evicted`() {
+    cache["a"] = ByteArray(40)
+    cache["b"] = ByteArray(40)
+    cache["a"]
+
+    cache["c"] = ByteArray(40)
+
+    assertNull(cache["b"])
+    assertEquals(40, cache["a"]?.size)
+    assertEquals(40, cache["c"]?.size)
+    assertEquals(80, cache.sizeInBytes())
+  }
+
+  @Test
+  fun `Given an entry larger than the budget, when I add it, then I expect it to not be cached`() {
+    cache["a"] = ByteArray(40)
+    cache["big"] = ByteArray(101)
+
+    assertNull(cache["big"])
+    assertEquals(40, cache.sizeInBytes())
+  }
+
+  @Test
+  fun `Given an existing key, when I replace it, then I expect the size to reflect the new value`() {
+    cache["a"] = ByteArray(40)
+    cache["a"] = ByteArray(10)
+
+    assertEquals(10, cache.sizeInBytes())
+  }
+
+  @Test
+  fun `Given a full cache, when memory is running low, then I expect it to be trimmed to half the budget`() {
+    cache["a"] = ByteArray(30)
+    cache["b"] = ByteArray(30)
+    cache["c"] = ByteArray(30)
+
+    cache.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW)
+
+    assertNull(cache["a"])
+    assertNull(cache["b"])
+    assertEquals(30, cache.sizeInBytes())
+  }
+
+  @Test
+  fun `Given a full cache, when the app is in the background, then I expect it to be emptied`() {
+    cache["a"] = ByteArray(30)
+    cache["b"] = ByteArray(30)
+
+    cache.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_BACKGROUND)
+
+    assertEquals(0, cache.sizeInBytes())
+  }
+
+  @Test
+  fun `Given a full cache, when memory pressure is moderate, then I expect nothing to be trimmed`() {
+    cache["a"] = ByteArray(30)
+
+    cache.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE)
+
+    assertEquals(30, cache.sizeInBytes())
+  }
+}
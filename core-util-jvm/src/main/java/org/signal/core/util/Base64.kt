@@ -5,9 +5,14 @@
 
 package org.signal.core.util
 
+import java.io.ByteArrayInputStream
 import java.io.IOException
-import java.io.UnsupportedEncodingException
+import java.util.zip.GZIPInputStream
 
+/**
+ * String-based Base64 helpers, backed by [Base64Codec]. Use [Base64Codec] directly to encode or decode between buffers
+ * without allocating intermediate Strings.
+ */
 object Base64 {
 
   /**
@@ -19,7 +24,7 @@ object Base64 {
   @JvmOverloads
   @JvmStatic
   fun encodeWithPadding(bytes: ByteArray, offset: Int = 0, length: Int = bytes.size): String {
-    return Base64Tools.encodeBytes(bytes, offset, length)
+    return Base64Codec.encodeToString(bytes, offset, length, false, true)
   }
 
   /**
@@ -27,7 +32,7 @@ object Base64 {
    */
   @JvmStatic
   fun encodeWithoutPadding(bytes: ByteArray): String {
-    return Base64Tools.encodeBytes(bytes).stripPadding()
+    return Base64Codec.encodeToString(bytes, 0, bytes.size, false, false)
   }
 
   /**
@@ -36,7 +41,7 @@ object Base64 {
    */
   @JvmStatic
   fun encodeUrlSafeWithPadding(bytes: ByteArray): String {
-    return Base64Tools.encodeBytes(bytes, Base64Tools.URL_SAFE or Base64Tools.DONT_GUNZIP)
+    return Base64Codec.encodeToString(bytes, 0, bytes.size, true, true)
   }
 
   /**
@@ -45,30 +50,25 @@ object Base64 {
    */
   @JvmStatic
   fun encodeUrlSafeWithoutPadding(bytes: ByteArray): String {
-    return Base64Tools.encodeBytes(bytes, Base64Tools.URL_SAFE or Base64Tools.DONT_GUNZIP).stripPadding()
+    return Base64Codec.encodeToString(bytes, 0, bytes.size, true, false)
   }
 
   /**
    * A very lenient decoder. Does not care about the presence of padding or whether it's url-safe or not. It'll just decode it.
+   *
+   * As it always has, if the value isn't url-safe and decodes to gzipped data, this returns the data gunzipped.
    */
   @Throws(IOException::class)
   @JvmStatic
   fun decode(value: String): ByteArray {
-    return if (value.contains('-') || value.contains('_')) {
-      Base64Tools.decode(value.withPaddingIfNeeded(), Base64Tools.URL_SAFE or Base64Tools.DONT_GUNZIP)
-    } else {
-      Base64Tools.decode(value.withPaddingIfNeeded())
-    }
+    val decoded = Base64Codec.decode(value)
+    return if (value.contains('-') || value.contains('_')) decoded else decoded.gunzipIfCompressed()
   }
 
   @JvmStatic
   fun decode(value: ByteArray): ByteArray {
-    // This pattern of trying US_ASCII first mimics how Base64Tools handles strings
-    return try {
-      decode(String(value, Charsets.US_ASCII))
-    } catch (e: UnsupportedEncodingException) {
-      decode(String(value, Charsets.UTF_8))
-    }
+    val decoded = Base64Codec.decode(value)
+    return if (value.contains('-'.code.toByte()) || value.contains('_'.code.toByte())) decoded else decoded.gunzipIfCompressed()
   }
 
   /**
@@ -102,15 +102,19 @@ object Base64 {
     }
   }
 
-  private fun String.withPaddingIfNeeded(): String {
-    return when (this.length % 4) {
-      2 -> "$this=="
-      3 -> "$this="
-      else -> this
+  /**
+   * Matches the legacy decoder, which gunzipped anything that started with the gzip magic number, and kept the bytes as they were
+   * if they turned out not to be gzipped after all.
+   */
+  private fun ByteArray.gunzipIfCompressed(): ByteArray {
+    if (this.size < 4 || ((this[0].toInt() and 0xff) or ((this[1].toInt() shl 8) and 0xff00)) != GZIPInputStream.GZIP_MAGIC) {
+      return this
     }
-  }
 
-  private fun String.stripPadding(): String {
-    return this.replace("=", "")
+    return try {
+      GZIPInputStream(ByteArrayInputStream(this)).use { it.readBytes() }
+    } catch (e: IOException) {
+      this
+    }
   }
 }
@@ -0,0 +1,342 @@
+/*
+ * Copyright 2023 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.signal.core.util;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Table-driven Base64 encoder and decoder that works directly between byte and char regions, without intermediate copies.
+ *
+ * Encoding supports the standard and url-safe alphabets, with or without padding. Decoding is lenient: it accepts both
+ * alphabets, optional padding, and skips whitespace, which matches what {@link Base64#decode(String)} has always accepted.
+ *
+ * See {@link Base64} for the usual String-based API.
+ */
+public final class Base64Codec {
+
+  private static final char[] STANDARD_ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+  private static final char[] URL_SAFE_ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+
+  private static final char PADDING = '=';
+
+  private static final byte INVALID    = -1;
+  private static final byte WHITESPACE = -2;
+  private static final byte EQUALS     = -3;
+
+  /** Maps an ASCII character to its 6-bit value in either alphabet, or to one of the special markers above. */
+  private static final byte[] DECODE_TABLE = new byte[128];
+
+  static {
+    Arrays.fill(DECODE_TABLE, INVALID);
+
+    for (int i = 0; i < 64; i++) {
+      DECODE_TABLE[STANDARD_ALPHABET[i]] = (byte) i;
+      DECODE_TABLE[URL_SAFE_ALPHABET[i]] = (byte) i;
+    }
+
+    DECODE_TABLE[' ']  = WHITESPACE;
+    DECODE_TABLE['\t'] = WHITESPACE;
+    DECODE_TABLE['\n'] = WHITESPACE;
+    DECODE_TABLE['\f'] = WHITESPACE;
+    DECODE_TABLE['\r'] = WHITESPACE;
+    DECODE_TABLE['=']  = EQUALS;
+  }
+
+  private Base64Codec() {}
+
+  /**
+   * @return The number of characters needed to encode {@code length} bytes.
+   */
+  public static int encodedLength(int length, boolean padding) {
+    if (padding) {
+      return ((length + 2) / 3) * 4;
+    } else {
+      return (length / 3) * 4 + ((length % 3) * 4 + 2) / 3;
+    }
+  }
+
+  /**
+   * @return An upper bound on the number of bytes that {@code length} characters of Base64 decode to.
+   */
+  public static int maxDecodedLength(int length) {
+    return (length / 4) * 3 + Math.max((length % 4) - 1, 0);
+  }
+
+  /**
+   * Encodes the region of {@code src} into {@code dst}, which must have room for {@link #encodedLength(int, boolean)} characters.
+   *
+   * @return The number of characters written.
+   */
+  public static int encode(byte[] src, int offset, int length, char[] dst, int dstOffset, boolean urlSafe, boolean padding) {
+    checkRegion(src.length, offset, length);
+    checkRegion(dst.length, dstOffset, encodedLength(length, padding));
+
+    char[] alphabet = urlSafe ? URL_SAFE_ALPHABET : STANDARD_ALPHABET;
+    int    end      = offset + length - (length % 3);
+    int    out      = dstOffset;
+    int    in       = offset;
+
+    while (in < end) {
+      int bits = (src[in] & 0xff) << 16 | (src[in + 1] & 0xff) << 8 | (src[in + 2] & 0xff);
+      in += 3;
+
+      dst[out]     = alphabet[bits >>> 18];
+      dst[out + 1] = alphabet[(bits >>> 12) & 0x3f];
+      dst[out + 2] = alphabet[(bits >>> 6) & 0x3f];
+      dst[out + 3] = alphabet[bits & 0x3f];
+      out += 4;
+    }
+
+    int remaining = length % 3;
+
+    if (remaining == 1) {
+      int bits = (src[in] & 0xff) << 16;
+
+      dst[out++] = alphabet[bits >>> 18];
+      dst[out++] = alphabet[(bits >>> 12) & 0x3f];
+
+      if (padding) {
+        dst[out++] = PADDING;
+        dst[out++] = PADDING;
+      }
+    } else if (remaining == 2) {
+      int bits = (src[in] & 0xff) << 16 | (src[in + 1] & 0xff) << 8;
+
+      dst[out++] = alphabet[bits >>> 18];
+      dst[out++] = alphabet[(bits >>> 12) & 0x3f];
+      dst[out++] = alphabet[(bits >>> 6) & 0x3f];
+
+      if (padding) {
+        dst[out++] = PADDING;
+      }
+    }
+
+    return out - dstOffset;
+  }
+
+  /**
+   * Encodes the remaining bytes of {@code src} onto the end of {@code dst}, advancing the position of {@code src} to its limit.
+   */
+  public static void encode(ByteBuffer src, StringBuilder dst, boolean urlSafe, boolean padding) {
+    char[] alphabet = urlSafe ? URL_SAFE_ALPHABET : STANDARD_ALPHABET;
+    int    length   = src.remaining();
+    int    in       = src.position();
+    int    end      = in + length - (length % 3);
+
+    dst.ensureCapacity(dst.length() + encodedLength(length, padding));
+
+    while (in < end) {
+      int bits = (src.get(in) & 0xff) << 16 | (src.get(in + 1) & 0xff) << 8 | (src.get(in + 2) & 0xff);
+      in += 3;
+
+      dst.append(alphabet[bits >>> 18])
+         .append(alphabet[(bits >>> 12) & 0x3f])
+         .append(alphabet[(bits >>> 6) & 0x3f])
+         .append(alphabet[bits & 0x3f]);
+    }
+
+    int remaining = length % 3;
+
+    if (remaining == 1) {
+      int bits = (src.get(in) & 0xff) << 16;
+
+      dst.append(alphabet[bits >>> 18])
+         .append(alphabet[(bits >>> 12) & 0x3f]);
+
+      if (padding) {
+        dst.append(PADDING).append(PADDING);
+      }
+    } else if (remaining == 2) {
+      int bits = (src.get(in) & 0xff) << 16 | (src.get(in + 1) & 0xff) << 8;
+
+      dst.append(alphabet[bits >>> 18])
+         .append(alphabet[(bits >>> 12) & 0x3f])
+         .append(alphabet[(bits >>> 6) & 0x3f]);
+
+      if (padding) {
+        dst.append(PADDING);
+      }
+    }
+
+    src.position(src.limit());
+  }
+
+  public static String encodeToString(byte[] src, int offset, int length, boolean urlSafe, boolean padding) {
+    char[] chars = new char[encodedLength(length, padding)];
+    encode(src, offset, length, chars, 0, urlSafe, padding);
+    return new String(chars);
+  }
+
+  /**
+   * Decodes the characters of {@code src} between {@code start} and {@code end} into {@code dst}, which must have room for
+   * {@link #maxDecodedLength(int)} bytes. Decoding stops at the first padding character.
+   *
+   * @return The number of bytes written.
+   * @throws IOException If the input contains a character that is not Base64, or is truncated mid-byte.
+   */
+  public static int decode(CharSequence src, int start, int end, byte[] dst, int dstOffset) throws IOException {
+    checkRegion(src.length(), start, end - start);
+
+    int out   = dstOffset;
+    int bits  = 0;
+    int count = 0;
+
+    for (int i = start; i < end; i++) {
+      int value = decodeChar(src.charAt(i), i);
+
+      if (value >= 0) {
+        bits = bits << 6 | value;
+        count++;
+
+        if (count == 4) {
+          dst[out]     = (byte) (bits >>> 16);
+          dst[out + 1] = (byte) (bits >>> 8);
+          dst[out + 2] = (byte) bits;
+          out  += 3;
+          bits  = 0;
+          count = 0;
+        }
+      } else if (value == EQUALS) {
+        break;
+      }
+    }
+
+    return out + finishQuantum(bits, count, dst, out) - dstOffset;
+  }
+
+  /**
+   * The same as {@link #decode(CharSequence, int, int, byte[], int)}, but for ASCII-encoded Base64 in a byte region.
+   */
+  public static int decode(byte[] src, int offset, int length, byte[] dst, int dstOffset) throws IOException {
+    checkRegion(src.length, offset, length);
+
+    int out   = dstOffset;
+    int bits  = 0;
+    int count = 0;
+    int end   = offset + length;
+
+    for (int i = offset; i < end; i++) {
+      int value = decodeChar((char) (src[i] & 0xff), i);
+
+      if (value >= 0) {
+        bits = bits << 6 | value;
+        count++;
+
+        if (count == 4) {
+          dst[out]     = (byte) (bits >>> 16);
+          dst[out + 1] = (byte) (bits >>> 8);
+          dst[out + 2] = (byte) bits;
+          out  += 3;
+          bits  = 0;
+          count = 0;
+        }
+      } else if (value == EQUALS) {
+        break;
+      }
+    }
+
+    return out + finishQuantum(bits, count, dst, out) - dstOffset;
+  }
+
+  /**
+   * Decodes all of {@code src} into {@code dst}, advancing its position by the number of bytes written.
+   *
+   * @throws BufferOverflowException If {@code dst} doesn't have room for the decoded bytes, in which case its position is left unchanged.
+   */
+  public static void decode(CharSequence src, ByteBuffer dst) throws IOException {
+    if (dst.hasArray() && dst.remaining() >= maxDecodedLength(src.length())) {
+      int written = decode(src, 0, src.length(), dst.array(), dst.arrayOffset() + dst.position());
+      dst.position(dst.position() + written);
+      return;
+    }
+
+    int start = dst.position();
+    int bits  = 0;
+    int count = 0;
+
+    try {
+      for (int i = 0; i < src.length(); i++) {
+        int value = decodeChar(src.charAt(i), i);
+
+        if (value >= 0) {
+          bits = bits << 6 | value;
+          count++;
+
+          if (count == 4) {
+            dst.put((byte) (bits >>> 16)).put((byte) (bits >>> 8)).put((byte) bits);
+            bits  = 0;
+            count = 0;
+          }
+        } else if (value == EQUALS) {
+          break;
+        }
+      }
+
+      if (count == 2) {
+        dst.put((byte) (bits >>> 4));
+      } else if (count == 3) {
+        dst.put((byte) (bits >>> 10)).put((byte) (bits >>> 2));
+      } else if (count != 0) {
+        throw new IOException("Truncated Base64 input");
+      }
+    } catch (BufferOverflowException | IOException e) {
+      dst.position(start);
+      throw e;
+    }
+  }
+
+  public static byte[] decode(CharSequence src) throws IOException {
+    byte[] buffer  = new byte[maxDecodedLength(src.length())];
+    int    written = decode(src, 0, src.length(), buffer, 0);
+
+    return written == buffer.length ? buffer : Arrays.copyOf(buffer, written);
+  }
+
+  public static byte[] decode(byte[] src) throws IOException {
+    byte[] buffer  = new byte[maxDecodedLength(src.length)];
+    int    written = decode(src, 0, src.length, buffer, 0);
+
+    return written == buffer.length ? buffer : Arrays.copyOf(buffer, written);
+  }
+
+  private static int decodeChar(char c, int position) throws IOException {
+    int value = c < 128 ? DECODE_TABLE[c] : INVALID;
+
+    if (value == INVALID) {
+      throw new IOException("Bad Base64 input character '" + c + "' at position " + position);
+    }
+
+    return value;
+  }
+
+  /**
+   * Writes the bytes of a final, partial group of 2 or 3 characters.
+   */
+  private static int finishQuantum(int bits, int count, byte[] dst, int out) throws IOException {
+    switch (count) {
+      case 0:
+        return 0;
+      case 2:
+        dst[out] = (byte) (bits >>> 4);
+        return 1;
+      case 3:
+        dst[out]     = (byte) (bits >>> 10);
+        dst[out + 1] = (byte) (bits >>> 2);
+        return 2;
+      default:
+        throw new IOException("Truncated Base64 input");
+    }
+  }
+
+  private static void checkRegion(int size, int offset, int length) {
+    if (offset < 0 || length < 0 || offset > size - length) {
+      throw new IndexOutOfBoundsException("offset: " + offset + ", length: " + length + ", size: " + size);
+    }
+  }
+}
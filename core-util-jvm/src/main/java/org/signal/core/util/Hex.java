@@ -5,6 +5,8 @@
 package org.signal.core.util;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 /**
  * Utility for generating hex dumps.
@@ -20,6 +22,22 @@ public class Hex {
     '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'
   };
 
+  /** Maps an ASCII character to its value as a hex digit of either case, or -1. */
+  private final static byte[] HEX_VALUES = new byte[128];
+
+  static {
+    Arrays.fill(HEX_VALUES, (byte) -1);
+
+    for (int i = 0; i < 10; i++) {
+      HEX_VALUES['0' + i] = (byte) i;
+    }
+
+    for (int i = 0; i < 6; i++) {
+      HEX_VALUES['a' + i] = (byte) (10 + i);
+      HEX_VALUES['A' + i] = (byte) (10 + i);
+    }
+  }
+
   public static String toString(byte[] bytes) {
     return toString(bytes, 0, bytes.length);
   }
@@ -34,33 +52,70 @@ public class Hex {
   }
 
   public static String toStringCondensed(byte[] bytes) {
-    StringBuffer buf = new StringBuffer();
-    for (int i=0;i<bytes.length;i++) {
-      appendHexChar(buf, bytes[i]);
+    char[] chars = new char[bytes.length * 2];
+    encode(bytes, 0, bytes.length, chars, 0);
+    return new String(chars);
+  }
+
+  /**
+   * Writes the lowercase hex of the region of {@code src} into {@code dst}, which must have room for {@code length * 2} characters.
+   */
+  public static void encode(byte[] src, int offset, int length, char[] dst, int dstOffset) {
+    if (offset < 0 || length < 0 || offset > src.length - length || dstOffset < 0 || dstOffset > dst.length - length * 2) {
+      throw new IndexOutOfBoundsException();
+    }
+
+    for (int i = offset, j = dstOffset, end = offset + length; i < end; i++, j += 2) {
+      int b = src[i];
+      dst[j]     = HEX_DIGITS[(b >> 4) & 0xf];
+      dst[j + 1] = HEX_DIGITS[b & 0xf];
+    }
+  }
+
+  /**
+   * Appends the lowercase hex of the remaining bytes of {@code src} to {@code dst}, advancing the position of {@code src} to its limit.
+   */
+  public static void encode(ByteBuffer src, StringBuilder dst) {
+    dst.ensureCapacity(dst.length() + src.remaining() * 2);
+
+    while (src.hasRemaining()) {
+      int b = src.get();
+      dst.append(HEX_DIGITS[(b >> 4) & 0xf]);
+      dst.append(HEX_DIGITS[b & 0xf]);
     }
-    return buf.toString();
   }
 
   public static byte[] fromStringCondensed(String encoded) throws IOException {
-    final char[] data = encoded.toCharArray();
-    final int    len  = data.length;
+    final int len = encoded.length();
 
     if ((len & 0x01) != 0) {
       throw new IOException("Odd number of characters.");
     }
 
     final byte[] out = new byte[len >> 1];
+    decode(encoded, 0, len, out, 0);
+
+    return out;
+  }
 
-    // two characters form the hex value.
-    for (int i = 0, j = 0; j < len; i++) {
-      int f = Character.digit(data[j], 16) << 4;
-      j++;
-      f = f | Character.digit(data[j], 16);
-      j++;
-      out[i] = (byte) (f & 0xFF);
+  /**
+   * Decodes the hex characters of {@code src} between {@code start} and {@code end}, of either case, into {@code dst}, which must have
+   * room for half as many bytes.
+   *
+   * @return The number of bytes written.
+   */
+  public static int decode(CharSequence src, int start, int end, byte[] dst, int dstOffset) throws IOException {
+    if (((end - start) & 0x01) != 0) {
+      throw new IOException("Odd number of characters.");
     }
 
-    return out;
+    int out = dstOffset;
+
+    for (int i = start; i < end; i += 2) {
+      dst[out++] = (byte) (hexValue(src.charAt(i), i) << 4 | hexValue(src.charAt(i + 1), i + 1));
+    }
+
+    return out - dstOffset;
   }
 
   public static byte[] fromStringOrThrow(String encoded) {
@@ -126,6 +181,16 @@ public class Hex {
     }
   }
 
+  private static int hexValue(char c, int position) throws IOException {
+    int value = c < 128 ? HEX_VALUES[c] : -1;
+
+    if (value < 0) {
+      throw new IOException("Bad hex character '" + c + "' at position " + position);
+    }
+
+    return value;
+  }
+
   private static void appendHexChar(StringBuffer buf, int b) {
     buf.append(HEX_DIGITS[(b >> 4) & 0xf]);
     buf.append(HEX_DIGITS[b & 0xf]);
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2024 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.signal.core.util
+
+/**
+ * Limits a shared resource, like disk bandwidth, to [permitsPerSecond] with bursts of up to [capacity].
+ *
+ * [acquire] blocks until the caller is within budget. Waiting callers hold the lock while they sleep, so they're served in turn, and the
+ * total acquired by any point in time never exceeds [capacity] plus [permitsPerSecond] times the time elapsed since creation.
+ *
+ * @param clock A monotonic time in milliseconds, so that wall clock changes don't stall or burst the bucket.
+ * @param sleep Sleeps for the given number of milliseconds.
+ */
+class TokenBucket(
+  private val capacity: Long,
+  private val permitsPerSecond: Long,
+  private val clock: () -> Long = { System.nanoTime() / 1_000_000 },
+  private val sleep: (Long) -> Unit = Thread::sleep
+) {
+
+  init {
+    require(capacity > 0) { "Capacity must be positive!" }
+    require(permitsPerSecond > 0) { "Permits per second must be positive!" }
+  }
+
+  private var available: Double = capacity.toDouble()
+  private var lastRefillTime: Long = clock()
+
+  /**
+   * Takes [permits] from the bucket, waiting for it to refill if necessary. Requests larger than [capacity] are allowed, and simply wait
+   * for the bucket to refill past empty.
+   */
+  @Synchronized
+  fun acquire(permits: Long) {
+    refill()
+    available -= permits
+
+    while (available < 0) {
+      sleep(maxOf(1, Math.ceil(-available * 1000 / permitsPerSecond).toLong()))
+      refill()
+    }
+  }
+
+  private fun refill() {
+    val now = clock()
+
+    if (now > lastRefillTime) {
+      available = minOf(capacity.toDouble(), available + (now - lastRefillTime) * permitsPerSecond / 1000.0)
+      lastRefillTime = now
+    }
+  }
+}
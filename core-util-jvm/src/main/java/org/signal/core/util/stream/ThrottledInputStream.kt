@@ -0,0 +1,63 @@
+/*
+ * Copyright 2024 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.signal.core.util.stream
+
+import org.signal.core.util.TokenBucket
+import java.io.FilterInputStream
+import java.io.InputStream
+
+/**
+ * An [InputStream] that takes a permit from [tokenBucket] for every byte before it's read, so that any number of streams sharing a bucket
+ * stay within its budget. Reads are capped at [maxChunkSize] bytes so that unused permits at the end of a stream are kept to a minimum.
+ */
+class ThrottledInputStream(
+  private val wrapped: InputStream,
+  private val tokenBucket: TokenBucket,
+  private val maxChunkSize: Int = 16 * 1024
+) : FilterInputStream(wrapped) {
+
+  override fun read(): Int {
+    tokenBucket.acquire(1)
+    return wrapped.read()
+  }
+
+  override fun read(destination: ByteArray): Int {
+    return read(destination, 0, destination.size)
+  }
+
+  override fun read(destination: ByteArray, offset: Int, length: Int): Int {
+    if (length == 0) {
+      return 0
+    }
+
+    val bytesToRead = minOf(length, maxChunkSize)
+    tokenBucket.acquire(bytesToRead.toLong())
+
+    return wrapped.read(destination, offset, bytesToRead)
+  }
+
+  /**
+   * Skipped bytes are read and discarded, so that they're paid for like any other.
+   */
+  override fun skip(n: Long): Long {
+    if (n <= 0) {
+      return 0
+    }
+
+    val buffer = ByteArray(minOf(n, maxChunkSize.toLong()).toInt())
+    var skipped = 0L
+
+    while (skipped < n) {
+      val read = read(buffer, 0, minOf(n - skipped, buffer.size.toLong()).toInt())
+      if (read < 0) {
+        break
+      }
+      skipped += read
+    }
+
+    return skipped
+  }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright 2023 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.signal.core.util
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.fail
+import org.junit.Ignore
+import org.junit.Test
+import java.io.IOException
+import java.nio.BufferOverflowException
+import java.nio.ByteBuffer
+import kotlin.random.Random
+import java.util.Base64 as JavaBase64
+
+class Base64CodecTest {
+
+  @Test
+  fun `encode - matches java util Base64 for all alphabets and padding`() {
+    for (len in 0 until 256) {
+      val bytes = Random.nextBytes(len)
+
+      assertEquals(JavaBase64.getEncoder().encodeToString(bytes), Base64Codec.encodeToString(bytes, 0, len, false, true))
+      assertEquals(JavaBase64.getEncoder().withoutPadding().encodeToString(bytes), Base64Codec.encodeToString(bytes, 0, len, false, false))
+      assertEquals(JavaBase64.getUrlEncoder().encodeToString(bytes), Base64Codec.encodeToString(bytes, 0, len, true, true))
+      assertEquals(JavaBase64.getUrlEncoder().withoutPadding().encodeToString(bytes), Base64Codec.encodeToString(bytes, 0, len, true, false))
+    }
+  }
+
+  @Test
+  fun `encode - matches the legacy implementation`() {
+    for (len in 0 until 256) {
+      val bytes = Random.nextBytes(len)
+
+      assertEquals(Base64Tools.encodeBytes(bytes), Base64Codec.encodeToString(bytes, 0, len, false, true))
+      assertEquals(Base64Tools.encodeBytes(bytes, Base64Tools.URL_SAFE), Base64Codec.encodeToString(bytes, 0, len, true, true))
+    }
+  }
+
+  @Test
+  fun `encode - only writes into the requested region`() {
+    val bytes = Random.nextBytes(32)
+    val chars = CharArray(64) { '*' }
+
+    val written = Base64Codec.encode(bytes, 4, 10, chars, 3, false, true)
+
+    assertEquals(16, written)
+    assertEquals("***" + JavaBase64.getEncoder().encodeToString(bytes.copyOfRange(4, 14)) + "*".repeat(45), String(chars))
+  }
+
+  @Test
+  fun `encode - byte buffer is consumed and appended to builder`() {
+    val bytes = Random.nextBytes(50)
+    val buffer = ByteBuffer.wrap(bytes, 5, 40)
+    val builder = StringBuilder("prefix:")
+
+    Base64Codec.encode(buffer, builder, true, false)
+
+    assertEquals(0, buffer.remaining())
+    assertEquals("prefix:" + JavaBase64.getUrlEncoder().withoutPadding().encodeToString(bytes.copyOfRange(5, 45)), builder.toString())
+  }
+
+  @Test
+  fun `encode - direct byte buffer is consumed and appended to builder`() {
+    for (len in 0 until 16) {
+      val bytes = Random.nextBytes(len)
+      val buffer = ByteBuffer.allocateDirect(len).apply { put(bytes); flip() }
+      val builder = StringBuilder()
+
+      Base64Codec.encode(buffer, builder, false, true)
+
+      assertEquals(0, buffer.remaining())
+      assertEquals(JavaBase64.getEncoder().encodeToString(bytes), builder.toString())
+    }
+  }
+
+  @Test
+  fun `decode - accepts either alphabet, with or without padding`() {
+    for (len in 0 until 256) {
+      val bytes = Random.nextBytes(len)
+
+      assertArrayEquals(bytes, Base64Codec.decode(JavaBase64.getEncoder().encodeToString(bytes)))
+      assertArrayEquals(bytes, Base64Codec.decode(JavaBase64.getEncoder().withoutPadding().encodeToString(bytes)))
+      assertArrayEquals(bytes, Base64Codec.decode(JavaBase64.getUrlEncoder().encodeToString(bytes)))
+      assertArrayEquals(bytes, Base64Codec.decode(JavaBase64.getUrlEncoder().withoutPadding().encodeToString(bytes)))
+      assertArrayEquals(bytes, Base64Codec.decode(JavaBase64.getEncoder().encode(bytes)))
+    }
+  }
+
+  @Test
+  fun `decode - skips whitespace`() {
+    val bytes = Random.nextBytes(100)
+    val encoded = JavaBase64.getMimeEncoder().encodeToString(bytes)
+
+    assertArrayEquals(bytes, Base64Codec.decode(" $encoded\n"))
+  }
+
+  @Test
+  fun `decode - only writes into the requested region`() {
+    val bytes = Random.nextBytes(30)
+    val encoded = "xx" + JavaBase64.getEncoder().encodeToString(bytes) + "yy"
+    val output = ByteArray(40)
+
+    val written = Base64Codec.decode(encoded, 2, encoded.length - 2, output, 5)
+
+    assertEquals(30, written)
+    assertArrayEquals(bytes, output.copyOfRange(5, 35))
+    assertArrayEquals(ByteArray(5), output.copyOfRange(0, 5))
+    assertArrayEquals(ByteArray(5), output.copyOfRange(35, 40))
+  }
+
+  @Test
+  fun `decode - byte buffer position is advanced`() {
+    val bytes = Random.nextBytes(20)
+    val buffer = ByteBuffer.allocate(30)
+    buffer.position(3)
+
+    Base64Codec.decode(JavaBase64.getEncoder().encodeToString(bytes), buffer)
+
+    assertEquals(23, buffer.position())
+    assertArrayEquals(bytes, buffer.array().copyOfRange(3, 23))
+  }
+
+  @Test
+  fun `decode - direct byte buffer position is advanced`() {
+    for (len in 0 until 16) {
+      val bytes = Random.nextBytes(len)
+      val buffer = ByteBuffer.allocateDirect(len + 3)
+      buffer.position(3)
+
+      Base64Codec.decode(JavaBase64.getEncoder().withoutPadding().encodeToString(bytes), buffer)
+
+      assertEquals(len + 3, buffer.position())
+      assertArrayEquals(bytes, ByteArray(len).also { buffer.position(3); buffer.get(it) })
+    }
+  }
+
+  @Test
+  fun `decode - byte buffer with exactly enough room for padded input`() {
+    val bytes = Random.nextBytes(20)
+    val buffer = ByteBuffer.allocate(20)
+
+    Base64Codec.decode(JavaBase64.getEncoder().encodeToString(bytes), buffer)
+
+    assertEquals(20, buffer.position())
+    assertArrayEquals(bytes, buffer.array())
+  }
+
+  @Test
+  fun `decode - byte buffer without enough room overflows and keeps its position`() {
+    val encoded = JavaBase64.getEncoder().encodeToString(Random.nextBytes(20))
+
+    for (buffer in listOf(ByteBuffer.allocate(30), ByteBuffer.allocateDirect(30))) {
+      buffer.position(11)
+
+      try {
+        Base64Codec.decode(encoded, buffer)
+        fail("Expected an overflow")
+      } catch (e: BufferOverflowException) {
+        assertEquals(11, buffer.position())
+      }
+    }
+  }
+
+  @Test(expected = IOException::class)
+  fun `decode - rejects invalid characters`() {
+    Base64Codec.decode("abc*")
+  }
+
+  @Test(expected = IOException::class)
+  fun `decode - rejects non-ascii characters`() {
+    Base64Codec.decode("abcé")
+  }
+
+  @Test(expected = IOException::class)
+  fun `decode - rejects a truncated final group`() {
+    Base64Codec.decode("abcde")
+  }
+
+  /**
+   * Not a rigorous benchmark, but gives a rough comparison against the legacy implementation and java.util.Base64.
+   */
+  @Ignore("Benchmark, run manually")
+  @Test
+  fun `benchmark - compared to legacy and java util Base64`() {
+    val inputs = List(10_000) { Random.nextBytes(Random.nextInt(16, 128)) }
+    val encoded = inputs.map { JavaBase64.getEncoder().encodeToString(it) }
+
+    repeat(3) {
+      inputs.forEach { Base64Tools.encodeBytes(it) }
+      inputs.forEach { JavaBase64.getEncoder().encodeToString(it) }
+      inputs.forEach { Base64Codec.encodeToString(it, 0, it.size, false, true) }
+    }
+
+    val stopwatch = Stopwatch("base64", 2)
+
+    inputs.forEach { Base64Tools.encodeBytes(it) }
+    stopwatch.split("legacy-encode")
+
+    inputs.forEach { JavaBase64.getEncoder().encodeToString(it) }
+    stopwatch.split("jdk-encode")
+
+    inputs.forEach { Base64Codec.encodeToString(it, 0, it.size, false, true) }
+    stopwatch.split("codec-encode")
+
+    encoded.forEach { Base64Tools.decode(it) }
+    stopwatch.split("legacy-decode")
+
+    encoded.forEach { JavaBase64.getDecoder().decode(it) }
+    stopwatch.split("jdk-decode")
+
+    encoded.forEach { Base64Codec.decode(it) }
+    stopwatch.split("codec-decode")
+
+    println(stopwatch.stopAndGetLogString())
+  }
+}
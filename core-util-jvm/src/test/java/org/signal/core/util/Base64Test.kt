@@ -7,6 +7,8 @@ package org.signal.core.util
 
 import org.junit.Assert.assertArrayEquals
 import org.junit.Test
+import java.io.ByteArrayOutputStream
+import java.util.zip.GZIPOutputStream
 import kotlin.random.Random
 
 class Base64Test {
@@ -33,4 +35,20 @@ class Base64Test {
 
     println(stopwatch.stopAndGetLogString())
   }
+
+  @Test
+  fun `decode - gunzips standard encoded gzip data like the legacy decoder`() {
+    val bytes = Random.nextBytes(100)
+    val gzipped = ByteArrayOutputStream().also { out -> GZIPOutputStream(out).use { it.write(bytes) } }.toByteArray()
+
+    assertArrayEquals(bytes, Base64.decode(Base64.encodeWithPadding(gzipped)))
+    assertArrayEquals(Base64Tools.decode(Base64.encodeWithPadding(gzipped)), Base64.decode(Base64.encodeWithPadding(gzipped)))
+  }
+
+  @Test
+  fun `decode - keeps data that only looks gzipped`() {
+    val bytes = byteArrayOf(0x1f, 0x8b.toByte(), 1, 2, 3, 4, 5)
+
+    assertArrayEquals(bytes, Base64.decode(Base64.encodeWithPadding(bytes)))
+  }
 }
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2023 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.signal.core.util
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import java.io.IOException
+import java.nio.ByteBuffer
+import kotlin.random.Random
+
+class HexTest {
+
+  @Test
+  fun `toStringCondensed - encodes as lowercase hex`() {
+    assertEquals("00017f80ff", Hex.toStringCondensed(byteArrayOf(0x00, 0x01, 0x7f, 0x80.toByte(), 0xff.toByte())))
+  }
+
+  @Test
+  fun `fromStringCondensed - round trips, regardless of case`() {
+    for (len in 0 until 64) {
+      val bytes = Random.nextBytes(len)
+      val encoded = Hex.toStringCondensed(bytes)
+
+      assertArrayEquals(bytes, Hex.fromStringCondensed(encoded))
+      assertArrayEquals(bytes, Hex.fromStringCondensed(encoded.uppercase()))
+    }
+  }
+
+  @Test
+  fun `encode - byte buffer is consumed and appended to builder`() {
+    val buffer = ByteBuffer.wrap(byteArrayOf(0x0a, 0x0b, 0x0c, 0x0d), 1, 2)
+    val builder = StringBuilder("0x")
+
+    Hex.encode(buffer, builder)
+
+    assertEquals(0, buffer.remaining())
+    assertEquals("0x0b0c", builder.toString())
+  }
+
+  @Test
+  fun `decode - only writes into the requested region`() {
+    val output = ByteArray(4)
+
+    val written = Hex.decode("--abcd--", 2, 6, output, 1)
+
+    assertEquals(2, written)
+    assertArrayEquals(byteArrayOf(0x00, 0xab.toByte(), 0xcd.toByte(), 0x00), output)
+  }
+
+  @Test(expected = IOException::class)
+  fun `fromStringCondensed - rejects odd length`() {
+    Hex.fromStringCondensed("abc")
+  }
+
+  @Test(expected = IOException::class)
+  fun `fromStringCondensed - rejects non-hex characters`() {
+    Hex.fromStringCondensed("zz")
+  }
+}
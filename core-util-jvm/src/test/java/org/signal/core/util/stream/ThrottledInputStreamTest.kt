@@ -0,0 +1,34 @@
+/*
+ * Copyright 2024 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.signal.core.util.stream
+
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import org.signal.core.util.TokenBucket
+
+class ThrottledInputStreamTest {
+
+  private var now = 0L
+  private val tokenBucket = TokenBucket(capacity = 10, permitsPerSecond = 10, clock = { now }, sleep = { now += it })
+
+  @Test
+  fun `when I skip bytes, I should wait for them like reading them`() {
+    val inputStream = ThrottledInputStream(ByteArray(100) { it.toByte() }.inputStream(), tokenBucket, maxChunkSize = 8)
+
+    assertEquals(30, inputStream.skip(30))
+
+    assertEquals(30, inputStream.read())
+    assertEquals(2_100, now)
+  }
+
+  @Test
+  fun `when I skip past the end of the stream, I should only skip what's left`() {
+    val inputStream = ThrottledInputStream(ByteArray(20).inputStream(), tokenBucket)
+
+    assertEquals(20, inputStream.skip(50))
+    assertEquals(-1, inputStream.read())
+  }
+}
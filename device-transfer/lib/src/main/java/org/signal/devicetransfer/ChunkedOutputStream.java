@@ -0,0 +1,133 @@
+package org.signal.devicetransfer;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import static org.signal.devicetransfer.ChunkedTransfer.CHUNK_SIZE;
+import static org.signal.devicetransfer.ChunkedTransfer.FRAME_DATA;
+import static org.signal.devicetransfer.ChunkedTransfer.FRAME_END;
+
+/**
+ * The stream a {@link ClientTask} is given when the other device supports chunked transfers.
+ * <p>
+ * Writes are collected into chunks that are handed off to be sent in the background, and {@link #flush()} does nothing, since a
+ * chunk is sent as soon as it's full and {@link #close()} sends whatever is left. Files that can be sent as they are on disk
+ * should go through {@link #writeFile(File)}, which sends them straight from the file instead of copying them through here.
+ */
+public final class ChunkedOutputStream extends OutputStream {
+
+  private final ChunkedTransferSender sender;
+
+  private @Nullable ByteBuffer current;
+  private           boolean    closed;
+
+  ChunkedOutputStream(@NonNull ChunkedTransferSender sender) {
+    this.sender = sender;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    ensureBuffer().put((byte) b);
+    sendIfFull();
+  }
+
+  @Override
+  public void write(@NonNull byte[] buffer, int offset, int length) throws IOException {
+    while (length > 0) {
+      ByteBuffer destination = ensureBuffer();
+      int        count       = Math.min(length, destination.remaining());
+
+      destination.put(buffer, offset, count);
+      offset += count;
+      length -= count;
+
+      sendIfFull();
+    }
+  }
+
+  /**
+   * Writes the contents of a file to the stream. The file is read at the time it's sent, so it shouldn't change until the
+   * transfer is complete.
+   */
+  public void writeFile(@NonNull File file) throws IOException {
+    ensureOpen();
+    sendCurrent();
+
+    FileChannel channel = new FileInputStream(file).getChannel();
+    long        size    = channel.size();
+    int         chunks  = (int) ((size + CHUNK_SIZE - 1) / CHUNK_SIZE);
+
+    if (chunks == 0) {
+      channel.close();
+      return;
+    }
+
+    ChunkedTransferSender.SharedFile sharedFile = new ChunkedTransferSender.SharedFile(channel, chunks);
+    int                              enqueued   = 0;
+    try {
+      for (long position = 0; position < size; position += CHUNK_SIZE) {
+        sender.enqueue(FRAME_DATA, null, sharedFile, position, (int) Math.min(CHUNK_SIZE, size - position));
+        enqueued++;
+      }
+    } finally {
+      if (enqueued < chunks) {
+        sharedFile.release(chunks - enqueued);
+      }
+    }
+  }
+
+  @Override
+  public void flush() {
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+
+    sendCurrent();
+    sender.enqueue(FRAME_END, null, null, 0, 0);
+    closed = true;
+  }
+
+  private @NonNull ByteBuffer ensureBuffer() throws IOException {
+    ensureOpen();
+
+    if (current == null) {
+      current = sender.takeBuffer();
+    }
+
+    return current;
+  }
+
+  private void ensureOpen() throws IOException {
+    if (closed) {
+      throw new IOException("Stream closed");
+    }
+  }
+
+  private void sendIfFull() throws IOException {
+    if (current != null && !current.hasRemaining()) {
+      sendCurrent();
+    }
+  }
+
+  private void sendCurrent() throws IOException {
+    if (current == null) {
+      return;
+    }
+
+    ByteBuffer buffer = current;
+    current = null;
+
+    sender.enqueue(FRAME_DATA, buffer, null, 0, buffer.position());
+  }
+}
@@ -0,0 +1,114 @@
+package org.signal.devicetransfer;
+
+import androidx.annotation.NonNull;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Protocol details shared by {@link ChunkedTransferSender} and {@link ChunkedTransferReceiver}.
+ * <p>
+ * The stream is split into chunks of at most {@link #CHUNK_SIZE} bytes, and each is sent in a frame of
+ * <pre>
+ *   [type: 1 byte][sequence number: 8 bytes][length: 4 bytes][payload: length bytes]
+ * </pre>
+ * At the start of every connection, the receiver sends the sequence number it expects next, and from then on it acknowledges
+ * every {@link #ACK_INTERVAL} chunks. The sender holds on to chunks until they're acknowledged, so that when a connection drops,
+ * the next one picks up from the last chunk the receiver got instead of starting over.
+ */
+final class ChunkedTransfer {
+
+  /** Sent in place of the usual verification byte by devices that support chunked transfers. */
+  static final int CHUNKED_TRANSFER_MARKER = 0x44;
+
+  static final byte FRAME_DATA = 1;
+  static final byte FRAME_END  = 2;
+
+  static final int HEADER_SIZE  = 13;
+  static final int CHUNK_SIZE   = 1024 * 1024;
+  static final int QUEUE_SIZE   = 4;
+  static final int WINDOW_SIZE  = 8;
+  static final int ACK_INTERVAL = 2;
+
+  private ChunkedTransfer() {}
+
+  /**
+   * Reads the byte the other side sends once it's verified, which is {@link #CHUNKED_TRANSFER_MARKER} if it supports chunked
+   * transfers.
+   *
+   * @return Whether the other side supports chunked transfers.
+   * @throws EOFException if the other side disconnected instead.
+   */
+  static boolean readVerification(@NonNull InputStream inputStream) throws IOException {
+    int result = inputStream.read();
+    if (result == -1) {
+      throw new EOFException("Disconnected before verifying");
+    }
+    return result == CHUNKED_TRANSFER_MARKER;
+  }
+
+  static void readFully(@NonNull ReadableByteChannel channel, @NonNull ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer) < 0) {
+        throw new EOFException("Connection closed mid-frame");
+      }
+    }
+  }
+
+  static void writeFully(@NonNull WritableByteChannel channel, @NonNull ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+
+  static long readLong(@NonNull ReadableByteChannel channel, @NonNull ByteBuffer buffer) throws IOException {
+    buffer.clear();
+    readFully(channel, buffer);
+    buffer.flip();
+    return buffer.getLong();
+  }
+
+  static void writeLong(@NonNull WritableByteChannel channel, @NonNull ByteBuffer buffer, long value) throws IOException {
+    buffer.clear();
+    buffer.putLong(value);
+    buffer.flip();
+    writeFully(channel, buffer);
+  }
+
+  /**
+   * A fixed set of direct buffers. Taking blocks until one is released, which is what pushes back on whoever is filling them.
+   */
+  static final class BufferPool {
+
+    private final BlockingQueue<ByteBuffer> buffers;
+
+    BufferPool(int count, int size) {
+      this.buffers = new ArrayBlockingQueue<>(count);
+
+      for (int i = 0; i < count; i++) {
+        buffers.add(ByteBuffer.allocateDirect(size));
+      }
+    }
+
+    @NonNull ByteBuffer take() throws InterruptedIOException {
+      try {
+        ByteBuffer buffer = buffers.take();
+        buffer.clear();
+        return buffer;
+      } catch (InterruptedException e) {
+        throw new InterruptedIOException();
+      }
+    }
+
+    void release(@NonNull ByteBuffer buffer) {
+      buffers.add(buffer);
+    }
+  }
+}
@@ -0,0 +1,218 @@
+package org.signal.devicetransfer;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import static org.signal.devicetransfer.ChunkedTransfer.ACK_INTERVAL;
+import static org.signal.devicetransfer.ChunkedTransfer.CHUNK_SIZE;
+import static org.signal.devicetransfer.ChunkedTransfer.FRAME_DATA;
+import static org.signal.devicetransfer.ChunkedTransfer.FRAME_END;
+import static org.signal.devicetransfer.ChunkedTransfer.HEADER_SIZE;
+import static org.signal.devicetransfer.ChunkedTransfer.QUEUE_SIZE;
+
+/**
+ * Receiving half of a chunked transfer.
+ * <p>
+ * {@link #receive(ReadableByteChannel, WritableByteChannel)} reads chunks off the network into pooled buffers and hands them off
+ * through a bounded queue to a consumer thread reading {@link #getInputStream()}, so restoring one chunk overlaps with receiving
+ * the next. If a connection drops, calling receive again on a new connection picks up from the next chunk it's missing.
+ */
+final class ChunkedTransferReceiver {
+
+  private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+  private final ChunkedTransfer.BufferPool pool;
+  private final BlockingQueue<ByteBuffer>  queue;
+  private final ChunkedInputStream         inputStream;
+
+  private long    nextSequence;
+  private boolean complete;
+
+  ChunkedTransferReceiver() {
+    this.pool        = new ChunkedTransfer.BufferPool(QUEUE_SIZE + 1, CHUNK_SIZE);
+    this.queue       = new ArrayBlockingQueue<>(QUEUE_SIZE + 2);
+    this.inputStream = new ChunkedInputStream();
+  }
+
+  /**
+   * Where the consumer reads the received stream from. If it's closed before the end of the stream, the rest is still received and
+   * acknowledged, but dropped.
+   */
+  @NonNull InputStream getInputStream() {
+    return inputStream;
+  }
+
+  /**
+   * Receives the stream over a connection, starting from the first chunk that hasn't been received yet, and returns once the end
+   * of it has been received and acknowledged.
+   *
+   * @throws OutOfSequenceException if the sender isn't continuing this transfer, in which case it can't be resumed.
+   * @throws IOException            if the connection fails, in which case it can be resumed by calling this again with a new one.
+   */
+  void receive(@NonNull ReadableByteChannel in, @NonNull WritableByteChannel out) throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    ByteBuffer ack    = ByteBuffer.allocate(8);
+
+    ChunkedTransfer.writeLong(out, ack, nextSequence);
+
+    while (!complete) {
+      header.clear();
+      ChunkedTransfer.readFully(in, header);
+      header.flip();
+
+      byte type     = header.get();
+      long sequence = header.getLong();
+      int  length   = header.getInt();
+
+      if (sequence != nextSequence) {
+        throw new OutOfSequenceException("Expected chunk " + nextSequence + " but got " + sequence);
+      }
+
+      if (length < 0 || length > CHUNK_SIZE) {
+        throw new IOException("Invalid chunk length " + length);
+      }
+
+      if (type == FRAME_DATA) {
+        ByteBuffer buffer = pool.take();
+        try {
+          buffer.limit(length);
+          ChunkedTransfer.readFully(in, buffer);
+          buffer.flip();
+        } catch (IOException e) {
+          pool.release(buffer);
+          throw e;
+        }
+        put(buffer);
+      } else if (type == FRAME_END) {
+        put(END);
+        complete = true;
+      } else {
+        throw new IOException("Unknown frame type " + type);
+      }
+
+      nextSequence++;
+
+      if (complete || nextSequence % ACK_INTERVAL == 0) {
+        ChunkedTransfer.writeLong(out, ack, sequence);
+      }
+    }
+  }
+
+  private void put(@NonNull ByteBuffer buffer) throws IOException {
+    if (inputStream.closed) {
+      if (buffer != END) {
+        pool.release(buffer);
+      }
+      return;
+    }
+
+    try {
+      queue.put(buffer);
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException();
+    }
+
+    if (inputStream.closed) {
+      drain();
+    }
+  }
+
+  /**
+   * Releases whatever's left in the queue once nothing's going to read it.
+   */
+  private void drain() {
+    ByteBuffer buffer;
+    while ((buffer = queue.poll()) != null) {
+      if (buffer != END) {
+        pool.release(buffer);
+      }
+    }
+  }
+
+  static final class OutOfSequenceException extends IOException {
+    OutOfSequenceException(@NonNull String message) {
+      super(message);
+    }
+  }
+
+  private final class ChunkedInputStream extends InputStream {
+
+    private          ByteBuffer current;
+    private volatile boolean    closed;
+
+    @Override
+    public int read() throws IOException {
+      ByteBuffer buffer = next();
+      return buffer != null ? buffer.get() & 0xFF : -1;
+    }
+
+    @Override
+    public int read(@NonNull byte[] destination, int offset, int length) throws IOException {
+      if (length == 0) {
+        return 0;
+      }
+
+      ByteBuffer buffer = next();
+      if (buffer == null) {
+        return -1;
+      }
+
+      int count = Math.min(length, buffer.remaining());
+      buffer.get(destination, offset, count);
+      return count;
+    }
+
+    @Override
+    public int available() {
+      return current != null && current != END ? current.remaining() : 0;
+    }
+
+    @Override
+    public void close() {
+      if (closed) {
+        return;
+      }
+
+      closed = true;
+
+      if (current != null && current != END) {
+        pool.release(current);
+      }
+      current = END;
+
+      drain();
+    }
+
+    /**
+     * @return The buffer to read from next, or null at the end of the stream.
+     */
+    private ByteBuffer next() throws IOException {
+      if (closed) {
+        throw new IOException("Stream closed");
+      }
+
+      while (current == null || (current != END && !current.hasRemaining())) {
+        if (current != null) {
+          pool.release(current);
+        }
+
+        try {
+          current = queue.take();
+        } catch (InterruptedException e) {
+          current = null;
+          throw new InterruptedIOException();
+        }
+      }
+
+      return current != END ? current : null;
+    }
+  }
+}
@@ -0,0 +1,282 @@
+package org.signal.devicetransfer;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.signal.core.util.StreamUtil;
+import org.signal.core.util.logging.Log;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.signal.devicetransfer.ChunkedTransfer.CHUNK_SIZE;
+import static org.signal.devicetransfer.ChunkedTransfer.FRAME_END;
+import static org.signal.devicetransfer.ChunkedTransfer.HEADER_SIZE;
+import static org.signal.devicetransfer.ChunkedTransfer.QUEUE_SIZE;
+import static org.signal.devicetransfer.ChunkedTransfer.WINDOW_SIZE;
+
+/**
+ * Sending half of a chunked transfer.
+ * <p>
+ * A producer thread writes to {@link #getOutputStream()}, which fills pooled buffers and hands them off through a bounded queue,
+ * while {@link #send(ReadableByteChannel, WritableByteChannel)} writes them out on the network thread. The two only wait on each
+ * other when the queue is full or empty, so serializing and encrypting the next chunk overlaps with sending the last one.
+ * <p>
+ * Chunks are kept until the receiver acknowledges them. If a connection drops, calling send again on a new connection resends only
+ * what the receiver didn't get.
+ */
+final class ChunkedTransferSender {
+
+  private static final String TAG = Log.tag(ChunkedTransferSender.class);
+
+  private static final Chunk FAILED = new Chunk(FRAME_END, -1, null, null, 0, 0);
+
+  private final ChunkedTransfer.BufferPool pool;
+  private final BlockingQueue<Chunk>       queue;
+  private final ArrayDeque<Chunk>          unacknowledged;
+  private final ChunkedOutputStream        outputStream;
+
+  private          long      nextSequence;
+  private          long      nextToSend;
+  private          boolean   endTaken;
+  private          boolean   sending;
+  private volatile Throwable failure;
+
+  ChunkedTransferSender() {
+    this.pool           = new ChunkedTransfer.BufferPool(QUEUE_SIZE + WINDOW_SIZE + 1, CHUNK_SIZE);
+    this.queue          = new ArrayBlockingQueue<>(QUEUE_SIZE + 1);
+    this.unacknowledged = new ArrayDeque<>(WINDOW_SIZE);
+    this.outputStream   = new ChunkedOutputStream(this);
+  }
+
+  /**
+   * Where the producer writes the stream to be sent. Closing it marks the end of the stream.
+   */
+  @NonNull ChunkedOutputStream getOutputStream() {
+    return outputStream;
+  }
+
+  /**
+   * Called by the producer when it can't finish writing the stream, which fails the current and any future calls to send. Every
+   * chunk that's held is released, either here or by the call to send that's in progress.
+   */
+  void fail(@NonNull Throwable throwable) {
+    failure = throwable;
+
+    Chunk chunk;
+    while ((chunk = queue.poll()) != null) {
+      if (chunk != FAILED) {
+        release(chunk);
+      }
+    }
+
+    queue.offer(FAILED);
+
+    synchronized (unacknowledged) {
+      if (!sending) {
+        acknowledge(Long.MAX_VALUE);
+      }
+    }
+  }
+
+  /**
+   * Sends the stream over a connection, resuming from wherever the receiver left off, and returns once the receiver has
+   * acknowledged the end of it.
+   *
+   * @throws CannotResumeException if the producer failed or the receiver lost chunks that were already acknowledged, in which case
+   *                               the transfer has to start over.
+   * @throws IOException           if the connection fails, in which case it can be resumed by calling this again with a new one.
+   */
+  void send(@NonNull ReadableByteChannel in, @NonNull WritableByteChannel out) throws IOException {
+    synchronized (unacknowledged) {
+      sending = true;
+    }
+
+    try {
+      sendChunks(in, out);
+    } catch (CannotResumeException e) {
+      if (failure == null) {
+        fail(e);
+      }
+      throw e;
+    } finally {
+      synchronized (unacknowledged) {
+        sending = false;
+        if (failure != null) {
+          acknowledge(Long.MAX_VALUE);
+        }
+      }
+    }
+  }
+
+  private void sendChunks(@NonNull ReadableByteChannel in, @NonNull WritableByteChannel out) throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    ByteBuffer ack    = ByteBuffer.allocate(8);
+
+    long resumeFrom = ChunkedTransfer.readLong(in, ack);
+    long retainedFrom = unacknowledged.isEmpty() ? nextToSend : unacknowledged.peekFirst().sequence;
+
+    if (resumeFrom < retainedFrom) {
+      throw new CannotResumeException("Receiver is expecting chunk " + resumeFrom + " but it was already acknowledged", null);
+    } else if (resumeFrom <= nextToSend) {
+      acknowledge(resumeFrom - 1);
+    } else {
+      Log.w(TAG, "Receiver is expecting chunk " + resumeFrom + " but we've only sent up to " + nextToSend + ". It must be left over from another transfer.");
+    }
+
+    if (!unacknowledged.isEmpty()) {
+      Log.i(TAG, "Resuming from chunk " + resumeFrom + ", resending " + unacknowledged.size() + " chunks");
+    }
+
+    for (Chunk chunk : unacknowledged) {
+      write(out, header, chunk);
+    }
+
+    while (!endTaken) {
+      while (unacknowledged.size() >= WINDOW_SIZE) {
+        acknowledge(ChunkedTransfer.readLong(in, ack));
+      }
+
+      Chunk chunk = take();
+      unacknowledged.add(chunk);
+      nextToSend = chunk.sequence + 1;
+      write(out, header, chunk);
+
+      endTaken = chunk.type == FRAME_END;
+    }
+
+    while (!unacknowledged.isEmpty()) {
+      acknowledge(ChunkedTransfer.readLong(in, ack));
+    }
+  }
+
+  void enqueue(byte type, @Nullable ByteBuffer buffer, @Nullable SharedFile file, long filePosition, int length) throws IOException {
+    if (failure != null) {
+      throw new CannotResumeException("Producer failed", failure);
+    }
+
+    try {
+      queue.put(new Chunk(type, nextSequence++, buffer, file, filePosition, length));
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException();
+    }
+  }
+
+  @NonNull ByteBuffer takeBuffer() throws InterruptedIOException {
+    return pool.take();
+  }
+
+  private @NonNull Chunk take() throws IOException {
+    Chunk chunk;
+    try {
+      chunk = queue.take();
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException();
+    }
+
+    if (chunk == FAILED) {
+      queue.offer(FAILED);
+      throw new CannotResumeException("Producer failed", failure);
+    }
+
+    return chunk;
+  }
+
+  private void acknowledge(long sequence) {
+    while (!unacknowledged.isEmpty() && unacknowledged.peekFirst().sequence <= sequence) {
+      release(unacknowledged.pollFirst());
+    }
+  }
+
+  private void release(@NonNull Chunk chunk) {
+    if (chunk.buffer != null) {
+      pool.release(chunk.buffer);
+    }
+
+    if (chunk.file != null) {
+      chunk.file.release();
+    }
+  }
+
+  private static void write(@NonNull WritableByteChannel out, @NonNull ByteBuffer header, @NonNull Chunk chunk) throws IOException {
+    header.clear();
+    header.put(chunk.type).putLong(chunk.sequence).putInt(chunk.length);
+    header.flip();
+    ChunkedTransfer.writeFully(out, header);
+
+    if (chunk.buffer != null) {
+      ByteBuffer payload = chunk.buffer.duplicate();
+      payload.position(0).limit(chunk.length);
+      ChunkedTransfer.writeFully(out, payload);
+    } else if (chunk.file != null) {
+      long position = chunk.filePosition;
+      long end      = chunk.filePosition + chunk.length;
+
+      while (position < end) {
+        long transferred = chunk.file.channel.transferTo(position, end - position, out);
+        if (transferred <= 0 && position >= chunk.file.channel.size()) {
+          throw new IOException("File shrank while being sent");
+        }
+        position += transferred;
+      }
+    }
+  }
+
+  private static final class Chunk {
+    private final byte       type;
+    private final long       sequence;
+    private final ByteBuffer buffer;
+    private final SharedFile file;
+    private final long       filePosition;
+    private final int        length;
+
+    private Chunk(byte type, long sequence, @Nullable ByteBuffer buffer, @Nullable SharedFile file, long filePosition, int length) {
+      this.type         = type;
+      this.sequence     = sequence;
+      this.buffer       = buffer;
+      this.file         = file;
+      this.filePosition = filePosition;
+      this.length       = length;
+    }
+  }
+
+  /**
+   * A file that's sent as several chunks, and closed once all of them have been acknowledged.
+   */
+  static final class SharedFile {
+    private final FileChannel   channel;
+    private final AtomicInteger references;
+
+    SharedFile(@NonNull FileChannel channel, int references) {
+      this.channel    = channel;
+      this.references = new AtomicInteger(references);
+    }
+
+    private void release() {
+      release(1);
+    }
+
+    /**
+     * Drops {@code count} references at once, for chunks that will never be sent. The file is closed once none are left.
+     */
+    void release(int count) {
+      if (references.addAndGet(-count) == 0) {
+        StreamUtil.close(channel);
+      }
+    }
+  }
+
+  static final class CannotResumeException extends IOException {
+    CannotResumeException(@NonNull String message, @Nullable Throwable cause) {
+      super(message, cause);
+    }
+  }
+}
@@ -5,15 +5,19 @@ import android.os.Handler;
 
 import androidx.annotation.AnyThread;
 import androidx.annotation.NonNull;
+import androidx.annotation.VisibleForTesting;
 
 import org.signal.core.util.StreamUtil;
 import org.signal.core.util.ThreadUtil;
 import org.signal.core.util.logging.Log;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.net.InetSocketAddress;
+import java.nio.channels.Channels;
 import java.security.cert.X509Certificate;
 import java.util.concurrent.TimeUnit;
 
@@ -24,6 +28,10 @@ import javax.net.ssl.SSLSocket;
  * Performs the networking setup/tear down for the client. This includes
  * connecting to the server, performing the TLS/SAS verification, running an
  * arbitrarily provided {@link ClientTask}, and then cleaning up.
+ * <p>
+ * When the server supports it, the task runs on its own thread and its output is
+ * sent as a {@link ChunkedTransferSender chunked transfer}, which lets a reconnect
+ * resume the transfer instead of starting it over.
  */
 final class NetworkClientThread extends Thread {
 
@@ -37,6 +45,7 @@ final class NetworkClientThread extends Thread {
   private volatile SSLSocket client;
   private volatile boolean   isRunning;
   private volatile Boolean   isVerified;
+  private volatile Thread    producerThread;
 
   private final Context    context;
   private final ClientTask clientTask;
@@ -46,6 +55,8 @@ final class NetworkClientThread extends Thread {
   private final Object     verificationLock;
   private       boolean    success;
 
+  private ChunkedTransferSender sender;
+
   public NetworkClientThread(@NonNull Context context,
                              @NonNull ClientTask clientTask,
                              @NonNull String serverHostAddress,
@@ -92,21 +103,26 @@ final class NetworkClientThread extends Thread {
           Log.i(TAG, "Waiting for user to verify sas");
           awaitAuthenticationCodeVerification();
           Log.d(TAG, "Waiting for server to tell us they also verified");
-          outputStream.write(0x43);
+          outputStream.write(ChunkedTransfer.CHUNKED_TRANSFER_MARKER);
           outputStream.flush();
+          boolean chunked;
           try {
-            int result = inputStream.read();
-            if (result == -1) {
-              Log.w(TAG, "Something happened waiting for server to verify");
-              throw new DeviceTransferAuthentication.DeviceTransferAuthenticationException("server disconnected while we waited");
-            }
+            chunked = ChunkedTransfer.readVerification(inputStream);
+          } catch (EOFException e) {
+            Log.w(TAG, "Something happened waiting for server to verify");
+            throw new DeviceTransferAuthentication.DeviceTransferAuthenticationException("server disconnected while we waited");
           } catch (IOException e) {
             Log.w(TAG, "Something happened waiting for server to verify", e);
             throw new DeviceTransferAuthentication.DeviceTransferAuthenticationException(e);
           }
 
           handler.sendEmptyMessage(NETWORK_CLIENT_CONNECTED);
-          clientTask.run(context, outputStream);
+          if (chunked) {
+            sendChunked(inputStream, outputStream);
+          } else {
+            Log.i(TAG, "Server does not support chunked transfers");
+            clientTask.run(context, outputStream);
+          }
           outputStream.flush();
 
           Log.d(TAG, "Waiting for server to tell us they got everything");
@@ -139,10 +155,61 @@ final class NetworkClientThread extends Thread {
       }
     }
 
+    Thread producer = producerThread;
+    if (producer != null) {
+      producer.interrupt();
+    }
+
     Log.i(TAG, "Client exiting");
     handler.sendEmptyMessage(NETWORK_CLIENT_STOPPED);
   }
 
+  @VisibleForTesting
+  void sendChunked(@NonNull InputStream inputStream, @NonNull OutputStream outputStream) throws IOException {
+    if (sender == null) {
+      stopProducer();
+      sender = new ChunkedTransferSender();
+      startProducer(sender);
+    } else {
+      Log.i(TAG, "Resuming chunked transfer");
+    }
+
+    try {
+      sender.send(Channels.newChannel(inputStream), Channels.newChannel(outputStream));
+    } catch (ChunkedTransferSender.CannotResumeException e) {
+      Log.w(TAG, "Unable to resume chunked transfer, starting over next time", e);
+      sender = null;
+      throw e;
+    }
+  }
+
+  private void startProducer(@NonNull ChunkedTransferSender sender) {
+    producerThread = new Thread(() -> {
+      try {
+        clientTask.run(context, sender.getOutputStream());
+        sender.getOutputStream().close();
+      } catch (Throwable t) {
+        Log.w(TAG, "Client task failed", t);
+        sender.fail(t);
+      }
+    }, "DeviceTransferProducer");
+    producerThread.start();
+  }
+
+  private void stopProducer() throws InterruptedIOException {
+    Thread producer = producerThread;
+    if (producer == null) {
+      return;
+    }
+
+    producer.interrupt();
+    try {
+      producer.join();
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException();
+    }
+  }
+
   private void awaitAuthenticationCodeVerification() throws DeviceTransferAuthentication.DeviceTransferAuthenticationException {
     synchronized (verificationLock) {
       try {
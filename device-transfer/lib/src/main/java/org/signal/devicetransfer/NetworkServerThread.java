@@ -5,20 +5,29 @@ import android.os.Handler;
 
 import androidx.annotation.AnyThread;
 import androidx.annotation.NonNull;
+import androidx.annotation.VisibleForTesting;
 
 import org.signal.core.util.StreamUtil;
 import org.signal.core.util.logging.Log;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.Channels;
 
 /**
  * Performs the networking setup/tear down for the server. This includes
  * connecting to the client, generating TLS keys, performing the TLS/SAS verification,
  * running an arbitrarily provided {@link ServerTask}, and then cleaning up.
+ * <p>
+ * When the client supports it, the task runs on its own thread and reads from a
+ * {@link ChunkedTransferReceiver chunked transfer}, which carries on across
+ * reconnects until the whole stream has been received. Once the task has
+ * returned, whatever's left of the transfer is received without running it again.
  */
 final class NetworkServerThread extends Thread {
 
@@ -34,6 +43,8 @@ final class NetworkServerThread extends Thread {
   private volatile Socket       clientSocket;
   private volatile boolean      isRunning;
   private volatile Boolean      isVerified;
+  private volatile Thread       consumerThread;
+  private volatile boolean      taskFinished;
 
   private final Context                           context;
   private final ServerTask                        serverTask;
@@ -41,6 +52,8 @@ final class NetworkServerThread extends Thread {
   private final Handler                           handler;
   private final Object                            verificationLock;
 
+  private ChunkedTransferReceiver receiver;
+
   public NetworkServerThread(@NonNull Context context,
                              @NonNull ServerTask serverTask,
                              @NonNull SelfSignedIdentity.SelfSignedKeys keys,
@@ -80,21 +93,26 @@ final class NetworkServerThread extends Thread {
           Log.i(TAG, "Waiting for user to verify sas");
           awaitAuthenticationCodeVerification();
           Log.d(TAG, "Waiting for client to tell us they also verified");
-          outputStream.write(0x43);
+          outputStream.write(ChunkedTransfer.CHUNKED_TRANSFER_MARKER);
           outputStream.flush();
+          boolean chunked;
           try {
-            int result = inputStream.read();
-            if (result == -1) {
-              Log.w(TAG, "Something happened waiting for client to verify");
-              throw new DeviceTransferAuthentication.DeviceTransferAuthenticationException("client disconnected while we waited");
-            }
+            chunked = ChunkedTransfer.readVerification(inputStream);
+          } catch (EOFException e) {
+            Log.w(TAG, "Something happened waiting for client to verify");
+            throw new DeviceTransferAuthentication.DeviceTransferAuthenticationException("client disconnected while we waited");
           } catch (IOException e) {
             Log.w(TAG, "Something happened waiting for client to verify", e);
             throw new DeviceTransferAuthentication.DeviceTransferAuthenticationException(e);
           }
 
           handler.sendEmptyMessage(NETWORK_CLIENT_CONNECTED);
-          serverTask.run(context, inputStream);
+          if (chunked) {
+            receiveChunked(inputStream, outputStream);
+          } else {
+            Log.i(TAG, "Client does not support chunked transfers");
+            serverTask.run(context, inputStream);
+          }
 
           outputStream.write(0x53);
           outputStream.flush();
@@ -117,11 +135,71 @@ final class NetworkServerThread extends Thread {
       StreamUtil.close(serverSocket);
     }
 
+    Thread consumer = consumerThread;
+    if (consumer != null) {
+      consumer.interrupt();
+    }
+
     Log.i(TAG, "Server exiting");
     isRunning = false;
     handler.sendEmptyMessage(NETWORK_SERVER_STOPPED);
   }
 
+  @VisibleForTesting
+  void receiveChunked(@NonNull InputStream inputStream, @NonNull OutputStream outputStream) throws IOException {
+    if (receiver == null) {
+      receiver = new ChunkedTransferReceiver();
+      if (taskFinished) {
+        Log.w(TAG, "Server task already ran, accepting the transfer without running it again");
+        StreamUtil.close(receiver.getInputStream());
+      } else {
+        startConsumer(receiver);
+      }
+    } else if (taskFinished) {
+      Log.i(TAG, "Server task already finished, accepting the rest of the transfer");
+    } else {
+      Log.i(TAG, "Resuming chunked transfer");
+    }
+
+    try {
+      receiver.receive(Channels.newChannel(inputStream), Channels.newChannel(outputStream));
+    } catch (ChunkedTransferReceiver.OutOfSequenceException e) {
+      receiver = null;
+      if (!taskFinished) {
+        Log.w(TAG, "Client started a new transfer, dropping the old one");
+        consumerThread.interrupt();
+        awaitConsumer();
+        taskFinished = false;
+      }
+      throw e;
+    }
+
+    receiver = null;
+    awaitConsumer();
+  }
+
+  private void awaitConsumer() throws InterruptedIOException {
+    try {
+      consumerThread.join();
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException();
+    }
+  }
+
+  private void startConsumer(@NonNull ChunkedTransferReceiver receiver) {
+    consumerThread = new Thread(() -> {
+      try {
+        serverTask.run(context, receiver.getInputStream());
+      } catch (IOException | RuntimeException e) {
+        Log.w(TAG, "Server task failed", e);
+      } finally {
+        taskFinished = true;
+        StreamUtil.close(receiver.getInputStream());
+      }
+    }, "DeviceTransferConsumer");
+    consumerThread.start();
+  }
+
   private void awaitAuthenticationCodeVerification() throws DeviceTransferAuthentication.DeviceTransferAuthenticationException {
     synchronized (verificationLock) {
       try {
@@ -0,0 +1,601 @@
+package org.signal.devicetransfer;
+
+import android.app.Application;
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.signal.core.util.logging.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.GeneralSecurityException;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, application = Application.class)
+public class ChunkedTransferTest {
+
+  private static final String TAG = Log.tag(ChunkedTransferTest.class);
+
+  private static final long TOTAL_SIZE = 1024L * 1024 * 1024;
+  private static final int  FILE_COUNT = 8;
+  private static final int  FILE_SIZE  = 16 * 1024 * 1024 + 123;
+  private static final int  TASK_SIZE  = 6 * ChunkedTransfer.CHUNK_SIZE + 123;
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private ExecutorService     executor;
+  private ServerSocketChannel serverSocket;
+  private List<File>          files;
+  private long                bytesWritten;
+
+  @Before
+  public void setUp() throws IOException {
+    executor     = Executors.newCachedThreadPool();
+    serverSocket = ServerSocketChannel.open();
+    serverSocket.bind(new InetSocketAddress("127.0.0.1", 0));
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    executor.shutdownNow();
+    serverSocket.close();
+  }
+
+  private void createFiles() throws IOException {
+    files = new ArrayList<>();
+    for (int i = 0; i < FILE_COUNT; i++) {
+      File file = temporaryFolder.newFile("file" + i);
+      try (OutputStream outputStream = new FileOutputStream(file)) {
+        byte[] buffer = new byte[64 * 1024];
+        Random random = new Random(i);
+        for (int written = 0; written < FILE_SIZE; written += buffer.length) {
+          random.nextBytes(buffer);
+          outputStream.write(buffer, 0, Math.min(buffer.length, FILE_SIZE - written));
+        }
+      }
+      files.add(file);
+    }
+  }
+
+  @Test
+  public void transfer_withoutDisconnect() throws Exception {
+    createFiles();
+
+    ChunkedTransferSender   sender   = new ChunkedTransferSender();
+    ChunkedTransferReceiver receiver = new ChunkedTransferReceiver();
+
+    Future<byte[]> expected = executor.submit(() -> produce(sender.getOutputStream()));
+    Future<byte[]> actual   = executor.submit(() -> digest(receiver.getInputStream()));
+
+    long start = System.nanoTime();
+    connect(sender, receiver, null);
+    report("Without disconnect", start);
+
+    assertArrayEquals(expected.get(), actual.get(30, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void transfer_withDisconnect_resumes() throws Exception {
+    createFiles();
+
+    ChunkedTransferSender   sender   = new ChunkedTransferSender();
+    ChunkedTransferReceiver receiver = new ChunkedTransferReceiver();
+
+    Future<byte[]> expected = executor.submit(() -> produce(sender.getOutputStream()));
+    Future<byte[]> actual   = executor.submit(() -> digest(receiver.getInputStream()));
+
+    long seed         = new Random().nextLong();
+    long disconnectAt = TOTAL_SIZE / 10 + (long) (new Random(seed).nextDouble() * TOTAL_SIZE * 0.8);
+    long start        = System.nanoTime();
+
+    try {
+      connect(sender, receiver, disconnectAt);
+      fail("Expected the connection to drop at " + disconnectAt + " (seed " + seed + ")");
+    } catch (IOException e) {
+      // Expected
+    }
+
+    connect(sender, receiver, Long.MAX_VALUE);
+    report("With disconnect at " + disconnectAt + " (seed " + seed + ")", start);
+
+    assertArrayEquals("Disconnected at " + disconnectAt + " (seed " + seed + ")", expected.get(), actual.get(30, TimeUnit.SECONDS));
+
+    long headers = (TOTAL_SIZE / ChunkedTransfer.CHUNK_SIZE + 2 * FILE_COUNT + 2) * ChunkedTransfer.HEADER_SIZE;
+    long window  = (long) ChunkedTransfer.WINDOW_SIZE * (ChunkedTransfer.CHUNK_SIZE + ChunkedTransfer.HEADER_SIZE);
+    assertTrue("Sent " + bytesWritten + " bytes, disconnected at " + disconnectAt + " (seed " + seed + ")",
+               bytesWritten >= TOTAL_SIZE && bytesWritten <= TOTAL_SIZE + headers + window);
+  }
+
+  @Test
+  public void verification_bothSupportChunked() throws Exception {
+    try (ServerSocket listener     = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+         Socket       clientSocket = new Socket(listener.getInetAddress(), listener.getLocalPort());
+         Socket       serverSocket = listener.accept())
+    {
+      clientSocket.getOutputStream().write(ChunkedTransfer.CHUNKED_TRANSFER_MARKER);
+      serverSocket.getOutputStream().write(ChunkedTransfer.CHUNKED_TRANSFER_MARKER);
+
+      assertTrue(ChunkedTransfer.readVerification(clientSocket.getInputStream()));
+      assertTrue(ChunkedTransfer.readVerification(serverSocket.getInputStream()));
+    }
+  }
+
+  @Test
+  public void verification_withLegacyDevice_isNotChunked() throws Exception {
+    assertFalse(ChunkedTransfer.readVerification(new ByteArrayInputStream(new byte[] { 0x43 })));
+  }
+
+  @Test(expected = EOFException.class)
+  public void verification_whenDisconnected_throws() throws Exception {
+    ChunkedTransfer.readVerification(new ByteArrayInputStream(new byte[0]));
+  }
+
+  @Test
+  public void networkThreads_withDisconnect_resumeWithoutRerunningTasks() throws Exception {
+    TestClientTask      clientTask = new TestClientTask(-1);
+    TestServerTask      serverTask = new TestServerTask(Long.MAX_VALUE);
+    NetworkClientThread client     = newClient(clientTask);
+    NetworkServerThread server     = newServer(serverTask);
+
+    try {
+      connect(client, server, TASK_SIZE / 2);
+      fail("Expected the connection to drop");
+    } catch (IOException e) {
+      // Expected
+    }
+
+    connect(client, server, Long.MAX_VALUE);
+
+    assertEquals(1, clientTask.runs.get());
+    assertEquals(1, serverTask.runs.get());
+    assertArrayEquals(taskDigest(TASK_SIZE), serverTask.digest);
+  }
+
+  @Test
+  public void networkThreads_whenServerTaskReturnsEarly_acceptRestOfTransfer() throws Exception {
+    TestClientTask      clientTask = new TestClientTask(-1);
+    TestServerTask      serverTask = new TestServerTask(ChunkedTransfer.CHUNK_SIZE);
+    NetworkClientThread client     = newClient(clientTask);
+    NetworkServerThread server     = newServer(serverTask);
+
+    connect(client, server, Long.MAX_VALUE);
+
+    assertEquals(1, serverTask.runs.get());
+    assertArrayEquals(taskDigest(ChunkedTransfer.CHUNK_SIZE), serverTask.digest);
+  }
+
+  @Test
+  public void networkThreads_whenServerTaskReturnsEarlyAndConnectionDrops_doNotRerunServerTask() throws Exception {
+    TestClientTask      clientTask = new TestClientTask(-1);
+    TestServerTask      serverTask = new TestServerTask(1024);
+    NetworkClientThread client     = newClient(clientTask);
+    NetworkServerThread server     = newServer(serverTask);
+
+    try {
+      connect(client, server, TASK_SIZE / 2);
+      fail("Expected the connection to drop");
+    } catch (IOException e) {
+      // Expected
+    }
+
+    connect(client, server, Long.MAX_VALUE);
+
+    assertEquals(1, clientTask.runs.get());
+    assertEquals(1, serverTask.runs.get());
+    assertArrayEquals(taskDigest(1024), serverTask.digest);
+  }
+
+  @Test
+  public void networkThreads_whenClientTaskFails_startOver() throws Exception {
+    TestClientTask      clientTask = new TestClientTask(TASK_SIZE / 2);
+    TestServerTask      serverTask = new TestServerTask(Long.MAX_VALUE);
+    NetworkClientThread client     = newClient(clientTask);
+    NetworkServerThread server     = newServer(serverTask);
+
+    int attempts = 0;
+    while (true) {
+      attempts++;
+      try {
+        connect(client, server, Long.MAX_VALUE);
+        break;
+      } catch (IOException e) {
+        assertTrue("Still failing after " + attempts + " attempts: " + e, attempts < 3);
+      }
+    }
+
+    assertEquals(2, clientTask.runs.get());
+    assertArrayEquals(taskDigest(TASK_SIZE), serverTask.digest);
+  }
+
+  /**
+   * Runs one connection over loopback. If {@code dropAfter} is set, what the sending side writes is added to {@link #bytesWritten},
+   * and the connection is dropped once it's written that many bytes. Otherwise it writes straight to the socket.
+   */
+  private void connect(@NonNull ChunkedTransferSender sender, @NonNull ChunkedTransferReceiver receiver, @Nullable Long dropAfter) throws Exception {
+    SocketChannel client = SocketChannel.open(serverSocket.getLocalAddress());
+    SocketChannel server = serverSocket.accept();
+
+    Future<?> receiving = executor.submit(() -> {
+      receiver.receive(server, server);
+      return null;
+    });
+
+    CountingChannel counting = dropAfter != null ? new CountingChannel(client, dropAfter) : null;
+    try {
+      sender.send(client, counting != null ? counting : client);
+      receiving.get();
+    } catch (IOException e) {
+      client.close();
+      try {
+        receiving.get();
+      } catch (Exception ignored) {
+        // The receiver sees the connection drop too
+      }
+      throw e;
+    } finally {
+      if (counting != null) {
+        bytesWritten += counting.written;
+      }
+      client.close();
+      server.close();
+    }
+  }
+
+  /**
+   * Runs one connection between the network threads over loopback, dropping it once the client has written {@code dropAfter} bytes.
+   *
+   * @throws IOException if either side failed.
+   */
+  private void connect(@NonNull NetworkClientThread client, @NonNull NetworkServerThread server, long dropAfter) throws Exception {
+    try (ServerSocket listener     = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+         Socket       clientSocket = new Socket(listener.getInetAddress(), listener.getLocalPort());
+         Socket       serverSocket = listener.accept())
+    {
+      Future<?> receiving = executor.submit(() -> {
+        try {
+          server.receiveChunked(serverSocket.getInputStream(), serverSocket.getOutputStream());
+        } finally {
+          serverSocket.close();
+        }
+        return null;
+      });
+
+      try {
+        client.sendChunked(clientSocket.getInputStream(), new DroppingOutputStream(clientSocket, dropAfter));
+      } catch (IOException e) {
+        clientSocket.close();
+        try {
+          receiving.get(30, TimeUnit.SECONDS);
+        } catch (ExecutionException ignored) {
+          // The server sees the connection drop too
+        }
+        throw e;
+      }
+
+      try {
+        receiving.get(30, TimeUnit.SECONDS);
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof IOException) {
+          throw (IOException) e.getCause();
+        }
+        throw e;
+      }
+    }
+  }
+
+  private @NonNull NetworkClientThread newClient(@NonNull ClientTask clientTask) {
+    return new NetworkClientThread(RuntimeEnvironment.getApplication(), clientTask, "127.0.0.1", 0, new Handler(Looper.getMainLooper()));
+  }
+
+  private @NonNull NetworkServerThread newServer(@NonNull ServerTask serverTask) throws GeneralSecurityException {
+    SelfSignedIdentity.SelfSignedKeys keys = new SelfSignedIdentity.SelfSignedKeys(new byte[0], KeyPairGenerator.getInstance("EC").generateKeyPair().getPrivate());
+    return new NetworkServerThread(RuntimeEnvironment.getApplication(), serverTask, keys, new Handler(Looper.getMainLooper()));
+  }
+
+  /**
+   * @return The digest of the first {@code length} bytes the client tasks write.
+   */
+  private static byte[] taskDigest(long length) {
+    MessageDigest digest = sha256();
+    byte[]        buffer = new byte[64 * 1024];
+    long          seed   = 0;
+
+    for (long written = 0; written < length; written += buffer.length) {
+      seed = fill(buffer, buffer.length, seed);
+      digest.update(buffer, 0, (int) Math.min(buffer.length, length - written));
+    }
+
+    return digest.digest();
+  }
+
+  /**
+   * Writes the test data set: generated data written in varying sizes, interleaved with files, adding up to {@link #TOTAL_SIZE}.
+   *
+   * @return The digest of everything written.
+   */
+  private byte[] produce(@NonNull ChunkedOutputStream outputStream) throws IOException {
+    MessageDigest digest     = sha256();
+    Random        random     = new Random(42);
+    byte[]        buffer     = new byte[256 * 1024];
+    long          streamSize = TOTAL_SIZE - (long) FILE_COUNT * FILE_SIZE;
+    long          fileEvery  = streamSize / (FILE_COUNT + 1);
+    long          written    = 0;
+    long          seed       = 0;
+    int           file       = 0;
+
+    while (written < streamSize) {
+      int length = (int) Math.min(1 + random.nextInt(buffer.length), streamSize - written);
+      seed = fill(buffer, length, seed);
+
+      outputStream.write(buffer, 0, length);
+      digest.update(buffer, 0, length);
+      written += length;
+
+      if (file < FILE_COUNT && written >= fileEvery * (file + 1)) {
+        outputStream.writeFile(files.get(file));
+        digestFile(digest, files.get(file));
+        file++;
+      }
+    }
+
+    outputStream.close();
+    return digest.digest();
+  }
+
+  private static byte[] digest(@NonNull InputStream inputStream) throws IOException {
+    MessageDigest digest = sha256();
+    byte[]        buffer = new byte[64 * 1024];
+    long          total  = 0;
+    int           read;
+
+    while ((read = inputStream.read(buffer)) != -1) {
+      digest.update(buffer, 0, read);
+      total += read;
+    }
+
+    inputStream.close();
+    assertEquals(TOTAL_SIZE, total);
+    return digest.digest();
+  }
+
+  private static void digestFile(@NonNull MessageDigest digest, @NonNull File file) throws IOException {
+    try (InputStream inputStream = new FileInputStream(file)) {
+      byte[] buffer = new byte[64 * 1024];
+      int    read;
+      while ((read = inputStream.read(buffer)) != -1) {
+        digest.update(buffer, 0, read);
+      }
+    }
+  }
+
+  /**
+   * Fills the buffer with an xorshift sequence, which is much quicker to generate than {@link Random#nextBytes(byte[])}.
+   */
+  private static long fill(@NonNull byte[] buffer, int length, long seed) {
+    long state = seed + 0x9E3779B97F4A7C15L;
+    for (int i = 0; i < length; i++) {
+      if ((i & 7) == 0) {
+        state ^= state << 13;
+        state ^= state >>> 7;
+        state ^= state << 17;
+      }
+      buffer[i] = (byte) (state >>> ((i & 7) * 8));
+    }
+    return state;
+  }
+
+  private static void report(@NonNull String name, long start) {
+    double seconds = (System.nanoTime() - start) / 1e9;
+    Log.i(TAG, String.format(Locale.US, "%s: %d MiB in %.2fs, %.1f MiB/s", name, TOTAL_SIZE >> 20, seconds, (TOTAL_SIZE >> 20) / seconds));
+  }
+
+  private static MessageDigest sha256() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  /**
+   * Counts what's written to a socket, and closes it once a limit is reached to simulate the connection dropping.
+   */
+  private static final class CountingChannel implements WritableByteChannel {
+
+    private final SocketChannel channel;
+    private final long          limit;
+
+    private long written;
+
+    private CountingChannel(@NonNull SocketChannel channel, long limit) {
+      this.channel = channel;
+      this.limit   = limit;
+    }
+
+    @Override
+    public int write(ByteBuffer source) throws IOException {
+      long remaining = limit - written;
+      if (remaining <= 0) {
+        channel.close();
+        throw new IOException("Connection dropped");
+      }
+
+      ByteBuffer slice = source.duplicate();
+      if (slice.remaining() > remaining) {
+        slice.limit(slice.position() + (int) remaining);
+      }
+
+      int count = channel.write(slice);
+      source.position(source.position() + count);
+      written += count;
+      return count;
+    }
+
+    @Override
+    public boolean isOpen() {
+      return channel.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+      channel.close();
+    }
+  }
+
+  /**
+   * Writes {@link #TASK_SIZE} bytes, failing partway through the first time it runs if asked to.
+   */
+  private static final class TestClientTask implements ClientTask {
+
+    private final long          failAfter;
+    private final AtomicInteger runs = new AtomicInteger();
+
+    private TestClientTask(long failAfter) {
+      this.failAfter = failAfter;
+    }
+
+    @Override
+    public void run(@NonNull Context context, @NonNull OutputStream outputStream) throws IOException {
+      boolean fails  = runs.incrementAndGet() == 1 && failAfter >= 0;
+      byte[]  buffer = new byte[64 * 1024];
+      long    seed   = 0;
+
+      for (int written = 0; written < TASK_SIZE; written += buffer.length) {
+        if (fails && written >= failAfter) {
+          throw new IOException("Client task failed");
+        }
+
+        seed = fill(buffer, buffer.length, seed);
+        outputStream.write(buffer, 0, Math.min(buffer.length, TASK_SIZE - written));
+      }
+    }
+
+    @Override
+    public void success() {
+    }
+  }
+
+  /**
+   * Reads up to {@code readLimit} bytes and returns, keeping the digest of what it read if it wasn't interrupted.
+   */
+  private static final class TestServerTask implements ServerTask {
+
+    private final long          readLimit;
+    private final AtomicInteger runs = new AtomicInteger();
+
+    private volatile byte[] digest;
+
+    private TestServerTask(long readLimit) {
+      this.readLimit = readLimit;
+    }
+
+    @Override
+    public void run(@NonNull Context context, @NonNull InputStream inputStream) throws IOException {
+      runs.incrementAndGet();
+
+      MessageDigest digest = sha256();
+      byte[]        buffer = new byte[64 * 1024];
+      long          total  = 0;
+      int           read;
+
+      while (total < readLimit && (read = inputStream.read(buffer, 0, (int) Math.min(buffer.length, readLimit - total))) != -1) {
+        digest.update(buffer, 0, read);
+        total += read;
+      }
+
+      this.digest = digest.digest();
+    }
+  }
+
+  /**
+   * Writes to a socket, and closes it once a limit is reached to simulate the connection dropping.
+   */
+  private static final class DroppingOutputStream extends OutputStream {
+
+    private final Socket       socket;
+    private final OutputStream outputStream;
+    private final long         limit;
+
+    private long written;
+
+    private DroppingOutputStream(@NonNull Socket socket, long limit) throws IOException {
+      this.socket       = socket;
+      this.outputStream = socket.getOutputStream();
+      this.limit        = limit;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(@NonNull byte[] buffer, int offset, int length) throws IOException {
+      long remaining = limit - written;
+      if (remaining <= 0) {
+        socket.close();
+        throw new IOException("Connection dropped");
+      }
+
+      int count = (int) Math.min(length, remaining);
+      outputStream.write(buffer, offset, count);
+      written += count;
+
+      if (count < length) {
+        write(buffer, offset + count, length - count);
+      }
+    }
+
+    @Override
+    public void flush() throws IOException {
+      outputStream.flush();
+    }
+  }
+}
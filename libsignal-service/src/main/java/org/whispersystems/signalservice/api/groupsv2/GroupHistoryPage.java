@@ -36,6 +36,10 @@ public final class GroupHistoryPage {
       return new PagingData(groupHistory.hasMore(), groupHistory.hasMore() ? groupHistory.getNextPageStartGroupRevision() : -1);
     }
 
+    public static PagingData forNextPage(int nextPageRevision) {
+      return new PagingData(true, nextPageRevision);
+    }
+
     private PagingData(boolean hasMorePages, int nextPageRevision) {
       this.hasMorePages     = hasMorePages;
       this.nextPageRevision = nextPageRevision;
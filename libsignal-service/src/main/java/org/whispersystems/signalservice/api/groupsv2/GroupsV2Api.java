@@ -25,12 +25,18 @@ import org.whispersystems.signalservice.internal.push.PushServiceSocket;
 import org.whispersystems.signalservice.internal.push.exceptions.ForbiddenException;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+import javax.annotation.Nullable;
 
 import okio.ByteString;
 
@@ -113,20 +119,86 @@ public class GroupsV2Api {
                                               boolean includeFirstState)
       throws IOException, InvalidGroupStateException, VerificationFailedException
   {
-    PushServiceSocket.GroupHistory     group           = socket.getGroupsV2GroupHistory(fromRevision, authorization, GroupsV2Operations.HIGHEST_KNOWN_EPOCH, includeFirstState);
-    List<DecryptedGroupHistoryEntry>   result          = new ArrayList<>(group.getGroupChanges().groupChanges.size());
-    GroupsV2Operations.GroupOperations groupOperations = groupsOperations.forGroup(groupSecretParams);
+    return getGroupHistoryPage(groupSecretParams, fromRevision, authorization, includeFirstState, null);
+  }
 
-    for (GroupChanges.GroupChangeState change : group.getGroupChanges().groupChanges) {
-      Optional<DecryptedGroup>       decryptedGroup  = change.groupState != null ? Optional.of(groupOperations.decryptGroup(change.groupState)) : Optional.empty();
-      Optional<DecryptedGroupChange> decryptedChange = change.groupChange != null ? groupOperations.decryptChange(change.groupChange, false) : Optional.empty();
+  /**
+   * @param decryptExecutor If present, the entries of the page are decrypted concurrently on this executor rather than one after
+   *                        another on the calling thread. Results are always returned in server order.
+   */
+  public GroupHistoryPage getGroupHistoryPage(GroupSecretParams groupSecretParams,
+                                              int fromRevision,
+                                              GroupsV2AuthorizationString authorization,
+                                              boolean includeFirstState,
+                                              @Nullable Executor decryptExecutor)
+      throws IOException, InvalidGroupStateException, VerificationFailedException
+  {
+    PushServiceSocket.GroupHistory      group           = socket.getGroupsV2GroupHistory(fromRevision, authorization, GroupsV2Operations.HIGHEST_KNOWN_EPOCH, includeFirstState);
+    List<GroupChanges.GroupChangeState> changes         = group.getGroupChanges().groupChanges;
+    List<DecryptedGroupHistoryEntry>    result          = new ArrayList<>(changes.size());
+    GroupsV2Operations.GroupOperations  groupOperations = groupsOperations.forGroup(groupSecretParams);
+
+    if (decryptExecutor == null || changes.size() <= 1) {
+      for (GroupChanges.GroupChangeState change : changes) {
+        result.add(decryptHistoryEntry(groupOperations, change));
+      }
+    } else {
+      List<FutureTask<DecryptedGroupHistoryEntry>> tasks = new ArrayList<>(changes.size());
 
-      result.add(new DecryptedGroupHistoryEntry(decryptedGroup, decryptedChange));
+      for (GroupChanges.GroupChangeState change : changes) {
+        FutureTask<DecryptedGroupHistoryEntry> task = new FutureTask<>(() -> decryptHistoryEntry(groupOperations, change));
+        tasks.add(task);
+        decryptExecutor.execute(task);
+      }
+
+      try {
+        for (FutureTask<DecryptedGroupHistoryEntry> task : tasks) {
+          result.add(awaitDecryption(task));
+        }
+      } finally {
+        for (FutureTask<DecryptedGroupHistoryEntry> task : tasks) {
+          task.cancel(false);
+        }
+      }
     }
 
     return new GroupHistoryPage(result, GroupHistoryPage.PagingData.fromGroup(group));
   }
 
+  private static DecryptedGroupHistoryEntry decryptHistoryEntry(GroupsV2Operations.GroupOperations groupOperations, GroupChanges.GroupChangeState change)
+      throws IOException, InvalidGroupStateException, VerificationFailedException
+  {
+    Optional<DecryptedGroup>       decryptedGroup  = change.groupState != null ? Optional.of(groupOperations.decryptGroup(change.groupState)) : Optional.empty();
+    Optional<DecryptedGroupChange> decryptedChange = change.groupChange != null ? groupOperations.decryptChange(change.groupChange, false) : Optional.empty();
+
+    return new DecryptedGroupHistoryEntry(decryptedGroup, decryptedChange);
+  }
+
+  private static DecryptedGroupHistoryEntry awaitDecryption(FutureTask<DecryptedGroupHistoryEntry> task)
+      throws IOException, InvalidGroupStateException, VerificationFailedException
+  {
+    try {
+      return task.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while decrypting group history");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof InvalidGroupStateException) {
+        throw (InvalidGroupStateException) cause;
+      } else if (cause instanceof VerificationFailedException) {
+        throw (VerificationFailedException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else {
+        throw new AssertionError(cause);
+      }
+    }
+  }
+
   public DecryptedGroupJoinInfo getGroupJoinInfo(GroupSecretParams groupSecretParams,
                                                  Optional<byte[]> password,
                                                  GroupsV2AuthorizationString authorization)
@@ -19,25 +19,50 @@ import java.io.SequenceInputStream
 /**
  * A post processor that takes a stream of bytes, and using [Mp4Sanitizer], moves the metadata to the front of the file.
  *
+ * When given a [SeekableInputStreamFactory], the input is only read once in full. The sanitizer jumps over the media data by reopening
+ * the input further along instead of reading through it, and the final copy starts directly at the media data.
+ *
  * @property inputStreamFactory factory for the [InputStream]. Expected to be called multiple times.
  */
-class Mp4FaststartPostProcessor(private val inputStreamFactory: InputStreamFactory) {
+class Mp4FaststartPostProcessor private constructor(
+  private val inputStreamFactory: InputStreamFactory,
+  private val seekableInputStreamFactory: SeekableInputStreamFactory?
+) {
+
+  constructor(inputStreamFactory: InputStreamFactory) : this(inputStreamFactory, null)
+
+  constructor(seekableInputStreamFactory: SeekableInputStreamFactory) : this(InputStreamFactory { seekableInputStreamFactory.create(0) }, seekableInputStreamFactory)
 
   /**
    * It is the responsibility of the caller to close the resulting [InputStream].
    */
   fun process(inputLength: Long = calculateStreamLength(inputStreamFactory.create())): SequenceInputStream {
-    val metadata = inputStreamFactory.create().use { inputStream ->
+    val metadata = openForSanitizing().use { inputStream ->
       sanitizeMetadata(inputStream, inputLength)
     }
     if (metadata.sanitizedMetadata == null) {
       throw VideoPostProcessingException("Sanitized metadata was null!")
     }
-    val inputStream = inputStreamFactory.create()
-    inputStream.skip(metadata.dataOffset)
+    val inputStream = openAt(metadata.dataOffset)
     return SequenceInputStream(ByteArrayInputStream(metadata.sanitizedMetadata), LimitedInputStream(inputStream, metadata.dataLength))
   }
 
+  private fun openForSanitizing(): InputStream {
+    return if (seekableInputStreamFactory != null) {
+      SeekingInputStream(seekableInputStreamFactory)
+    } else {
+      inputStreamFactory.create()
+    }
+  }
+
+  private fun openAt(position: Long): InputStream {
+    return if (seekableInputStreamFactory != null) {
+      seekableInputStreamFactory.create(position)
+    } else {
+      inputStreamFactory.create().also { it.skip(position) }
+    }
+  }
+
   fun processAndWriteTo(outputStream: OutputStream, inputLength: Long = calculateStreamLength(inputStreamFactory.create())): Long {
     process(inputLength).use { inStream ->
       return inStream.copyTo(outputStream)
@@ -48,9 +73,20 @@ class Mp4FaststartPostProcessor(private val inputStreamFactory: InputStreamFacto
     fun create(): InputStream
   }
 
+  /**
+   * A factory for an [InputStream] that can start at any position in the input without reading what comes before it, such as one
+   * backed by a file or a seekable cipher.
+   */
+  fun interface SeekableInputStreamFactory {
+    fun create(position: Long): InputStream
+  }
+
   companion object {
     const val TAG = "Mp4Faststart"
 
+    /** Skips shorter than this are read through, since reopening the input has a fixed cost. */
+    private const val SEEK_THRESHOLD = 64 * 1024L
+
     @JvmStatic
     fun calculateStreamLength(inputStream: InputStream): Long {
       inputStream.use {
@@ -133,4 +169,54 @@ class Mp4FaststartPostProcessor(private val inputStreamFactory: InputStreamFacto
       return skipped
     }
   }
+
+  /**
+   * An [InputStream] over a [SeekableInputStreamFactory] that implements long skips by reopening the input at the target position.
+   */
+  private class SeekingInputStream(private val factory: SeekableInputStreamFactory) : InputStream() {
+    private var position: Long = 0
+    private var inner: InputStream = factory.create(0)
+
+    @Throws(IOException::class)
+    override fun read(): Int {
+      val result = inner.read()
+      if (result != -1) {
+        position++
+      }
+      return result
+    }
+
+    @Throws(IOException::class)
+    override fun read(b: ByteArray, off: Int, len: Int): Int {
+      val result = inner.read(b, off, len)
+      if (result > 0) {
+        position += result
+      }
+      return result
+    }
+
+    @Throws(IOException::class)
+    override fun skip(n: Long): Long {
+      if (n < SEEK_THRESHOLD) {
+        val skipped = inner.skip(n)
+        position += skipped
+        return skipped
+      }
+
+      inner.close()
+      inner = factory.create(position + n)
+      position += n
+      return n
+    }
+
+    @Throws(IOException::class)
+    override fun available(): Int {
+      return inner.available()
+    }
+
+    @Throws(IOException::class)
+    override fun close() {
+      inner.close()
+    }
+  }
 }